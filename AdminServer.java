@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP endpoint for operating the server, bound to the loopback interface.
+ *
+ * Serves three paths:
+ * - GET /metrics returns the current metrics in the Prometheus text format
+ * - GET /analytics returns the live game statistics (see Analytics)
+ * - POST /shutdown starts a graceful shutdown (see Shutdown)
+ *
+ * The endpoint is only reachable from the server's own machine, where a
+ * Prometheus agent, a deployment script or a quick curl can use it.
+ */
+public class AdminServer
+{
+    private static HttpServer admin;
+
+    /**
+     * Starts the admin endpoint.
+     *
+     * @param port The admin port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static synchronized void start(int port) throws IOException
+    {
+        admin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        admin.createContext("/metrics", exchange ->
+            respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", Metrics.scrape()));
+
+        admin.createContext("/analytics", exchange ->
+            respond(exchange, 200, "text/plain; charset=utf-8", Server.analytics.report()));
+
+        admin.createContext("/shutdown", exchange ->
+        {
+            // a POST only, so a stray browser visit or link prefetch can't stop the server
+            if (!exchange.getRequestMethod().equals("POST"))
+            {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "text/plain; charset=utf-8", "Use POST to shut down the server.\n");
+                return;
+            }
+
+            respond(exchange, 202, "text/plain; charset=utf-8", "Shutting down.\n");
+
+            // drained on its own thread, since shutting down also stops this endpoint
+            Thread shutdown = new Thread(() ->
+            {
+                Shutdown.run("admin command");
+                System.exit(0);
+            }, "shutdown");
+            shutdown.start();
+        });
+
+        admin.start();
+        Log.info("Admin endpoint listening on http://localhost:" + port + " (/metrics, /analytics, /shutdown)");
+    }
+
+    /**
+     * Stops the admin endpoint, if it was started.
+     */
+    public static synchronized void stop()
+    {
+        if (admin != null)
+        {
+            admin.stop(0);
+            admin = null;
+        }
+    }
+
+    /**
+     * Sends a complete text response.
+     *
+     * @param exchange The request being answered.
+     * @param status The HTTP status code.
+     * @param contentType The Content-Type header.
+     * @param text The response body.
+     * @throws IOException If the response cannot be sent.
+     */
+    private static void respond(HttpExchange exchange, int status, String contentType, String text) throws IOException
+    {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,393 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streaming statistics over every game played on the server.
+ *
+ * Each game session publishes its events (subject chosen, question asked,
+ * answer given, round won) to a Ring of its own, and a single background
+ * thread drains every ring into the aggregates:
+ * - the most chosen subjects, counted in a Count-Min sketch, with the TOP_K
+ *   heaviest kept by name
+ * - the average number of questions it takes the Guesser to win a round
+ * - how often each answer is given
+ *
+ * A ring has one producer at a time, the thread holding its session's lock,
+ * and one consumer, so publishing is a few plain writes and one ordered
+ * store: it never takes a lock, never allocates and never waits. A ring
+ * the consumer hasn't caught up with drops the event and counts it instead.
+ *
+ * The aggregates can be read at any time with report(), which the admin
+ * endpoint serves at /analytics.
+ */
+public class Analytics
+{
+    /** Events a session can publish before the consumer drains them, a power of two. */
+    private static final int RING_SIZE = 256;
+
+    /** Subjects reported by name, the most chosen first. */
+    private static final int TOP_K = 10;
+
+    /** Rows and counters per row of the Count-Min sketch. */
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+
+    /**
+     * How long the consumer sleeps when every ring is empty: at first the
+     * shortest time, doubled every time they are still empty, up to the
+     * longest, so an idle server's consumer hardly ever wakes up.
+     */
+    private static final long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final AtomicLongFieldUpdater<Ring> HEAD = AtomicLongFieldUpdater.newUpdater(Ring.class, "head");
+    private static final AtomicLongFieldUpdater<Ring> TAIL = AtomicLongFieldUpdater.newUpdater(Ring.class, "tail");
+
+    /**
+     * The kinds of events a session publishes.
+     */
+    public enum Event
+    {
+        SUBJECT,   // text: the subject
+        QUESTION,  // no detail
+        ANSWER,    // code: the answer's ordinal
+        RESULT     // code: the outcome for the Guesser's ordinal, questions: asked this round
+    }
+
+    /**
+     * A single-producer, single-consumer ring of a session's events.
+     *
+     * The slots are allocated with the ring and reused, so publishing only
+     * writes fields. The producer owns tail and the consumer owns head; each
+     * publishes its index with an ordered store once the slot is written or
+     * read, which is what hands the slot over to the other side.
+     */
+    public final class Ring
+    {
+        private final Event[] events = new Event[RING_SIZE];
+        private final String[] texts = new String[RING_SIZE];
+        private final int[] codes = new int[RING_SIZE];
+        private final int[] counts = new int[RING_SIZE];
+
+        /** Next slot the consumer reads, written by the consumer only. */
+        volatile long head = 0;
+        /** Next slot the producer writes, written by the producer only. */
+        volatile long tail = 0;
+
+        /** The consumer's head as last seen by the producer, so a ring with room doesn't read it. */
+        private long headCache = 0;
+
+        /** Set once the session has ended, the ring is dropped once drained. */
+        private volatile boolean closed = false;
+
+        /**
+         * Publishes an event without blocking or allocating.
+         *
+         * Must only be called by one thread at a time.
+         *
+         * @param event The kind of event.
+         * @param text The subject, or null.
+         * @param code The answer or outcome ordinal, or 0.
+         * @param questions The questions asked this round, or 0.
+         */
+        public void publish(Event event, String text, int code, int questions)
+        {
+            long t = tail;
+
+            if (t - headCache >= RING_SIZE)
+            {
+                headCache = head;
+
+                if (t - headCache >= RING_SIZE)
+                {
+                    dropped.increment();
+                    return;
+                }
+            }
+
+            int slot = (int) t & (RING_SIZE - 1);
+            events[slot] = event;
+            texts[slot] = text;
+            codes[slot] = code;
+            counts[slot] = questions;
+
+            TAIL.lazySet(this, t + 1);
+
+            // half full as far as the producer knows, wake the consumer before it fills up
+            if (t + 1 - headCache == RING_SIZE / 2) LockSupport.unpark(consumer);
+        }
+
+        /**
+         * Publishes an event with no detail.
+         *
+         * @param event The kind of event.
+         */
+        public void publish(Event event)
+        {
+            publish(event, null, 0, 0);
+        }
+
+        /**
+         * Marks the session as over, once it has published its last event.
+         */
+        public void close()
+        {
+            closed = true;
+        }
+
+        /**
+         * Hands every published event to the aggregates. Called by the consumer only.
+         *
+         * @return The number of events drained.
+         */
+        private int drain()
+        {
+            long h = head;
+            long t = tail;
+
+            for (long i = h; i < t; i++)
+            {
+                int slot = (int) i & (RING_SIZE - 1);
+                consume(events[slot], texts[slot], codes[slot], counts[slot]);
+
+                // the subject isn't needed anymore, and the slot is reused
+                texts[slot] = null;
+            }
+
+            HEAD.lazySet(this, t);
+            return (int) (t - h);
+        }
+    }
+
+    /** Rings of sessions that haven't been drained for good yet. */
+    private final Set<Ring> rings = ConcurrentHashMap.newKeySet();
+    /** Events dropped because their session's ring was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    // the aggregates below are written by the consumer and read by report(), guarded by this
+    private final long[][] sketch = new long[DEPTH][WIDTH];
+    /** The heaviest subjects seen so far, with their estimated counts. */
+    private final Map<String, Long> top = new HashMap<>();
+    private final long[] answers = new long[GameSession.Answer.values().length];
+    private final long[] outcomes = new long[Message.Outcome.values().length];
+    private long subjects = 0;
+    private long questions = 0;
+    /** Questions asked in the rounds the Guesser won. */
+    private long questionsToWin = 0;
+
+    private final Thread consumer;
+    private volatile boolean stopped = false;
+
+    /**
+     * Starts the consumer thread.
+     *
+     * @param name The consumer thread's name.
+     */
+    public Analytics(String name)
+    {
+        consumer = new Thread(this::drainRings, name);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Opens a ring for a new session to publish its events to.
+     *
+     * @return The session's ring.
+     */
+    public Ring open()
+    {
+        Ring ring = new Ring();
+        rings.add(ring);
+
+        return ring;
+    }
+
+    /**
+     * Stops the consumer once it has drained what was published so far.
+     */
+    public void stop()
+    {
+        stopped = true;
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Drains the rings until stopped, sleeping longer and longer while they
+     * are all empty.
+     */
+    private void drainRings()
+    {
+        long idle = MIN_IDLE_NANOS;
+
+        while (true)
+        {
+            boolean stopping = stopped;
+            int drained = 0;
+
+            for (Ring ring : rings)
+            {
+                // read before draining, so an event published just before closing isn't missed
+                boolean closed = ring.closed;
+
+                drained += ring.drain();
+
+                if (closed) rings.remove(ring);
+            }
+
+            if (stopping) return;
+
+            if (drained > 0)
+            {
+                idle = MIN_IDLE_NANOS;
+            }
+            else
+            {
+                LockSupport.parkNanos(idle);
+                idle = Math.min(idle * 2, MAX_IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Adds a single event to the aggregates.
+     *
+     * @param event The kind of event.
+     * @param text The subject, or null.
+     * @param code The answer or outcome ordinal.
+     * @param count The questions asked this round.
+     */
+    private synchronized void consume(Event event, String text, int code, int count)
+    {
+        switch (event)
+        {
+            case SUBJECT ->  countSubject(PlayerRegistry.normalize(text));
+            case QUESTION -> questions++;
+            case ANSWER ->   answers[code]++;
+            case RESULT ->
+            {
+                outcomes[code]++;
+                if (code == Message.Outcome.WON_GUESSED.ordinal()) questionsToWin += count;
+            }
+        }
+    }
+
+    /**
+     * Counts a subject in the sketch and keeps it among the heaviest if its
+     * estimate is high enough.
+     *
+     * @param subject The normalized subject.
+     */
+    private void countSubject(String subject)
+    {
+        subjects++;
+
+        long estimate = Long.MAX_VALUE;
+        int hash = subject.hashCode();
+
+        for (int row = 0; row < DEPTH; row++)
+        {
+            long[] counters = sketch[row];
+            int column = index(hash, row);
+
+            estimate = Math.min(estimate, ++counters[column]);
+        }
+
+        if (top.containsKey(subject) || top.size() < TOP_K)
+        {
+            top.put(subject, estimate);
+            return;
+        }
+
+        // replace the lightest of the heaviest, if this subject now outweighs it
+        String lightest = null;
+
+        for (Map.Entry<String, Long> entry : top.entrySet())
+        {
+            if (lightest == null || entry.getValue() < top.get(lightest)) lightest = entry.getKey();
+        }
+
+        if (estimate > top.get(lightest))
+        {
+            top.remove(lightest);
+            top.put(subject, estimate);
+        }
+    }
+
+    /**
+     * Picks a subject's counter in one row of the sketch.
+     *
+     * @param hash The subject's hash code.
+     * @param row The row.
+     * @return The column of the subject's counter.
+     */
+    private static int index(int hash, int row)
+    {
+        // a different odd multiplier per row, mixed like MurmurHash3's finalizer
+        int h = hash * (0x9E3779B9 + (row << 1));
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+
+        return h & (WIDTH - 1);
+    }
+
+    /**
+     * Gets the events dropped because a session's ring was full.
+     *
+     * @return The number of dropped events.
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Describes the aggregates so far.
+     *
+     * @return The report, as plain text.
+     */
+    public synchronized String report()
+    {
+        StringBuilder out = new StringBuilder();
+
+        long won = outcomes[Message.Outcome.WON_GUESSED.ordinal()];
+        long rounds = won + outcomes[Message.Outcome.LOST_OUT_OF_QUESTIONS.ordinal()];
+
+        out.append("rounds ").append(rounds).append('\n');
+        out.append("rounds_guessed ").append(won).append('\n');
+        out.append("subjects_chosen ").append(subjects).append('\n');
+        out.append("questions_asked ").append(questions).append('\n');
+        out.append("questions_to_win_avg ")
+            .append(String.format(Locale.ROOT, "%.2f", won == 0 ? 0.0 : (double) questionsToWin / won)).append('\n');
+
+        for (GameSession.Answer answer : GameSession.Answer.values())
+        {
+            out.append("answers_").append(answer.name().toLowerCase(Locale.ROOT)).append(' ')
+                .append(answers[answer.ordinal()]).append('\n');
+        }
+
+        out.append("events_dropped ").append(dropped.sum()).append('\n');
+
+        List<Map.Entry<String, Long>> heaviest = new ArrayList<>(top.entrySet());
+        heaviest.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        out.append("top_subjects\n");
+
+        for (Map.Entry<String, Long> entry : heaviest)
+        {
+            out.append("  ").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+
+        return out.toString();
+    }
+}
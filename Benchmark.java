@@ -0,0 +1,1225 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+/**
+ * Throughput benchmarks for the hot paths of the game server.
+ *
+ * The suite covers the costs every change to the server ends up touching:
+ * - framing: writeUTF()/readUTF() against FrameEncoder/FrameDecoder
+ * - messages: sending a pre-encoded constant and filling a template
+ * - answers: parsing the Game Master's reply with Answer.fromChar(), and a
+ *   GameMasterBot answering a typed question from the knowledge base
+ * - guessing: a GuesserBot choosing its first question among 100k subjects
+ * - matchmaking: pairing rate of the Matchmaker, with an empty queue and
+ *   with 10k players waiting at different ratings
+ * - registry: username lookups and state transitions with 100k players registered
+ * - timer: scheduling and cancelling a timeout with 100k others pending
+ * - journal and analytics: recording a question, and publishing one to a
+ *   session's analytics ring while the consumer drains it
+ * - sessions: complete games per second over loopback sockets, against both
+ *   the blocking and the non-blocking server, and the non-blocking one over TLS
+ * - turns: turns per second of a single pair of players, in plaintext and
+ *   over TLS, each turn waiting on the last so the inverse is a turn's latency
+ * - TLS handshakes per second over loopback, full and resumed
+ *
+ * The harness follows JMH's model: every benchmark runs a number of warmup
+ * iterations so the JIT settles, then a number of measurement iterations of
+ * fixed length, and reports the mean throughput with the half-width of its
+ * 99.9% confidence interval as the error, like JMH. Results can be written as
+ * JSON in the same layout JMH uses, so runs from two commits can be compared
+ * with the usual JMH tooling. Servers and players a benchmark starts are
+ * stopped once it's over, so they don't load the benchmarks after it.
+ *
+ * Usage: java Benchmark [-wi warmups] [-i iterations] [-r seconds] [-rff results.json] [filter]
+ */
+public class Benchmark
+{
+    /** Text used by the framing benchmarks, about the size of a typical question. */
+    private static final String SAMPLE = "\nalice asked: Is it bigger than a breadbox?";
+
+    /** Questions the Guesser asks in each simulated game, the last one being correct. */
+    private static final int QUESTIONS_PER_GAME = 5;
+
+    /** Pairs of bots playing at the same time in the session benchmarks. */
+    private static final int PAIRS = 4;
+
+    /** Players waiting in the queue while matching by rating is measured. */
+    private static final int QUEUED_PLAYERS = 10_000;
+
+    /** Rating points between two waiting players, far more than the matchmaker's range widens to in a run. */
+    private static final int RATING_SPACING = 1000;
+
+    /** Subjects and attributes of the knowledge base the Guesser bot decides over. */
+    private static final int GUESSER_SUBJECTS = 100_000;
+    private static final int GUESSER_ATTRIBUTES = 128;
+
+    /** Players registered before the registry benchmarks run. */
+    private static final int REGISTERED_PLAYERS = 100_000;
+
+    /** Password of the keystore generated for the TLS benchmarks. */
+    private static final String TLS_PASSWORD = "benchmark";
+
+    /** Contexts of the TLS server and of the clients trusting it, created on first use. */
+    private static SSLContext serverTls;
+    private static SSLContext clientTls;
+
+    /** Confidence level of the reported error, the same as JMH's. */
+    private static final double CONFIDENCE = 0.999;
+
+    /** Calls made between two clock reads in a micro benchmark. */
+    private static final int BATCH = 1024;
+
+    /** Where benchmark results go to stop the JIT from removing the work. */
+    private static Object blackhole;
+
+    /** Standard output, kept because the server's own logging is silenced while benchmarking. */
+    private static final PrintStream out = System.out;
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private double iterationSeconds = 1;
+
+    /**
+     * A single benchmark iteration, run as many times as the benchmark has
+     * iterations, then closed.
+     */
+    @FunctionalInterface
+    private interface Iteration
+    {
+        /**
+         * Runs the benchmark for about the given time.
+         *
+         * @param nanos How long the iteration should last.
+         * @return The throughput reached, in operations per second.
+         * @throws Exception If the benchmarked code fails.
+         */
+        double run(long nanos) throws Exception;
+
+        /**
+         * Releases what the benchmark started, such as servers and players,
+         * so they don't run on next to the benchmarks after it.
+         *
+         * @throws Exception If something can't be stopped.
+         */
+        default void close() throws Exception
+        {
+        }
+    }
+
+    /**
+     * A single call of the code being measured.
+     */
+    @FunctionalInterface
+    private interface Operation
+    {
+        /**
+         * @return The result of the call, consumed so it isn't optimised away.
+         * @throws Exception If the benchmarked code fails.
+         */
+        Object call() throws Exception;
+    }
+
+    /**
+     * Measured throughput of one benchmark.
+     */
+    private record Result(String name, String unit, double[] scores)
+    {
+        double mean()
+        {
+            double sum = 0;
+            for (double score : scores) sum += score;
+
+            return sum / scores.length;
+        }
+
+        /**
+         * @return Half the width of the CONFIDENCE interval around the mean,
+         *         from Student's t distribution, like JMH's error.
+         */
+        double error()
+        {
+            if (scores.length < 2) return Double.NaN;
+
+            double mean = mean();
+            double squares = 0;
+            for (double score : scores) squares += (score - mean) * (score - mean);
+
+            double deviation = Math.sqrt(squares / (scores.length - 1));
+
+            return studentT(1 - (1 - CONFIDENCE) / 2, scores.length - 1) * deviation / Math.sqrt(scores.length);
+        }
+    }
+
+    /**
+     * Computes a quantile of Student's t distribution, by bisection of its
+     * cumulative distribution function.
+     *
+     * @param p The probability, over 0.5.
+     * @param degrees The degrees of freedom.
+     * @return The t such that P(T <= t) = p.
+     */
+    private static double studentT(double p, int degrees)
+    {
+        double low = 0;
+        double high = 1;
+
+        while (studentCdf(high, degrees) < p) high *= 2;
+
+        for (int i = 0; i < 100; i++)
+        {
+            double middle = (low + high) / 2;
+
+            if (studentCdf(middle, degrees) < p) low = middle;
+            else high = middle;
+        }
+
+        return (low + high) / 2;
+    }
+
+    /**
+     * Computes P(T <= t) for Student's t distribution, for t of at least 0.
+     *
+     * @param t The value.
+     * @param degrees The degrees of freedom.
+     * @return The probability.
+     */
+    private static double studentCdf(double t, int degrees)
+    {
+        return 1 - 0.5 * incompleteBeta(degrees / 2.0, 0.5, degrees / (degrees + t * t));
+    }
+
+    /**
+     * Computes the regularized incomplete beta function I_x(a, b), from its
+     * continued fraction (see Numerical Recipes, 6.4).
+     *
+     * @param a The first shape parameter.
+     * @param b The second shape parameter.
+     * @param x Where to evaluate it, between 0 and 1.
+     * @return I_x(a, b).
+     */
+    private static double incompleteBeta(double a, double b, double x)
+    {
+        if (x <= 0) return 0;
+        if (x >= 1) return 1;
+
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+
+        // the fraction converges quickly on this side, and the other side follows by symmetry
+        if (x < (a + 1) / (a + b + 2)) return front * betaFraction(a, b, x) / a;
+
+        return 1 - front * betaFraction(b, a, 1 - x) / b;
+    }
+
+    /**
+     * Evaluates the continued fraction of the incomplete beta function with
+     * the modified Lentz method.
+     *
+     * @param a The first shape parameter.
+     * @param b The second shape parameter.
+     * @param x Where to evaluate it.
+     * @return The fraction's value.
+     */
+    private static double betaFraction(double a, double b, double x)
+    {
+        final double tiny = 1e-300;
+
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        if (Math.abs(d) < tiny) d = tiny;
+        d = 1 / d;
+        double h = d;
+
+        for (int m = 1; m <= 300; m++)
+        {
+            // even step
+            double term = m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m));
+            d = 1 + term * d;
+            if (Math.abs(d) < tiny) d = tiny;
+            c = 1 + term / c;
+            if (Math.abs(c) < tiny) c = tiny;
+            d = 1 / d;
+            h *= d * c;
+
+            // odd step
+            term = -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+            d = 1 + term * d;
+            if (Math.abs(d) < tiny) d = tiny;
+            c = 1 + term / c;
+            if (Math.abs(c) < tiny) c = tiny;
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+
+            if (Math.abs(delta - 1) < 1e-15) break;
+        }
+
+        return h;
+    }
+
+    /**
+     * Computes the logarithm of the gamma function with Lanczos' approximation.
+     *
+     * @param x The value, over 0.
+     * @return ln(Gamma(x)).
+     */
+    private static double logGamma(double x)
+    {
+        double[] coefficients =
+        {
+            76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5
+        };
+
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+
+        double series = 1.000000000190015;
+        for (double coefficient : coefficients) series += coefficient / ++y;
+
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+    /**
+     * Turns a single call into a timed iteration.
+     *
+     * The operation is called in batches so reading the clock doesn't
+     * dominate the cost of very cheap operations.
+     *
+     * @param operation The code being measured.
+     * @return An iteration calling the operation for as long as requested.
+     */
+    private static Iteration micro(Operation operation)
+    {
+        return nanos ->
+        {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+
+            do
+            {
+                for (int i = 0; i < BATCH; i++)
+                {
+                    blackhole = operation.call();
+                }
+
+                calls += BATCH;
+                elapsed = System.nanoTime() - start;
+            }
+            while (elapsed < nanos);
+
+            return calls * 1e9 / elapsed;
+        };
+    }
+
+    /**
+     * Runs one benchmark: its warmup iterations, then its measurement
+     * iterations, and closes it.
+     *
+     * @param name The benchmark's name.
+     * @param unit The unit of its score.
+     * @param iteration The benchmark itself.
+     * @return The measured scores.
+     * @throws Exception If the benchmarked code fails.
+     */
+    private Result measure(String name, String unit, Iteration iteration) throws Exception
+    {
+        long nanos = (long) (iterationSeconds * 1e9);
+
+        try
+        {
+            for (int i = 1; i <= warmupIterations; i++)
+            {
+                double score = iteration.run(nanos);
+                out.printf(Locale.ROOT, "# %s warmup %d: %.3f %s%n", name, i, score, unit);
+            }
+
+            double[] scores = new double[measurementIterations];
+
+            for (int i = 0; i < measurementIterations; i++)
+            {
+                scores[i] = iteration.run(nanos);
+                out.printf(Locale.ROOT, "# %s iteration %d: %.3f %s%n", name, i + 1, scores[i], unit);
+            }
+
+            return new Result(name, unit, scores);
+        }
+        finally
+        {
+            iteration.close();
+        }
+    }
+
+    /**
+     * Benchmarks the framing the original server used, DataOutputStream.writeUTF().
+     *
+     * @return The iteration.
+     */
+    private static Iteration writeUTF()
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream stream = new DataOutputStream(buffer);
+
+        return micro(() ->
+        {
+            buffer.reset();
+            stream.writeUTF(SAMPLE);
+
+            return buffer;
+        });
+    }
+
+    /**
+     * Benchmarks the framing the original server used, DataInputStream.readUTF().
+     *
+     * @return The iteration.
+     * @throws IOException If the sample can't be encoded.
+     */
+    private static Iteration readUTF() throws IOException
+    {
+        ByteArrayInputStream buffer = new ByteArrayInputStream(FrameEncoder.encodeText(SAMPLE));
+        DataInputStream stream = new DataInputStream(buffer);
+
+        return micro(() ->
+        {
+            buffer.reset();
+
+            return stream.readUTF();
+        });
+    }
+
+    /**
+     * Benchmarks the matching rate of the Matchmaker.
+     *
+     * Every call enqueues two players, so each call is one pair. Matched pairs
+     * are only counted, no game session is started for them.
+     *
+     * @return The iteration.
+     */
+    private static Iteration pairing()
+    {
+        AtomicLong pairs = new AtomicLong();
+        Matchmaker matchmaker = new Matchmaker()
+        {
+            @Override
+            protected void startGame(Player player1, Player player2)
+            {
+                pairs.incrementAndGet();
+            }
+        };
+
+        Player alice = new Player(null, "alice", null, null, Protocol.LEGACY);
+        Player bob = new Player(null, "bob", null, null, Protocol.LEGACY);
+
+        return micro(() ->
+        {
+            matchmaker.enqueue(alice);
+            matchmaker.enqueue(bob);
+
+            return pairs;
+        });
+    }
+
+    /**
+     * Benchmarks matching by rating against a long queue.
+     *
+     * QUEUED_PLAYERS players wait with ratings too far apart to suit each
+     * other. Every call enqueues a player rated next to one of them, picked
+     * all over the queue, who is matched on the spot, and then queues the
+     * matched player again. So each call is one pair and two searches of the
+     * rating index, and the queue keeps its length.
+     *
+     * @return The iteration.
+     */
+    private static Iteration ratedPairing()
+    {
+        AtomicLong pairs = new AtomicLong();
+        Matchmaker matchmaker = new Matchmaker()
+        {
+            @Override
+            protected void startGame(Player player1, Player player2)
+            {
+                pairs.incrementAndGet();
+            }
+        };
+
+        // the waiting players mustn't widen their way into each other while the benchmark runs
+        matchmaker.setMatchBound(3600);
+
+        Player[] queued = new Player[QUEUED_PLAYERS];
+        Player[] arrivals = new Player[QUEUED_PLAYERS];
+
+        for (int i = 0; i < QUEUED_PLAYERS; i++)
+        {
+            queued[i] = new Player(null, "queued" + i, null, null, Protocol.LEGACY);
+            queued[i].setRating(i * RATING_SPACING);
+            matchmaker.enqueue(queued[i]);
+
+            arrivals[i] = new Player(null, "arrival" + i, null, null, Protocol.LEGACY);
+            arrivals[i].setRating(i * RATING_SPACING + 1);
+        }
+
+        int[] next = { 0 };
+
+        return micro(() ->
+        {
+            // a prime stride visits the whole queue in a scattered order
+            int i = next[0] = (next[0] + 7919) % QUEUED_PLAYERS;
+
+            matchmaker.enqueue(arrivals[i]);
+            matchmaker.enqueue(queued[i]);
+
+            return pairs;
+        });
+    }
+
+    /**
+     * Benchmarks a GuesserBot choosing a question, in a generated knowledge
+     * base of GUESSER_SUBJECTS subjects and GUESSER_ATTRIBUTES attributes.
+     *
+     * Every call is the first question of a round, the most expensive one
+     * since every subject is still a candidate. A decision takes milliseconds,
+     * so unlike micro() this reads the clock after every call.
+     *
+     * @return The iteration.
+     */
+    private static Iteration guesserDecision()
+    {
+        GuesserBot bot = new GuesserBot(KnowledgeBase.generate(GUESSER_SUBJECTS, GUESSER_ATTRIBUTES, 42));
+
+        return nanos ->
+        {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+
+            do
+            {
+                blackhole = bot.ask(null);
+
+                calls++;
+                elapsed = System.nanoTime() - start;
+            }
+            while (elapsed < nanos);
+
+            return calls * 1e9 / elapsed;
+        };
+    }
+
+    /**
+     * Fills a registry with REGISTERED_PLAYERS players at the menu.
+     *
+     * @param registry The registry to fill.
+     * @return The players, in registration order.
+     */
+    private static Player[] register(PlayerRegistry registry)
+    {
+        Player[] players = new Player[REGISTERED_PLAYERS];
+
+        for (int i = 0; i < players.length; i++)
+        {
+            players[i] = new Player(null, "player" + i, null, null, Protocol.LEGACY);
+            registry.register(players[i]);
+        }
+
+        return players;
+    }
+
+    /**
+     * Benchmarks looking up players by username in a full registry.
+     *
+     * @return The iteration.
+     */
+    private static Iteration registryFind()
+    {
+        PlayerRegistry registry = new PlayerRegistry();
+        Player[] players = register(registry);
+
+        String[] names = new String[players.length];
+        for (int i = 0; i < names.length; i++) names[i] = players[i].getUsername();
+
+        int[] next = { 0 };
+
+        return micro(() -> registry.find(names[next[0]++ % names.length]));
+    }
+
+    /**
+     * Benchmarks moving players in and out of matchmaking in a full registry.
+     *
+     * Every call is a round trip, MENU to WAITING and back.
+     *
+     * @return The iteration.
+     */
+    private static Iteration registryTransition()
+    {
+        PlayerRegistry registry = new PlayerRegistry();
+        Player[] players = register(registry);
+        int[] next = { 0 };
+
+        return micro(() ->
+        {
+            Player player = players[next[0]++ % players.length];
+
+            registry.transition(player, PlayerRegistry.State.MENU, PlayerRegistry.State.WAITING);
+
+            return registry.transition(player, PlayerRegistry.State.WAITING, PlayerRegistry.State.MENU);
+        });
+    }
+
+    /**
+     * Benchmarks scheduling a timeout and cancelling it, the way every turn
+     * restarts its deadline, on a wheel with REGISTERED_PLAYERS timeouts pending.
+     *
+     * @return The iteration.
+     */
+    private static Iteration timerSchedule()
+    {
+        TimingWheel wheel = new TimingWheel("benchmark-wheel", 100, TimeUnit.MILLISECONDS, 512);
+        Runnable task = () -> { };
+
+        for (int i = 0; i < REGISTERED_PLAYERS; i++)
+        {
+            wheel.schedule(task, 1 + i % 600, TimeUnit.SECONDS);
+        }
+
+        return micro(() -> wheel.schedule(task, 120, TimeUnit.SECONDS).cancel());
+    }
+
+    /**
+     * Benchmarks recording a question to a journal in a temporary directory,
+     * the most frequent event a game session writes.
+     *
+     * Every QUESTIONS_PER_GAME questions the session ends and a new one starts,
+     * so the journal keeps deleting segments nobody needs anymore instead of
+     * filling up the disk.
+     *
+     * @return The iteration.
+     * @throws IOException If the temporary directory can't be created.
+     */
+    private static Iteration journalAppend() throws IOException
+    {
+        Path directory = Files.createTempDirectory("benchmark-journal");
+        Journal journal = Journal.open(directory);
+        long[] session = { journal.nextSessionId() };
+        int[] questions = { 0 };
+
+        journal.record(Journal.Event.START, session[0], "alice", "bob");
+
+        return micro(() ->
+        {
+            journal.record(Journal.Event.QUESTION, session[0], "Is it bigger than a breadbox?");
+
+            if (++questions[0] % QUESTIONS_PER_GAME == 0)
+            {
+                journal.record(Journal.Event.END, session[0]);
+                session[0] = journal.nextSessionId();
+                journal.record(Journal.Event.START, session[0], "alice", "bob");
+            }
+
+            return session[0];
+        });
+    }
+
+    /**
+     * Benchmarks publishing game events to a session's analytics ring, with
+     * the consumer draining it on its own thread. A round of QUESTIONS_PER_GAME
+     * questions and answers is published per subject, like a real game.
+     *
+     * @return The iteration.
+     */
+    private static Iteration analyticsPublish()
+    {
+        Analytics analytics = new Analytics("benchmark-analytics");
+        Analytics.Ring ring = analytics.open();
+        String[] subjects = { "cat", "dog", "apple", "car", "elephant", "piano", "banana", "spoon" };
+        int[] questions = { 0 };
+
+        return micro(() ->
+        {
+            int asked = questions[0]++ % QUESTIONS_PER_GAME;
+
+            if (asked == 0) ring.publish(Analytics.Event.SUBJECT, subjects[questions[0] % subjects.length], 0, 0);
+
+            ring.publish(Analytics.Event.QUESTION);
+            ring.publish(Analytics.Event.ANSWER, null, GameSession.Answer.NO.ordinal(), 0);
+
+            if (asked == QUESTIONS_PER_GAME - 1)
+            {
+                ring.publish(Analytics.Event.RESULT, null, Message.Outcome.WON_GUESSED.ordinal(), QUESTIONS_PER_GAME);
+            }
+
+            return asked;
+        });
+    }
+
+    /**
+     * Benchmarks complete games against a server running in this JVM.
+     *
+     * This method:
+     * 1. Starts the server on a free loopback port
+     * 2. Connects PAIRS pairs of scripted players, which log in and enter matchmaking
+     * 3. Lets them play for the length of each iteration, always choosing
+     *    to play again so sessions stay up between games
+     * 4. Reports games finished per second from the players' shared counter
+     *
+     * The players speak the BINARY protocol, like the current Client does,
+     * and are disconnected and the server closed once the benchmark is over.
+     *
+     * @param name The benchmark's name, which the players' usernames start with.
+     * @param nio Whether to start the non-blocking server instead of the blocking one.
+     * @param tls Whether the server and the players talk over TLS.
+     * @return The iteration.
+     * @throws Exception If the server or a player can't be started.
+     */
+    private static Iteration games(String name, boolean nio, boolean tls) throws Exception
+    {
+        int port = freePort();
+        Closeable server = startServer(port, nio, tls);
+
+        // every player sees the play again prompt once per game
+        AtomicLong prompts = new AtomicLong();
+        List<ScriptedPlayer> players = startPlayers(name, port, tls, PAIRS, prompts, new AtomicLong());
+
+        return rate(prompts, 2, players, server);
+    }
+
+    /**
+     * Benchmarks the turns of a single game against the non-blocking server.
+     *
+     * With one pair of players, each turn only starts once the last one is
+     * over, so the turns per second measured are the inverse of the time a
+     * turn takes: the player's reply going to the server, the session
+     * handling it and the next prompt coming back.
+     *
+     * @param name The benchmark's name, which the players' usernames start with.
+     * @param tls Whether the server and the players talk over TLS.
+     * @return The iteration.
+     * @throws Exception If the server or a player can't be started.
+     */
+    private static Iteration turns(String name, boolean tls) throws Exception
+    {
+        int port = freePort();
+        Closeable server = startServer(port, true, tls);
+
+        AtomicLong replies = new AtomicLong();
+        List<ScriptedPlayer> players = startPlayers(name, port, tls, 1, new AtomicLong(), replies);
+
+        return rate(replies, 1, players, server);
+    }
+
+    /**
+     * Benchmarks TLS handshakes with the non-blocking server, one after the other.
+     *
+     * Each connection completes the handshake, waits for the server's
+     * greeting (by which time a TLS 1.3 server has sent its session ticket)
+     * and closes. Resumed connections are made from the same host and port,
+     * so the client offers the session of the last one, while full ones
+     * never offer a session.
+     *
+     * @param resume Whether to resume the last connection's session.
+     * @return The iteration.
+     * @throws Exception If the server can't be started.
+     */
+    private static Iteration handshakes(boolean resume) throws Exception
+    {
+        int port = freePort();
+        Closeable server = startServer(port, true, true);
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        ByteBuffer greeting = ByteBuffer.allocate(1024);
+
+        return new Iteration()
+        {
+            @Override
+            public double run(long nanos) throws Exception
+            {
+                long handshakes = 0;
+                long start = System.nanoTime();
+                long elapsed;
+
+                do
+                {
+                    try (SocketChannel channel = SocketChannel.open(address))
+                    {
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                        TlsChannel tls = new TlsChannel(channel, Tls.clientEngine(clientTls, "localhost", port, resume), null, null);
+                        tls.flush();
+
+                        greeting.clear();
+                        while (greeting.position() == 0)
+                        {
+                            if (tls.read(greeting) < 0) throw new EOFException("Server closed the connection");
+                        }
+
+                        tls.close();
+                    }
+
+                    handshakes++;
+                    elapsed = System.nanoTime() - start;
+                }
+                while (elapsed < nanos);
+
+                return handshakes * 1e9 / elapsed;
+            }
+
+            @Override
+            public void close() throws Exception
+            {
+                server.close();
+            }
+        };
+    }
+
+    /**
+     * Finds a free loopback port for a server.
+     *
+     * @return The port.
+     * @throws IOException If no port is free.
+     */
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a server in this JVM, listening by the time this returns.
+     *
+     * @param port The port to listen on.
+     * @param nio Whether to start the non-blocking server instead of the blocking one.
+     * @param tls Whether the server only accepts TLS connections.
+     * @return The server, which stops accepting connections once closed.
+     * @throws Exception If the port is taken or the TLS contexts can't be created.
+     */
+    private static Closeable startServer(int port, boolean nio, boolean tls) throws Exception
+    {
+        SSLContext context = tls ? serverTls() : null;
+
+        Runnable server;
+        if (nio) server = new EventLoopServer(port, Runtime.getRuntime().availableProcessors(), context);
+        else server = new Server(port, context);
+
+        Thread thread = new Thread(server, "benchmark-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        return (Closeable) server;
+    }
+
+    /**
+     * Starts pairs of scripted players playing against a server.
+     *
+     * @param name The benchmark's name, which the players' usernames start with.
+     * @param port The server's port.
+     * @param tls Whether the players connect over TLS.
+     * @param pairs The number of pairs.
+     * @param prompts Counter of play again prompts, shared by the players.
+     * @param replies Counter of replies sent, shared by the players.
+     * @return The players.
+     */
+    private static List<ScriptedPlayer> startPlayers(String name, int port, boolean tls, int pairs,
+        AtomicLong prompts, AtomicLong replies)
+    {
+        List<ScriptedPlayer> players = new ArrayList<>();
+
+        for (int i = 0; i < 2 * pairs; i++)
+        {
+            ScriptedPlayer player = new ScriptedPlayer(port, tls ? clientTls : null, name + i, prompts, replies);
+            players.add(player);
+            player.start();
+        }
+
+        return players;
+    }
+
+    /**
+     * Turns a counter the scripted players keep into an iteration measuring
+     * its rate, which disconnects the players and closes the server once the
+     * benchmark is over.
+     *
+     * @param counter The counter.
+     * @param perOperation How many counts make up one operation.
+     * @param players The players, checked for failures after each iteration.
+     * @param server The server they play on.
+     * @return The iteration.
+     */
+    private static Iteration rate(AtomicLong counter, int perOperation, List<ScriptedPlayer> players, Closeable server)
+    {
+        return new Iteration()
+        {
+            @Override
+            public double run(long nanos) throws Exception
+            {
+                long before = counter.get();
+                long start = System.nanoTime();
+
+                Thread.sleep(nanos / 1_000_000);
+
+                double operations = (counter.get() - before) / (double) perOperation;
+
+                for (ScriptedPlayer player : players)
+                {
+                    if (player.failure != null) throw player.failure;
+                }
+
+                return operations * 1e9 / (System.nanoTime() - start);
+            }
+
+            @Override
+            public void close() throws Exception
+            {
+                // the players first, so the server's sessions end as they would with real clients leaving
+                for (ScriptedPlayer player : players) player.close();
+
+                server.close();
+            }
+        };
+    }
+
+    /**
+     * Creates the TLS contexts on first use: a self-signed certificate for
+     * localhost is generated with keytool, which the server uses and the
+     * clients trust.
+     *
+     * @return The server's context.
+     * @throws Exception If keytool fails or the keystore can't be loaded.
+     */
+    private static SSLContext serverTls() throws Exception
+    {
+        if (serverTls != null) return serverTls;
+
+        Path directory = Files.createTempDirectory("benchmark-tls");
+        Path keyStore = directory.resolve("server.p12");
+
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+            "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+            "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", TLS_PASSWORD)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+
+        if (keytool.waitFor() != 0) throw new IOException("keytool couldn't create a certificate");
+
+        serverTls = Tls.server(keyStore, TLS_PASSWORD.toCharArray());
+        clientTls = Tls.client(keyStore, TLS_PASSWORD.toCharArray());
+
+        Files.delete(keyStore);
+        Files.delete(directory);
+
+        return serverTls;
+    }
+
+    /**
+     * A scripted player that keeps playing games as fast as the server allows.
+     */
+    private static class ScriptedPlayer extends Thread
+    {
+        private final int port;
+        private final SSLContext tls;
+        private final String username;
+        private final AtomicLong prompts;
+        private final AtomicLong replies;
+        private volatile Socket socket;
+        private volatile boolean closed = false;
+        private volatile Exception failure;
+
+        /**
+         * @param port The server's port on localhost.
+         * @param tls The context to connect over TLS with, or null for plaintext.
+         * @param username The username to log in with.
+         * @param prompts Counter of play again prompts, shared by all players.
+         * @param replies Counter of replies sent, shared by all players.
+         */
+        ScriptedPlayer(int port, SSLContext tls, String username, AtomicLong prompts, AtomicLong replies)
+        {
+            super("benchmark-" + username);
+            this.port = port;
+            this.tls = tls;
+            this.username = username;
+            this.prompts = prompts;
+            this.replies = replies;
+
+            setDaemon(true);
+        }
+
+        /**
+         * Plays until the benchmark ends.
+         *
+         * This method:
+         * 1. Opens with a hello and skips the legacy greeting until the ack
+         * 2. Answers each prompt the way a quick human player would
+         *    The Game Master says no to every question but the last one of a game
+         */
+        @Override
+        public void run()
+        {
+            try (Socket socket = tls != null ? tls.getSocketFactory().createSocket("localhost", port) : new Socket("localhost", port))
+            {
+                this.socket = socket;
+                if (closed) return;
+
+                socket.setTcpNoDelay(true);
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                out.writeUTF(Protocol.hello(Protocol.BINARY));
+                out.flush();
+
+                // phase 1: the legacy greeting is repeated once the server has answered the hello
+                while (Protocol.parseAck(in.readUTF()) < 0) { }
+
+                // phase 2: playing
+                int answers = 0;
+
+                while (true)
+                {
+                    Message message = Message.decode(Protocol.readFrame(in));
+                    if (!message.isPrompt()) continue;
+
+                    String prompt = message.getText();
+                    String reply;
+
+                    if (prompt.equals(Message.prompt(Message.Prompt.USERNAME).getText())) reply = username;
+                    else if (prompt.equals(Message.prompt(Message.Prompt.MENU_DECISION).getText())) reply = "1";
+                    else if (prompt.equals(Message.prompt(Message.Prompt.SUBJECT).getText()))
+                    {
+                        answers = 0;
+                        reply = "cat";
+                    }
+                    else if (prompt.equals(Message.prompt(Message.Prompt.QUESTION).getText())) reply = "Is it a cat?";
+                    else if (prompt.equals(Message.prompt(Message.Prompt.ANSWER).getText()))
+                    {
+                        reply = ++answers < QUESTIONS_PER_GAME ? "n" : "c";
+                    }
+                    else if (prompt.equals(Message.prompt(Message.Prompt.PLAY_AGAIN).getText()))
+                    {
+                        prompts.incrementAndGet();
+                        reply = "y";
+                    }
+                    else continue;
+
+                    out.write(Protocol.encodeReply(reply, Protocol.BINARY));
+                    out.flush();
+                    replies.incrementAndGet();
+                }
+            }
+            catch (Exception e)
+            {
+                // closing the socket is how close() stops the player
+                if (!closed) failure = e;
+            }
+        }
+
+        /**
+         * Disconnects the player and waits for its thread to end.
+         *
+         * @throws Exception If the socket can't be closed or the wait is interrupted.
+         */
+        void close() throws Exception
+        {
+            closed = true;
+
+            Socket current = socket;
+            if (current != null) current.close();
+
+            join();
+        }
+    }
+
+    /**
+     * Writes results as JSON in the layout JMH's -rf json produces.
+     *
+     * @param file The file to write.
+     * @param results The results to write.
+     * @throws IOException If the file can't be written.
+     */
+    private void writeJson(File file, List<Result> results) throws IOException
+    {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file)))
+        {
+            writer.println("[");
+
+            for (int r = 0; r < results.size(); r++)
+            {
+                Result result = results.get(r);
+                StringBuilder raw = new StringBuilder();
+
+                for (int i = 0; i < result.scores().length; i++)
+                {
+                    if (i > 0) raw.append(", ");
+                    raw.append(number(result.scores()[i]));
+                }
+
+                writer.println("    {");
+                writer.println("        \"benchmark\" : \"" + result.name() + "\",");
+                writer.println("        \"mode\" : \"thrpt\",");
+                writer.println("        \"threads\" : 1,");
+                writer.println("        \"jdkVersion\" : \"" + System.getProperty("java.version") + "\",");
+                writer.println("        \"vmName\" : \"" + System.getProperty("java.vm.name") + "\",");
+                writer.println("        \"warmupIterations\" : " + warmupIterations + ",");
+                writer.println("        \"warmupTime\" : \"" + iterationSeconds + " s\",");
+                writer.println("        \"measurementIterations\" : " + measurementIterations + ",");
+                writer.println("        \"measurementTime\" : \"" + iterationSeconds + " s\",");
+                writer.println("        \"primaryMetric\" : {");
+                writer.println("            \"score\" : " + number(result.mean()) + ",");
+                writer.println("            \"scoreError\" : " + number(result.error()) + ",");
+                writer.println("            \"scoreUnit\" : \"" + result.unit() + "\",");
+                writer.println("            \"rawData\" : [ [ " + raw + " ] ]");
+                writer.println("        }");
+                writer.println("    }" + (r + 1 < results.size() ? "," : ""));
+            }
+
+            writer.println("]");
+        }
+    }
+
+    /**
+     * Formats a score for JSON, which has no NaN.
+     *
+     * @param value The score.
+     * @return The JSON number, or "NaN" as a string like JMH writes it.
+     */
+    private static String number(double value)
+    {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Runs the suite.
+     *
+     * This method:
+     * 1. Parses the JMH style options and the optional name filter
+     * 2. Silences the server's logging, which would otherwise swamp the results
+     * 3. Runs every benchmark whose name contains the filter
+     * 4. Prints a summary table and, with -rff, writes the results as JSON
+     *
+     * @param args Command line arguments (see the class comment).
+     */
+    public static void main(String args[])
+    {
+        Benchmark benchmark = new Benchmark();
+        File resultsFile = null;
+        String filter = "";
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-wi" -> benchmark.warmupIterations = Integer.parseInt(args[++i]);
+                case "-i" -> benchmark.measurementIterations = Integer.parseInt(args[++i]);
+                case "-r" -> benchmark.iterationSeconds = Double.parseDouble(args[++i]);
+                case "-rff" -> resultsFile = new File(args[++i]);
+                default -> filter = args[i];
+            }
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Log.setLevel(Log.Level.ERROR);
+
+        List<Result> results = new ArrayList<>();
+
+        try
+        {
+            Message.Template question = new Message.Template("\nalice asked: ", "");
+            byte[] samplePayload = FrameEncoder.encodeText(SAMPLE);
+            char[] answerInput = { 'y', 'n', 'm', 'c', 'Y', 'N', 'M', 'C', 'x' };
+            int[] next = { 0 };
+
+            GameMasterBot bot = new GameMasterBot(KnowledgeBase.standard());
+            bot.chooseSubject();
+            String[] botQuestions =
+            {
+                "Is it alive?", "Is it bigger than a breadbox?", "Is it made of metal?",
+                "Can you eat it?", "Does it have legs?", "Is it an elephant?", "What colour is it?"
+            };
+
+            String[] names =
+            {
+                "framing.writeUTF", "framing.readUTF", "framing.encodeText", "framing.decodeText",
+                "message.constant", "message.template", "answer.fromChar", "bot.answer", "guesser.decide",
+                "matchmaker.pair", "matchmaker.rated", "registry.find", "registry.transition", "timer.schedule",
+                "journal.append", "analytics.publish", "session.blocking", "session.nio", "session.tls",
+                "turn.nio", "turn.tls", "tls.handshake.full", "tls.handshake.resumed"
+            };
+
+            // phase 1: running the selected benchmarks
+            for (String name : names)
+            {
+                if (!name.contains(filter)) continue;
+
+                Result result = switch (name)
+                {
+                    case "framing.writeUTF" -> benchmark.measure(name, "ops/s", writeUTF());
+                    case "framing.readUTF" -> benchmark.measure(name, "ops/s", readUTF());
+                    case "framing.encodeText" -> benchmark.measure(name, "ops/s",
+                        micro(() -> FrameEncoder.encodeText(SAMPLE)));
+                    case "framing.decodeText" -> benchmark.measure(name, "ops/s",
+                        micro(() -> FrameDecoder.decodeText(samplePayload, 2, samplePayload.length - 2)));
+                    case "message.constant" -> benchmark.measure(name, "ops/s",
+                        micro(() -> Message.prompt(Message.Prompt.QUESTION).encode(Protocol.BINARY)));
+                    case "message.template" -> benchmark.measure(name, "ops/s",
+                        micro(() -> question.fill("Is it bigger than a breadbox?").encode(Protocol.BINARY)));
+                    case "answer.fromChar" -> benchmark.measure(name, "ops/s",
+                        micro(() -> GameSession.Answer.fromChar(answerInput[next[0]++ % answerInput.length])));
+                    case "bot.answer" -> benchmark.measure(name, "ops/s",
+                        micro(() -> bot.answer(botQuestions[next[0]++ % botQuestions.length])));
+                    case "guesser.decide" -> benchmark.measure(name, "ops/s", guesserDecision());
+                    case "matchmaker.pair" -> benchmark.measure(name, "ops/s", pairing());
+                    case "matchmaker.rated" -> benchmark.measure(name, "ops/s", ratedPairing());
+                    case "registry.find" -> benchmark.measure(name, "ops/s", registryFind());
+                    case "registry.transition" -> benchmark.measure(name, "ops/s", registryTransition());
+                    case "timer.schedule" -> benchmark.measure(name, "ops/s", timerSchedule());
+                    case "journal.append" -> benchmark.measure(name, "ops/s", journalAppend());
+                    case "analytics.publish" -> benchmark.measure(name, "ops/s", analyticsPublish());
+                    case "session.blocking" -> benchmark.measure(name, "games/s", games(name, false, false));
+                    case "session.nio" -> benchmark.measure(name, "games/s", games(name, true, false));
+                    case "session.tls" -> benchmark.measure(name, "games/s", games(name, true, true));
+                    case "turn.nio" -> benchmark.measure(name, "turns/s", turns(name, false));
+                    case "turn.tls" -> benchmark.measure(name, "turns/s", turns(name, true));
+                    case "tls.handshake.full" -> benchmark.measure(name, "ops/s", handshakes(false));
+                    default -> benchmark.measure(name, "ops/s", handshakes(true));
+                };
+
+                results.add(result);
+            }
+
+            // phase 2: reporting
+            out.printf(Locale.ROOT, "%n%-22s %6s %18s %14s  %s%n", "Benchmark", "Cnt", "Score", "Error", "Units");
+
+            for (Result result : results)
+            {
+                out.printf(Locale.ROOT, "%-22s %6d %18.3f %14.3f  %s%n", result.name(), result.scores().length,
+                    result.mean(), result.error(), result.unit());
+            }
+
+            if (resultsFile != null)
+            {
+                benchmark.writeJson(resultsFile, results);
+                out.println("\nResults written to " + resultsFile + ".");
+            }
+        }
+        catch (Exception e)
+        {
+            out.println("\nBenchmark failed: " + e);
+            System.exit(1);
+        }
+
+        // the server's shared pools, used by the session benchmarks, never end on their own
+        System.exit(0);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+/**
+ * A computer opponent that can stand in for a human player in a GameSession.
+ *
+ * A bot plays through a Player of its own, which is never registered and
+ * has no connection: messages sent to it are dropped, and the session asks
+ * the bot for its move right when it would prompt a human, then handles the
+ * move like any reply. So a bot's turn takes no thread and no time, and a
+ * bot game costs the server about as much as its human player's messages.
+ *
+ * Each bot plays a single session, in the same role every round, and can
+ * keep what it needs about the round in progress. A bot implements the
+ * interface of its role, GameMaster or Guesser, which only has that role's
+ * moves, and the session seats it by that interface, so a bot can't be asked
+ * for a move of the other role.
+ */
+public interface Bot
+{
+    /**
+     * A bot that plays the Game Master.
+     */
+    interface GameMaster extends Bot
+    {
+        /**
+         * Picks the subject of a new round.
+         *
+         * @return The subject.
+         */
+        String chooseSubject();
+
+        /**
+         * Answers the Guesser's question about the subject.
+         *
+         * @param question The question, as the Guesser typed it.
+         * @return The answer.
+         */
+        GameSession.Answer answer(String question);
+    }
+
+    /**
+     * A bot that plays the Guesser.
+     */
+    interface Guesser extends Bot
+    {
+        /**
+         * Asks the next question about the subject.
+         *
+         * @param previous The Game Master's answer to the bot's previous question,
+         *        or null for the first question of a round.
+         * @return The question, or null to give up the round.
+         */
+        String ask(GameSession.Answer previous);
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Carries a game's events to the players watching it, or to everyone in a
+ * room (see Room).
+ *
+ * The session publishes each event (a question, an answer, a verdict...) as
+ * a Message while it holds its own lock, and the broadcast does nothing else
+ * on the session's thread: if nobody is watching the event is dropped, and
+ * otherwise it is queued for the fan-out, which runs as a task on the
+ * server's thread pool, one event after the other. So however many players
+ * watch, and however slow they are, the two players' own messages never
+ * wait on them.
+ *
+ * The fan-out encodes each event once per protocol version, on first use,
+ * and every spectator is sent that same frame: non-blocking connections
+ * queue the shared array as it is, and blocking players get it through a
+ * queue of their own, drained by a pool task so a spectator whose socket
+ * doesn't keep up only holds up their own task. Frames are never modified
+ * once encoded. A spectator who falls more than MAX_BACKLOG frames behind
+ * stops watching instead of holding on to ever more memory.
+ *
+ * Joining goes through the same queue as the events, so a spectator sees
+ * the round so far up to the event they joined at, then every event after
+ * it, each exactly once. Messages for a single spectator can go through the
+ * queue too (see send()), so they reach them in order with the events.
+ */
+public class Broadcast
+{
+    /** Frames a spectator may have waiting to be sent before they stop watching. */
+    private static final int MAX_BACKLOG = 256;
+
+    private static final Message FELL_BEHIND = Message.info("\nYour connection fell too far behind the game. Stopped watching.");
+
+    /** Spectators the fan-out sends events to. */
+    private final Set<Spectator> spectators = ConcurrentHashMap.newKeySet();
+    /** Spectators who joined and haven't left, counted as soon as they join. */
+    private final AtomicInteger audience = new AtomicInteger();
+
+    /** Work waiting for the fan-out, in order, guarded by its own monitor. */
+    private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    /** Whether a fan-out task is running or submitted, guarded by pending. */
+    private boolean fanningOut = false;
+
+    /**
+     * A player watching a game, with the frames waiting for their socket if
+     * they are a player of the blocking server.
+     */
+    public static final class Spectator
+    {
+        private final Player player;
+        /** Called once the spectator stops watching for a reason of the broadcast's, with the notice to show. */
+        private final Consumer<Message> onEnd;
+
+        private final AtomicBoolean gone = new AtomicBoolean();
+
+        /** Frames for a blocking player's socket, guarded by itself. */
+        private final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        /** Whether a task is writing out the backlog, guarded by backlog. */
+        private boolean draining = false;
+        /** Notice to end with once the backlog is written out, guarded by backlog. */
+        private Message ending;
+
+        /**
+         * @param player The player watching.
+         * @param onEnd Called with a notice when the game ends or the player
+         *        falls behind, after everything before it has been sent, but
+         *        not when the player leaves on their own.
+         */
+        public Spectator(Player player, Consumer<Message> onEnd)
+        {
+            this.player = player;
+            this.onEnd = onEnd;
+        }
+
+        /**
+         * Sends a frame to the spectator without waiting on their socket.
+         *
+         * @param frame The frame, shared with every other spectator.
+         * @return false if the spectator has fallen too far behind to take it.
+         */
+        private boolean deliver(byte[] frame)
+        {
+            Connection connection = player.getConnection();
+
+            if (connection != null)
+            {
+                if (connection.getBacklog() >= MAX_BACKLOG) return false;
+
+                connection.send(frame);
+                return true;
+            }
+
+            synchronized (backlog)
+            {
+                if (backlog.size() >= MAX_BACKLOG) return false;
+
+                backlog.add(frame);
+                drain();
+            }
+
+            return true;
+        }
+
+        /**
+         * Tells the spectator they stopped watching, once everything already
+         * sent to them has gone out.
+         *
+         * @param notice Why they stopped.
+         */
+        private void end(Message notice)
+        {
+            if (player.getConnection() != null)
+            {
+                onEnd.accept(notice);
+                return;
+            }
+
+            synchronized (backlog)
+            {
+                // what a spectator who fell behind was still owed is no use anymore
+                if (notice == FELL_BEHIND) backlog.clear();
+
+                ending = notice;
+                drain();
+            }
+        }
+
+        /**
+         * Starts a task writing out the backlog if none is running. Must be
+         * called holding the backlog's monitor.
+         */
+        private void drain()
+        {
+            if (draining) return;
+
+            draining = true;
+            Server.threadPool.submit(this::writeBacklog);
+        }
+
+        /**
+         * Writes the backlog to a blocking player's socket until it is empty,
+         * then ends the spectator if they have been told to.
+         */
+        private void writeBacklog()
+        {
+            while (true)
+            {
+                byte[] frame;
+                Message notice = null;
+
+                synchronized (backlog)
+                {
+                    frame = backlog.poll();
+
+                    if (frame == null)
+                    {
+                        draining = false;
+                        notice = ending;
+                        ending = null;
+                    }
+                }
+
+                try
+                {
+                    if (frame == null)
+                    {
+                        player.flush();
+                        if (notice != null) onEnd.accept(notice);
+                        return;
+                    }
+
+                    player.sendFrame(frame);
+                }
+                catch (IOException e)
+                {
+                    // the player's own read notices the broken connection and takes them out
+                    synchronized (backlog)
+                    {
+                        backlog.clear();
+                        draining = false;
+                    }
+
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks how many players are watching.
+     *
+     * @return The number of spectators.
+     */
+    public int audience()
+    {
+        return audience.get();
+    }
+
+    /**
+     * Sends an event to every spectator.
+     *
+     * Costs nothing more than a check when nobody is watching, and never
+     * waits on a spectator otherwise.
+     *
+     * @param message The event.
+     */
+    public void publish(Message message)
+    {
+        if (audience.get() == 0) return;
+
+        enqueue(() ->
+        {
+            byte[][] frames = new byte[Protocol.VERSION + 1][];
+
+            for (Spectator spectator : spectators)
+            {
+                byte[] frame = frame(message, frames, spectator.player.getProtocolVersion());
+
+                if (frame != null && !spectator.deliver(frame)) fallBehind(spectator);
+            }
+        });
+    }
+
+    /**
+     * Sends a message to a single spectator, after the events published before it.
+     *
+     * @param spectator The spectator.
+     * @param message The message.
+     */
+    public void send(Spectator spectator, Message message)
+    {
+        enqueue(() ->
+        {
+            if (spectator.gone.get()) return;
+
+            byte[] frame = frame(message, new byte[Protocol.VERSION + 1][], spectator.player.getProtocolVersion());
+
+            if (frame != null && !spectator.deliver(frame)) fallBehind(spectator);
+        });
+    }
+
+    /**
+     * Adds a spectator, who is first caught up on the game so far.
+     *
+     * @param spectator The new spectator.
+     * @param catchUp Messages describing the game up to now.
+     */
+    public void join(Spectator spectator, List<Message> catchUp)
+    {
+        audience.incrementAndGet();
+
+        enqueue(() ->
+        {
+            // left before they were even added
+            if (spectator.gone.get()) return;
+
+            spectators.add(spectator);
+
+            for (Message message : catchUp)
+            {
+                byte[] frame = frame(message, new byte[Protocol.VERSION + 1][], spectator.player.getProtocolVersion());
+
+                if (frame != null && !spectator.deliver(frame))
+                {
+                    fallBehind(spectator);
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a spectator who stopped watching on their own or disconnected.
+     *
+     * @param spectator The spectator.
+     */
+    public void leave(Spectator spectator)
+    {
+        if (!spectator.gone.compareAndSet(false, true)) return;
+
+        audience.decrementAndGet();
+        spectators.remove(spectator);
+    }
+
+    /**
+     * Removes a spectator after the events published before, then calls
+     * their callback with the given notice, like when the broadcast ends.
+     *
+     * @param spectator The spectator.
+     * @param notice The message their callback is given.
+     */
+    public void dismiss(Spectator spectator, Message notice)
+    {
+        enqueue(() ->
+        {
+            if (!spectator.gone.compareAndSet(false, true)) return;
+
+            audience.decrementAndGet();
+            spectators.remove(spectator);
+            spectator.end(notice);
+        });
+    }
+
+    /**
+     * Ends the broadcast when the game is over, telling every spectator so
+     * after the events already published.
+     *
+     * @param notice The message every spectator's callback is given.
+     */
+    public void end(Message notice)
+    {
+        if (audience.get() == 0) return;
+
+        enqueue(() ->
+        {
+            for (Spectator spectator : spectators)
+            {
+                if (!spectator.gone.compareAndSet(false, true)) continue;
+
+                audience.decrementAndGet();
+                spectators.remove(spectator);
+                spectator.end(notice);
+            }
+        });
+    }
+
+    /**
+     * Stops a spectator who fell behind.
+     *
+     * @param spectator The spectator.
+     */
+    private void fallBehind(Spectator spectator)
+    {
+        if (!spectator.gone.compareAndSet(false, true)) return;
+
+        audience.decrementAndGet();
+        spectators.remove(spectator);
+        spectator.end(FELL_BEHIND);
+    }
+
+    /**
+     * Gets a message's frame for a protocol version, encoding it the first
+     * time that version is needed.
+     *
+     * @param message The message.
+     * @param frames The frames encoded so far, indexed by protocol version.
+     * @param version The protocol version.
+     * @return The frame, or null if the message can't be encoded.
+     */
+    private static byte[] frame(Message message, byte[][] frames, int version)
+    {
+        if (frames[version] != null) return frames[version];
+
+        try
+        {
+            return frames[version] = message.encode(version);
+        }
+        catch (UTFDataFormatException e)
+        {
+            Log.warn("Error encoding message", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queues work for the fan-out, starting a fan-out task if none is running.
+     *
+     * @param work The work, run in order with everything else queued.
+     */
+    private void enqueue(Runnable work)
+    {
+        synchronized (pending)
+        {
+            pending.add(work);
+
+            if (fanningOut) return;
+            fanningOut = true;
+        }
+
+        Server.threadPool.submit(this::fanOut);
+    }
+
+    /**
+     * Runs the queued work until there is none left. Runs on the thread pool.
+     */
+    private void fanOut()
+    {
+        while (true)
+        {
+            Runnable work;
+
+            synchronized (pending)
+            {
+                work = pending.poll();
+
+                if (work == null)
+                {
+                    fanningOut = false;
+                    return;
+                }
+            }
+
+            try
+            {
+                work.run();
+            }
+            catch (RuntimeException e)
+            {
+                Log.error("Error broadcasting to spectators", e);
+            }
+        }
+    }
+}
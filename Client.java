@@ -1,51 +1,131 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
+import javax.net.ssl.*;
 
 /**
  * Client class that connects to the 20 Questions game server.
  */
 public class Client
 {
+    /** Seconds the server holds a player's seat after their connection drops. */
+    private static final int RECONNECT_SECONDS = 60;
+    /** First and longest wait between reconnection attempts, in milliseconds. */
+    private static final int FIRST_BACKOFF_MILLIS = 250;
+    private static final int MAX_BACKOFF_MILLIS = 8000;
+
     private Socket clientSocket;
     private DataInputStream in;    
     private DataOutputStream out;   
 
+    /** The context TLS connections are made from, or null for plaintext. */
+    private final SSLContext tls;
+
+    /** Token the server gave this player at login, to resume a game with. Null until received. */
+    private String resumeToken;
+
     /**
      * Constructor that connects to the server and runs the game.
      * 
+     * The client opens by offering the newest protocol version it speaks and 
+     * ignores the server's legacy greeting until the server acknowledges the 
+     * offer. From then on it uses the negotiated version: BINARY frames say 
+     * whether they are prompts, while LEGACY text falls back to the trailing 
+     * ": " convention.
+     *
+     * If the connection drops after the server has sent a resume token, the
+     * client reconnects on its own (see reconnect()) and presents the token
+     * instead of a hello. The server then either puts the player back in
+     * their game, which it catches them up on, or refuses because there is
+     * no game to go back to, in which case the client exits as before.
+     *
+     * Over TLS, every connection is made from the same context, so a
+     * reconnect resumes the session of the connection that dropped instead
+     * of going through a full handshake.
+     * 
      * @param addr The server address to connect to.
      * @param port The port number on which the server is listening.
+     * @param tls The TLS context to connect with (see Tls), or null for plaintext.
      */
-    public Client(String addr, int port)
+    public Client(String addr, int port, SSLContext tls)
     {
+        this.tls = tls;
+
         Scanner scanner = new Scanner(System.in);  // scanner for reading user input
         String message = "";                       // used to store server messages
         String input = "";                         // used to store client messages
+        int version = -1;                          // protocol version, -1 until the server acks
 
         // attempts to connect to the server
         try
         {
-            clientSocket = new Socket(addr, port); 
+            open(addr, port);
 
-            out = new DataOutputStream(clientSocket.getOutputStream());
-            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream())); 
+            // offer the newest protocol version before anything else
+            out.writeUTF(Protocol.hello(Protocol.VERSION));
+            out.flush();
 
             // main communication loop: receive message, check if input needed, respond 
             while (true)
             {
+                boolean prompt;
+
                 try
                 {
-                    message = in.readUTF();
+                    byte[] payload = Protocol.readFrame(in);
+
+                    // the greeting is repeated once the server has answered the hello
+                    if (version < 0)
+                    {
+                        String text = FrameDecoder.decodeText(payload);
+
+                        // the game this client was reconnecting to is over, so there's nothing to resume
+                        if (Protocol.isRefusal(text))
+                        {
+                            resumeToken = null;
+                            throw new EOFException("No game to resume");
+                        }
+
+                        version = Protocol.parseAck(text);
+                        continue;
+                    }
+
+                    if (version == Protocol.BINARY)
+                    {
+                        Message decoded = Message.decode(payload);
+
+                        // kept for reconnecting, never shown
+                        if (decoded.isToken())
+                        {
+                            resumeToken = decoded.getText();
+                            continue;
+                        }
+
+                        message = decoded.getText();
+                        prompt = decoded.isPrompt();
+                    }
+                    else
+                    {
+                        message = FrameDecoder.decodeText(payload);
+
+                        // all legacy messages requiring input end in ": "
+                        prompt = message.length() >= 2 && message.charAt(message.length() - 2) == ':';
+                    }
                 }
                 // connection lost or server server disconnected
                 catch(IOException e)  
                 {
-                    System.out.println("\nDisconnected from server.");  
+                    close();
 
-                    if (out != null) out.close();
-                    if (in != null) in.close();
-                    if (clientSocket != null) clientSocket.close();
+                    if (resumeToken != null && reconnect(addr, port))
+                    {
+                        version = -1;
+                        continue;
+                    }
+
+                    System.out.println("\nDisconnected from server.");  
                     scanner.close();
 
                     break;
@@ -53,18 +133,18 @@ public class Client
 
                 System.out.print(message);
 
-                // all messages requiring input end in ": "
-                if (message.charAt(message.length() - 2) == ':')
+                if (prompt)
                 {
                     input = scanner.nextLine();
 
                     try
                     {
-                        out.writeUTF(input);
+                        out.write(Protocol.encodeReply(input, version));
                         out.flush();
                     }
                     catch(IOException e)
                     {
+                        // the next read notices the broken connection and reconnects
                         System.out.println("Error sending to server: " + e.getMessage());
                     }
                 }
@@ -85,15 +165,148 @@ public class Client
         }
     }
 
+    /**
+     * Opens a connection to the server and its streams.
+     *
+     * @param addr The server address to connect to.
+     * @param port The port number on which the server is listening.
+     * @throws IOException If the server can't be reached.
+     */
+    private void open(String addr, int port) throws IOException
+    {
+        if (tls != null)
+        {
+            SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(addr, port);
+
+            // only talk to the server if its certificate is for the host that was asked for
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+
+            clientSocket = socket;
+        }
+        else
+        {
+            clientSocket = new Socket(addr, port);
+        }
+
+        out = new DataOutputStream(clientSocket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+    }
+
+    /**
+     * Closes the connection and its streams, ignoring errors since it is
+     * usually already broken.
+     */
+    private void close()
+    {
+        try
+        {
+            if (out != null) out.close();
+            if (in != null) in.close();
+            if (clientSocket != null) clientSocket.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to clean up on a broken connection
+        }
+    }
+
+    /**
+     * Reconnects to the server after the connection dropped and asks to resume.
+     *
+     * Attempts are spaced out with exponential backoff, starting at
+     * FIRST_BACKOFF_MILLIS and doubling up to MAX_BACKOFF_MILLIS, and stop
+     * once the server would have given up the player's seat anyway.
+     *
+     * @param addr The server address to connect to.
+     * @param port The port number on which the server is listening.
+     * @return true once connected and the resume is sent, false if the server
+     *         couldn't be reached in time.
+     */
+    private boolean reconnect(String addr, int port)
+    {
+        long giveUpAt = System.currentTimeMillis() + RECONNECT_SECONDS * 1000L;
+        int backoff = FIRST_BACKOFF_MILLIS;
+
+        while (true)
+        {
+            try
+            {
+                open(addr, port);
+
+                out.writeUTF(Protocol.resume(Protocol.VERSION, resumeToken));
+                out.flush();
+
+                return true;
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+
+            // only worth mentioning once the server didn't answer right away
+            if (backoff == FIRST_BACKOFF_MILLIS) System.out.println("\nConnection lost, reconnecting...");
+
+            if (System.currentTimeMillis() + backoff > giveUpAt) return false;
+
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
     /**
      * Main method to start the client.
      * 
-     * Creates a new Client instance that connects to a server on localhost:5000.
+     * Creates a new Client instance that connects to a server on localhost:5000,
+     * or the host and port given on the command line. Passing --tls with a
+     * truststore file, and --tls-password with its password, connects over
+     * TLS to a server whose certificate is in it.
+     * 
+     * Usage: java Client [host] [port] [--tls truststore [--tls-password password]]
      * 
-     * @param args Command line arguments (not used)
+     * @param args Command line arguments (optional host, port and TLS options)
      */
     public static void main(String[] args)
     {
-        Client client = new Client("localhost", 5000);
+        String host = "localhost";
+        int port = 5000;
+        String trustStore = null;
+        char[] password = null;
+        int positional = 0;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--tls")) trustStore = args[++i];
+            else if (args[i].equals("--tls-password")) password = args[++i].toCharArray();
+            else if (positional++ == 0) host = args[i];
+            else port = Integer.parseInt(args[i]);
+        }
+
+        SSLContext tls = null;
+
+        if (trustStore != null)
+        {
+            try
+            {
+                tls = Tls.client(Paths.get(trustStore), password);
+            }
+            catch (IOException | GeneralSecurityException e)
+            {
+                System.out.println("Error loading TLS truststore: " + e.getMessage());
+                return;
+            }
+        }
+
+        Client client = new Client(host, port, tls);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1172 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Lets several server nodes share one matchmaking pool.
+ *
+ * Every node accepts its own players as usual, and also listens on a cluster
+ * port for links from its peers. Each node opens one link to every peer it is
+ * given, and sends over it:
+ * - HELLO id port, on connecting, to which the peer replies with its own ID;
+ *   port is the one its players connect to
+ * - WAIT player rating name, when one of its players has waited for a
+ *   local opponent up to the match bound (see Matchmaker), and LEFT player
+ *   when they stop waiting
+ * - CLAIM ticket player, to ask for one of the peer's waiting players
+ * - DENY ticket, when a claimed player is no longer available
+ *
+ * Local players are always matched with each other first, by rating. A
+ * player still waiting at the match bound is matched with a waiting player of another node by claiming them,
+ * and only the node with the lower ID ever claims, so two nodes never try to
+ * take each other's players at the same time. A claimed player is removed
+ * from their node's queue in one step, so they can't be matched twice.
+ *
+ * The game is hosted by the claiming node. The claimed player's node relays
+ * their traffic to it (see Relay): it opens a connection to the host's client
+ * port with a join frame carrying the claim's ticket, and from then on passes
+ * frames along in both directions untouched, over TLS when the nodes run
+ * with it. On the host, the relayed player's connection is a Player like
+ * any other, so GameSession doesn't need to know where its players are.
+ * When the game ends, the host hands the player back and their own node
+ * returns them to its menu.
+ *
+ * Losing a node only ends the games it was hosting: their relayed players are
+ * told and go back to the menu of their own node, and the games it relayed
+ * players to end as if those players had disconnected. Links to a lost peer
+ * are retried every RETRY_SECONDS.
+ *
+ * A node's cluster port only takes links from the addresses of its peers,
+ * and a peer has to prove it belongs to the cluster before any of its
+ * messages are handled. With TLS, links run over it and both ends present
+ * the certificate of the keystore the nodes share. With a shared secret,
+ * the accepting node opens with CHALLENGE nonce, the linking node adds its
+ * own nonce and an HMAC of the challenge to its HELLO, and the reply carries
+ * an HMAC of that nonce, so neither end talks to a node without the secret.
+ * A node can use both.
+ */
+public class Cluster
+{
+    /** Seconds between attempts to link to a peer that is down. */
+    private static final int RETRY_SECONDS = 2;
+
+    /** Seconds a claim waits for the claimed player's node to join before giving up. */
+    private static final int CLAIM_SECONDS = 5;
+
+    /** How often a blocking relay checks whether the game is over while waiting for a reply. */
+    private static final int REPLY_POLL_MILLIS = 250;
+
+    /** How long connecting to a peer may take. */
+    private static final int CONNECT_MILLIS = 1000;
+
+    /** How long a peer may take to prove it belongs to the cluster. */
+    private static final int AUTH_MILLIS = 5000;
+
+    private static final String HMAC = "HmacSHA256";
+
+    /** Replies a relayed player may have waiting for the host before they are disconnected. */
+    private static final int MAX_REPLY_BACKLOG = 64;
+
+    private static final Message HOST_LOST = Message.info("\nThe server hosting your game went down.\nSession ending...");
+
+    private static final SecureRandom TICKETS = new SecureRandom();
+
+    /** This node's ID, or -1 if clustering is disabled. */
+    private final int nodeId;
+    /** The port this node's players connect to, which peers relay their players to. */
+    private final int clientPort;
+
+    private ServerSocket listener;
+    private volatile boolean closed = false;
+
+    /** The cluster ports of the other nodes, the only addresses links are accepted from. */
+    private List<InetSocketAddress> peers = List.of();
+    /** The secret the nodes share to authenticate each other, or null if they only use TLS. */
+    private byte[] secret;
+
+    /** Links to peers, by node ID once the peer has replied to the HELLO. */
+    private final ConcurrentHashMap<Integer, Link> links = new ConcurrentHashMap<>();
+    /** Peers linked to this node, with their client address and waiting players. */
+    private final ConcurrentHashMap<Integer, Node> nodes = new ConcurrentHashMap<>();
+    /** Claims this node made on other nodes' players, by ticket. */
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<>();
+    /** Players of this node whose games are hosted elsewhere. */
+    private final AtomicInteger relays = new AtomicInteger();
+
+    /**
+     * A peer as seen from this node.
+     */
+    private static final class Node
+    {
+        private final int id;
+        private final InetSocketAddress clientAddress;
+
+        /** The peer's waiting players, oldest first, by player ID. Guarded by the node. */
+        private final LinkedHashMap<Long, Waiting> waiting = new LinkedHashMap<>();
+
+        /**
+         * @param id The peer's node ID.
+         * @param clientAddress The address the peer's players connect to.
+         */
+        Node(int id, InetSocketAddress clientAddress)
+        {
+            this.id = id;
+            this.clientAddress = clientAddress;
+        }
+    }
+
+    /**
+     * A player waiting on another node, as announced by its WAIT.
+     *
+     * @param username The player's username.
+     * @param rating The player's rating, which can't change while they wait.
+     */
+    private record Waiting(String username, int rating)
+    {
+    }
+
+    /**
+     * A claim this node made on another node's player.
+     *
+     * @param player The local player who will be matched with them.
+     * @param opponent The claimed player.
+     * @param timeout Gives up on the claim after CLAIM_SECONDS.
+     */
+    private record Claim(Player player, Waiting opponent, TimingWheel.Timeout timeout)
+    {
+    }
+
+    /**
+     * @param nodeId This node's ID, or -1 if clustering is disabled.
+     * @param clientPort The port this node's players connect to.
+     */
+    private Cluster(int nodeId, int clientPort)
+    {
+        this.nodeId = nodeId;
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Creates a cluster that does nothing, for a server running on its own.
+     *
+     * @return The disabled cluster.
+     */
+    public static Cluster disabled()
+    {
+        return new Cluster(-1, -1);
+    }
+
+    /**
+     * Starts this node: listens for peers on the cluster port and starts
+     * linking to the given ones in the background.
+     *
+     * The nodes authenticate each other with TLS if the server runs with it,
+     * and with the secret if one is given, so they need at least one of them.
+     *
+     * @param nodeId This node's ID, unique in the cluster.
+     * @param bindAddress The interface the cluster port listens on.
+     * @param clusterPort The port peers link to.
+     * @param clientPort The port this node's players connect to.
+     * @param peers The cluster ports of the other nodes.
+     * @param secret The secret every node of the cluster is given, or null.
+     * @return The running cluster.
+     * @throws IOException If the cluster port can't be opened.
+     */
+    public static Cluster start(int nodeId, InetAddress bindAddress, int clusterPort, int clientPort,
+        List<InetSocketAddress> peers, byte[] secret) throws IOException
+    {
+        if (Server.tls == null && secret == null)
+        {
+            throw new IOException("Cluster nodes need TLS or a shared secret to authenticate each other");
+        }
+
+        Cluster cluster = new Cluster(nodeId, clientPort);
+        cluster.peers = List.copyOf(peers);
+        cluster.secret = secret;
+
+        if (Server.tls != null)
+        {
+            SSLServerSocket secure = (SSLServerSocket) Server.tls.getServerSocketFactory()
+                .createServerSocket(clusterPort, 0, bindAddress);
+            secure.setNeedClientAuth(true);
+            cluster.listener = secure;
+        }
+        else
+        {
+            cluster.listener = new ServerSocket(clusterPort, 0, bindAddress);
+        }
+
+        Thread accepter = new Thread(cluster::accept, "cluster-listener");
+        accepter.setDaemon(true);
+        accepter.start();
+
+        for (InetSocketAddress peer : peers)
+        {
+            Thread link = new Thread(cluster.new Link(peer), "cluster-link-" + peer.getPort());
+            link.setDaemon(true);
+            link.start();
+        }
+
+        Log.info("Cluster node " + nodeId + " listening for peers on " + bindAddress.getHostAddress()
+            + ":" + clusterPort + ", linking to " + peers.size() + " peers");
+
+        return cluster;
+    }
+
+    /**
+     * Offers a player left waiting for a local opponent to the rest of the cluster.
+     *
+     * Called by the matchmaker once the player has waited the match bound. If a node with
+     * a higher ID has someone waiting, the player is taken out of the queue
+     * and that player is claimed for them; otherwise every peer is told the
+     * player is waiting, so one with a lower ID can claim them.
+     *
+     * @param player The waiting player.
+     */
+    public void offer(Player player)
+    {
+        if (nodeId < 0) return;
+
+        for (Node node : nodes.values())
+        {
+            // pairs are only ever proposed by the lower node
+            if (node.id <= nodeId) continue;
+
+            Map.Entry<Long, Waiting> candidate;
+
+            synchronized (node)
+            {
+                Iterator<Map.Entry<Long, Waiting>> oldest = node.waiting.entrySet().iterator();
+                candidate = oldest.hasNext() ? oldest.next() : null;
+            }
+
+            if (candidate == null) continue;
+
+            // matched locally in the meantime
+            if (!Server.matchmaker.cancel(player)) return;
+
+            synchronized (node)
+            {
+                node.waiting.remove(candidate.getKey());
+            }
+
+            claim(player, node, candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        broadcast(waitMessage(player));
+    }
+
+    /**
+     * Builds the WAIT announcing one of this node's waiting players.
+     *
+     * @param player The waiting player.
+     * @return The message, with the username last since it may contain spaces.
+     */
+    private static String waitMessage(Player player)
+    {
+        return "WAIT " + player.getId() + " " + player.getRating() + " " + player.getUsername();
+    }
+
+    /**
+     * Tells every peer a player is no longer waiting.
+     *
+     * @param player The player who was matched or left the queue.
+     */
+    public void withdraw(Player player)
+    {
+        if (nodeId < 0) return;
+
+        broadcast("LEFT " + player.getId());
+    }
+
+    /**
+     * Starts a game between a local player and a player relayed from another
+     * node, once that node has joined with the ticket of the claim.
+     *
+     * @param ticket The ticket from the join frame.
+     * @param link The Player created for the relayed connection.
+     * @return true if the game started, false if there is no such claim, the
+     *         local player left in the meantime or the server is shutting down.
+     */
+    public boolean host(String ticket, Player link)
+    {
+        Claim claim = claims.remove(ticket);
+        if (claim == null) return false;
+
+        claim.timeout().cancel();
+
+        if (claim.player().getState() != PlayerRegistry.State.WAITING || Shutdown.inProgress()) return false;
+
+        // scored against their real rating, which goes back to their node with the hand-back
+        link.setUsername(claim.opponent().username());
+        link.setRating(claim.opponent().rating());
+        link.setRelayed();
+
+        Metrics.CLUSTER_MATCHES.increment();
+        Server.matchmaker.startGame(claim.player(), link);
+
+        return true;
+    }
+
+    /**
+     * Returns a relayed player to their own node once their game here is
+     * over, along with the rating they finished it at.
+     *
+     * @param player The relayed player.
+     */
+    public void handBack(Player player)
+    {
+        try
+        {
+            player.sendFrame(Protocol.handBack(player.getRating()));
+            player.flush();
+        }
+        catch (IOException e)
+        {
+            // their node will notice the relay closing instead
+        }
+
+        try
+        {
+            player.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing relay", e);
+        }
+    }
+
+    /**
+     * Gets the number of this node's players playing a game hosted elsewhere.
+     *
+     * @return The number of relays running.
+     */
+    public int relays()
+    {
+        return relays.get();
+    }
+
+    /**
+     * Stops linking to peers and closes every link.
+     */
+    public void close()
+    {
+        if (nodeId < 0) return;
+
+        closed = true;
+
+        try
+        {
+            listener.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing cluster port", e);
+        }
+
+        for (Link link : links.values())
+        {
+            link.close();
+        }
+    }
+
+    /**
+     * Claims another node's waiting player for a local one.
+     *
+     * The local player is out of the queue until the other node joins with
+     * the ticket, refuses, or CLAIM_SECONDS pass, and is queued again unless
+     * the game started.
+     *
+     * @param player The local player.
+     * @param node The node of the player being claimed.
+     * @param opponentId The claimed player's ID on their node.
+     * @param opponent The claimed player.
+     */
+    private void claim(Player player, Node node, long opponentId, Waiting opponent)
+    {
+        String ticket = randomToken();
+
+        claims.put(ticket, new Claim(player, opponent,
+            Server.timer.schedule(() -> onDeny(ticket), CLAIM_SECONDS, TimeUnit.SECONDS)));
+
+        Link link = links.get(node.id);
+
+        if (link == null || !link.send("CLAIM " + ticket + " " + opponentId))
+        {
+            onDeny(ticket);
+        }
+    }
+
+    /**
+     * Gives up on a claim that was refused or timed out, and queues the
+     * local player again.
+     *
+     * @param ticket The claim's ticket.
+     */
+    private void onDeny(String ticket)
+    {
+        Claim claim = claims.remove(ticket);
+        if (claim == null) return;
+
+        claim.timeout().cancel();
+
+        if (claim.player().getState() == PlayerRegistry.State.WAITING)
+        {
+            Server.matchmaker.enqueue(claim.player());
+        }
+    }
+
+    /**
+     * Hands one of this node's waiting players to the node that claimed them.
+     *
+     * @param from The claiming node.
+     * @param ticket The claim's ticket.
+     * @param playerId The claimed player's ID.
+     */
+    private void onClaim(int from, String ticket, long playerId)
+    {
+        Player player = Server.players.get(playerId);
+        Node host = nodes.get(from);
+
+        // matched locally, left, or the host is already gone
+        if (player == null || host == null || !Server.matchmaker.cancel(player)
+            || !Server.players.transition(player, PlayerRegistry.State.WAITING, PlayerRegistry.State.PLAYING))
+        {
+            Link link = links.get(from);
+            if (link != null) link.send("DENY " + ticket);
+
+            return;
+        }
+
+        relays.incrementAndGet();
+        Server.threadPool.submit(new Relay(player, host.clientAddress, ticket));
+    }
+
+    /**
+     * Handles a waiting player announced by a peer, claiming them right away
+     * if their node has a higher ID and a local player is waiting.
+     *
+     * @param node The peer.
+     * @param playerId The player's ID on the peer.
+     * @param waiting The player's username and rating.
+     */
+    private void onWait(Node node, long playerId, Waiting waiting)
+    {
+        if (node.id > nodeId)
+        {
+            Player local = Server.matchmaker.takeOldest();
+
+            if (local != null)
+            {
+                claim(local, node, playerId, waiting);
+                return;
+            }
+        }
+
+        synchronized (node)
+        {
+            node.waiting.put(playerId, waiting);
+        }
+    }
+
+    /**
+     * Sends a message to every linked peer.
+     *
+     * @param message The message.
+     */
+    private void broadcast(String message)
+    {
+        for (Link link : links.values())
+        {
+            link.send(message);
+        }
+    }
+
+    /**
+     * Creates a random token, for a claim's ticket or a challenge.
+     *
+     * @return The token, URL-safe Base64.
+     */
+    private static String randomToken()
+    {
+        byte[] bytes = new byte[16];
+        TICKETS.nextBytes(bytes);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Proves this node has the cluster's secret by signing a peer's nonce.
+     *
+     * @param role Which end of the link signs, "link" or "accept", so a
+     *        proof one end sent can't be played back to it from the other.
+     * @param nonce The peer's nonce.
+     * @return The HMAC of the role and nonce, URL-safe Base64.
+     */
+    private String prove(String role, String nonce)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            byte[] proof = mac.doFinal((role + " " + nonce).getBytes(StandardCharsets.UTF_8));
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(proof);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // every JVM has HmacSHA256
+            throw new IllegalStateException("Error computing cluster proof", e);
+        }
+    }
+
+    /**
+     * Checks a peer's proof that it has the cluster's secret.
+     *
+     * @param proof The proof the peer sent.
+     * @param role Which end of the link the peer is.
+     * @param nonce The nonce this node sent the peer.
+     * @return true if the proof is right.
+     */
+    private boolean verify(String proof, String role, String nonce)
+    {
+        return MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8),
+            prove(role, nonce).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether a link comes from one of the peers this node was given.
+     * Their host names are looked up again every time, so a peer that moved
+     * is still recognized.
+     *
+     * @param address The address the link comes from.
+     * @return true if it is the address of a peer.
+     */
+    private boolean isPeer(InetAddress address)
+    {
+        for (InetSocketAddress peer : peers)
+        {
+            try
+            {
+                for (InetAddress known : InetAddress.getAllByName(peer.getHostString()))
+                {
+                    if (known.equals(address)) return true;
+                }
+            }
+            catch (UnknownHostException e)
+            {
+                // can't be this peer then
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Accepts links from peers until the cluster is closed. Each link is
+     * read on its own thread, and links from anywhere else are closed.
+     */
+    private void accept()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Socket socket = listener.accept();
+
+                if (!isPeer(socket.getInetAddress()))
+                {
+                    Log.warn("Refused cluster link from " + socket.getInetAddress().getHostAddress()
+                        + ", which isn't a peer", null);
+                    socket.close();
+                    continue;
+                }
+
+                Thread reader = new Thread(() -> read(socket), "cluster-peer");
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch (IOException e)
+            {
+                if (!closed) Log.warn("Error accepting cluster link", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a peer's link: its HELLO, once it has proven it belongs to the
+     * cluster, then every message it sends until it goes away, at which
+     * point its waiting players are forgotten.
+     *
+     * @param socket The peer's link.
+     */
+    private void read(Socket socket)
+    {
+        Node node = null;
+
+        try (socket)
+        {
+            // the TLS handshake, if any, happens here too
+            socket.setSoTimeout(AUTH_MILLIS);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            String challenge = null;
+
+            if (secret != null)
+            {
+                challenge = randomToken();
+                out.writeUTF("CHALLENGE " + challenge);
+                out.flush();
+            }
+
+            // HELLO id port, then nonce proof with a secret
+            String[] hello = in.readUTF().split(" ");
+
+            if (!hello[0].equals("HELLO") || challenge != null && (hello.length < 5 || !verify(hello[4], "link", challenge)))
+            {
+                Log.warn("Cluster link from " + socket.getInetAddress().getHostAddress()
+                    + " failed to authenticate", null);
+                return;
+            }
+
+            node = new Node(Integer.parseInt(hello[1]),
+                new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(hello[2])));
+            nodes.put(node.id, node);
+
+            out.writeUTF("HELLO " + nodeId + (challenge != null ? " " + prove("accept", hello[3]) : ""));
+            out.flush();
+
+            socket.setSoTimeout(0);
+
+            Log.info("Cluster node " + node.id + " linked");
+
+            while (true)
+            {
+                String[] message = in.readUTF().split(" ", 4);
+
+                switch (message[0])
+                {
+                    case "WAIT" -> onWait(node, Long.parseLong(message[1]),
+                        new Waiting(message[3], Integer.parseInt(message[2])));
+                    case "LEFT" ->
+                    {
+                        synchronized (node)
+                        {
+                            node.waiting.remove(Long.parseLong(message[1]));
+                        }
+                    }
+                    case "CLAIM" -> onClaim(node.id, message[1], Long.parseLong(message[2]));
+                    case "DENY" -> onDeny(message[1]);
+                    default -> Log.info("Unknown cluster message: " + message[0]);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            if (node == null && e instanceof SSLException)
+            {
+                Log.warn("Cluster link from " + socket.getInetAddress().getHostAddress()
+                    + " failed to authenticate", e);
+            }
+
+            if (node != null && nodes.remove(node.id, node) && !closed)
+            {
+                Log.info("Cluster node " + node.id + " lost");
+            }
+        }
+    }
+
+    /**
+     * This node's link to one peer, reconnected every RETRY_SECONDS while
+     * the peer is down.
+     */
+    private final class Link implements Runnable
+    {
+        private final InetSocketAddress address;
+        private Socket socket;
+        private DataOutputStream out;
+
+        /**
+         * @param address The peer's cluster port.
+         */
+        Link(InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        /**
+         * Keeps the link up until the cluster is closed.
+         *
+         * Once connected, and once the peer has proven it belongs to the
+         * cluster, it is told about every player already waiting here. The
+         * thread then only waits for the peer to close the link, since it
+         * never writes after its reply to the HELLO.
+         */
+        public void run()
+        {
+            while (!closed)
+            {
+                int peerId = -1;
+
+                try
+                {
+                    Socket connected = new Socket();
+                    connected.connect(address, CONNECT_MILLIS);
+                    connected.setTcpNoDelay(true);
+
+                    // presents this node's certificate, which the peer requires
+                    if (Server.tls != null)
+                    {
+                        connected = Server.tls.getSocketFactory()
+                            .createSocket(connected, address.getHostString(), address.getPort(), true);
+                    }
+
+                    connected.setSoTimeout(AUTH_MILLIS);
+
+                    synchronized (this)
+                    {
+                        socket = connected;
+                        out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+                    }
+
+                    DataInputStream in = new DataInputStream(connected.getInputStream());
+
+                    String nonce = null;
+                    String proof = "";
+
+                    if (secret != null)
+                    {
+                        // CHALLENGE nonce
+                        String challenge = in.readUTF().split(" ")[1];
+                        nonce = randomToken();
+                        proof = " " + nonce + " " + prove("link", challenge);
+                    }
+
+                    send("HELLO " + nodeId + " " + clientPort + proof);
+
+                    // HELLO id, then proof with a secret
+                    String[] hello = in.readUTF().split(" ");
+
+                    if (nonce != null && (hello.length < 3 || !verify(hello[2], "accept", nonce)))
+                    {
+                        Log.warn("Cluster node at " + address + " failed to authenticate", null);
+                        throw new EOFException("Peer failed to authenticate");
+                    }
+
+                    peerId = Integer.parseInt(hello[1]);
+                    connected.setSoTimeout(0);
+                    links.put(peerId, this);
+
+                    for (Player player : Server.matchmaker.waitingPlayers())
+                    {
+                        send(waitMessage(player));
+                    }
+
+                    while (in.read() >= 0)
+                    {
+                        // nothing is ever sent this way after the HELLO
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // the peer is down, try again later
+                }
+                finally
+                {
+                    if (peerId >= 0) links.remove(peerId, this);
+                    close();
+                }
+
+                try
+                {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(RETRY_SECONDS));
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends a message to the peer.
+         *
+         * @param message The message.
+         * @return true if it was sent, false if the link is down.
+         */
+        synchronized boolean send(String message)
+        {
+            if (out == null) return false;
+
+            try
+            {
+                out.writeUTF(message);
+                out.flush();
+
+                return true;
+            }
+            catch (IOException e)
+            {
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Closes the link, which makes run() connect again.
+         */
+        synchronized void close()
+        {
+            out = null;
+
+            try
+            {
+                if (socket != null) socket.close();
+            }
+            catch (IOException e)
+            {
+                // already broken
+            }
+        }
+    }
+
+    /**
+     * Relays one of this node's players to the node hosting their game.
+     *
+     * Frames from the host are passed to the player as they are, in the
+     * protocol version the player negotiated here, until the host hands the
+     * player back with the rating the game left them at. The player's replies go the other way: read on a pool
+     * thread for blocking players, or through this relay as the connection's
+     * handler for non-blocking ones. Either way they are only queued, and a
+     * pool task writes them to the host, so a host that is slow to read never
+     * holds up the event loop.
+     *
+     * Once the relay ends, the player goes back to this node's menu, or back
+     * into its queue if the game never started.
+     */
+    private final class Relay implements Runnable, MessageHandler
+    {
+        private final Player player;
+        private final InetSocketAddress host;
+        private final String ticket;
+
+        private Socket socket;
+        private DataOutputStream out;
+        private Future<?> replies;
+
+        /** Replies waiting to be written to the host, guarded by itself. */
+        private final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        /** Whether a task is writing out the backlog, guarded by backlog. */
+        private boolean writing = false;
+
+        /** Set once the relay is over, so the player's replies stay here. */
+        private volatile boolean done = false;
+
+        /**
+         * @param player The local player.
+         * @param host The client address of the node hosting the game.
+         * @param ticket The ticket of the host's claim.
+         */
+        Relay(Player player, InetSocketAddress host, String ticket)
+        {
+            this.player = player;
+            this.host = host;
+            this.ticket = ticket;
+        }
+
+        /**
+         * Joins the host and passes its frames to the player until the game is over.
+         */
+        public void run()
+        {
+            boolean started = false;
+            boolean handedBack = false;
+
+            try
+            {
+                socket = new Socket();
+                socket.connect(host, CONNECT_MILLIS);
+                socket.setTcpNoDelay(true);
+
+                // nodes share a keystore, so the host's certificate is one this node trusts
+                if (Server.tls != null)
+                {
+                    socket = Server.tls.getSocketFactory().createSocket(socket, host.getHostString(), host.getPort(), true);
+                }
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                out.writeUTF(Protocol.join(player.getProtocolVersion(), ticket));
+                out.flush();
+
+                // the host greets every connection, like a client this skips ahead to the ack
+                while (true)
+                {
+                    String text = FrameDecoder.decodeText(Protocol.readFrame(in));
+
+                    if (Protocol.isRefusal(text)) throw new EOFException("Claim refused");
+                    if (Protocol.parseAck(text) >= 0) break;
+                }
+
+                if (player.getConnection() != null) player.getConnection().setHandler(this);
+                else replies = Server.threadPool.submit(this::forwardReplies);
+
+                while (true)
+                {
+                    int length = in.readUnsignedShort();
+                    byte[] frame = new byte[2 + length];
+                    frame[0] = (byte) (length >>> 8);
+                    frame[1] = (byte) length;
+                    in.readFully(frame, 2, length);
+
+                    Integer rating = Protocol.parseHandBack(frame);
+
+                    if (rating != null)
+                    {
+                        player.setRating(rating);
+                        handedBack = true;
+                        break;
+                    }
+
+                    started = true;
+                    player.sendFrame(frame);
+
+                    // whatever the host sent together goes out together
+                    if (in.available() == 0) player.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                // the host is gone, or the player is
+            }
+            finally
+            {
+                done = true;
+
+                try
+                {
+                    if (socket != null) socket.close();
+                }
+                catch (IOException e)
+                {
+                    // already broken
+                }
+            }
+
+            // only counted out once the player is back, so a shutdown doesn't drop them halfway
+            try
+            {
+                finish(started, handedBack);
+            }
+            finally
+            {
+                relays.decrementAndGet();
+            }
+        }
+
+        /**
+         * Returns the player to this node once the relay is over.
+         *
+         * @param started Whether any of the game reached the player.
+         * @param handedBack Whether the host handed the player back, rather than going away.
+         */
+        private void finish(boolean started, boolean handedBack)
+        {
+            // the blocking reader must let go of the player's stream before anyone else reads it
+            if (replies != null)
+            {
+                try
+                {
+                    replies.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    Log.warn("Error relaying replies", e.getCause());
+                }
+            }
+
+            // the player disconnected while relayed
+            if (player.getState() == null) return;
+
+            if (Shutdown.inProgress())
+            {
+                Shutdown.leave(player);
+                return;
+            }
+
+            if (!started)
+            {
+                // the game never started, so the player just keeps waiting
+                if (Server.players.transition(player, PlayerRegistry.State.PLAYING, PlayerRegistry.State.WAITING))
+                {
+                    Server.matchmaker.enqueue(player);
+                }
+
+                return;
+            }
+
+            if (!handedBack)
+            {
+                try
+                {
+                    player.send(HOST_LOST);
+                    player.send(Message.separator());
+                }
+                catch (IOException e)
+                {
+                    Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+                }
+            }
+
+            Server.players.transition(player, PlayerRegistry.State.PLAYING, PlayerRegistry.State.MENU);
+            Server.threadPool.submit(new PlayerManager(player));
+        }
+
+        /**
+         * Reads a blocking player's replies and passes them to the host until
+         * the relay is over. Waits at most REPLY_POLL_MILLIS at a time, and a
+         * reply is only read once it starts arriving, so nothing is taken from
+         * the stream after the relay ends.
+         */
+        private void forwardReplies()
+        {
+            try
+            {
+                while (!done)
+                {
+                    String reply = player.receive(REPLY_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (reply != null) onMessage(reply);
+                }
+            }
+            catch (IOException e)
+            {
+                onDisconnect();
+            }
+        }
+
+        @Override
+        public void onMessage(String reply)
+        {
+            if (done) return;
+
+            try
+            {
+                byte[] frame = Protocol.encodeReply(reply, player.getProtocolVersion());
+
+                synchronized (backlog)
+                {
+                    if (backlog.size() < MAX_REPLY_BACKLOG)
+                    {
+                        backlog.add(frame);
+
+                        if (!writing)
+                        {
+                            writing = true;
+                            Server.threadPool.submit(this::writeBacklog);
+                        }
+
+                        return;
+                    }
+                }
+
+                // the host stopped reading, so the player can't play on anyway
+                player.close();
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error relaying reply", player.getId(), Log.NONE, e);
+            }
+        }
+
+        /**
+         * Writes the player's queued replies to the host until there are none
+         * left, then flushes them. Runs as a pool task.
+         */
+        private void writeBacklog()
+        {
+            try
+            {
+                while (true)
+                {
+                    byte[] frame;
+
+                    synchronized (backlog)
+                    {
+                        frame = backlog.poll();
+                    }
+
+                    if (frame != null)
+                    {
+                        out.write(frame);
+                        continue;
+                    }
+
+                    out.flush();
+
+                    // only one task writes at a time, so a reply queued during the flush is picked up here
+                    synchronized (backlog)
+                    {
+                        if (backlog.isEmpty())
+                        {
+                            writing = false;
+                            return;
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // the host is gone, which run() finds out on its own
+                synchronized (backlog)
+                {
+                    backlog.clear();
+                    writing = false;
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnect()
+        {
+            if (done) return;
+
+            // the host sees the relay close as the player disconnecting
+            if (Server.players.remove(player)) Log.info("Player disconnected from server", player.getId(), Log.NONE);
+
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // already broken
+            }
+        }
+    }
+}
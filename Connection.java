@@ -0,0 +1,437 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import javax.net.ssl.*;
+
+/**
+ * A single client connection serviced by an EventLoop.
+ *
+ * Each connection owns its own framing decoder (and with it its read buffer)
+ * and its own queue of outbound frames. Incoming frames are decoded according
+ * to the connection's protocol version and handed to the installed
+ * MessageHandler on the loop thread.
+ *
+ * Writes are safe from any thread. Frames are appended to the outbound queue
+ * and the loop writes them as the socket accepts more data, so a slow client
+ * never blocks the thread that sent to it. The write is deferred until the
+ * loop's next pass and then sends everything queued so far with a single
+ * gathering write, so all the frames of one turn leave in one syscall.
+ *
+ * A connection can run over TLS (see TlsChannel). Frames queued before the
+ * handshake is over wait in the outbound queue and go out once it is, and
+ * the handshake's expensive steps run on the server's thread pool, after
+ * which the loop carries on with it.
+ */
+public class Connection
+{
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key;
+    /** The TLS layer over the channel, or null for plaintext. */
+    private final TlsChannel tls;
+
+    private final FrameDecoder decoder = new FrameDecoder();
+
+    /** Most buffers handed to a single gathering write. */
+    private static final int MAX_GATHER = 64;
+
+    /** Frames waiting to be written, guarded by its own monitor. */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    /** Whether a flush is already scheduled on the loop, guarded by outbound. */
+    private boolean flushScheduled = false;
+
+    /** Frames queued and write calls made, for measuring how well writes coalesce. */
+    private volatile long messagesSent = 0;
+    private volatile long writes = 0;
+
+    private volatile MessageHandler handler;
+    private volatile int protocolVersion = Protocol.LEGACY;
+    private volatile Player player;
+    private volatile boolean closed = false;
+
+    /**
+     * Wraps an accepted channel.
+     *
+     * @param channel The accepted client channel, already in non-blocking mode.
+     * @param loop The event loop that will service this connection.
+     * @param engine The TLS engine to run the connection over, or null for plaintext.
+     * @throws SSLException If the TLS handshake can't be started.
+     */
+    public Connection(SocketChannel channel, EventLoop loop, SSLEngine engine) throws SSLException
+    {
+        this.channel = channel;
+        this.loop = loop;
+        this.tls = engine == null ? null
+            : new TlsChannel(channel, engine, task -> Server.threadPool.execute(task), () -> loop.execute(this::resume));
+    }
+
+    /**
+     * Registers the channel for reads. Called on the loop thread.
+     *
+     * @param selector The loop's selector.
+     * @throws ClosedChannelException If the client already disconnected.
+     */
+    void register(Selector selector) throws ClosedChannelException
+    {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Installs the handler that receives this connection's messages.
+     *
+     * Messages that arrive while no handler is installed are dropped.
+     *
+     * @param handler The handler to call on the loop thread.
+     */
+    public void setHandler(MessageHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Switches the connection to the protocol version negotiated at login.
+     *
+     * @param protocolVersion Protocol.LEGACY or Protocol.BINARY.
+     */
+    public void setProtocolVersion(int protocolVersion)
+    {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Gets the protocol version used on this connection.
+     *
+     * @return Protocol.LEGACY or Protocol.BINARY.
+     */
+    public int getProtocolVersion()
+    {
+        return protocolVersion;
+    }
+
+    /**
+     * Associates the logged-in player with this connection so it can be
+     * cleaned up when the client disconnects.
+     *
+     * @param player The player using this connection.
+     */
+    public void setPlayer(Player player)
+    {
+        this.player = player;
+    }
+
+    /**
+     * Sends a message to the client in the connection's protocol version.
+     *
+     * @param message The message to send.
+     */
+    public void send(Message message)
+    {
+        try
+        {
+            send(message.encode(protocolVersion));
+        }
+        catch (UTFDataFormatException e)
+        {
+            Log.warn("Error encoding message", e);
+        }
+    }
+
+    /**
+     * Queues already framed bytes for sending.
+     *
+     * @param frame The complete frame, including its length header.
+     */
+    public void send(byte[] frame)
+    {
+        if (closed) return;
+
+        boolean schedule;
+        synchronized (outbound)
+        {
+            outbound.add(ByteBuffer.wrap(frame));
+            messagesSent++;
+
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+
+        // deferred even on the loop thread, so every frame sent while handling
+        // the current event goes out in the same write
+        if (schedule)
+        {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Gets the number of frames sent to this client.
+     *
+     * @return The number of frames queued since the connection opened.
+     */
+    public long getMessagesSent()
+    {
+        return messagesSent;
+    }
+
+    /**
+     * Gets the number of frames waiting to be written to the socket.
+     *
+     * @return The number of frames queued but not yet fully written.
+     */
+    public int getBacklog()
+    {
+        synchronized (outbound)
+        {
+            return outbound.size();
+        }
+    }
+
+    /**
+     * Gets the number of write calls made to the socket.
+     *
+     * @return The number of write syscalls since the connection opened.
+     */
+    public long getWrites()
+    {
+        return writes;
+    }
+
+    /**
+     * Reads and dispatches every complete frame currently available.
+     * Called on the loop thread when the channel is readable.
+     */
+    void read()
+    {
+        try
+        {
+            if (tls != null)
+            {
+                readTls();
+                return;
+            }
+
+            int count = decoder.readFrom(channel);
+
+            byte[] payload;
+            while ((payload = decoder.nextFrame()) != null)
+            {
+                dispatch(payload);
+            }
+
+            if (count < 0)
+            {
+                closeNow();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error reading from client", playerId(), Log.NONE, e);
+            closeNow();
+        }
+    }
+
+    /**
+     * Reads and dispatches every complete frame currently available over TLS.
+     *
+     * A record can hold more plaintext than the decoder's buffer has room
+     * for, so this reads until the TLS layer has nothing left. Then, if the
+     * read took the handshake along, whatever it has to send is sent, along
+     * with the frames that were waiting for it to finish.
+     *
+     * @throws IOException If reading fails or the client's data is not valid.
+     */
+    private void readTls() throws IOException
+    {
+        boolean handshaking = !tls.isEstablished();
+        int count;
+
+        do
+        {
+            count = decoder.readFrom(tls);
+
+            byte[] payload;
+            while (!closed && (payload = decoder.nextFrame()) != null)
+            {
+                dispatch(payload);
+            }
+        }
+        while (!closed && count > 0 && tls.hasBuffered());
+
+        if (count < 0)
+        {
+            closeNow();
+            return;
+        }
+
+        if (handshaking && tls.isEstablished()) Metrics.TLS_HANDSHAKES.increment();
+
+        if (handshaking || tls.hasPendingOutput()) flush();
+    }
+
+    /**
+     * Carries on with the TLS handshake once its delegated tasks are done.
+     * Called on the loop thread.
+     */
+    private void resume()
+    {
+        if (closed) return;
+
+        tls.resume();
+        read();
+    }
+
+    /**
+     * Decodes a single frame and hands it to the handler.
+     *
+     * @param payload The frame payload without its length header.
+     * @throws IOException If the frame is malformed for the connection's protocol.
+     */
+    private void dispatch(byte[] payload) throws IOException
+    {
+        MessageHandler current = handler;
+
+        if (current == null) return;
+
+        try
+        {
+            current.onMessage(Protocol.decodeReply(payload, protocolVersion));
+        }
+        catch (RuntimeException e)
+        {
+            Log.error("Error handling client message", playerId(), Log.NONE, e);
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the socket will accept.
+     *
+     * If the socket's send buffer fills up, the loop is asked to call this
+     * again once the channel becomes writable. Called on the loop thread.
+     */
+    void flush()
+    {
+        if (closed) return;
+
+        try
+        {
+            synchronized (outbound)
+            {
+                flushScheduled = false;
+
+                // what the TLS handshake has to send goes first
+                if (tls != null) tls.flush();
+
+                while (!outbound.isEmpty())
+                {
+                    ByteBuffer[] batch = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+                    int i = 0;
+                    for (ByteBuffer buffer : outbound)
+                    {
+                        if (i == batch.length) break;
+                        batch[i++] = buffer;
+                    }
+
+                    if (tls != null) tls.write(batch);
+                    else channel.write(batch);
+                    writes++;
+
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+                    {
+                        outbound.poll();
+                    }
+
+                    // the socket's send buffer is full, wait until it is writable again
+                    if (batch[batch.length - 1].hasRemaining()) break;
+                }
+
+                // over TLS, frames waiting for the handshake wait for the client, not the socket
+                boolean blocked = tls != null ? tls.hasPendingOutput() : !outbound.isEmpty();
+
+                if (key != null && key.isValid())
+                {
+                    key.interestOps(blocked
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error sending to client", playerId(), Log.NONE, e);
+            closeNow();
+        }
+    }
+
+    /**
+     * Closes the connection after anything already queued has been sent.
+     * Safe to call from any thread.
+     */
+    public void close()
+    {
+        if (loop.inLoop())
+        {
+            flush();
+            closeNow();
+        }
+        else
+        {
+            loop.execute(() ->
+            {
+                flush();
+                closeNow();
+            });
+        }
+    }
+
+    /**
+     * Gets the ID of the player using this connection, for the log.
+     *
+     * @return The player's ID, or Log.NONE before they have logged in.
+     */
+    private long playerId()
+    {
+        Player current = player;
+        return current == null ? Log.NONE : current.getId();
+    }
+
+    /**
+     * Immediately closes the channel and releases everything tied to it.
+     */
+    private void closeNow()
+    {
+        if (closed) return;
+        closed = true;
+
+        if (key != null) key.cancel();
+
+        try
+        {
+            if (tls != null) tls.close();
+            else channel.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing connection", playerId(), Log.NONE, e);
+        }
+
+        MessageHandler current = handler;
+        if (current != null)
+        {
+            try
+            {
+                current.onDisconnect();
+            }
+            catch (RuntimeException e)
+            {
+                Log.error("Error handling disconnect", playerId(), Log.NONE, e);
+            }
+        }
+
+        if (player != null && Server.players.remove(player))
+        {
+            Server.matchmaker.cancel(player);
+            Log.info("Player disconnected from server", player.getId(), Log.NONE);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that multiplexes many client connections.
+ *
+ * Each EventLoop owns one Selector and services every connection registered
+ * with it: reading and decoding incoming frames, handing them to the
+ * connection's MessageHandler, and writing queued outbound frames as the
+ * socket becomes writable. Other threads never touch the selector directly,
+ * they hand work to the loop through execute() instead.
+ */
+public class EventLoop implements Runnable
+{
+    private final Selector selector;
+
+    /** Work submitted by other threads, run on the loop thread between selects. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Thread thread;
+
+    /** Set by stop(), checked by the loop after every select. */
+    private volatile boolean stopped = false;
+
+    /**
+     * Opens the selector for this loop.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    public EventLoop() throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    /**
+     * Schedules a task to run on the loop thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Checks whether the calling thread is this loop's thread.
+     *
+     * @return true if called from inside the loop.
+     */
+    public boolean inLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a newly accepted connection with this loop.
+     *
+     * @param connection The connection to service.
+     * @param onRegistered Task run on the loop thread once the connection is registered.
+     */
+    public void register(Connection connection, Runnable onRegistered)
+    {
+        execute(() ->
+        {
+            try
+            {
+                connection.register(selector);
+                onRegistered.run();
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error registering connection", e);
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Stops the loop and closes every connection it still serves. Returns
+     * right away, the loop stops once it wakes up.
+     */
+    public void stop()
+    {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the select loop until the thread is interrupted or stop() is called.
+     *
+     * Each iteration:
+     * 1. Waits for at least one channel to become ready or for a wakeup
+     * 2. Runs any tasks handed over by other threads
+     * 3. Reads from readable connections and flushes writable ones
+     */
+    public void run()
+    {
+        thread = Thread.currentThread();
+
+        while (!stopped && !thread.isInterrupted())
+        {
+            try
+            {
+                selector.select();
+            }
+            catch (IOException e)
+            {
+                Log.error("Event loop select failed", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    Log.error("Error running event loop task", e);
+                }
+            }
+
+            for (SelectionKey key : selector.selectedKeys())
+            {
+                Connection connection = (Connection) key.attachment();
+
+                if (!key.isValid())
+                {
+                    connection.close();
+                    continue;
+                }
+
+                if (key.isWritable())
+                {
+                    connection.flush();
+                }
+
+                if (key.isValid() && key.isReadable())
+                {
+                    connection.read();
+                }
+            }
+
+            selector.selectedKeys().clear();
+        }
+
+        if (stopped)
+        {
+            // closing cancels the keys, so go over a copy
+            for (SelectionKey key : new ArrayList<>(selector.keys()))
+            {
+                ((Connection) key.attachment()).close();
+            }
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing selector", e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import javax.net.ssl.*;
+
+/**
+ * Non-blocking server mode for the 20 Questions game.
+ *
+ * Instead of tying a pool thread to every connected socket, this server
+ * accepts connections on a ServerSocketChannel and spreads them across a
+ * small number of EventLoop threads, each multiplexing its connections with
+ * a Selector. Login and the main menu are driven by incoming messages, so
+ * players sitting at the menu no longer hold any thread at all.
+ *
+ * The wire format is unchanged, so existing Client builds work with either mode.
+ * Given a TLS context, every connection runs over TLS instead, with an
+ * SSLEngine per connection driven by its loop (see TlsChannel).
+ */
+public class EventLoopServer implements Runnable, Closeable
+{
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    /** The context TLS connections are made from, or null for plaintext. */
+    private final SSLContext tls;
+    /** Set once close() stopped the server, which leaves the shared pools running. */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor that starts the event loop threads and opens the server channel.
+     *
+     * @param port The port number on which the server listens for connections.
+     * @param loopCount The number of event loop threads to run.
+     * @param tls The server's TLS context (see Tls), or null for plaintext.
+     * @throws IOException If a selector or the server channel can't be opened.
+     */
+    public EventLoopServer(int port, int loopCount, SSLContext tls) throws IOException
+    {
+        this.tls = tls;
+        loops = new EventLoop[loopCount];
+
+        try
+        {
+            for (int i = 0; i < loopCount; i++)
+            {
+                loops[i] = new EventLoop();
+
+                Thread thread = new Thread(loops[i], "event-loop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+        }
+        catch (IOException e)
+        {
+            for (EventLoop loop : loops)
+            {
+                if (loop != null) loop.stop();
+            }
+
+            throw e;
+        }
+
+        Shutdown.setListener(serverChannel);
+        Log.info("Server started in event loop mode with " + loopCount + " loops" + (tls != null ? " over TLS" : ""));
+    }
+
+    /**
+     * Runs the server.
+     *
+     * Continuously accepts connections and hands them out to the loops in
+     * round-robin order. Like Server, it runs until a shutdown or close()
+     * closes the channel, or until accepting fails.
+     */
+    public void run()
+    {
+        try
+        {
+            int next = 0;
+            while (true)
+            {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // a turn is a few small frames each way, which shouldn't wait on the client's acks
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Metrics.CONNECTIONS.increment();
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                Connection connection;
+
+                try
+                {
+                    connection = new Connection(channel, loop, tls != null ? Tls.serverEngine(tls) : null);
+                }
+                catch (SSLException e)
+                {
+                    Log.warn("Error starting TLS handshake", e);
+                    channel.close();
+                    continue;
+                }
+
+                // the login handshake only sends and installs a handler, so it runs on the loop
+                loop.register(connection, new LogPlayer(connection));
+            }
+        }
+        catch (IOException e)
+        {
+            // a shutdown drains the server itself, closing the channel is how it stops this loop
+            if (!Shutdown.inProgress() && !closed)
+            {
+                Log.warn("Error accepting connections", e);
+            }
+        }
+        finally
+        {
+            if (!Shutdown.inProgress() && !closed)
+            {
+                try
+                {
+                    serverChannel.close();
+
+                    Server.threadPool.shutdown();
+
+                    for (Player player : Server.players.all())
+                    {
+                        player.close();
+                    }
+                }
+                catch (IOException e)
+                {
+                    Log.warn("Error closing resources", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops this server alone: stops accepting connections, closes the ones
+     * its loops serve and stops the loops. The thread pool, the registry and
+     * the other shared parts are left running, so several servers can come
+     * and go in one JVM, like the benchmarks' do.
+     *
+     * @throws IOException If the server channel can't be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        serverChannel.close();
+
+        for (EventLoop loop : loops)
+        {
+            loop.stop();
+        }
+    }
+}
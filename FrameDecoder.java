@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the raw bytes of a non-blocking connection into complete frames.
+ *
+ * The wire format is the one produced by DataOutputStream.writeUTF(): a two-byte
+ * unsigned big-endian length followed by that many bytes of modified UTF-8. Bytes
+ * arrive from the channel in arbitrary chunks, so the decoder keeps its own read
+ * buffer and only hands out a frame once all of its bytes have been received.
+ * The buffer starts small and only grows when a frame larger than it arrives,
+ * which keeps thousands of idle connections cheap.
+ */
+public class FrameDecoder
+{
+    /** Size of the read buffer every connection starts with. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Largest possible frame: the two-byte header plus a 65535 byte payload. */
+    private static final int MAX_FRAME = 2 + 0xFFFF;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    /**
+     * Reads whatever bytes the channel currently has into the decoder's buffer.
+     *
+     * @param channel The non-blocking channel to read from.
+     * @return The number of bytes read, or -1 if the peer closed the connection.
+     * @throws IOException If reading from the channel fails.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException
+    {
+        return channel.read(buffer);
+    }
+
+    /**
+     * Removes the next complete frame from the buffer.
+     *
+     * If the buffer holds only part of a frame, nothing is consumed and the
+     * buffer is grown if needed so the rest of the frame fits.
+     *
+     * @return The frame payload without its length header, or null if no
+     *         complete frame has been received yet.
+     */
+    public byte[] nextFrame()
+    {
+        buffer.flip();
+
+        try
+        {
+            if (buffer.remaining() < 2)
+            {
+                return null;
+            }
+
+            int length = buffer.getShort(buffer.position()) & 0xFFFF;
+
+            if (buffer.remaining() < 2 + length)
+            {
+                // make room for the rest of a frame that doesn't fit yet
+                if (buffer.capacity() < 2 + length)
+                {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_FRAME, Math.max(2 + length, buffer.capacity() * 2)));
+                    larger.put(buffer);
+                    larger.flip();
+                    buffer = larger;
+                }
+
+                return null;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.position(buffer.position() + 2);
+            buffer.get(payload);
+
+            return payload;
+        }
+        finally
+        {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Decodes a modified UTF-8 payload, exactly as DataInputStream.readUTF() would.
+     *
+     * @param payload The frame payload.
+     * @return The decoded string.
+     * @throws UTFDataFormatException If the payload is not valid modified UTF-8.
+     */
+    public static String decodeText(byte[] payload) throws UTFDataFormatException
+    {
+        return decodeText(payload, 0, payload.length);
+    }
+
+    /**
+     * Decodes part of a payload as modified UTF-8.
+     *
+     * @param payload The frame payload.
+     * @param offset Index of the first byte of text.
+     * @param length Number of bytes of text.
+     * @return The decoded string.
+     * @throws UTFDataFormatException If the bytes are not valid modified UTF-8.
+     */
+    public static String decodeText(byte[] payload, int offset, int length) throws UTFDataFormatException
+    {
+        char[] chars = new char[length];
+        int count = 0;
+        int i = offset;
+        int end = offset + length;
+
+        while (i < end)
+        {
+            int c = payload[i] & 0xFF;
+
+            switch (c >> 4)
+            {
+                // 0xxxxxxx
+                case 0, 1, 2, 3, 4, 5, 6, 7 ->
+                {
+                    chars[count++] = (char) c;
+                    i++;
+                }
+                // 110xxxxx 10xxxxxx
+                case 12, 13 ->
+                {
+                    if (i + 1 >= end || (payload[i + 1] & 0xC0) != 0x80)
+                    {
+                        throw new UTFDataFormatException("Malformed input around byte " + i);
+                    }
+
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (payload[i + 1] & 0x3F));
+                    i += 2;
+                }
+                // 1110xxxx 10xxxxxx 10xxxxxx
+                case 14 ->
+                {
+                    if (i + 2 >= end
+                        || (payload[i + 1] & 0xC0) != 0x80 || (payload[i + 2] & 0xC0) != 0x80)
+                    {
+                        throw new UTFDataFormatException("Malformed input around byte " + i);
+                    }
+
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((payload[i + 1] & 0x3F) << 6) | (payload[i + 2] & 0x3F));
+                    i += 3;
+                }
+                default -> throw new UTFDataFormatException("Malformed input around byte " + i);
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+}
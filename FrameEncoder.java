@@ -0,0 +1,95 @@
+import java.io.*;
+
+/**
+ * Encodes strings into the same frames DataOutputStream.writeUTF() produces.
+ *
+ * Used by the non-blocking server so that messages written straight to a
+ * channel are byte-for-byte identical to the ones the blocking server writes,
+ * which keeps existing Client builds working against either mode.
+ */
+public class FrameEncoder
+{
+    /**
+     * Encodes a string as a length-prefixed modified UTF-8 frame.
+     *
+     * @param text The string to encode.
+     * @return The complete frame, including its two-byte length header.
+     * @throws UTFDataFormatException If the encoded string is longer than 65535 bytes.
+     */
+    public static byte[] encodeText(String text) throws UTFDataFormatException
+    {
+        int length = utfLength(text);
+
+        if (length > 0xFFFF)
+        {
+            throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        }
+
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+
+        writeText(text, frame, 2);
+
+        return frame;
+    }
+
+    /**
+     * Computes how many bytes a string takes in modified UTF-8.
+     *
+     * @param text The string to measure.
+     * @return The encoded length in bytes.
+     */
+    public static int utfLength(String text)
+    {
+        int length = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c > 0x07FF) length += 3;
+            else length += 2;
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes a string as modified UTF-8 into an existing array.
+     *
+     * Lets callers assemble a frame from several pieces without encoding 
+     * each one into its own temporary array first.
+     *
+     * @param text The string to encode.
+     * @param dst The array to write into, with at least utfLength(text) bytes free.
+     * @param pos The index to start writing at.
+     * @return The index just past the last byte written.
+     */
+    public static int writeText(String text, byte[] dst, int pos)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c >= 0x0001 && c <= 0x007F)
+            {
+                dst[pos++] = (byte) c;
+            }
+            else if (c > 0x07FF)
+            {
+                dst[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else
+            {
+                dst[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return pos;
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A bot that plays the Game Master from a KnowledgeBase.
+ *
+ * Every round it picks one of the knowledge base's subjects at random, and
+ * answers each question by looking up the attribute it asks about for that
+ * subject. Naming the subject is a correct guess, and a question it can't
+ * make sense of gets a maybe.
+ */
+public class GameMasterBot implements Bot.GameMaster
+{
+    private final KnowledgeBase knowledge;
+
+    /** The subject of the round in progress, as its index in the knowledge base. */
+    private int subject = -1;
+
+    /**
+     * @param knowledge The subjects and what is known about them.
+     */
+    public GameMasterBot(KnowledgeBase knowledge)
+    {
+        this.knowledge = knowledge;
+    }
+
+    @Override
+    public String chooseSubject()
+    {
+        subject = ThreadLocalRandom.current().nextInt(knowledge.subjects());
+
+        return knowledge.subject(subject);
+    }
+
+    @Override
+    public GameSession.Answer answer(String question)
+    {
+        return knowledge.answer(subject, question);
+    }
+}
@@ -1,14 +1,11 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /*
- *  future enhancements: 
- *  - handle player disconnect mid-game 
- *  - function to handle graceful exit when playAgain is false
- *  - handle empty answer input edge case 
- *  - add gameID functionality for easier debugging
- * 
  *  new handler class:
  *  - displayManager (handles titles and visual separators)
  */
@@ -18,8 +15,49 @@ import java.util.concurrent.*;
  * 
  * GameSession handles the complete lifecycle of a game match between
  * two players, including role assignment (Game Master vs Guesser), message
- * passing, game state management, and win/loss conditions. It runs in its own
- * thread to allow multiple concurrent games on the server.
+ * passing, game state management, and win/loss conditions.
+ * 
+ * The flow of a round is an explicit state machine (see Phase): each phase
+ * waits for one specific message, and every incoming message moves the 
+ * session to its next phase. On the non-blocking server the players' 
+ * connections feed messages straight into the session, so a game holds no 
+ * thread while waiting for someone to type. On the blocking server, run() 
+ * reads each expected message from the right player's stream and feeds it 
+ * to the same state machine.
+ * 
+ * Every turn has a deadline on the server's timing wheel: a player who hasn't
+ * moved within TURN_SECONDS is disconnected and their opponent goes back to
+ * the menu, so an idle player can't hold a game (or a thread) forever.
+ * 
+ * A player whose connection drops mid-round keeps their seat for
+ * RECONNECT_SECONDS: their opponent plays on, and once the player's client
+ * reconnects with their resume token, reconnect() attaches the new connection
+ * and catches them up on the round. If they don't come back in time, the
+ * session ends as if they had left.
+ * 
+ * Each session has an ID, and every event of the game is recorded in the
+ * server's Journal under it, so a session interrupted by a restart can be
+ * resumed where it stopped once both players are back.
+ * 
+ * In a cluster, one of the players may be relayed from another node (see
+ * Cluster). The session treats them like any other player, except that they
+ * aren't registered here: when the session ends they are handed back to their
+ * own node, and a dropped relay can't be resumed, since their node returns
+ * them to its menu.
+ * 
+ * One of the players may also be a bot (see Bot), which plays the same role
+ * every round. A bot is never waited for: whenever the session would prompt
+ * it, it asks the bot for its move and handles it on the spot, so a bot game
+ * only ever waits on its human player, and the bot always wants a rematch.
+ * 
+ * Other players can watch a session (see watch()): every question, answer
+ * and verdict is published to the session's Broadcast, which hands it to
+ * the spectators off the session's thread. The subject is only revealed to
+ * them once the round is over.
+ * 
+ * Every subject, question, answer and verdict is also published to the
+ * session's ring in the server's Analytics, which costs the session a few
+ * field writes and feeds the server's live game statistics.
  */
 class GameSession implements Runnable 
 {
@@ -79,6 +117,65 @@ class GameSession implements Runnable
         }
     }
 
+    /** Sessions that haven't ended yet, so a shutdown can wait for them. */
+    private static final Set<GameSession> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    /** Sessions by the resume tokens of their players, so a reconnecting player finds their seat. */
+    private static final ConcurrentHashMap<String, GameSession> SEATS = new ConcurrentHashMap<>();
+
+    /** Maximum number of questions the Guesser may ask per round. */
+    static final int MAX_QUESTIONS = 20;
+
+    /** Seconds both players have to decide whether to play again. */
+    private static final int PLAY_AGAIN_SECONDS = 15;
+
+    /** Seconds a player has to choose a subject, ask a question or answer one. */
+    private static final int TURN_SECONDS = 120;
+
+    /** Seconds a player who lost their connection mid-round has to reconnect. */
+    private static final int RECONNECT_SECONDS = 60;
+
+    // messages sent every round, encoded once (see Message)
+    private static final Message.Template OPPONENT = new Message.Template("\nYOUR OPPONENT IS ", "");
+    private static final Message.Template THINKING_OF_SUBJECT = new Message.Template("\n", " is thinking of a subject...");
+    private static final Message.Template CHOSEN_SUBJECT = new Message.Template("\n", " has chosen a subject.");
+    private static final Message.Template THINKING_OF_QUESTION = new Message.Template("\n", " is thinking of a question...");
+    private static final Message.Template QUESTION = new Message.Template("\nQuestion: ", "");
+    private static final Message.Template PLAY_AGAINST = new Message.Template("\nPLAY AGAINST ", " AGAIN?");
+    private static final Message.Template RESUMING = new Message.Template("\nRESUMING YOUR UNFINISHED GAME AGAINST ", "");
+    private static final Message.Template YOUR_SUBJECT = new Message.Template("\nYour subject is: ", "");
+    private static final Message PLAY_AGAIN_TIMED_OUT = Message.info("\nPlay again timed out!");
+    private static final Message SESSION_ENDING = Message.info("\nBoth of you didn't want to play again.\nSession ending...");
+    private static final Message OPPONENT_DISCONNECTED = Message.info("\nYour opponent disconnected.\nSession ending...");
+    private static final Message TURN_TIMED_OUT = Message.info("\nYou took too long to play. Disconnecting...");
+    private static final Message OPPONENT_TIMED_OUT = Message.info("\nYour opponent took too long to play.\nSession ending...");
+    private static final Message OPPONENT_LOST = Message.info("\nYour opponent lost their connection, waiting " 
+        + RECONNECT_SECONDS + " sec. for them to come back...");
+    private static final Message OPPONENT_BACK = Message.info("\nYour opponent is back.");
+
+    // messages only spectators get
+    private static final Message.Template WATCHING = new Message.Template("\nNOW WATCHING ", "");
+    private static final Message.Template NEW_ROUND = new Message.Template("\nNew round: ", " is the Game Master.");
+    private static final Message.Template GUESSED = new Message.Template("\n", " guessed the answer!");
+    private static final Message.Template RAN_OUT = new Message.Template("\n", " ran out of questions.");
+    private static final Message.Template GAVE_UP = new Message.Template("\n", " gives up.");
+    private static final Message.Template REVEAL = new Message.Template("\nThe answer was '", "'.");
+    private static final Message DECIDING = Message.info("\nThe players are deciding whether to play again...");
+    private static final Message LEAVE_HINT = Message.info("\nSend anything to stop watching.");
+    private static final Message GAME_OVER = Message.info("\nThe game you were watching has ended.");
+
+    /**
+     * The steps of a round. Each phase waits for a message from a specific player.
+     */
+    private enum Phase
+    {
+        CHOOSING_SUBJECT,  // waiting for the Game Master to choose a subject
+        ASKING,            // waiting for the Guesser's next question
+        ANSWERING,         // waiting for the Game Master's answer
+        PLAY_AGAIN,        // waiting for both players to decide on a rematch
+        ENDED              // session is over and players are back at the menu
+    }
+
     /** First player connected to this game session. */
     private final Player player1;
     /** Second player connected to this game session. */
@@ -88,43 +185,253 @@ class GameSession implements Runnable
     private Player gameMaster;    
     /** Player assigned the Guesser role (asks questions). */
     private Player guesser;    
+    /** The bot playing the Game Master, or null if a human is. */
+    private Bot.GameMaster gameMasterBot;
+    /** The bot playing the Guesser, or null if a human is. */
+    private Bot.Guesser guesserBot;
+
+    /** Whether messages are pushed in by the players' connections rather than read by run(). */
+    private final boolean eventDriven;
+
+    /** Current step of the round. */
+    private Phase phase;
+    /** Unique ID of the session, also used in the journal. */
+    private final long id;
+    /** Session interrupted by a restart that this one picks back up, or null. */
+    private final Journal.Recovered resumed;
+    /** Whether the session was cut short by a shutdown and should be resumable after a restart. */
+    private boolean interrupted = false;
 
-    /** Input stream for receiving messages from player1. */
-    private final DataInputStream inP1;
-    /** Input stream for receiving messages from player2. */
-    private final DataInputStream inP2;
-    /** Output stream for sending messages to player1. */
-    private final DataOutputStream outP1;
-    /** Output stream for sending messages to player2. */
-    private final DataOutputStream outP2;
+    /** Subject chosen by the Game Master this round. */
+    private String subject = "";
+    /** Number of questions asked this round. */
+    private int count = 0;
+    /** Questions asked and answers given this round, in order. */
+    private final List<String> questions = new ArrayList<>();
+    private final List<Answer> answers = new ArrayList<>();
+
+    /** Play-again decisions, null until the player has answered. */
+    private Boolean decisionGM;
+    private Boolean decisionGuesser;
+    /** Pending turn deadline or play-again timeout. */
+    private TimingWheel.Timeout deadline;
+    /** Player whose connection dropped and who hasn't reconnected yet, or null. */
+    private volatile Player away;
+    /** When the away player loses their seat. */
+    private TimingWheel.Timeout awayDeadline;
+    /** Number of prompts sent so far, so a turn deadline that fires late can tell it's stale. */
+    private long turn = 0;
+
+    /** Where the session publishes its events for the server's statistics. */
+    private final Analytics.Ring events = Server.analytics.open();
+
+    /** Carries the game's events to its spectators. */
+    private final Broadcast broadcast = new Broadcast();
+
+    /** When the current turn's prompt and the play-again prompt were sent, for the latency metrics. */
+    private long promptedAt;
+    private long playAgainAt;
+
+    /** Messages and socket writes both players had when the session started. */
+    private final long messagesAtStart;
+    private final long writesAtStart;
 
     /**
      * Initializes a game session between two players.
      * 
-     * Sets up the communication streams and randomly assigns
-     * initial player roles (Game Master vs Guesser).
+     * Randomly assigns initial player roles (Game Master vs Guesser).
      * 
      * @param player1 The first player
      * @param player2 The second player
      */
     public GameSession(Player player1, Player player2)
+    {
+        this(player1, player2, null);
+    }
+
+    /**
+     * Initializes a game session between two players, optionally picking up
+     * a session a restart interrupted.
+     * 
+     * A resumed session keeps its ID, and its players keep the roles they had
+     * if the interrupted round was still being played.
+     * 
+     * @param player1 The first player
+     * @param player2 The second player
+     * @param resumed The interrupted session the two players were playing, or null for a new one.
+     */
+    public GameSession(Player player1, Player player2, Journal.Recovered resumed)
     {
         this.player1 = player1;
         this.player2 = player2;
+        this.resumed = resumed;
         
-        this.inP1 = player1.getInputStream();
-        this.inP2 = player2.getInputStream();
-        this.outP1 = player1.getOutputStream();
-        this.outP2 = player2.getOutputStream();
+        // a bot never sends anything, so it doesn't stand in the way of either driver
+        this.eventDriven = (player1.getConnection() != null || player1.isBot())
+            && (player2.getConnection() != null || player2.isBot());
+
+        this.messagesAtStart = player1.getMessagesSent() + player2.getMessagesSent();
+        this.writesAtStart = player1.getWrites() + player2.getWrites();
 
         assignRoles(player1, player2);
+
+        if (resumed == null)
+        {
+            id = Server.journal.nextSessionId();
+        }
+        else
+        {
+            id = resumed.getId();
+
+            if (!resumed.getGameMaster().isEmpty())
+            {
+                String gameMasterName = PlayerRegistry.normalize(resumed.getGameMaster());
+                gameMaster = PlayerRegistry.normalize(player1.getUsername()).equals(gameMasterName) ? player1 : player2;
+                guesser = gameMaster == player1 ? player2 : player1;
+            }
+        }
+
+        // a resumed session is journaled again, since its players logged in with new tokens
+        Server.journal.record(Journal.Event.START, id, player1.getUsername(), player2.getUsername(),
+            player1.getResumeToken(), player2.getResumeToken());
+
+        ACTIVE.add(this);
+        SEATS.put(player1.getResumeToken(), this);
+        SEATS.put(player2.getResumeToken(), this);
+    }
+
+    /**
+     * Gets the session's ID.
+     * 
+     * @return The ID, unique across restarts of a server with a journal.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Finds the session a player is seated in.
+     * 
+     * @param token The player's resume token.
+     * @return The session, or null if the token belongs to no player in a game.
+     */
+    public static GameSession seatOf(String token)
+    {
+        return SEATS.get(token);
+    }
+
+    /**
+     * Gets the number of sessions still in progress.
+     * 
+     * @return The number of sessions that haven't ended.
+     */
+    public static int active()
+    {
+        return ACTIVE.size();
+    }
+
+    /**
+     * Gets the sessions still in progress, for players looking for a game to watch.
+     * 
+     * @return A snapshot of the sessions that haven't ended.
+     */
+    public static List<GameSession> live()
+    {
+        return new ArrayList<>(ACTIVE);
+    }
+
+    /**
+     * Finds a session still in progress by its ID.
+     * 
+     * @param id The session's ID.
+     * @return The session, or null if no session with that ID is in progress.
+     */
+    public static GameSession find(long id)
+    {
+        for (GameSession session : ACTIVE)
+        {
+            if (session.id == id) return session;
+        }
+
+        return null;
+    }
+
+    /**
+     * Describes the session to players choosing a game to watch.
+     * 
+     * @return The two players' usernames.
+     */
+    public String getTitle()
+    {
+        return player1.getUsername() + " vs " + player2.getUsername();
+    }
+
+    /**
+     * Gets the number of players watching the session.
+     * 
+     * @return The number of spectators.
+     */
+    public int getSpectators()
+    {
+        return broadcast.audience();
+    }
+
+    /**
+     * Adds a spectator to the session.
+     * 
+     * The spectator is first caught up on the round in progress, without its
+     * subject, then sent every event that follows until the session ends, 
+     * when the spectator's callback is called.
+     * 
+     * @param spectator The spectator.
+     * @return false if the session is already over.
+     */
+    public synchronized boolean watch(Broadcast.Spectator spectator)
+    {
+        if (phase == Phase.ENDED) return false;
+
+        List<Message> catchUp = new ArrayList<>();
+        catchUp.add(WATCHING.fill(getTitle()));
+        catchUp.add(LEAVE_HINT);
+        catchUp.add(Message.separator());
+
+        if (phase == Phase.PLAY_AGAIN)
+        {
+            catchUp.add(DECIDING);
+        }
+        else
+        {
+            catchUp.add(NEW_ROUND.fill(gameMaster.getUsername()));
+            if (!subject.isEmpty()) catchUp.add(CHOSEN_SUBJECT.fill(gameMaster.getUsername()));
+
+            for (int i = 0; i < questions.size(); i++)
+            {
+                catchUp.add(QUESTION.fill(questions.get(i)));
+                if (i < answers.size()) catchUp.add(Message.answer(answers.get(i)));
+            }
+        }
+
+        broadcast.join(spectator, catchUp);
+        return true;
+    }
+
+    /**
+     * Stops sending a spectator the session's events.
+     * 
+     * @param spectator The spectator.
+     */
+    public void unwatch(Broadcast.Spectator spectator)
+    {
+        broadcast.leave(spectator);
     }
  
     /**
      * Randomly assigns the Game Master and Guesser roles.
      * 
      * Uses a random number generator to assign roles fairly
-     * between the two players.
+     * between the two players. A bot always gets the role of the interface
+     * it implements, and is seated as the bot of that role.
      * 
      * @param player1 The first player.
      * @param player2 The second player.
@@ -137,84 +444,59 @@ class GameSession implements Runnable
 
         int i = random.nextInt(2);
 
+        if (player1.getBot() instanceof Bot.GameMaster || player2.getBot() instanceof Bot.Guesser) i = 0;
+        else if (player1.getBot() instanceof Bot.Guesser || player2.getBot() instanceof Bot.GameMaster) i = 1;
+
         gameMaster = players[i];
 
         guesser = i == 0 ? players[1] : players[0];
+
+        gameMasterBot = gameMaster.getBot() instanceof Bot.GameMaster bot ? bot : null;
+        guesserBot = guesser.getBot() instanceof Bot.Guesser bot ? bot : null;
     }
 
     /**
      * Sends a message to the Game Master.
      * 
-     * Determines which player is the Game Master and sends the message 
-     * to the appropriate output stream. For now, if a network error occurs 
-     * (typically due to client disconnect), the error is logged but 
-     * the game continues. 
+     * For now, if a network error occurs (typically due to client disconnect), 
+     * the error is logged but the game continues. 
      * 
      * @param message The message to send.
      */
-    private void sendToGM(String message)
+    private void sendToGM(Message message)
     {
-        if (gameMaster.getSocket() == player1.getSocket())
+        // whatever a player misses while away is replayed when they come back
+        if (gameMaster == away) return;
+
+        try
         {
-            try
-            {
-                outP1.writeUTF(message);
-                outP1.flush();
-            }
-            catch(IOException e)
-            {
-                System.out.println("\nError sending message to Game Master: " + e.getMessage());
-            }
+            gameMaster.send(message);
         }
-        else
+        catch(IOException e)
         {
-            try
-            {
-                outP2.writeUTF(message);
-                outP2.flush();
-            }
-            catch(IOException e)
-            {
-                System.out.println("\nError sending message to Game Master: " + e.getMessage());
-            }
+            Log.warn("Error sending message to Game Master", gameMaster.getId(), id, e);
         }
     }
 
     /**
      * Sends a message to the Guesser.
      * 
-     * Determines which player is the Guesser and sends the message 
-     * to the appropriate output stream. For now, if a network error occurs 
-     * (typically due to client disconnect), the error is logged but 
-     * the game continues.
+     * For now, if a network error occurs (typically due to client disconnect), 
+     * the error is logged but the game continues.
      * 
      * @param message The message to send.
      */
-    private void sendToGuesser(String message)
+    private void sendToGuesser(Message message)
     {
-        if (guesser.getSocket() == player1.getSocket())
+        if (guesser == away) return;
+
+        try
         {
-            try
-            {
-                outP1.writeUTF(message);
-                outP1.flush();
-            }
-            catch(IOException e)
-            {
-                System.out.println("\nError sending message to Guesser: " + e.getMessage());
-            }
+            guesser.send(message);
         }
-        else
+        catch(IOException e)
         {
-            try
-            {
-                outP2.writeUTF(message);
-                outP2.flush();
-            }
-            catch(IOException e)
-            {
-                System.out.println("\nError sending message to Guesser: " + e.getMessage());
-            }
+            Log.warn("Error sending message to Guesser", guesser.getId(), id, e);
         }
     }
 
@@ -223,12 +505,31 @@ class GameSession implements Runnable
      * 
      * @param message The message to send.
      */
-    private void sendToBoth(String message)
+    private void sendToBoth(Message message)
     {
         sendToGM(message);
         sendToGuesser(message);
     }
 
+    /**
+     * Writes out everything buffered for both players.
+     * 
+     * Called by the blocking driver once the session has finished reacting to
+     * a message, so each turn's messages reach a player in a single write.
+     */
+    private void flushBoth()
+    {
+        try
+        {
+            if (player1 != away) player1.flush();
+            if (player2 != away) player2.flush();
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to players", Log.NONE, id, e);
+        }
+    }
+
     /**
      * Creates a visual separation between the game and other console messages.
      * 
@@ -236,244 +537,873 @@ class GameSession implements Runnable
      */
     private void sendVisualSeparator()
     {
-        sendToBoth("________________________________________");
+        sendToBoth(Message.separator());
     }
 
     /**
-     * Receives a message from the Game Master.
+     * Starts the game session between the two players.
      * 
-     * Determines which player is the Game Master and
-     * receives the message from the appropriate input stream.
+     * On the non-blocking server this only installs the session as both 
+     * connections' handler and sends the opening messages; the rest of the 
+     * game is driven by the players' replies and no thread is held.
      * 
-     * @return The message received, or empty string if connection fails.
+     * On the blocking server this thread stays with the session, reading 
+     * whichever message the current phase is waiting for and handing it to 
+     * onMessage(), until the session ends.
      */
-    private String receiveFromGM()
+    public void run()
     {
-        String message = "";
+        if (eventDriven)
+        {
+            if (!player1.isBot()) player1.getConnection().setHandler(new SeatHandler(player1));
+            if (!player2.isBot()) player2.getConnection().setHandler(new SeatHandler(player2));
+
+            start();
+            return;
+        }
 
-        if (gameMaster.getSocket() == player1.getSocket())
+        start();
+        flushBoth();
+
+        while (phase != Phase.ENDED)
         {
-            try
+            if (phase == Phase.PLAY_AGAIN)
             {
-                message = inP1.readUTF();
+                collectPlayAgain();
+                flushBoth();
+                continue;
             }
-            catch (IOException e)
+
+            Player from = phase == Phase.ASKING ? guesser : gameMaster;
+            String message;
+
+            if (from == away)
             {
-                System.out.println("\nError receiving from Game Master: " + e.getMessage());
+                awaitReturn(from);
+                continue;
             }
-        }
-        else
-        {
+
+            DataInputStream link = from.getInputStream();
+
             try
             {
-                message = inP2.readUTF();
+                message = from.receive();
             }
             catch (IOException e)
             {
-                System.out.println("\nError receiving from Game Master: " + e.getMessage());
+                // the player reconnected, and dropping their old connection ended this read
+                if (from.getInputStream() != link) continue;
+
+                // a player who timed out has already been disconnected and the session ended
+                if (phase != Phase.ENDED)
+                {
+                    Log.warn(from == gameMaster ? "Error receiving from Game Master" : "Error receiving from Guesser",
+                        from.getId(), id, e);
+                }
+
+                onDisconnect(from);
+                continue;
             }
+
+            onMessage(from, message);
+            flushBoth();
         }
+    }
+
+    /**
+     * Introduces the players to each other and starts the first round.
+     */
+    private synchronized void start()
+    {
+        sendVisualSeparator();
+
+        // phase 1: player introduction
+        sendToGM(OPPONENT.fill(guesser.getUsername()));
+        sendToGuesser(OPPONENT.fill(gameMaster.getUsername()));
+
+        // a round that was decided before the restart isn't worth picking up
+        if (resumed != null && !resumed.getGameMaster().isEmpty() && !resumed.isRoundOver())
+        {
+            resumeRound();
+            return;
+        }
+
+        startRound();
+    }
+
+    /**
+     * Picks the interrupted round back up where the journal left it.
+     * 
+     * Both players are shown the round so far, then whoever was about to
+     * play is prompted.
+     */
+    private void resumeRound()
+    {
+        subject = resumed.getSubject();
+        questions.addAll(resumed.getQuestions());
+        answers.addAll(resumed.getAnswers());
+        count = questions.size();
 
-        return message;
+        // the last question may still be waiting for its answer
+        if (subject.isEmpty()) phase = Phase.CHOOSING_SUBJECT;
+        else if (answers.size() < questions.size()) phase = Phase.ANSWERING;
+        else phase = Phase.ASKING;
+
+        showRound(gameMaster);
+        showRound(guesser);
     }
 
     /**
-     * Receives a message from the Guesser.
+     * Catches a player up on the current round and prompts them if it's their turn.
      * 
-     * Determines which player is the Guesser and
-     * receives the message from the appropriate input stream.
+     * Used for both players when a round is resumed after a restart, and for
+     * a player who reconnected mid-round.
      * 
-     * @return The message received, or empty string if connection fails.
+     * @param player The player to catch up.
      */
-    private String receiveFromGuesser()
+    private void showRound(Player player)
     {
-        String message = "";
+        Player opponent = player == player1 ? player2 : player1;
+
+        send(player, RESUMING.fill(opponent.getUsername()));
+        send(player, Message.separator());
+        send(player, Message.role(player == gameMaster ? Message.Role.GAME_MASTER : Message.Role.GUESSER));
 
-        if (guesser.getSocket() == player1.getSocket())
+        if (subject.isEmpty())
         {
-            try
-            {
-                message = inP1.readUTF();
-            }
-            catch (IOException e)
-            {
-                System.out.println("\nError receiving from Guesser: " + e.getMessage());
-            }
+            if (player == guesser) send(player, THINKING_OF_SUBJECT.fill(gameMaster.getUsername()));
         }
         else
         {
-            try
+            send(player, player == gameMaster ? YOUR_SUBJECT.fill(subject) : CHOSEN_SUBJECT.fill(gameMaster.getUsername()));
+
+            // the transcript so far
+            for (int i = 0; i < questions.size(); i++)
             {
-                message = inP2.readUTF();
+                send(player, QUESTION.fill(questions.get(i)));
+                if (i < answers.size()) send(player, Message.answer(answers.get(i)));
             }
-            catch (IOException e)
+        }
+
+        // whoever's turn it is
+        switch (phase)
+        {
+            case CHOOSING_SUBJECT -> { if (player == gameMaster) prompt(player, Message.Prompt.SUBJECT); }
+            case ASKING ->
             {
-                System.out.println("\nError receiving from Guesser: " + e.getMessage());
+                if (player == guesser) prompt(player, Message.Prompt.QUESTION);
+                else send(player, THINKING_OF_QUESTION.fill(guesser.getUsername()));
             }
+            case ANSWERING ->        { if (player == gameMaster) prompt(player, Message.Prompt.ANSWER); }
+            default ->               { }
         }
+    }
 
-        return message;
+    /**
+     * Assigns roles for a new round and asks the Game Master for a subject.
+     */
+    private void startRound()
+    {
+        // phase 2: role assignment
+        assignRoles(player1, player2);
+
+        sendVisualSeparator();
+        sendToGM(Message.role(Message.Role.GAME_MASTER));
+        sendToGuesser(Message.role(Message.Role.GUESSER));
+        Server.journal.record(Journal.Event.ROLES, id, gameMaster.getUsername());
+
+        // phase 3: game master chooses a subject
+        sendToGuesser(THINKING_OF_SUBJECT.fill(gameMaster.getUsername()));
+        broadcast.publish(Message.separator());
+        broadcast.publish(NEW_ROUND.fill(gameMaster.getUsername()));
+
+        subject = "";
+        count = 0;
+        questions.clear();
+        answers.clear();
+
+        phase = Phase.CHOOSING_SUBJECT;
+        prompt(gameMaster, Message.Prompt.SUBJECT);
     }
 
     /**
-     * Executes the game session between the two players.
+     * Advances the state machine with a message from one of the players.
      * 
-     * Main game loop phases:
-     * 1. Introduces players to each other
-     * 2. Assigns and communicates player roles
-     * 3. Prompts the Game Master to choose a subject
-     * 4. Manages the question and answer process and tracks the question count 
-     * 5. Determines win/loss 
-     * 6. Handles the "play again" functionality
+     * Messages from a player the current phase isn't waiting for are ignored.
      * 
-     * The game ends when the Guesser correctly identifies the subject,
-     * when 20 questions have been asked without success, or when
-     * players choose not to play again.
+     * @param from The player who sent the message.
+     * @param message The message received.
      */
-    public void run()
+    private synchronized void onMessage(Player from, String message)
     {
-        sendVisualSeparator();
+        switch (phase)
+        {
+            case CHOOSING_SUBJECT -> { if (from == gameMaster) onSubject(message); }
+            case ASKING ->           { if (from == guesser) onQuestion(message); }
+            case ANSWERING ->        { if (from == gameMaster) onAnswer(message); }
+            case PLAY_AGAIN ->       onDecision(from, message);
+            case ENDED ->            { }
+        }
+    }
 
-        // phase 1: player introduction
-        sendToGM("\nYOUR OPPONENT IS " + guesser.getUsername());
-        sendToGuesser("\nYOUR OPPONENT IS " + gameMaster.getUsername());
+    /**
+     * Handles the Game Master's chosen subject.
+     * 
+     * @param message The subject sent by the Game Master.
+     */
+    private void onSubject(String message)
+    {
+        Metrics.TURN.observeSince(promptedAt);
+
+        // ensure we receive a non-empty subject from the game master
+        // empty subjects could occur from network issues or accidental sends
+        if (message.trim().isEmpty())
+        {
+            prompt(gameMaster, Message.Prompt.SUBJECT);
+            return;
+        }
+
+        subject = message;
+        Server.journal.record(Journal.Event.SUBJECT, id, subject);
+        events.publish(Analytics.Event.SUBJECT, subject, 0, 0);
+        Message chosen = CHOSEN_SUBJECT.fill(gameMaster.getUsername());
+        sendToGuesser(chosen);
+        broadcast.publish(chosen);
+
+        promptQuestion();
+    }
+
+    /**
+     * Asks the Guesser for their next question.
+     */
+    private void promptQuestion()
+    {
+        // phase 4: question and answer process
+        sendToGM(THINKING_OF_QUESTION.fill(guesser.getUsername()));
+
+        phase = Phase.ASKING;
+        prompt(guesser, Message.Prompt.QUESTION);
+    }
+
+    /**
+     * Handles a question from the Guesser and passes it to the Game Master.
+     * 
+     * @param question The question sent by the Guesser.
+     */
+    private void onQuestion(String question)
+    {
+        Metrics.TURN.observeSince(promptedAt);
+
+        // ensure we receive a non-empty question from the guesser
+        if (question.trim().isEmpty())
+        {
+            prompt(guesser, Message.Prompt.QUESTION);
+            return;
+        }
+
+        count++;
+        questions.add(question);
+        Server.journal.record(Journal.Event.QUESTION, id, question);
+        events.publish(Analytics.Event.QUESTION);
+
+        Message asked = QUESTION.fill(question);
+        sendToGM(asked);
+        broadcast.publish(asked);
 
-        boolean playAgain = true;
-        while(playAgain)
+        phase = Phase.ANSWERING;
+        prompt(gameMaster, Message.Prompt.ANSWER);
+    }
+
+    /**
+     * Handles the Game Master's answer and decides whether the round is over.
+     * 
+     * @param message The answer sent by the Game Master.
+     */
+    private void onAnswer(String message)
+    {
+        Metrics.TURN.observeSince(promptedAt);
+
+        // ensure we receive a valid answer, empty answers are asked for again
+        Answer answer = message.isEmpty() ? null : Answer.fromChar(message.charAt(0));
+
+        if (answer == null)
         {
-            // phase 2: role assignment
-            assignRoles(player1, player2);
+            prompt(gameMaster, Message.Prompt.ANSWER);
+            return;
+        }
+
+        answers.add(answer);
+        Server.journal.record(Journal.Event.ANSWER, id, String.valueOf(answer.getInputChar()));
+        events.publish(Analytics.Event.ANSWER, null, answer.ordinal(), 0);
+        broadcast.publish(Message.answer(answer));
+
+        // phase 5.0: determining win/loss (correct answer guessed)
+        if (answer == Answer.CORRECT)
+        {
+            Server.journal.record(Journal.Event.VERDICT, id, Message.Outcome.WON_GUESSED.name());
+            events.publish(Analytics.Event.RESULT, null, Message.Outcome.WON_GUESSED.ordinal(), count);
+            Rating.update(guesser, gameMaster);
+            sendToGuesser(Message.result(Message.Outcome.WON_GUESSED, subject));
+            sendToGM(Message.result(Message.Outcome.LOST_GUESSED, ""));
+            broadcast.publish(GUESSED.fill(guesser.getUsername()));
+            broadcast.publish(REVEAL.fill(subject));
+
+            endRound();
+            return;
+        }
+
+        sendToGuesser(Message.answer(answer));
+
+        // phase 5.1: determining win/loss (question limit reached)
+        if (count == MAX_QUESTIONS)
+        {
+            guesserLost();
+            return;
+        }
+
+        promptQuestion();
+    }
+
+    /**
+     * Ends the round when a bot Guesser gives up, which is as good as
+     * running out of questions.
+     */
+    private void onGiveUp()
+    {
+        Message gaveUp = GAVE_UP.fill(guesser.getUsername());
+        sendToGM(gaveUp);
+        broadcast.publish(gaveUp);
+
+        guesserLost();
+    }
+
+    /**
+     * Ends the round with the Game Master winning, once the Guesser is out
+     * of questions.
+     */
+    private void guesserLost()
+    {
+        Server.journal.record(Journal.Event.VERDICT, id, Message.Outcome.WON_OUT_OF_QUESTIONS.name());
+        events.publish(Analytics.Event.RESULT, null, Message.Outcome.LOST_OUT_OF_QUESTIONS.ordinal(), count);
+        Rating.update(gameMaster, guesser);
+        sendToGM(Message.result(Message.Outcome.WON_OUT_OF_QUESTIONS, guesser.getUsername()));
+        sendToGuesser(Message.result(Message.Outcome.LOST_OUT_OF_QUESTIONS, subject));
+        broadcast.publish(RAN_OUT.fill(guesser.getUsername()));
+        broadcast.publish(REVEAL.fill(subject));
+
+        endRound();
+    }
+
+    /**
+     * Asks both players whether they want to play against each other again.
+     */
+    private void endRound()
+    {
+        // phase 6: play again
+        Metrics.ROUNDS.increment();
+        clearDeadline();
 
+        // a server shutting down lets the round finish but doesn't start another
+        if (Shutdown.inProgress())
+        {
             sendVisualSeparator();
-            sendToGM("\nYou are the Game Master.");
-            sendToGuesser("\nYou are the Guesser.");
+            end(player1, player2);
+            return;
+        }
 
-            // phase 3: game master chooses a subject
-            sendToGuesser("\n" + gameMaster.getUsername() + " is thinking of a subject...");
-            
-            String subject = "";
+        // a player who is still away can't decide on a rematch
+        if (away != null)
+        {
+            sendToBoth(OPPONENT_DISCONNECTED);
+            sendVisualSeparator();
+            end(player1, player2);
+            return;
+        }
 
-            // ensure we receive a non-empty question from the guesser
-            // empty questions could occur from network issues or accidental sends
-            while (subject.trim().isEmpty())
-            {
-                sendToGM("\nChoose a subject: ");
+        sendToGM(PLAY_AGAINST.fill(guesser.getUsername()));
+        sendToGuesser(PLAY_AGAINST.fill(gameMaster.getUsername()));
 
-                subject = receiveFromGM();
-            }
+        decisionGM = null;
+        decisionGuesser = null;
+        phase = Phase.PLAY_AGAIN;
 
+        sendToBoth(Message.prompt(Message.Prompt.PLAY_AGAIN));
+        broadcast.publish(DECIDING);
+        playAgainAt = System.nanoTime();
 
-            sendToGuesser("\n" + gameMaster.getUsername() + " has chosen a subject.");
+        // blocking sessions enforce the deadline with their reads in collectPlayAgain() instead
+        if (eventDriven)
+        {
+            deadline = Server.timer.schedule(this::onPlayAgainTimeout, PLAY_AGAIN_SECONDS, TimeUnit.SECONDS);
+        }
 
-            // phase 4: question and answer process
-            boolean win = false;
-            int count = 0;
-            while(!win && count < 20)
-            {
-                String question = "";
-                char answerIn = ' ';  // raw input character from game master
-                Answer answerOut;     // validated enum value sent to guesser
+        // a bot is always up for another round, it's the human's call
+        if (gameMaster.isBot()) onDecision(gameMaster, "y");
+        else if (guesser.isBot()) onDecision(guesser, "y");
+    }
 
-                sendToGM("\n" + guesser.getUsername() + " is thinking of a question...");
+    /**
+     * Records a player's play-again decision.
+     * 
+     * @param from The player who sent the decision.
+     * @param message The decision sent by the player.
+     */
+    private void onDecision(Player from, String message)
+    {
+        char decision = message.isEmpty() ? ' ' : Character.toLowerCase(message.charAt(0));
 
-                // ensure we recieve a non-empty answer from the game master
-                // empty answers could occur from network issues or accidental sends
-                while (question.trim().isEmpty())
-                {
-                    sendToGuesser("\nEnter your question: ");
+        if (decision != 'y' && decision != 'n')
+        {
+            send(from, Message.prompt(Message.Prompt.PLAY_AGAIN));
+            return;
+        }
 
-                    question = receiveFromGuesser();
-                }
-            
-                count++;
+        Metrics.PLAY_AGAIN.observeSince(playAgainAt);
 
-                sendToGM("\nQuestion: " + question);
+        if (from == gameMaster) decisionGM = decision == 'y';
+        else decisionGuesser = decision == 'y';
 
-                while ((answerIn != 'y' && answerIn != 'n' && answerIn != 'm' && answerIn != 'c'))
-                {
-                    sendToGM("\n(Y)es, (N)o, (M)aybe, (C)orrect\nEnter your answer: ");
+        if (decisionGM != null && decisionGuesser != null)
+        {
+            finishPlayAgain(decisionGM && decisionGuesser);
+        }
+    }
 
-                    answerIn = receiveFromGM().charAt(0);
-                }
+    /**
+     * Ends the play-again phase once time runs out.
+     */
+    private synchronized void onPlayAgainTimeout()
+    {
+        if (phase != Phase.PLAY_AGAIN) return;
 
-                answerOut = Answer.fromChar(answerIn);
+        Log.info("Play again frame timed out", Log.NONE, id);
+        Metrics.PLAY_AGAIN_TIMEOUTS.increment();
+        sendToBoth(PLAY_AGAIN_TIMED_OUT);
 
-                // phase 5.0: determining win/loss (correct answer guessed)
-                if (answerIn == 'c')
-                {
-                    sendToGuesser("\nYou won! The answer was " + subject + ".");
-                    sendToGM("\nYou lost!");
+        finishPlayAgain(false);
+    }
+
+    /**
+     * Collects both play-again decisions on a blocking session.
+     * 
+     * The session thread reads the votes itself, against a single deadline
+     * PLAY_AGAIN_SECONDS after the prompt: first the Game Master's, then the
+     * Guesser's, which their socket holds on to in the meantime. Once the
+     * deadline has passed, a vote that already arrived still counts. Each
+     * reply goes through onDecision() like on an event-driven session.
+     * 
+     * Reads only time out between frames, so a vote that comes too late is
+     * never cut in half; it stays on the stream whole and is read by the menu,
+     * which asks for a valid choice again.
+     */
+    private void collectPlayAgain()
+    {
+        long voteEnds = playAgainAt + TimeUnit.SECONDS.toNanos(PLAY_AGAIN_SECONDS);
+
+        for (Player voter : new Player[] { gameMaster, guesser })
+        {
+            while (phase == Phase.PLAY_AGAIN && (voter == gameMaster ? decisionGM : decisionGuesser) == null)
+            {
+                String reply;
 
-                    win = true;
+                try
+                {
+                    reply = voter.receive(Math.max(voteEnds - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
                 }
-                else 
+                catch (IOException e)
                 {
-                    sendToGuesser("\nAnswer: " + answerOut);
+                    Log.warn(voter == gameMaster ? "Error receiving from Game Master" : "Error receiving from Guesser",
+                        voter.getId(), id, e);
+
+                    onDisconnect(voter);
+                    return;
                 }
-            }
 
-            // phase 5.1: determining win/loss (question limit reached)
-            if (count == 20)
-            {
-                sendToGM("\nYou won! " + guesser.getUsername() + " ran out of questions.");
-                sendToGuesser("\nYou lost! The answer was '" + subject + "'.");
+                // this voter is out of time, but the other one may already have answered
+                if (reply == null) break;
+
+                onMessage(voter, reply);
+                flushBoth();
             }
+        }
 
-            // phase 6: play again
-            sendToGM("\nPLAY AGAINST " + guesser.getUsername() + " AGAIN?");
-            sendToGuesser("\nPLAY AGAINST " + gameMaster.getUsername() + " AGAIN?");
+        // still waiting on someone once every vote that arrived in time has been counted
+        onPlayAgainTimeout();
+    }
 
-            // both players are asked if they want to play against the same opponent again
-            Future<Boolean> decisionGM = Server.threadPool.submit(new PlayAgain(gameMaster));
-            Future<Boolean> decisionGuesser = Server.threadPool.submit(new PlayAgain(guesser));
-            
-            // both players have 15 seconds to submit their answers
-            try 
-            {
-                Boolean againGM = decisionGM.get(15, TimeUnit.SECONDS);
-                Boolean againGuesser = decisionGuesser.get(15, TimeUnit.SECONDS);
+    /**
+     * Starts another round or ends the session once the play-again phase is over.
+     * 
+     * @param playAgain Whether both players want to play again.
+     */
+    private void finishPlayAgain(boolean playAgain)
+    {
+        clearDeadline();
+
+        // the server started shutting down while the players were deciding
+        if (Shutdown.inProgress())
+        {
+            sendVisualSeparator();
+            end(player1, player2);
+        }
+        else if (playAgain)
+        {
+            startRound();
+        }
+        else
+        {
+            // notify players of impending disconnect
+            sendToBoth(SESSION_ENDING);
+
+            sendVisualSeparator();
+
+            end(player1, player2);
+        }
+    }
+
+    /**
+     * Holds a player's seat, or ends the session, when one of the players disconnects.
+     * 
+     * A player who drops mid-round is given RECONNECT_SECONDS to come back,
+     * if their client can (it must speak the BINARY protocol, which carries
+     * the resume token), isn't relayed from another node, and the server
+     * isn't shutting down. Otherwise, or if the other player is already away,
+     * the remaining player is told what happened and returned to the menu.
+     * 
+     * @param player The player who disconnected.
+     */
+    private synchronized void onDisconnect(Player player)
+    {
+        if (phase == Phase.ENDED) return;
+
+        if (away == null && phase != Phase.PLAY_AGAIN && !Shutdown.inProgress()
+            && player.getProtocolVersion() != Protocol.LEGACY && !player.isRelayed())
+        {
+            hold(player);
+            return;
+        }
+
+        // a game dropped by a shutdown can be picked up again after the restart
+        interrupted = Shutdown.inProgress();
+
+        Player opponent = player == player1 ? player2 : player1;
+
+        // an opponent no longer registered is being disconnected by a shutdown, which tells them why
+        if (opponent.getState() != null || opponent.isRelayed())
+        {
+            send(opponent, OPPONENT_DISCONNECTED);
+            send(opponent, Message.separator());
+        }
+
+        Server.players.remove(player);
+
+        end(opponent);
+    }
+
+    /**
+     * Keeps a player's seat while they reconnect.
+     * 
+     * Their old connection is dropped without logging them out, so their 
+     * username stays taken, and their opponent is told to wait for them.
+     * 
+     * @param player The player who lost their connection.
+     */
+    private void hold(Player player)
+    {
+        Log.info("Player lost connection to game session, holding their seat", player.getId(), id);
+
+        away = player;
+        player.drop();
+
+        // it's no use timing a turn nobody can play, they are prompted again when they come back
+        if (player == (phase == Phase.ASKING ? guesser : gameMaster)) clearDeadline();
 
-                playAgain = againGM && againGuesser;
+        Player opponent = player == player1 ? player2 : player1;
+        send(opponent, OPPONENT_LOST);
+        flushBoth();
+
+        awayDeadline = Server.timer.schedule(() -> onReconnectTimeout(player), RECONNECT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Seats a reconnecting player again, on their new connection.
+     * 
+     * The player's old connection is dropped if the server hadn't noticed it
+     * was broken yet. They are then shown the round so far, prompted if it's
+     * their turn, and their opponent is told they are back.
+     * 
+     * @param token The resume token the client presented.
+     * @param link The Player created for the new connection, whose connection is taken over.
+     * @return true if the player is back in the game, false if the session is
+     *         over or deciding on a rematch, and there is nothing to resume.
+     */
+    public synchronized boolean reconnect(String token, Player link)
+    {
+        if (phase == Phase.ENDED || phase == Phase.PLAY_AGAIN) return false;
+
+        Player player = player1.getResumeToken().equals(token) ? player1 : player2;
+        Player opponent = player == player1 ? player2 : player1;
+
+        player.reattach(link);
+
+        if (away == player)
+        {
+            away = null;
+            awayDeadline.cancel();
+            awayDeadline = null;
+        }
+
+        Log.info("Player reconnected to game session", player.getId(), id);
+        Metrics.RECONNECTS.increment();
+
+        if (eventDriven) player.getConnection().setHandler(new SeatHandler(player));
+
+        send(opponent, OPPONENT_BACK);
+        showRound(player);
+        flushBoth();
+
+        // a blocking session may be waiting for this player in awaitReturn()
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Waits, on a blocking session, for an away player to reconnect or lose their seat.
+     * 
+     * @param player The player the session needs to hear from next.
+     */
+    private synchronized void awaitReturn(Player player)
+    {
+        while (away == player && phase != Phase.ENDED)
+        {
+            try
+            {
+                wait();
             }
-            // if either times out or declines, the session ends gracefully
-            catch(TimeoutException e) 
+            catch (InterruptedException e)
             {
-                System.out.println("\nPlay again frame timed out: " + e.getMessage());
-                decisionGM.cancel(true);
-                decisionGuesser.cancel(true);
+                Thread.currentThread().interrupt();
+                onReconnectTimeout(player);
+            }
+        }
+    }
+
+    /**
+     * Ends the session when an away player doesn't reconnect within RECONNECT_SECONDS.
+     * 
+     * Runs on one of the timing wheel's task threads.
+     * 
+     * @param player The player who lost their connection.
+     */
+    private synchronized void onReconnectTimeout(Player player)
+    {
+        if (away != player || phase == Phase.ENDED) return;
 
-                sendToBoth("\nPlay again timed out!");
+        Log.info("Player didn't reconnect to game session in time", player.getId(), id);
+        Metrics.RECONNECT_TIMEOUTS.increment();
 
-                playAgain = false;  // main game loop is exited
-            }
-            catch(InterruptedException e)
+        Player opponent = player == player1 ? player2 : player1;
+
+        send(opponent, OPPONENT_DISCONNECTED);
+        send(opponent, Message.separator());
+        flushBoth();
+
+        end(opponent);
+    }
+
+    /**
+     * Marks the session as over and sends the given players back to the menu.
+     * 
+     * A player who is away when the session ends is logged out instead, and a
+     * player relayed from another node is handed back to it.
+     * 
+     * @param players The players returning to the menu.
+     */
+    private synchronized void end(Player... players)
+    {
+        phase = Phase.ENDED;
+        ACTIVE.remove(this);
+        clearDeadline();
+
+        if (awayDeadline != null)
+        {
+            awayDeadline.cancel();
+            awayDeadline = null;
+        }
+
+        SEATS.remove(player1.getResumeToken(), this);
+        SEATS.remove(player2.getResumeToken(), this);
+
+        // a blocking session may be waiting in awaitReturn() for a player who is away
+        notifyAll();
+
+        broadcast.end(GAME_OVER);
+        events.close();
+
+        if (!interrupted) Server.journal.record(Journal.Event.END, id);
+
+        long messages = player1.getMessagesSent() + player2.getMessagesSent() - messagesAtStart;
+        long writes = player1.getWrites() + player2.getWrites() - writesAtStart;
+        Log.info("Game session ended: " + messages + " messages sent in " + writes + " writes", Log.NONE, id);
+
+        // nobody is there to go back to the menu
+        if (away != null) Server.players.remove(away);
+
+        for (Player player : players)
+        {
+            if (player == away || player.isBot()) continue;
+
+            if (player.isRelayed())
             {
-                System.out.println("\nThread was interrupted during play again frame: " + e.getMessage());
+                Server.cluster.handBack(player);
+                continue;
             }
-            catch(ExecutionException e)
+
+            Server.players.transition(player, PlayerRegistry.State.PLAYING, PlayerRegistry.State.MENU);
+
+            // nobody goes back to the menu of a server that is shutting down
+            if (Shutdown.inProgress()) Shutdown.leave(player);
+            else Server.threadPool.submit(new PlayerManager(player));
+        }
+    }
+
+    /**
+     * Prompts a player for their move and starts timing the turn.
+     * 
+     * A bot isn't timed, it makes its move right away (see play()).
+     * 
+     * @param player The player whose turn it is.
+     * @param prompt The move they are asked for.
+     */
+    private void prompt(Player player, Message.Prompt prompt)
+    {
+        if (player.isBot())
+        {
+            clearDeadline();
+            play(player, prompt);
+            return;
+        }
+
+        send(player, Message.prompt(prompt));
+        promptedAt = System.nanoTime();
+
+        // each prompt restarts the clock, so only a player who goes quiet runs out of time
+        clearDeadline();
+        long current = ++turn;
+        deadline = Server.timer.schedule(() -> onTurnTimeout(player, current), TURN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Asks a bot for its move and hands it to the state machine like a reply.
+     * 
+     * @param player The bot's player.
+     * @param prompt The move it is asked for.
+     */
+    private void play(Player player, Message.Prompt prompt)
+    {
+        promptedAt = System.nanoTime();
+
+        // only a bot's own role prompts it, so the bot of that role is the one seated
+        switch (prompt)
+        {
+            case SUBJECT ->  onMessage(player, gameMasterBot.chooseSubject());
+            case QUESTION ->
             {
-                Throwable cause = e.getCause();
+                String question = guesserBot.ask(answers.isEmpty() ? null : answers.get(answers.size() - 1));
 
-                if (cause != null)
-                {
-                    System.out.println("\nCause of the exception: " + cause);
-                }
-                else
-                {
-                    System.out.println("\nNo cause found for this exception.");
-                }
+                if (question != null) onMessage(player, question);
+                else onGiveUp();
             }
+            case ANSWER ->   onMessage(player, String.valueOf(gameMasterBot.answer(questions.get(questions.size() - 1)).getInputChar()));
+            default ->       { }
         }
+    }
 
-        // notify players of impending disconnect
-        sendToBoth("\nBoth of you didn't want to play again.\nSession ending...");
+    /**
+     * Cancels the pending turn deadline or play-again timeout, if any.
+     */
+    private void clearDeadline()
+    {
+        if (deadline != null)
+        {
+            deadline.cancel();
+            deadline = null;
+        }
+    }
 
-        sendVisualSeparator();
+    /**
+     * Ends the session when a player takes longer than TURN_SECONDS over a turn.
+     * 
+     * The idle player is disconnected and their opponent returned to the menu.
+     * Runs on one of the timing wheel's task threads. On the blocking server, closing the 
+     * idle player's socket also ends the read run() is waiting on.
+     * 
+     * @param player The player who was prompted.
+     * @param expected The prompt the deadline was set for.
+     */
+    private synchronized void onTurnTimeout(Player player, long expected)
+    {
+        // the player moved just as the deadline fired
+        if (expected != turn || phase == Phase.ENDED || phase == Phase.PLAY_AGAIN) return;
+
+        Log.info("Turn timed out", player.getId(), id);
+        Metrics.TURN_TIMEOUTS.increment();
+
+        Player opponent = player == player1 ? player2 : player1;
+
+        send(opponent, OPPONENT_TIMED_OUT);
+        send(opponent, Message.separator());
+
+        Server.players.remove(player);
+        end(opponent);
 
-        Server.playingList.removeElement(player1);
-        Server.playingList.removeElement(player2);
+        player.disconnect(TURN_TIMED_OUT);
+        flushBoth();
+    }
+
+    /**
+     * Sends a message to a specific player in this session.
+     * 
+     * @param player The player to send to.
+     * @param message The message to send.
+     */
+    private void send(Player player, Message message)
+    {
+        if (player == gameMaster) sendToGM(message);
+        else sendToGuesser(message);
+    }
 
-        Server.threadPool.submit(new PlayerManager(player1));
-        Server.threadPool.submit(new PlayerManager(player2));
+    /**
+     * Feeds one player's messages from their connection into the session.
+     */
+    private class SeatHandler implements MessageHandler
+    {
+        private final Player player;
+        private final Connection connection;
+
+        /**
+         * @param player The player whose connection this handler serves.
+         */
+        SeatHandler(Player player)
+        {
+            this.player = player;
+            this.connection = player.getConnection();
+        }
+
+        @Override
+        public void onMessage(String message)
+        {
+            GameSession.this.onMessage(player, message);
+        }
+
+        @Override
+        public void onDisconnect()
+        {
+            // a connection the player has already replaced by reconnecting
+            if (player.getConnection() != connection) return;
+
+            GameSession.this.onDisconnect(player);
+        }
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
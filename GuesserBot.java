@@ -0,0 +1,214 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A bot that plays the Guesser from a KnowledgeBase.
+ *
+ * The bot keeps the set of subjects that fit every answer so far, as a
+ * bitset narrowed after each answer (see KnowledgeBase.narrow()). Its next
+ * question is about the attribute with the highest expected information
+ * gain over that set, which is the one whose answer is expected to leave
+ * the fewest subjects, counted in bits. A subject the attribute is unknown
+ * for fits either answer, so it stays on both sides, and counts as half a
+ * subject towards the odds of each.
+ *
+ * Scoring an attribute is one pass over the candidate bitset, so scoring
+ * them all grows with both dimensions of the knowledge base. A large one has
+ * its attributes split between the threads of the common fork/join pool,
+ * which write their scores into a primitive array that the best one is then
+ * picked from, so a question is chosen in a few milliseconds even among
+ * 100k subjects (see the guesser.decide benchmark). A small one, like the
+ * standard knowledge base, is scored on the calling thread.
+ *
+ * The bot guesses a subject instead once only one is left, once no question
+ * can tell the remaining ones apart, or on the last of the round's
+ * GameSession.MAX_QUESTIONS questions. A wrong guess rules the subject out,
+ * and the bot carries on, until no subject it knows fits the answers, when
+ * it gives the round up.
+ */
+public class GuesserBot implements Bot.Guesser
+{
+    /** Longs a scoring task scans at most before it is split up. */
+    private static final int TASK_WORDS = 1 << 15;
+
+    private final KnowledgeBase knowledge;
+
+    /** Subjects that fit every answer this round, as a bitset. */
+    private long[] candidates;
+    /** Attributes asked about this round. */
+    private boolean[] asked;
+    /** Questions asked this round. */
+    private int count = 0;
+    /** The attribute asked about last, or -1 if the last question wasn't about one. */
+    private int attribute = -1;
+    /** The subject guessed last, or -1 if the last question wasn't a guess. */
+    private int guess = -1;
+
+    /** Each attribute's expected information gain in bits, filled in by Scoring. */
+    private final double[] gains;
+
+    /**
+     * @param knowledge The subjects and what is known about them.
+     */
+    public GuesserBot(KnowledgeBase knowledge)
+    {
+        this.knowledge = knowledge;
+        this.gains = new double[knowledge.attributes()];
+    }
+
+    @Override
+    public String ask(GameSession.Answer previous)
+    {
+        if (previous == null)
+        {
+            candidates = knowledge.allSubjects();
+            asked = new boolean[knowledge.attributes()];
+            count = 0;
+        }
+        else if (attribute >= 0)
+        {
+            knowledge.narrow(candidates, attribute, previous);
+        }
+        else if (guess >= 0)
+        {
+            // a correct guess would have ended the round
+            candidates[guess >>> 6] &= ~(1L << guess);
+        }
+
+        count++;
+        attribute = count < GameSession.MAX_QUESTIONS ? best() : -1;
+        guess = -1;
+
+        if (attribute >= 0)
+        {
+            asked[attribute] = true;
+            return knowledge.question(attribute);
+        }
+
+        // no subject the bot knows fits the answers, so there's nothing left worth asking
+        guess = first();
+        if (guess < 0) return null;
+
+        String name = knowledge.subject(guess);
+        return "Is it " + ("aeiou".indexOf(name.charAt(0)) >= 0 ? "an " : "a ") + name + "?";
+    }
+
+    /**
+     * Picks the attribute worth asking about next.
+     *
+     * @return The attribute with the highest expected information gain, or -1
+     *         if no attribute tells any of the remaining subjects apart.
+     */
+    private int best()
+    {
+        int total = 0;
+        for (long word : candidates) total += Long.bitCount(word);
+
+        if (total <= 1) return -1;
+
+        // splits into tasks forked on the common pool when the knowledge base is large enough
+        new Scoring(0, gains.length, total).invoke();
+
+        int best = -1;
+
+        for (int attribute = 0; attribute < gains.length; attribute++)
+        {
+            if (gains[attribute] > 0 && (best < 0 || gains[attribute] > gains[best])) best = attribute;
+        }
+
+        return best;
+    }
+
+    /**
+     * Calculates how much asking about an attribute is expected to narrow
+     * the remaining subjects down.
+     *
+     * @param attribute The attribute.
+     * @param total The number of subjects left.
+     * @return The expected information gain in bits, 0 if no answer would rule anyone out.
+     */
+    private double gain(int attribute, int total)
+    {
+        long split = knowledge.split(candidates, attribute);
+        int yes = (int) (split >>> 32);
+        int no = (int) split;
+        int unknown = total - yes - no;
+
+        // unknown for everyone left, so the answer says nothing about them
+        if (yes == 0 && no == 0) return 0;
+
+        double yesOdds = (yes + unknown / 2.0) / total;
+        double expected = 0;
+
+        if (yes + unknown > 0) expected += yesOdds * log2(yes + unknown);
+        if (no + unknown > 0) expected += (1 - yesOdds) * log2(no + unknown);
+
+        return log2(total) - expected;
+    }
+
+    /**
+     * Finds the first subject that fits every answer so far.
+     *
+     * @return The subject's index, or -1 if none is left.
+     */
+    private int first()
+    {
+        for (int i = 0; i < candidates.length; i++)
+        {
+            if (candidates[i] != 0) return (i << 6) + Long.numberOfTrailingZeros(candidates[i]);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Calculates a base 2 logarithm.
+     *
+     * @param value The value, at least 1.
+     * @return log2(value).
+     */
+    private static double log2(int value)
+    {
+        return Math.log(value) / Math.log(2);
+    }
+
+    /**
+     * Scores a range of attributes into gains, halving the range into two
+     * forked tasks for as long as it covers more than TASK_WORDS longs.
+     */
+    private class Scoring extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int total;
+
+        /**
+         * @param from The first attribute to score.
+         * @param to The attribute after the last one to score.
+         * @param total The number of subjects left.
+         */
+        Scoring(int from, int to, int total)
+        {
+            this.from = from;
+            this.to = to;
+            this.total = total;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > 1 && (long) (to - from) * knowledge.words() > TASK_WORDS)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Scoring(from, middle, total), new Scoring(middle, to, total));
+                return;
+            }
+
+            for (int attribute = from; attribute < to; attribute++)
+            {
+                gains[attribute] = asked[attribute] ? 0 : gain(attribute, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,659 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of game session events, so a restart doesn't lose the
+ * games in progress.
+ *
+ * Every session event (start, roles, subject, each question and answer, the
+ * verdict and the end) is appended as a record to a segment file mapped into
+ * memory. An append is a copy into the mapping under a short lock, with no
+ * system call, so it doesn't slow a turn down. A background thread forces
+ * the mapping to disk every SYNC_MILLIS, so a burst of turns shares a single
+ * fsync. Once a segment is full the journal moves on to a new one, and
+ * segments holding nothing but finished sessions are deleted.
+ *
+ * Each record is laid out as:
+ *   int length | int CRC32 of the body | body
+ * where the body is the event type, the session ID and the event's fields
+ * as length-prefixed UTF-8 strings. Segments are zero-filled when created,
+ * so a zero length marks the end of the records, and a record torn by a
+ * crash fails its checksum.
+ *
+ * On startup the journal replays every segment to rebuild the state of the
+ * sessions that never ended. These interrupted sessions are written again
+ * to a fresh segment, the old segments are deleted, and each session can be
+ * resumed for RECOVERY_MINUTES when both its players are back and looking
+ * for a game (see Matchmaker). A player only gets their seat back by
+ * reconnecting with the resume token they had when the session started or
+ * was last resumed, which the journal keeps, never by logging in under
+ * their username, which anyone could pick after a restart.
+ */
+public class Journal
+{
+    /**
+     * The kinds of session events recorded in the journal.
+     */
+    public enum Event
+    {
+        START,     // a session started or was resumed: player 1, player 2, their resume tokens
+        ROLES,     // a round started: the Game Master's username
+        SUBJECT,   // the Game Master chose a subject: the subject
+        QUESTION,  // the Guesser asked a question: the question
+        ANSWER,    // the Game Master answered: the answer's character
+        VERDICT,   // the round is over: the Outcome
+        END,       // the session is over and won't be resumed
+        CHECKPOINT // a segment started: in place of a session, the highest session ID allocated so far
+    }
+
+    /** Size of each segment file. */
+    private static final int SEGMENT_SIZE = 16 << 20;
+
+    /** How often buffered appends are forced to disk, in milliseconds. */
+    private static final int SYNC_MILLIS = 50;
+
+    /** How long a session interrupted by a restart can be resumed. */
+    private static final int RECOVERY_MINUTES = 30;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Record header: the body length and its checksum. */
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+
+    /** Segment files by index, oldest first. */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentIndex;
+
+    /** Segment each unfinished session started in, which keeps that segment from being deleted. */
+    private final Map<Long, Long> openSessions = new HashMap<>();
+
+    /** Sessions interrupted by the last restart, indexed by both players' resume tokens. */
+    private final ConcurrentHashMap<String, Recovered> interrupted = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSessionId = new AtomicLong();
+    private final CRC32 crc = new CRC32();
+
+    private volatile boolean dirty = false;
+    private volatile boolean closed = false;
+    private Thread syncer;
+
+    /**
+     * One record read back from a segment.
+     */
+    private record Entry(Event event, long session, long time, String[] fields)
+    {
+    }
+
+    /**
+     * The state of a session rebuilt from the journal.
+     */
+    public static final class Recovered
+    {
+        private final long id;
+        private final long startedAt;
+
+        // from the session's latest START, since a resumed session's players have new tokens
+        private String player1;
+        private String player2;
+        private String token1 = "";
+        private String token2 = "";
+
+        private String gameMaster = "";
+        private String subject = "";
+        private final List<String> questions = new ArrayList<>();
+        private final List<GameSession.Answer> answers = new ArrayList<>();
+        private boolean roundOver = false;
+
+        /**
+         * @param id The session ID.
+         * @param startedAt When the session started, in milliseconds since the epoch.
+         * @param fields The fields of the session's START.
+         */
+        private Recovered(long id, long startedAt, String[] fields)
+        {
+            this.id = id;
+            this.startedAt = startedAt;
+            seat(fields);
+        }
+
+        /**
+         * Takes the players of a START, the first one or a later one written
+         * when the session was resumed.
+         *
+         * @param fields The START's fields. Journals written before tokens
+         *        were recorded have none.
+         */
+        private void seat(String[] fields)
+        {
+            player1 = fields[0];
+            player2 = fields[1];
+
+            if (fields.length >= 4)
+            {
+                token1 = fields[2];
+                token2 = fields[3];
+            }
+        }
+
+        /**
+         * Applies one journaled event to the session.
+         *
+         * @param event The event type.
+         * @param fields The event's fields.
+         */
+        private void apply(Event event, String[] fields)
+        {
+            switch (event)
+            {
+                case ROLES ->
+                {
+                    gameMaster = fields[0];
+                    subject = "";
+                    questions.clear();
+                    answers.clear();
+                    roundOver = false;
+                }
+                case SUBJECT -> subject = fields[0];
+                case QUESTION -> questions.add(fields[0]);
+                case ANSWER -> answers.add(GameSession.Answer.fromChar(fields[0].charAt(0)));
+                case VERDICT -> roundOver = true;
+                default -> { }
+            }
+        }
+
+        /**
+         * @return The session ID, which a resumed session keeps.
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return The username of the current round's Game Master, or an
+         *         empty string if no round had started.
+         */
+        public String getGameMaster()
+        {
+            return gameMaster;
+        }
+
+        /**
+         * @return The current round's subject, or an empty string if it hadn't been chosen.
+         */
+        public String getSubject()
+        {
+            return subject;
+        }
+
+        /**
+         * @return The questions asked this round, in order.
+         */
+        public List<String> getQuestions()
+        {
+            return questions;
+        }
+
+        /**
+         * @return The answers given this round, one per question except
+         *         possibly the last.
+         */
+        public List<GameSession.Answer> getAnswers()
+        {
+            return answers;
+        }
+
+        /**
+         * Checks whether the interrupted round had already been decided.
+         *
+         * @return true if the round was over, so resuming starts a new one.
+         */
+        public boolean isRoundOver()
+        {
+            return roundOver;
+        }
+
+        /**
+         * Gets the username of the player a resume token belongs to.
+         *
+         * @param token The resume token.
+         * @return The player's username at the time of the interruption.
+         */
+        public String usernameOf(String token)
+        {
+            return token.equals(token1) ? player1 : player2;
+        }
+
+        /**
+         * Gets the other player of the session.
+         *
+         * @param username One of the players' usernames.
+         * @return The other player's username.
+         */
+        public String opponentOf(String username)
+        {
+            return PlayerRegistry.normalize(username).equals(PlayerRegistry.normalize(player1)) ? player2 : player1;
+        }
+    }
+
+    /**
+     * Initializes a journal that records nothing, for servers run without one.
+     */
+    private Journal()
+    {
+        this.directory = null;
+        this.closed = true;
+    }
+
+    /**
+     * Initializes a journal in the given directory. See open().
+     *
+     * @param directory The directory holding the segment files.
+     */
+    private Journal(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a journal that records nothing.
+     *
+     * @return A disabled journal.
+     */
+    public static Journal disabled()
+    {
+        return new Journal();
+    }
+
+    /**
+     * Opens the journal in a directory, recovering the sessions a previous
+     * run left unfinished.
+     *
+     * This method:
+     * 1. Replays every segment in order, stopping at the first torn record
+     * 2. Writes the sessions that never ended to a new segment
+     * 3. Deletes the old segments, which are no longer needed
+     * 4. Starts the thread that forces appends to disk
+     *
+     * @param directory The directory holding the segment files, created if needed.
+     * @return The open journal.
+     * @throws IOException If the directory or a segment can't be read or written.
+     */
+    public static Journal open(Path directory) throws IOException
+    {
+        Journal journal = new Journal(directory);
+        Files.createDirectories(directory);
+
+        // phase 1: replaying the existing segments
+        TreeMap<Long, Path> previous = new TreeMap<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                previous.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+
+        LinkedHashMap<Long, Recovered> sessions = new LinkedHashMap<>();
+        long records = 0;
+        long maxId = 0;
+
+        for (Path file : previous.values())
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            Entry entry;
+
+            while ((entry = journal.read(buffer)) != null)
+            {
+                records++;
+                maxId = Math.max(maxId, entry.session());
+
+                switch (entry.event())
+                {
+                    case START ->
+                    {
+                        // a resumed session keeps its round, only its players' tokens change
+                        Recovered session = sessions.get(entry.session());
+
+                        if (session != null) session.seat(entry.fields());
+                        else sessions.put(entry.session(), new Recovered(entry.session(), entry.time(), entry.fields()));
+                    }
+                    case END -> sessions.remove(entry.session());
+                    case CHECKPOINT -> { }
+                    default ->
+                    {
+                        Recovered session = sessions.get(entry.session());
+                        if (session != null) session.apply(entry.event(), entry.fields());
+                    }
+                }
+            }
+        }
+
+        journal.nextSessionId.set(maxId);
+        journal.segmentIndex = previous.isEmpty() ? 0 : previous.lastKey();
+        journal.roll();
+
+        // sessions journaled without tokens can't be given back to anyone
+        sessions.values().removeIf(session -> session.token1.isEmpty());
+
+        // phase 2: carrying the interrupted sessions over to the new segment
+        for (Recovered session : sessions.values())
+        {
+            journal.append(Event.START, session.id, session.startedAt,
+                session.player1, session.player2, session.token1, session.token2);
+
+            if (!session.gameMaster.isEmpty())
+            {
+                journal.append(Event.ROLES, session.id, session.startedAt, session.gameMaster);
+            }
+
+            if (!session.subject.isEmpty())
+            {
+                journal.append(Event.SUBJECT, session.id, session.startedAt, session.subject);
+            }
+
+            for (int i = 0; i < session.questions.size(); i++)
+            {
+                journal.append(Event.QUESTION, session.id, session.startedAt, session.questions.get(i));
+
+                if (i < session.answers.size())
+                {
+                    journal.append(Event.ANSWER, session.id, session.startedAt,
+                        String.valueOf(session.answers.get(i).getInputChar()));
+                }
+            }
+
+            if (session.roundOver) journal.append(Event.VERDICT, session.id, session.startedAt, "");
+
+            journal.interrupted.put(session.token1, session);
+            journal.interrupted.put(session.token2, session);
+
+            // unclaimed sessions are given up on eventually, so their segment can go
+            Server.timer.schedule(() -> journal.expire(session), RECOVERY_MINUTES, TimeUnit.MINUTES);
+        }
+
+        journal.segment.force();
+
+        // phase 3: the old segments are now redundant
+        for (Path file : previous.values())
+        {
+            Files.deleteIfExists(file);
+        }
+
+        // phase 4: batching fsyncs
+        journal.syncer = new Thread(journal::sync, "journal-sync");
+        journal.syncer.setDaemon(true);
+        journal.syncer.start();
+
+        Log.info("Journal replayed " + records + " records from " + previous.size() + " segments, "
+            + sessions.size() + " interrupted sessions recovered");
+
+        return journal;
+    }
+
+    /**
+     * Allocates the ID of a new session, unique across restarts.
+     *
+     * @return The session ID.
+     */
+    public long nextSessionId()
+    {
+        return nextSessionId.incrementAndGet();
+    }
+
+    /**
+     * Appends a session event.
+     *
+     * The event is in memory when this returns and reaches the disk within
+     * SYNC_MILLIS. Errors are logged rather than thrown, so a full disk
+     * stops the journal but never a game.
+     *
+     * @param event The event type.
+     * @param session The session ID.
+     * @param fields The event's fields, see Event.
+     */
+    public void record(Event event, long session, String... fields)
+    {
+        append(event, session, System.currentTimeMillis(), fields);
+    }
+
+    /**
+     * Looks up a session interrupted by the last restart.
+     *
+     * @param token The resume token a reconnecting client presented.
+     * @return The session, or null if the token gets no seat back.
+     */
+    public Recovered interrupted(String token)
+    {
+        return interrupted.get(token);
+    }
+
+    /**
+     * Claims an interrupted session for resuming, so it is resumed only once.
+     *
+     * @param session The session.
+     * @return true if the session was still waiting to be resumed.
+     */
+    public boolean claim(Recovered session)
+    {
+        boolean first = interrupted.remove(session.token1, session);
+        boolean second = interrupted.remove(session.token2, session);
+
+        return first || second;
+    }
+
+    /**
+     * Forces everything appended so far to disk and stops the journal.
+     */
+    public synchronized void close()
+    {
+        if (closed) return;
+        closed = true;
+
+        if (syncer != null) syncer.interrupt();
+
+        try
+        {
+            segment.force();
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing journal", e);
+        }
+    }
+
+    /**
+     * Gives up on an interrupted session nobody came back for.
+     *
+     * @param session The session.
+     */
+    private void expire(Recovered session)
+    {
+        if (claim(session)) record(Event.END, session.id);
+    }
+
+    /**
+     * Writes one record at the end of the current segment, moving on to a
+     * new segment if it doesn't fit.
+     *
+     * @param event The event type.
+     * @param session The session ID.
+     * @param time When the event happened, in milliseconds since the epoch.
+     * @param fields The event's fields.
+     */
+    private synchronized void append(Event event, long session, long time, String... fields)
+    {
+        if (closed) return;
+
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1 + 8 + 8 + 1;
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 2 + Math.min(encoded[i].length, 0xFFFF);
+        }
+
+        try
+        {
+            // the record and the zero length after it, which marks the end, must both fit
+            if (segment.remaining() < HEADER_SIZE + length + 4) roll();
+
+            int start = segment.position();
+
+            // the body goes in first and the length last, so a record is only visible once complete
+            segment.position(start + HEADER_SIZE);
+            segment.put((byte) event.ordinal());
+            segment.putLong(session);
+            segment.putLong(time);
+            segment.put((byte) fields.length);
+
+            for (byte[] field : encoded)
+            {
+                int size = Math.min(field.length, 0xFFFF);
+                segment.putShort((short) size);
+                segment.put(field, 0, size);
+            }
+
+            crc.reset();
+            crc.update(segment.slice(start + HEADER_SIZE, length));
+
+            segment.putInt(start + 4, (int) crc.getValue());
+            segment.putInt(start, length);
+
+            if (event == Event.START) openSessions.put(session, segmentIndex);
+            else if (event == Event.END) openSessions.remove(session);
+
+            dirty = true;
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error writing to journal, journaling stopped", e);
+            closed = true;
+        }
+    }
+
+    /**
+     * Reads the next record from a segment.
+     *
+     * @param buffer The segment, positioned at the next record.
+     * @return The record, or null at the end of the segment or at a torn record.
+     */
+    private Entry read(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < HEADER_SIZE) return null;
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        int checksum = buffer.getInt(start + 4);
+
+        if (length <= 0 || length > buffer.remaining() - HEADER_SIZE) return null;
+
+        crc.reset();
+        crc.update(buffer.slice(start + HEADER_SIZE, length));
+        if ((int) crc.getValue() != checksum) return null;
+
+        buffer.position(start + HEADER_SIZE);
+
+        Event event = Event.values()[buffer.get()];
+        long session = buffer.getLong();
+        long time = buffer.getLong();
+        String[] fields = new String[buffer.get()];
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            byte[] field = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(field);
+            fields[i] = new String(field, StandardCharsets.UTF_8);
+        }
+
+        return new Entry(event, session, time, fields);
+    }
+
+    /**
+     * Closes the current segment and maps a new one, deleting the segments
+     * that only hold finished sessions.
+     *
+     * @throws IOException If the new segment can't be created.
+     */
+    private void roll() throws IOException
+    {
+        if (segment != null)
+        {
+            segment.force();
+            channel.close();
+        }
+
+        segmentIndex++;
+        Path file = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX));
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        segments.put(segmentIndex, file);
+
+        // session IDs stay unique across restarts even once older segments are deleted
+        append(Event.CHECKPOINT, nextSessionId.get(), System.currentTimeMillis());
+
+        // a segment is still needed while a session that started in it is open
+        long oldestNeeded = segmentIndex;
+        for (long index : openSessions.values())
+        {
+            oldestNeeded = Math.min(oldestNeeded, index);
+        }
+
+        Iterator<Map.Entry<Long, Path>> old = segments.headMap(oldestNeeded).entrySet().iterator();
+        while (old.hasNext())
+        {
+            Files.deleteIfExists(old.next().getValue());
+            old.remove();
+        }
+    }
+
+    /**
+     * Forces new appends to disk every SYNC_MILLIS until the journal is closed.
+     */
+    private void sync()
+    {
+        while (!closed)
+        {
+            try
+            {
+                Thread.sleep(SYNC_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            if (!dirty) continue;
+            dirty = false;
+
+            MappedByteBuffer current;
+            synchronized (this)
+            {
+                if (closed) return;
+                current = segment;
+            }
+
+            // outside the lock, so appends carry on while the disk catches up
+            current.force();
+        }
+    }
+}
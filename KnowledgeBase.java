@@ -0,0 +1,528 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * What the bots know: a table of subjects and attributes, e.g. whether a
+ * cat is alive, has fur or is bigger than a breadbox.
+ *
+ * Every attribute is packed into bitsets over the subjects, WORDS longs per
+ * attribute in one flat array: one bit for whether each subject has the
+ * attribute, and one in a second array for whether that is known at all,
+ * since some attributes depend on the subject (a dog may or may not be
+ * dangerous), which is answered with a maybe. Looking an attribute up is a
+ * couple of array reads, so one knowledge base can serve every bot game on
+ * the server at once. It is never changed once built.
+ *
+ * Keeping each attribute's bits together lets a Guesser work on whole sets
+ * of subjects at a time: the subjects it still considers are a bitset of the
+ * same layout, which narrow() filters by an answer and split() counts by
+ * how they would answer a question, 64 subjects per instruction.
+ *
+ * Each attribute also comes with the keywords a question about it is
+ * recognized by, and the question a bot asks about it. A question is
+ * matched against subject names first, so "Is it a cat?" is a guess, and
+ * then against keywords, the last keyword winning, so "Is it made of
+ * metal?" is about metal rather than about being made.
+ *
+ * The standard knowledge base is built from the ATTRIBUTES and SUBJECTS
+ * tables below. An attribute line reads "key | question | keywords", and
+ * a subject line "name | keys of the attributes it has", with a ? in front
+ * of the key for attributes that are unknown for the subject.
+ */
+public class KnowledgeBase
+{
+    /** Splits a question into lower case words. */
+    private static final Pattern WORDS = Pattern.compile("[^a-z0-9]+");
+
+    private final String[] questions;
+    private final String[] subjects;
+
+    /** Longs per attribute in each bitset, one bit per subject. */
+    private final int words;
+    /** Whether each subject has each attribute, WORDS longs per attribute. */
+    private final long[] facts;
+    /** Whether each attribute is known for each subject, WORDS longs per attribute. */
+    private final long[] known;
+
+    /** Keyword to the attribute it is about. */
+    private final HashMap<String, Integer> keywords = new HashMap<>();
+    /** Subject name, and its plural, to the subject. */
+    private final HashMap<String, Integer> names = new HashMap<>();
+
+    /**
+     * Holds the standard knowledge base, built the first time it is needed.
+     */
+    private static final class Standard
+    {
+        private static final KnowledgeBase INSTANCE = parse(ATTRIBUTES, SUBJECTS);
+    }
+
+    /**
+     * @param questions The question for each attribute.
+     * @param keywords The keywords of each attribute.
+     * @param subjects The subjects' names.
+     * @param facts Whether each subject has each attribute.
+     * @param known Whether each subject's attributes are known.
+     */
+    private KnowledgeBase(String[] questions, String[][] keywords, String[] subjects, long[] facts, long[] known)
+    {
+        this.questions = questions;
+        this.subjects = subjects;
+        this.words = (subjects.length + 63) >>> 6;
+        this.facts = facts;
+        this.known = known;
+
+        for (int attribute = 0; attribute < keywords.length; attribute++)
+        {
+            for (String keyword : keywords[attribute])
+            {
+                this.keywords.putIfAbsent(keyword, attribute);
+            }
+        }
+
+        for (int subject = 0; subject < subjects.length; subject++)
+        {
+            names.putIfAbsent(subjects[subject], subject);
+            names.putIfAbsent(subjects[subject] + "s", subject);
+        }
+    }
+
+    /**
+     * Gets the knowledge base built from the ATTRIBUTES and SUBJECTS tables.
+     *
+     * @return The standard knowledge base, shared by every bot.
+     */
+    public static KnowledgeBase standard()
+    {
+        return Standard.INSTANCE;
+    }
+
+    /**
+     * Builds a knowledge base from tables in the format of ATTRIBUTES and SUBJECTS.
+     *
+     * @param attributeLines One "key | question | keywords" line per attribute.
+     * @param subjectLines One "name | attribute keys" line per subject.
+     * @return The knowledge base.
+     * @throws IllegalArgumentException If a subject has an attribute that isn't defined.
+     */
+    public static KnowledgeBase parse(String[] attributeLines, String[] subjectLines)
+    {
+        HashMap<String, Integer> keys = new HashMap<>();
+        String[] questions = new String[attributeLines.length];
+        String[][] keywords = new String[attributeLines.length][];
+
+        for (int attribute = 0; attribute < attributeLines.length; attribute++)
+        {
+            String[] parts = attributeLines[attribute].split("\\|");
+
+            keys.put(parts[0].trim(), attribute);
+            questions[attribute] = parts[1].trim();
+            keywords[attribute] = parts[2].trim().split("\\s+");
+        }
+
+        int words = (subjectLines.length + 63) >>> 6;
+        String[] subjects = new String[subjectLines.length];
+        long[] facts = new long[attributeLines.length * words];
+        long[] known = new long[attributeLines.length * words];
+
+        for (int subject = 0; subject < subjectLines.length; subject++)
+        {
+            String[] parts = subjectLines[subject].split("\\|");
+            subjects[subject] = parts[0].trim();
+
+            // everything the line doesn't mention is known not to apply
+            for (int attribute = 0; attribute < attributeLines.length; attribute++)
+            {
+                known[attribute * words + (subject >>> 6)] |= 1L << subject;
+            }
+
+            for (String key : parts[1].trim().split("\\s+"))
+            {
+                boolean unsure = key.startsWith("?");
+                Integer attribute = keys.get(unsure ? key.substring(1) : key);
+
+                if (attribute == null)
+                {
+                    throw new IllegalArgumentException("Unknown attribute " + key + " for " + subjects[subject]);
+                }
+
+                int word = attribute * words + (subject >>> 6);
+
+                if (unsure) known[word] &= ~(1L << subject);
+                else facts[word] |= 1L << subject;
+            }
+        }
+
+        return new KnowledgeBase(questions, keywords, subjects, facts, known);
+    }
+
+    /**
+     * Builds a knowledge base of made up subjects and attributes, to measure
+     * bots against far more subjects than the standard one has.
+     *
+     * Subjects are named "subject1", "subject2" and so on, and attribute N is
+     * asked about with "Is it attributeN?". Each subject has each attribute
+     * with even odds, and one attribute in eight is unknown.
+     *
+     * @param subjectCount The number of subjects.
+     * @param attributeCount The number of attributes.
+     * @param seed The seed the attributes are drawn with, so runs can be repeated.
+     * @return The knowledge base.
+     */
+    public static KnowledgeBase generate(int subjectCount, int attributeCount, long seed)
+    {
+        Random random = new Random(seed);
+        int words = (subjectCount + 63) >>> 6;
+
+        String[] questions = new String[attributeCount];
+        String[][] keywords = new String[attributeCount][];
+        String[] subjects = new String[subjectCount];
+        long[] facts = new long[attributeCount * words];
+        long[] known = new long[attributeCount * words];
+
+        for (int attribute = 0; attribute < attributeCount; attribute++)
+        {
+            questions[attribute] = "Is it attribute" + (attribute + 1) + "?";
+            keywords[attribute] = new String[] { "attribute" + (attribute + 1) };
+        }
+
+        for (int subject = 0; subject < subjectCount; subject++)
+        {
+            subjects[subject] = "subject" + (subject + 1);
+        }
+
+        for (int word = 0; word < facts.length; word++)
+        {
+            // the three random words ANDed together leave one bit in eight unknown
+            facts[word] = random.nextLong();
+            known[word] = ~(random.nextLong() & random.nextLong() & random.nextLong());
+            facts[word] &= known[word];
+        }
+
+        // bits past the last subject stand for nobody
+        if ((subjectCount & 63) != 0)
+        {
+            for (int attribute = 0; attribute < attributeCount; attribute++)
+            {
+                facts[attribute * words + words - 1] &= (1L << subjectCount) - 1;
+                known[attribute * words + words - 1] &= (1L << subjectCount) - 1;
+            }
+        }
+
+        return new KnowledgeBase(questions, keywords, subjects, facts, known);
+    }
+
+    /**
+     * Gets the number of subjects.
+     *
+     * @return The number of subjects.
+     */
+    public int subjects()
+    {
+        return subjects.length;
+    }
+
+    /**
+     * Gets a subject's name.
+     *
+     * @param subject The subject's index.
+     * @return The name.
+     */
+    public String subject(int subject)
+    {
+        return subjects[subject];
+    }
+
+    /**
+     * Gets the number of attributes.
+     *
+     * @return The number of attributes.
+     */
+    public int attributes()
+    {
+        return questions.length;
+    }
+
+    /**
+     * Gets the question that asks about an attribute.
+     *
+     * @param attribute The attribute's index.
+     * @return The question, e.g. "Is it alive?".
+     */
+    public String question(int attribute)
+    {
+        return questions[attribute];
+    }
+
+    /**
+     * Answers a question about an attribute of a subject.
+     *
+     * @param subject The subject's index.
+     * @param attribute The attribute's index.
+     * @return YES or NO, or MAYBE if it isn't known for this subject.
+     */
+    public GameSession.Answer answer(int subject, int attribute)
+    {
+        int word = attribute * words + (subject >>> 6);
+        long bit = 1L << subject;
+
+        if ((known[word] & bit) == 0) return GameSession.Answer.MAYBE;
+
+        return (facts[word] & bit) != 0 ? GameSession.Answer.YES : GameSession.Answer.NO;
+    }
+
+    /**
+     * Answers a question typed by a player about a subject.
+     *
+     * A question naming the subject is a correct guess, and one naming any
+     * other subject a wrong one. Otherwise the last keyword in the question
+     * decides which attribute it is about, and a question without any gets
+     * a maybe.
+     *
+     * @param subject The subject's index.
+     * @param question The question.
+     * @return The answer.
+     */
+    public GameSession.Answer answer(int subject, String question)
+    {
+        String[] words = WORDS.split(question.toLowerCase(Locale.ROOT));
+        boolean guessed = false;
+        int attribute = -1;
+
+        for (int i = 0; i < words.length; i++)
+        {
+            // names of two words, like "ice cream", before names of one
+            Integer named = i + 1 < words.length ? names.get(words[i] + " " + words[i + 1]) : null;
+            if (named == null) named = names.get(words[i]);
+
+            if (named != null)
+            {
+                if (named == subject) return GameSession.Answer.CORRECT;
+                guessed = true;
+            }
+
+            Integer about = keywords.get(words[i]);
+            if (about != null) attribute = about;
+        }
+
+        if (guessed) return GameSession.Answer.NO;
+
+        return attribute < 0 ? GameSession.Answer.MAYBE : answer(subject, attribute);
+    }
+
+    /**
+     * Creates a set of subjects holding every subject, for narrow() and split().
+     *
+     * @return A bitset with one bit per subject, all set.
+     */
+    public long[] allSubjects()
+    {
+        long[] candidates = new long[words];
+        Arrays.fill(candidates, -1L);
+
+        if ((subjects.length & 63) != 0) candidates[words - 1] = (1L << subjects.length) - 1;
+
+        return candidates;
+    }
+
+    /**
+     * Drops the subjects that don't fit an answer about an attribute from a
+     * set of subjects. Subjects the attribute is unknown for fit any answer.
+     *
+     * @param candidates The subjects, from allSubjects(), narrowed in place.
+     * @param attribute The attribute asked about.
+     * @param answer The answer given, of which only YES and NO narrow anything down.
+     */
+    public void narrow(long[] candidates, int attribute, GameSession.Answer answer)
+    {
+        int base = attribute * words;
+
+        if (answer == GameSession.Answer.YES)
+        {
+            for (int i = 0; i < words; i++) candidates[i] &= facts[base + i] | ~known[base + i];
+        }
+        else if (answer == GameSession.Answer.NO)
+        {
+            // unknown attributes have no fact bit either
+            for (int i = 0; i < words; i++) candidates[i] &= ~facts[base + i];
+        }
+    }
+
+    /**
+     * Counts how a set of subjects would answer a question about an attribute.
+     *
+     * Both counts are taken in a single pass over the bitsets, and packed
+     * into one long so the call allocates nothing. The subjects left over
+     * are those the attribute is unknown for.
+     *
+     * @param candidates The subjects, from allSubjects().
+     * @param attribute The attribute asked about.
+     * @return The number of subjects that have the attribute in the upper 32
+     *         bits, and the number that are known not to in the lower 32.
+     */
+    public long split(long[] candidates, int attribute)
+    {
+        int base = attribute * words;
+        int yes = 0;
+        int no = 0;
+
+        for (int i = 0; i < words; i++)
+        {
+            long candidate = candidates[i];
+
+            yes += Long.bitCount(candidate & facts[base + i]);
+            no += Long.bitCount(candidate & known[base + i] & ~facts[base + i]);
+        }
+
+        return (long) yes << 32 | no;
+    }
+
+    /**
+     * Gets the number of longs in a set of subjects, which is also the work
+     * split() does for one attribute.
+     *
+     * @return The length of the bitsets from allSubjects().
+     */
+    public int words()
+    {
+        return words;
+    }
+
+    /** The standard attributes: key | question | keywords. */
+    private static final String[] ATTRIBUTES =
+    {
+        "alive     | Is it alive?                   | alive living life breathe breathes breathing",
+        "animal    | Is it an animal?               | animal animals creature creatures",
+        "mammal    | Is it a mammal?                | mammal mammals",
+        "bird      | Is it a bird?                  | bird birds feather feathers",
+        "water     | Is it found in water?          | water swim swims sea ocean river lake wet",
+        "fly       | Can it fly?                    | fly flies flying wings wing",
+        "pet       | Is it a pet?                   | pet pets domestic tame",
+        "wild      | Does it live in the wild?      | wild jungle forest nature outdoors outside",
+        "legs      | Does it have legs?             | legs leg walk walks paws",
+        "fur       | Does it have fur?              | fur furry hair hairy",
+        "dangerous | Is it dangerous?               | dangerous danger harmful deadly hurt bite bites sharp",
+        "plant     | Is it a plant?                 | plant plants flower flowers grow grows leaves",
+        "food      | Can you eat it?                | eat edible food eaten taste",
+        "fruit     | Is it a fruit?                 | fruit fruits",
+        "sweet     | Is it sweet?                   | sweet sugar sugary dessert candy",
+        "big       | Is it bigger than a breadbox?  | big bigger large larger huge breadbox size",
+        "heavy     | Is it heavy?                   | heavy weigh weighs weight",
+        "manmade   | Is it man-made?                | manmade made artificial invented built manufactured",
+        "machine   | Is it a machine?               | machine machines engine motor mechanical",
+        "electric  | Does it use electricity?       | electric electricity electronic battery batteries plug power",
+        "vehicle   | Is it a vehicle?               | vehicle vehicles drive ride transport travel",
+        "wheels    | Does it have wheels?           | wheel wheels",
+        "house     | Is it found in a house?        | house home household indoors inside room",
+        "kitchen   | Is it used in the kitchen?     | kitchen cook cooking",
+        "metal     | Is it made of metal?           | metal metallic steel iron",
+        "wood      | Is it made of wood?            | wood wooden",
+        "sport     | Is it used for sport or play?  | sport sports game games play toy",
+        "tool      | Is it a tool?                  | tool tools",
+        "wear      | Can you wear it?               | wear wearable clothing clothes worn",
+        "round     | Is it round?                   | round sphere circle circular",
+        "green     | Is it green?                   | green",
+        "hold      | Can you hold it in your hand?  | hold carry handheld hand hands small smaller tiny",
+        "screen    | Does it have a screen?         | screen screens display",
+        "sound     | Does it make a sound?          | sound sounds noise noisy loud music musical",
+    };
+
+    /** The standard subjects: name | attributes it has, ? for unknown ones. */
+    private static final String[] SUBJECTS =
+    {
+        "cat          | alive animal mammal pet legs fur house sound ?hold ?dangerous ?wild",
+        "dog          | alive animal mammal pet legs fur house sound ?big ?dangerous ?wild",
+        "horse        | alive animal mammal legs fur big heavy sound ?pet ?wild ?sport",
+        "cow          | alive animal mammal legs fur big heavy food sound",
+        "pig          | alive animal mammal legs big heavy food sound ?fur ?pet",
+        "sheep        | alive animal mammal legs fur big food sound ?heavy",
+        "lion         | alive animal mammal wild legs fur big heavy dangerous sound",
+        "tiger        | alive animal mammal wild legs fur big heavy dangerous sound",
+        "elephant     | alive animal mammal wild legs big heavy sound ?dangerous",
+        "giraffe      | alive animal mammal wild legs big heavy ?fur",
+        "monkey       | alive animal mammal wild legs fur sound ?big ?dangerous",
+        "mouse        | alive animal mammal legs fur hold sound ?pet ?house ?wild",
+        "rabbit       | alive animal mammal legs fur pet hold ?wild ?food ?house",
+        "bear         | alive animal mammal wild legs fur big heavy dangerous sound",
+        "whale        | alive animal mammal wild water big heavy sound",
+        "dolphin      | alive animal mammal wild water big heavy sound",
+        "shark        | alive animal wild water big heavy dangerous",
+        "goldfish     | alive animal pet water house hold",
+        "snake        | alive animal wild dangerous ?pet ?big ?green",
+        "frog         | alive animal wild water legs green hold sound",
+        "turtle       | alive animal water legs ?pet ?wild ?big ?green ?hold",
+        "eagle        | alive animal bird wild fly legs dangerous sound ?big",
+        "penguin      | alive animal bird wild water legs sound ?big",
+        "parrot       | alive animal bird pet fly legs house hold sound ?green",
+        "chicken      | alive animal bird legs food sound ?fly ?pet ?hold",
+        "owl          | alive animal bird wild fly legs sound ?hold",
+        "bee          | alive animal wild fly legs dangerous hold sound",
+        "spider       | alive animal wild legs hold ?dangerous ?house",
+        "ant          | alive animal wild legs hold ?house",
+        "butterfly    | alive animal wild fly legs hold",
+        "tree         | alive plant wild big heavy wood green ?food",
+        "rose         | alive plant hold green dangerous ?house ?wild",
+        "cactus       | alive plant green dangerous ?house ?wild ?hold",
+        "grass        | alive plant green wild ?food",
+        "apple        | food fruit sweet round hold ?plant ?green ?kitchen ?alive",
+        "banana       | food fruit sweet hold ?plant ?kitchen ?alive",
+        "orange       | food fruit sweet round hold ?plant ?kitchen ?alive",
+        "strawberry   | food fruit sweet hold ?plant ?alive",
+        "carrot       | food hold kitchen ?plant ?sweet ?alive",
+        "potato       | food hold kitchen ?plant ?round ?alive",
+        "pizza        | food manmade round kitchen ?hold ?house",
+        "bread        | food manmade hold kitchen house",
+        "cheese       | food manmade hold kitchen house ?round",
+        "ice cream    | food sweet manmade hold house ?kitchen",
+        "chocolate    | food sweet manmade hold house",
+        "egg          | food hold kitchen house ?round ?alive",
+        "cake         | food sweet manmade kitchen house ?round ?hold",
+        "car          | manmade machine vehicle wheels metal big heavy sound electric ?dangerous",
+        "bicycle      | manmade vehicle wheels metal sport ?big ?heavy",
+        "motorcycle   | manmade machine vehicle wheels metal big heavy sound dangerous ?electric",
+        "airplane     | manmade machine vehicle fly wheels metal big heavy sound electric",
+        "boat         | manmade vehicle water big heavy ?machine ?metal ?wood ?sound",
+        "train        | manmade machine vehicle wheels metal big heavy sound electric",
+        "bus          | manmade machine vehicle wheels metal big heavy sound electric",
+        "helicopter   | manmade machine vehicle fly metal big heavy sound electric",
+        "rocket       | manmade machine vehicle fly metal big heavy dangerous sound electric",
+        "computer     | manmade machine electric house screen sound ?metal ?big ?heavy ?hold",
+        "phone        | manmade machine electric screen hold sound house ?metal",
+        "television   | manmade machine electric screen house sound big ?heavy",
+        "refrigerator | manmade machine electric house kitchen big heavy metal ?sound",
+        "microwave    | manmade machine electric house kitchen metal big sound ?heavy",
+        "clock        | manmade house sound ?round ?electric ?hold ?metal ?wood",
+        "lamp         | manmade electric house ?hold ?metal",
+        "chair        | manmade house legs ?wood ?metal ?big ?heavy",
+        "table        | manmade house legs big ?wood ?metal ?heavy ?kitchen",
+        "bed          | manmade house legs big heavy ?wood",
+        "book         | manmade house hold",
+        "pencil       | manmade tool hold wood house",
+        "hammer       | manmade tool hold metal ?wood ?heavy ?dangerous",
+        "scissors     | manmade tool hold metal dangerous house",
+        "knife        | manmade tool hold metal dangerous kitchen house",
+        "spoon        | manmade tool hold metal kitchen house",
+        "cup          | manmade hold kitchen house ?round",
+        "guitar       | manmade sound wood ?big ?hold ?electric",
+        "piano        | manmade sound wood big heavy house",
+        "drum         | manmade sound round ?wood ?hold ?big",
+        "ball         | manmade sport round hold ?house",
+        "kite         | manmade sport fly wild ?hold",
+        "hat          | manmade wear hold house",
+        "shoe         | manmade wear hold house",
+        "shirt        | manmade wear hold house",
+        "glasses      | manmade wear hold house ?metal",
+        "umbrella     | manmade hold house ?metal",
+        "key          | manmade metal hold house tool",
+        "candle       | manmade house hold dangerous",
+        "toothbrush   | manmade tool hold house ?electric",
+        "sun          | round big heavy dangerous ?wild",
+        "moon         | round big heavy ?wild",
+        "mountain     | big heavy wild ?green",
+        "fire         | dangerous ?house ?wild ?sound",
+        "rain         | water wild sound",
+    };
+}
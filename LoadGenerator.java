@@ -0,0 +1,641 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * Headless load generator that plays the game with many scripted players at once.
+ *
+ * Where Client drives one human on one socket, the load generator opens any
+ * number of connections from a single selector thread, so thousands of players
+ * cost a few buffers each rather than a thread each. Every player logs in with
+ * a generated username, chooses "1. Play Game", and plays whichever role it is
+ * given, driven by one of two policies:
+ * - scripted: a fixed subject and questions, the Game Master answers no until
+ *   the last question of the game and everyone goes back to matchmaking after
+ *   each game
+ * - random: random subjects and questions, the Game Master answers at random
+ *   and players choose at random whether to play again
+ *
+ * When the run ends, it reports logins per second, games per second, the
+ * latency percentiles of matchmaking and of turns, and the errors seen. That
+ * makes it the tool for capacity-planning the server before a traffic spike.
+ *
+ * With --tls, every player connects over TLS (see TlsChannel), so running
+ * the same load with and without it shows what TLS costs: the handshake
+ * shows up in the login latency, and encryption in the turn latency.
+ *
+ * Usage: java LoadGenerator [host] [port] [-c players] [-d seconds] [-r logins/sec]
+ *                           [-q questions] [--random] [--legacy] [--tls truststore [--tls-password password]]
+ */
+public class LoadGenerator
+{
+    private static final String[] SUBJECTS = { "cat", "bicycle", "volcano", "teapot", "lighthouse", "violin" };
+
+    private static final String[] QUESTIONS =
+    {
+        "Is it alive?", "Is it bigger than a breadbox?", "Can you hold it?", "Is it made of metal?",
+        "Is it found indoors?", "Does it make a sound?", "Is it older than a century?", "Can it move?"
+    };
+
+    /** The legacy text of every prompt, used to recognise prompts on either protocol. */
+    private static final Map<String, Message.Prompt> PROMPTS = new HashMap<>();
+
+    private static final String GAME_MASTER = Message.role(Message.Role.GAME_MASTER).getText();
+    private static final String GUESSER = Message.role(Message.Role.GUESSER).getText();
+
+    static
+    {
+        for (Message.Prompt prompt : Message.Prompt.values())
+        {
+            PROMPTS.put(Message.prompt(prompt).getText(), prompt);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int players;
+    private final int seconds;
+    private final int loginRate;
+    private final int questionsPerGame;
+    private final boolean random;
+    private final int offeredVersion;
+    /** The context TLS connections are made from, or null for plaintext. */
+    private final SSLContext tls;
+
+    private final Selector selector;
+    private final Random dice = new Random();
+    private final List<Bot> bots = new ArrayList<>();
+
+    // everything below is only touched by the selector thread
+    private long startNanos;
+    private long lastLoginNanos;
+    private int logins = 0;
+    private int playAgainPrompts = 0;
+    private int connectErrors = 0;
+    private int disconnectErrors = 0;
+    private int protocolErrors = 0;
+    private final Latencies loginLatency = new Latencies();
+    private final Latencies matchLatency = new Latencies();
+    private final Latencies turnLatency = new Latencies();
+
+    /**
+     * Recorded latencies of one kind, kept in full so exact percentiles can be reported.
+     */
+    private static class Latencies
+    {
+        private long[] nanos = new long[1024];
+        private int count = 0;
+
+        /**
+         * @param value A latency in nanoseconds.
+         */
+        void record(long value)
+        {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+
+            nanos[count++] = value;
+        }
+
+        /**
+         * Formats the count and the usual percentiles in milliseconds.
+         *
+         * @return One line of the report.
+         */
+        String summary()
+        {
+            if (count == 0) return "none recorded";
+
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+
+            return String.format(Locale.ROOT, "n=%d  p50=%.2f  p90=%.2f  p99=%.2f  max=%.2f ms", count,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[count - 1] / 1e6);
+        }
+
+        /**
+         * @param sorted Latencies in ascending order.
+         * @param fraction The percentile wanted, from 0 to 1.
+         * @return The latency at that percentile in milliseconds.
+         */
+        private static double percentile(long[] sorted, double fraction)
+        {
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    /**
+     * Initializes a run against the given server.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @param players The number of concurrent players to connect.
+     * @param seconds How long to keep playing.
+     * @param loginRate New connections opened per second, or 0 to open them all at once.
+     * @param questionsPerGame Questions asked per game (on average with the random policy).
+     * @param random Whether to use the random policy instead of the scripted one.
+     * @param offeredVersion The protocol version offered in the hello, LEGACY for none.
+     * @param tls The TLS context to connect with (see Tls), or null for plaintext.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public LoadGenerator(String host, int port, int players, int seconds, int loginRate,
+        int questionsPerGame, boolean random, int offeredVersion, SSLContext tls) throws IOException
+    {
+        this.host = host;
+        this.port = port;
+        this.players = players;
+        this.seconds = seconds;
+        this.loginRate = loginRate;
+        this.questionsPerGame = questionsPerGame;
+        this.random = random;
+        this.offeredVersion = offeredVersion;
+        this.tls = tls;
+
+        selector = Selector.open();
+    }
+
+    /**
+     * Runs the load test and prints the report.
+     *
+     * This method:
+     * 1. Opens connections at the configured rate until every player is connected
+     * 2. Services all of them from this thread until the run time is up
+     * 3. Closes every connection and prints the report
+     */
+    public void run()
+    {
+        startNanos = System.nanoTime();
+        long endNanos = startNanos + seconds * 1_000_000_000L;
+
+        while (System.nanoTime() < endNanos)
+        {
+            // phase 1: ramping up
+            long elapsed = System.nanoTime() - startNanos;
+            long due = loginRate == 0 ? players : Math.min(players, elapsed * loginRate / 1_000_000_000L + 1);
+
+            while (bots.size() < due)
+            {
+                Bot bot = new Bot("load" + bots.size());
+                bots.add(bot);
+                bot.connect();
+            }
+
+            // phase 2: servicing connections
+            try
+            {
+                selector.select(10);
+            }
+            catch (IOException e)
+            {
+                System.out.println("\nError selecting: " + e.getMessage());
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Bot bot = (Bot) key.attachment();
+
+                if (!key.isValid()) continue;
+                if (key.isConnectable()) bot.finishConnect();
+                if (key.isValid() && key.isWritable()) bot.flush();
+                if (key.isValid() && key.isReadable()) bot.read();
+            }
+        }
+
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+
+        for (Bot bot : bots)
+        {
+            bot.close();
+        }
+
+        report(elapsed);
+    }
+
+    /**
+     * Prints the results of the run.
+     *
+     * @param elapsed Length of the run in seconds.
+     */
+    private void report(double elapsed)
+    {
+        double loginWindow = logins == 0 ? 0 : (lastLoginNanos - startNanos) / 1e9;
+
+        System.out.println("\n| Load test: " + players + " players, " + seconds + " s, "
+            + (random ? "random" : "scripted") + " policy" + (tls != null ? ", TLS" : "") + " |");
+        System.out.printf(Locale.ROOT, "%nLogins:        %d in %.2f s (%.1f/s)%n", logins, loginWindow,
+            loginWindow > 0 ? logins / loginWindow : 0.0);
+        System.out.printf(Locale.ROOT, "Games:         %d (%.1f/s)%n", playAgainPrompts / 2, playAgainPrompts / 2 / elapsed);
+        System.out.println("Login latency: " + loginLatency.summary());
+        System.out.println("Match latency: " + matchLatency.summary());
+        System.out.println("Turn latency:  " + turnLatency.summary());
+        System.out.println("Errors:        " + connectErrors + " connect, " + disconnectErrors + " disconnect, "
+            + protocolErrors + " protocol");
+    }
+
+    /**
+     * One scripted player and its connection.
+     */
+    private class Bot
+    {
+        private final String username;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private SocketChannel channel;
+        /** The TLS layer over the channel, or null for plaintext. */
+        private TlsChannel secure;
+        private SelectionKey key;
+
+        /** Protocol version in use, LEGACY until the server acks a hello. */
+        private int version = Protocol.LEGACY;
+        private boolean acked;
+        private boolean loggedIn = false;
+        private boolean closed = false;
+        private boolean gameMaster = false;
+        private int asked = 0;
+
+        // start times of the latencies being measured, -1 when none is pending
+        private long connectStart = -1;
+        private long matchStart = -1;
+        private long turnStart = -1;
+
+        /**
+         * @param username The username this player logs in with.
+         */
+        Bot(String username)
+        {
+            this.username = username;
+            this.acked = offeredVersion == Protocol.LEGACY;
+        }
+
+        /**
+         * Starts connecting to the server without blocking.
+         */
+        void connect()
+        {
+            try
+            {
+                connectStart = System.nanoTime();
+
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                boolean connected = channel.connect(new InetSocketAddress(host, port));
+                key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+
+                if (connected) onConnected();
+            }
+            catch (IOException e)
+            {
+                connectErrors++;
+                close();
+            }
+        }
+
+        /**
+         * Completes a pending connect once the selector reports it.
+         */
+        void finishConnect()
+        {
+            try
+            {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+
+                onConnected();
+            }
+            catch (IOException e)
+            {
+                connectErrors++;
+                close();
+            }
+        }
+
+        /**
+         * Starts the TLS handshake, if any, and opens with a hello, unless
+         * running the legacy protocol. The hello waits for the handshake.
+         *
+         * @throws SSLException If the handshake can't be started.
+         */
+        private void onConnected() throws SSLException
+        {
+            // a new engine per player, so every login pays for a full handshake like a new client would
+            if (tls != null) secure = new TlsChannel(channel, Tls.clientEngine(tls, host, port, false), null, null);
+
+            if (!acked) send(Protocol.hello(offeredVersion));
+            else if (secure != null) flush();
+        }
+
+        /**
+         * Reads and handles every complete frame the server has sent.
+         */
+        void read()
+        {
+            boolean handshaking = secure != null && !secure.isEstablished();
+            int count;
+
+            // over TLS, a record can hold more than fits in the decoder's buffer
+            do
+            {
+                try
+                {
+                    count = secure != null ? decoder.readFrom(secure) : decoder.readFrom(channel);
+                }
+                catch (IOException e)
+                {
+                    disconnectErrors++;
+                    close();
+                    return;
+                }
+
+                try
+                {
+                    byte[] payload;
+                    while (!closed && (payload = decoder.nextFrame()) != null)
+                    {
+                        handle(payload);
+                    }
+                }
+                catch (IOException e)
+                {
+                    protocolErrors++;
+                    close();
+                    return;
+                }
+            }
+            while (!closed && secure != null && count > 0 && secure.hasBuffered());
+
+            if (count < 0 && !closed)
+            {
+                disconnectErrors++;
+                close();
+                return;
+            }
+
+            // the read took the handshake along, it may have something to send or the hello may be waiting on it
+            if (!closed && secure != null && (handshaking || secure.hasPendingOutput())) flush();
+        }
+
+        /**
+         * Reacts to a single frame from the server.
+         *
+         * This method:
+         * 1. Skips the legacy greeting until the server acks the hello
+         * 2. Records the match latency when a role is assigned
+         * 3. Records the turn latency when the next prompt arrives
+         * 4. Answers the prompt according to the policy
+         *
+         * @param payload The frame payload without its length header.
+         * @throws IOException If the frame can't be decoded.
+         */
+        private void handle(byte[] payload) throws IOException
+        {
+            long now = System.nanoTime();
+
+            // phase 1: handshake
+            if (!acked)
+            {
+                int chosen = Protocol.parseAck(FrameDecoder.decodeText(payload));
+
+                if (chosen >= 0)
+                {
+                    version = chosen;
+                    acked = true;
+                }
+
+                return;
+            }
+
+            String text = version == Protocol.LEGACY
+                ? FrameDecoder.decodeText(payload)
+                : Message.decode(payload).getText();
+
+            // phase 2: a new round
+            if (text.equals(GAME_MASTER) || text.equals(GUESSER))
+            {
+                gameMaster = text.equals(GAME_MASTER);
+                asked = 0;
+
+                if (matchStart >= 0)
+                {
+                    matchLatency.record(now - matchStart);
+                    matchStart = -1;
+                }
+
+                return;
+            }
+
+            Message.Prompt prompt = PROMPTS.get(text);
+            if (prompt == null) return;
+
+            // phase 3: the server came back to this player
+            if (turnStart >= 0)
+            {
+                turnLatency.record(now - turnStart);
+                turnStart = -1;
+            }
+
+            // phase 4: answering
+            switch (prompt)
+            {
+                case USERNAME, NEW_USERNAME -> send(username);
+                case MENU_DECISION ->
+                {
+                    if (!loggedIn)
+                    {
+                        loggedIn = true;
+                        logins++;
+                        lastLoginNanos = now;
+                        loginLatency.record(now - connectStart);
+                    }
+
+                    matchStart = now;
+                    send("1");
+                }
+                case SUBJECT -> play(random ? pick(SUBJECTS) : SUBJECTS[0]);
+                case QUESTION -> play(random ? pick(QUESTIONS) : QUESTIONS[asked++ % QUESTIONS.length]);
+                case ANSWER -> play(answer());
+                case PLAY_AGAIN ->
+                {
+                    playAgainPrompts++;
+                    send(random && dice.nextBoolean() ? "y" : "n");
+                }
+            }
+        }
+
+        /**
+         * Sends a move in the game and starts timing the turn.
+         *
+         * @param move The subject, question or answer.
+         */
+        private void play(String move)
+        {
+            turnStart = System.nanoTime();
+            send(move);
+        }
+
+        /**
+         * Picks the Game Master's answer to the next question.
+         *
+         * @return The answer character.
+         */
+        private String answer()
+        {
+            asked++;
+
+            if (!random) return asked < questionsPerGame ? "n" : "c";
+
+            if (dice.nextInt(questionsPerGame) == 0) return "c";
+
+            return pick(new String[] { "y", "n", "m" });
+        }
+
+        /**
+         * @param options The choices.
+         * @return One of them at random.
+         */
+        private String pick(String[] options)
+        {
+            return options[dice.nextInt(options.length)];
+        }
+
+        /**
+         * Queues a reply and writes as much as the socket takes.
+         *
+         * @param text The reply.
+         */
+        private void send(String text)
+        {
+            if (closed) return;
+
+            try
+            {
+                outbound.add(ByteBuffer.wrap(Protocol.encodeReply(text, version)));
+                flush();
+            }
+            catch (UTFDataFormatException e)
+            {
+                protocolErrors++;
+                close();
+            }
+        }
+
+        /**
+         * Writes queued replies until done or the socket's send buffer is full.
+         */
+        void flush()
+        {
+            try
+            {
+                if (secure != null) secure.flush();
+
+                while (!outbound.isEmpty())
+                {
+                    if (secure != null) secure.write(new ByteBuffer[] { outbound.peek() });
+                    else channel.write(outbound.peek());
+
+                    if (outbound.peek().hasRemaining()) break;
+
+                    outbound.poll();
+                }
+
+                // over TLS, replies waiting for the handshake wait for the server, not the socket
+                boolean blocked = secure != null ? secure.hasPendingOutput() : !outbound.isEmpty();
+
+                key.interestOps(blocked
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+            }
+            catch (IOException e)
+            {
+                disconnectErrors++;
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection.
+         */
+        void close()
+        {
+            if (closed) return;
+
+            closed = true;
+
+            try
+            {
+                if (secure != null) secure.close();
+                else if (channel != null) channel.close();
+            }
+            catch (IOException e)
+            {
+                // already closing, nothing else to release
+            }
+        }
+    }
+
+    /**
+     * Entry point for the load generator.
+     *
+     * Usage: java LoadGenerator [host] [port] [-c players] [-d seconds] [-r logins/sec]
+     *                           [-q questions] [--random] [--legacy] [--tls truststore [--tls-password password]]
+     *
+     * @param args Command line arguments (optional host, port and options).
+     */
+    public static void main(String args[])
+    {
+        String host = "localhost";
+        int port = 5000;
+        int players = 100;
+        int seconds = 30;
+        int loginRate = 0;
+        int questions = 5;
+        boolean random = false;
+        int version = Protocol.VERSION;
+        String trustStore = null;
+        char[] password = null;
+        int positional = 0;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-c" -> players = Integer.parseInt(args[++i]);
+                case "-d" -> seconds = Integer.parseInt(args[++i]);
+                case "-r" -> loginRate = Integer.parseInt(args[++i]);
+                case "-q" -> questions = Math.max(1, Integer.parseInt(args[++i]));
+                case "--random" -> random = true;
+                case "--legacy" -> version = Protocol.LEGACY;
+                case "--tls" -> trustStore = args[++i];
+                case "--tls-password" -> password = args[++i].toCharArray();
+                default ->
+                {
+                    if (positional++ == 0) host = args[i];
+                    else port = Integer.parseInt(args[i]);
+                }
+            }
+        }
+
+        try
+        {
+            SSLContext tls = trustStore != null ? Tls.client(Paths.get(trustStore), password) : null;
+
+            new LoadGenerator(host, port, players, seconds, loginRate, questions, random, version, tls).run();
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            System.out.println("\nError starting load generator: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,498 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log, written asynchronously so no thread waits on stdout or a file.
+ *
+ * Every entry is a structured event: a level, the time, the thread, a short
+ * message, and the player and game session it is about, when there is one,
+ * plus the error that caused it. Logging an entry only claims a slot in a
+ * bounded ring with a compare-and-set and copies those fields into it, and a
+ * single writer thread formats the entries and writes them out in batches.
+ * Entries below the configured level are skipped before anything is copied.
+ *
+ * The ring is a multi-producer, single-consumer queue in the style of
+ * Vyukov's bounded queue: each slot carries a sequence number saying whether
+ * it is free for the producer claiming that position or filled for the
+ * writer, so producers never lock and never wait on each other or on the
+ * writer. When the ring is full the entry is dropped and counted instead, and
+ * the writer logs how many were dropped once it has caught up.
+ *
+ * Entries go to stdout unless the server is started with --log, in which case
+ * they go to server.log in the given directory, which is rotated once it
+ * reaches MAX_FILE_BYTES, keeping the last KEEP_FILES files.
+ *
+ * Output lines look like:
+ *   2026-10-17T12:00:00.123Z WARN  [loop-2] player=12 session=7 msg="Error sending to client" error="java.io.IOException: Broken pipe"
+ */
+public class Log
+{
+    /**
+     * How important an entry is, from the least.
+     */
+    public enum Level
+    {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /** Player or session ID of an entry that isn't about one. */
+    public static final long NONE = -1;
+
+    /** Entries the ring holds before new ones are dropped, a power of two. */
+    private static final int CAPACITY = 1 << 14;
+
+    /** Size at which the log file is rotated. */
+    private static final long MAX_FILE_BYTES = 16L * 1024 * 1024;
+    /** Log files kept, including the current one. */
+    private static final int KEEP_FILES = 5;
+    private static final String FILE_NAME = "server.log";
+
+    /**
+     * How long the writer sleeps when the ring is empty: at first the
+     * shortest time, doubled every time it is still empty, up to the longest.
+     */
+    private static final long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // the ring's slots, one entry field per array
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] threads = new String[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final long[] players = new long[CAPACITY];
+    private static final long[] sessions = new long[CAPACITY];
+    private static final Throwable[] errors = new Throwable[CAPACITY];
+
+    /** Next position a producer claims. */
+    private static final AtomicLong tail = new AtomicLong();
+    /** Next position the writer reads, only used by the writer. */
+    private static long head = 0;
+
+    private static final LongAdder dropped = new LongAdder();
+    /** Dropped entries the writer has already reported, only used by the writer. */
+    private static long droppedReported = 0;
+
+    private static volatile Level threshold = Level.INFO;
+
+    /** Where the writer writes, replaced by toDirectory() and when rotating. */
+    private static Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+    /** The directory of the log files, or null when writing to stdout. */
+    private static Path directory;
+    /** Bytes written to the current log file. */
+    private static long fileBytes = 0;
+
+    private static final Thread writer;
+    private static volatile boolean stopped = false;
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sends the log to rotated files in a directory instead of stdout.
+     *
+     * Must be called at startup, before anything is logged that should go there.
+     *
+     * @param dir The directory, created if needed.
+     * @throws IOException If the log file can't be opened.
+     */
+    public static void toDirectory(Path dir) throws IOException
+    {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(FILE_NAME);
+
+        Writer opened = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8));
+
+        // the writer picks the new output up on its next batch
+        synchronized (Log.class)
+        {
+            fileBytes = Files.size(file);
+            directory = dir;
+            out = opened;
+        }
+    }
+
+    /**
+     * Sets the least important level that is logged.
+     *
+     * @param level The level.
+     */
+    public static void setLevel(Level level)
+    {
+        threshold = level;
+    }
+
+    /**
+     * Gets the entries dropped because the ring was full.
+     *
+     * @return The number of dropped entries.
+     */
+    public static long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs routine detail, hidden unless the level is DEBUG.
+     *
+     * @param message What happened.
+     */
+    public static void debug(String message)
+    {
+        log(Level.DEBUG, message, NONE, NONE, null);
+    }
+
+    /**
+     * Logs something worth knowing that isn't about a player.
+     *
+     * @param message What happened.
+     */
+    public static void info(String message)
+    {
+        log(Level.INFO, message, NONE, NONE, null);
+    }
+
+    /**
+     * Logs something worth knowing about a player or a game session.
+     *
+     * @param message What happened.
+     * @param player The player's ID, or NONE.
+     * @param session The session's ID, or NONE.
+     */
+    public static void info(String message, long player, long session)
+    {
+        log(Level.INFO, message, player, session, null);
+    }
+
+    /**
+     * Logs an error the server recovers from.
+     *
+     * @param message What failed.
+     * @param error The error, or null.
+     */
+    public static void warn(String message, Throwable error)
+    {
+        log(Level.WARN, message, NONE, NONE, error);
+    }
+
+    /**
+     * Logs an error the server recovers from, affecting a player or a game session.
+     *
+     * @param message What failed.
+     * @param player The player's ID, or NONE.
+     * @param session The session's ID, or NONE.
+     * @param error The error, or null.
+     */
+    public static void warn(String message, long player, long session, Throwable error)
+    {
+        log(Level.WARN, message, player, session, error);
+    }
+
+    /**
+     * Logs an error that stops part of the server from working.
+     *
+     * @param message What failed.
+     * @param error The error, or null.
+     */
+    public static void error(String message, Throwable error)
+    {
+        log(Level.ERROR, message, NONE, NONE, error);
+    }
+
+    /**
+     * Logs an error that stops part of the server from working for a player or a game session.
+     *
+     * @param message What failed.
+     * @param player The player's ID, or NONE.
+     * @param session The session's ID, or NONE.
+     * @param error The error, or null.
+     */
+    public static void error(String message, long player, long session, Throwable error)
+    {
+        log(Level.ERROR, message, player, session, error);
+    }
+
+    /**
+     * Queues an entry for the writer, or drops it if the ring is full.
+     *
+     * Never blocks and never allocates.
+     *
+     * @param level How important the entry is.
+     * @param message What happened.
+     * @param player The ID of the player it is about, or NONE.
+     * @param session The ID of the game session it is about, or NONE.
+     * @param error The error that caused it, or null.
+     */
+    public static void log(Level level, String message, long player, long session, Throwable error)
+    {
+        if (level.compareTo(threshold) < 0) return;
+
+        long position = tail.get();
+        int slot;
+
+        // claim a position whose slot the writer has freed
+        while (true)
+        {
+            slot = (int) position & (CAPACITY - 1);
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                dropped.increment();
+                return;
+            }
+            else
+            {
+                // another producer claimed it first
+                position = tail.get();
+            }
+        }
+
+        levels[slot] = level;
+        times[slot] = System.currentTimeMillis();
+        threads[slot] = Thread.currentThread().getName();
+        messages[slot] = message;
+        players[slot] = player;
+        sessions[slot] = session;
+        errors[slot] = error;
+
+        // hands the slot over to the writer
+        sequences.lazySet(slot, position + 1);
+
+        // every quarter of the ring, wake the writer in case it is sleeping through a burst
+        if ((position & (CAPACITY / 4 - 1)) == 0) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Writes out every entry logged so far and stops the writer.
+     *
+     * Called last when the server shuts down. Entries logged afterwards are lost.
+     */
+    public static void stop()
+    {
+        stopped = true;
+        LockSupport.unpark(writer);
+
+        try
+        {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes entries as they are logged until stopped, flushing whenever
+     * the ring runs empty and sleeping longer and longer while it stays
+     * empty. Runs on the writer thread.
+     */
+    private static void write()
+    {
+        StringBuilder line = new StringBuilder(256);
+        long idle = MIN_IDLE_NANOS;
+
+        while (true)
+        {
+            boolean stopping = stopped;
+            int written = 0;
+
+            synchronized (Log.class)
+            {
+                try
+                {
+                    while (take(line))
+                    {
+                        emit(line);
+                        written++;
+                    }
+
+                    long lost = dropped.sum();
+
+                    if (lost > droppedReported)
+                    {
+                        line.setLength(0);
+                        format(line, Level.WARN, System.currentTimeMillis(), writer.getName(),
+                            (lost - droppedReported) + " log entries dropped, the log couldn't keep up", NONE, NONE, null);
+                        droppedReported = lost;
+                        emit(line);
+                    }
+
+                    if (written > 0 || stopping) out.flush();
+                    if (stopping && directory != null) out.close();
+                }
+                catch (IOException e)
+                {
+                    // nowhere left to log it, the entries are lost
+                }
+            }
+
+            if (stopping) return;
+
+            if (written > 0)
+            {
+                idle = MIN_IDLE_NANOS;
+            }
+            else
+            {
+                LockSupport.parkNanos(idle);
+                idle = Math.min(idle * 2, MAX_IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Takes the next entry off the ring and formats it.
+     *
+     * @param line Where the formatted entry goes, cleared first.
+     * @return false if there is no entry ready.
+     */
+    private static boolean take(StringBuilder line)
+    {
+        int slot = (int) head & (CAPACITY - 1);
+
+        if (sequences.get(slot) != head + 1) return false;
+
+        line.setLength(0);
+        format(line, levels[slot], times[slot], threads[slot], messages[slot], players[slot], sessions[slot], errors[slot]);
+
+        // let go of what the entry referred to, then free the slot for the producer a lap later
+        threads[slot] = null;
+        messages[slot] = null;
+        errors[slot] = null;
+        sequences.lazySet(slot, head + CAPACITY);
+        head++;
+
+        return true;
+    }
+
+    /**
+     * Formats an entry as a single line of key=value pairs.
+     *
+     * @param line Where the line goes.
+     * @param level How important the entry is.
+     * @param time When it was logged, in milliseconds since the epoch.
+     * @param thread The thread that logged it.
+     * @param message What happened.
+     * @param player The ID of the player it is about, or NONE.
+     * @param session The ID of the session it is about, or NONE.
+     * @param error The error that caused it, or null.
+     */
+    private static void format(StringBuilder line, Level level, long time, String thread, String message,
+        long player, long session, Throwable error)
+    {
+        line.append(Instant.ofEpochMilli(time)).append(' ');
+        line.append(String.format(Locale.ROOT, "%-5s", level)).append(" [").append(thread).append(']');
+
+        if (player != NONE) line.append(" player=").append(player);
+        if (session != NONE) line.append(" session=").append(session);
+
+        line.append(" msg=");
+        quote(line, message);
+
+        if (error != null)
+        {
+            line.append(" error=");
+            quote(line, error.toString());
+        }
+
+        line.append('\n');
+    }
+
+    /**
+     * Appends a value in double quotes, escaping quotes and line breaks.
+     *
+     * @param line Where the value goes.
+     * @param value The value.
+     */
+    private static void quote(StringBuilder line, String value)
+    {
+        line.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '"' ->  line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                default ->   line.append(c);
+            }
+        }
+
+        line.append('"');
+    }
+
+    /**
+     * Writes a formatted line, rotating the log file first if it is full.
+     * Must be called holding the class's monitor.
+     *
+     * @param line The line.
+     * @throws IOException If writing fails.
+     */
+    private static void emit(StringBuilder line) throws IOException
+    {
+        if (directory != null && fileBytes + line.length() > MAX_FILE_BYTES) rotate();
+
+        out.append(line);
+        fileBytes += line.length();
+    }
+
+    /**
+     * Moves server.log to server.log.1, server.log.1 to server.log.2 and so
+     * on, deleting the oldest, and starts a new server.log.
+     *
+     * @throws IOException If the files can't be moved or opened.
+     */
+    private static void rotate() throws IOException
+    {
+        out.close();
+
+        Files.deleteIfExists(directory.resolve(FILE_NAME + "." + (KEEP_FILES - 1)));
+
+        for (int i = KEEP_FILES - 2; i >= 0; i--)
+        {
+            Path from = directory.resolve(i == 0 ? FILE_NAME : FILE_NAME + "." + i);
+
+            if (Files.exists(from))
+            {
+                Files.move(from, directory.resolve(FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(directory.resolve(FILE_NAME).toFile()), StandardCharsets.UTF_8));
+        fileBytes = 0;
+    }
+}
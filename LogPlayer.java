@@ -4,7 +4,6 @@ import java.net.*;
 /*
  *  future enhancements: 
  *  - generate a random default username so players have immediate access to the main menu
- *  - no duplicate usernames
  */
 
 /**
@@ -15,13 +14,52 @@ import java.net.*;
  * off to PlayerManager for menu interaction and game matchmaking. Each LogPlayer instance 
  * runs in its own thread from the server's thread pool to handle multiple simultaneous 
  * connections.
+ * 
+ * A client reconnecting to a game it lost its connection to skips all of
+ * this: its first message is a resume instead of a hello, and its new
+ * connection goes straight back to the player's seat (see GameSession.reconnect()).
+ * If the server restarted in the meantime, the token is looked up in the
+ * journal instead, and the client is logged back in under the username it
+ * had in the interrupted game, which the matchmaker then resumes.
+ * Likewise, a cluster node relaying one of its players to a game hosted here
+ * opens with a join, and its connection goes straight into that game (see
+ * Cluster.host()).
  */
 public class LogPlayer implements Runnable
 {
+    private static final Message TITLE = Message.info("\n| 20  Questions |");
+    private static final Message USERNAME_PROMPT = Message.prompt(Message.Prompt.USERNAME);
+
+    /** Sent when a username is blank or already in use, here and when renaming. */
+    static final Message USERNAME_TAKEN = Message.info("\nThat username is not available.");
+
+    /** The reply to a hello, resume or join, by the version agreed on. Always sent as LEGACY frames. */
+    private static final Message[] ACKS = new Message[Protocol.VERSION + 1];
+    /** The reply to a resume with no game to go back to, sent as a LEGACY frame. */
+    private static final Message REFUSED = Message.info(Protocol.refuse());
+
+    private static final Message RECOVERED = Message.info(
+        "\nThe server restarted. Choose to play a game to pick yours back up once your opponent is back.");
+
+    static
+    {
+        for (int version = Protocol.LEGACY; version <= Protocol.VERSION; version++)
+        {
+            ACKS[version] = Message.info(Protocol.ack(version));
+        }
+    }
+
     private final Socket clientSocket;  
+    private final Connection connection;
     private DataInputStream in;        
     private DataOutputStream out;       
 
+    /** When the connection was accepted, for the login latency metric. */
+    private final long acceptedAt = System.nanoTime();
+
+    /** Whether the next message is the first one the client has sent. */
+    private boolean firstMessage = true;
+
     /**
      * Initializes a new LogPlayer for a connected client.
      * 
@@ -34,56 +72,127 @@ public class LogPlayer implements Runnable
     public LogPlayer(Socket clientSocket)
     {
         this.clientSocket = clientSocket;
+        this.connection = null;
 
         try 
         {
             // wrap streams in buffered versions for better performance
             in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
-            out = new DataOutputStream(clientSocket.getOutputStream());
+            out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
         }
         catch(IOException e)
         {
-            System.out.println("Error creating streams: " + e.getMessage());
+            Log.warn("Error creating streams", e);
         }
     }
     
+    /**
+     * Initializes a new LogPlayer for a client of the non-blocking server.
+     * 
+     * @param connection The event loop connection to the newly connected client.
+     */
+    public LogPlayer(Connection connection)
+    {
+        this.clientSocket = null;
+        this.connection = connection;
+    }
+
     /**
      * Executes the client onboarding process.
      * 
      * This method handles the complete flow from initial connection to transferring
      * the client to the main game system:
      * 1. Sends welcome message and prompts for username
-     * 2. Receives and stores the player's chosen username
+     * 2. Receives and stores the player's chosen username, first negotiating
+     *    the protocol version if the client opened with a hello
      * 3. Creates a Player object to represent this client in the system
-     * 4. Adds the player to the server's tracking collection
-     * 5. Hands off the player to PlayerManager for menu interaction
+     * 4. Registers the player, asking for another username while theirs is taken
+     * 5. Sends BINARY clients the player's resume token
+     * 6. Hands off the player to PlayerManager for menu interaction
      * 
      * If any step fails due to network issues, the connection is properly closed
      * to prevent resource leaks.
+     * 
+     * For non-blocking connections only step 1 happens here. The rest runs in
+     * onUsername() once the client's reply arrives, so no thread waits on it.
      */
     public void run()
     {
+        if (connection != null)
+        {
+            connection.send(TITLE);
+            connection.send(USERNAME_PROMPT);
+            connection.setHandler(this::onUsername);
+
+            return;
+        }
+
         String username = "";
 
         try
         {
-            out.writeUTF("\n| 20  Questions |");
-            out.writeUTF("\nEnter your username: ");
-            out.flush();
+            greet(Protocol.LEGACY);
         
-            username = in.readUTF();
+            int version = Protocol.LEGACY;
+            username = Protocol.decodeReply(Protocol.readFrame(in), version);
+
+            // a client that lost its game's connection comes back with a resume instead
+            Protocol.Resume resume = Protocol.parseResume(username);
+            if (resume != null)
+            {
+                reconnect(resume);
+                return;
+            }
+
+            // another cluster node bringing one of its players to a game hosted here
+            Protocol.Resume join = Protocol.parseJoin(username);
+            if (join != null)
+            {
+                join(join);
+                return;
+            }
+
+            // newer clients open with a hello instead of a username
+            int offered = Protocol.parseHello(username);
+            if (offered >= 0)
+            {
+                version = Protocol.negotiate(offered);
+
+                // the ack is always sent as legacy text, then the greeting is repeated in the new version
+                out.write(ACKS[version].encode(Protocol.LEGACY));
+                greet(version);
+
+                username = Protocol.decodeReply(Protocol.readFrame(in), version);
+            }
             
             // create player object with connection details and username
-            Player player = new Player(clientSocket, username, in, out);
+            Player player = new Player(clientSocket, username, in, out, version);
+
+            // usernames are unique, keep asking until the player picks a free one
+            while (!Server.players.register(player))
+            {
+                out.write(USERNAME_TAKEN.encode(version));
+                out.write(USERNAME_PROMPT.encode(version));
+                out.flush();
+
+                player.setUsername(Protocol.decodeReply(Protocol.readFrame(in), version));
+            }
 
-            Server.allPlayers.addElement(player);
+            Metrics.LOGIN.observeSince(acceptedAt);
+
+            // only BINARY clients can tell a token from text, and reconnect with it
+            if (version != Protocol.LEGACY)
+            {
+                player.send(Message.token(player.getResumeToken()));
+                player.flush();
+            }
             
             // transfer control to playermanager for menu and matchmaking
             Server.threadPool.submit(new PlayerManager(player));
         }
         catch (IOException e)
         {
-            System.out.println("Error while collecting username: " + e.getMessage());
+            Log.warn("Error while collecting username", e);
 
             // clean up connection if onboarding fails
             try
@@ -92,8 +201,295 @@ public class LogPlayer implements Runnable
             }
             catch (IOException c)
             {
-                System.out.println("Error closing socket after connection issue.");
+                Log.warn("Error closing socket after connection issue", c);
             }
         }
     }
+
+    /**
+     * Puts a reconnecting client back in its game.
+     * 
+     * The client is acked like after a hello and handed to the session, which
+     * catches it up on the round. If there is no seat to go back to, it is
+     * refused and disconnected instead.
+     * 
+     * @param resume The version and token the client sent.
+     * @throws IOException If talking to the client fails.
+     */
+    private void reconnect(Protocol.Resume resume) throws IOException
+    {
+        GameSession session = GameSession.seatOf(resume.token());
+
+        if (session == null && recover(resume))
+        {
+            return;
+        }
+
+        if (session == null)
+        {
+            out.write(REFUSED.encode(Protocol.LEGACY));
+            out.flush();
+            clientSocket.close();
+            return;
+        }
+
+        int version = Protocol.negotiate(resume.version());
+        out.write(ACKS[version].encode(Protocol.LEGACY));
+
+        // the session ended in the meantime, the client will be refused on its next attempt
+        if (!session.reconnect(resume.token(), new Player(clientSocket, "", in, out, version)))
+        {
+            clientSocket.close();
+        }
+    }
+
+    /**
+     * Logs a client back in whose game a restart interrupted, once it has
+     * presented its resume token from that game.
+     * 
+     * The client is acked like after a hello and logged in under its
+     * username from the game, then goes to the menu as usual, where choosing
+     * to play resumes the game once the opponent is back too. If someone else
+     * has taken the username since the restart, it is refused instead.
+     * 
+     * @param resume The version and token the client sent.
+     * @return false if the token is from no interrupted game, and nothing was sent.
+     * @throws IOException If talking to the client fails.
+     */
+    private boolean recover(Protocol.Resume resume) throws IOException
+    {
+        Journal.Recovered recovered = Server.journal.interrupted(resume.token());
+        if (recovered == null) return false;
+
+        String username = recovered.usernameOf(resume.token());
+
+        if (Server.players.find(username) != null)
+        {
+            out.write(REFUSED.encode(Protocol.LEGACY));
+            out.flush();
+            clientSocket.close();
+            return true;
+        }
+
+        int version = Protocol.negotiate(resume.version());
+        out.write(ACKS[version].encode(Protocol.LEGACY));
+
+        Player player = new Player(clientSocket, username, in, out, version);
+
+        // taken just now, the client will be refused on its next attempt
+        if (!Server.players.register(player))
+        {
+            clientSocket.close();
+            return true;
+        }
+
+        // the client already has its token
+        player.setRecovered(recovered, resume.token());
+        Metrics.LOGIN.observeSince(acceptedAt);
+
+        player.send(RECOVERED);
+        player.flush();
+
+        Server.threadPool.submit(new PlayerManager(player));
+
+        return true;
+    }
+
+    /**
+     * Starts the game a cluster node's relayed player was claimed for.
+     * 
+     * The node is acked like after a hello and its connection becomes the
+     * relayed player's. If the claim is unknown or has expired, the connection
+     * is closed right after the ack instead, and the node keeps the player waiting.
+     * 
+     * @param join The version and ticket the node sent.
+     * @throws IOException If talking to the node fails.
+     */
+    private void join(Protocol.Resume join) throws IOException
+    {
+        int version = Protocol.negotiate(join.version());
+        out.write(ACKS[version].encode(Protocol.LEGACY));
+
+        // the claim expired or the local player left, the node requeues its player on seeing the relay close
+        if (!Server.cluster.host(join.token(), new Player(clientSocket, "", in, out, version)))
+        {
+            out.flush();
+            clientSocket.close();
+        }
+    }
+
+    /**
+     * Sends the welcome message and username prompt.
+     * 
+     * @param version The protocol version to send them in.
+     * @throws IOException If sending fails.
+     */
+    private void greet(int version) throws IOException
+    {
+        out.write(TITLE.encode(version));
+        out.write(USERNAME_PROMPT.encode(version));
+        out.flush();
+    }
+
+    /**
+     * Completes onboarding for a non-blocking connection once the username arrives.
+     * 
+     * If the client opened with a hello instead, the protocol version is
+     * negotiated and the greeting repeated, and the username is expected next.
+     * 
+     * @param username The username sent by the client.
+     */
+    private void onUsername(String username)
+    {
+        int offered = firstMessage ? Protocol.parseHello(username) : -1;
+        Protocol.Resume resume = firstMessage ? Protocol.parseResume(username) : null;
+        Protocol.Resume join = firstMessage ? Protocol.parseJoin(username) : null;
+        firstMessage = false;
+
+        if (resume != null)
+        {
+            onResume(resume);
+            return;
+        }
+
+        if (join != null)
+        {
+            onJoin(join);
+            return;
+        }
+
+        if (offered >= 0)
+        {
+            int version = Protocol.negotiate(offered);
+
+            // the ack is always sent as legacy text, then the greeting is repeated in the new version
+            connection.send(ACKS[version]);
+            connection.setProtocolVersion(version);
+
+            connection.send(TITLE);
+            connection.send(USERNAME_PROMPT);
+
+            return;
+        }
+
+        Player player = new Player(connection, username);
+
+        // usernames are unique, the next reply is another attempt
+        if (!Server.players.register(player))
+        {
+            connection.send(USERNAME_TAKEN);
+            connection.send(USERNAME_PROMPT);
+
+            return;
+        }
+
+        Metrics.LOGIN.observeSince(acceptedAt);
+
+        // only BINARY clients can tell a token from text, and reconnect with it
+        if (connection.getProtocolVersion() != Protocol.LEGACY)
+        {
+            connection.send(Message.token(player.getResumeToken()));
+        }
+
+        // the menu installs its own handler, so it can run right here on the loop
+        new PlayerManager(player).run();
+    }
+
+    /**
+     * Puts a reconnecting non-blocking client back in its game, like reconnect().
+     * 
+     * @param resume The version and token the client sent.
+     */
+    private void onResume(Protocol.Resume resume)
+    {
+        GameSession session = GameSession.seatOf(resume.token());
+
+        if (session == null && onRecover(resume))
+        {
+            return;
+        }
+
+        if (session == null)
+        {
+            connection.send(REFUSED);
+            connection.close();
+            return;
+        }
+
+        int version = Protocol.negotiate(resume.version());
+
+        // the ack is always sent as legacy text
+        connection.send(ACKS[version]);
+        connection.setProtocolVersion(version);
+
+        if (!session.reconnect(resume.token(), new Player(connection, "")))
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * Logs a non-blocking client back in whose game a restart interrupted, like recover().
+     * 
+     * @param resume The version and token the client sent.
+     * @return false if the token is from no interrupted game, and nothing was sent.
+     */
+    private boolean onRecover(Protocol.Resume resume)
+    {
+        Journal.Recovered recovered = Server.journal.interrupted(resume.token());
+        if (recovered == null) return false;
+
+        String username = recovered.usernameOf(resume.token());
+
+        if (Server.players.find(username) != null)
+        {
+            connection.send(REFUSED);
+            connection.close();
+            return true;
+        }
+
+        int version = Protocol.negotiate(resume.version());
+
+        // the ack is always sent as legacy text
+        connection.send(ACKS[version]);
+        connection.setProtocolVersion(version);
+
+        Player player = new Player(connection, username);
+
+        if (!Server.players.register(player))
+        {
+            connection.close();
+            return true;
+        }
+
+        // the client already has its token
+        player.setRecovered(recovered, resume.token());
+        Metrics.LOGIN.observeSince(acceptedAt);
+
+        connection.send(RECOVERED);
+
+        // the menu installs its own handler, so it can run right here on the loop
+        new PlayerManager(player).run();
+
+        return true;
+    }
+
+    /**
+     * Starts the game a cluster node's relayed player was claimed for, like join().
+     * 
+     * @param join The version and ticket the node sent.
+     */
+    private void onJoin(Protocol.Resume join)
+    {
+        int version = Protocol.negotiate(join.version());
+
+        // the ack is always sent as legacy text
+        connection.send(ACKS[version]);
+        connection.setProtocolVersion(version);
+
+        if (!Server.cluster.host(join.token(), new Player(connection, "")))
+        {
+            connection.close();
+        }
+    }
 }
@@ -1,20 +1,17 @@
 import java.io.*;
 
-/*
- *  future enhancements:
- *  - implement timeout in case there isn't a match (return control to playermanager)
- */
-
 /**
- * Handles matching up players and starting their game session.
+ * Handles sending a player into matchmaking.
  * 
- * Displays a message telling the player their "waiting to be matched".
- * If the waitingQueue has at least two players, it teams the first two players
- * of the queue up and passes them to the GameSession handler thread to manage
- * the game.
+ * Displays a message telling the player their "waiting to be matched" and
+ * hands them to the server's Matchmaker, which starts a GameSession as soon
+ * as an opponent is available. The player doesn't keep a thread while waiting,
+ * and is sent back to the main menu if nobody turns up in time.
  */
 public class MatchPlayer implements Runnable
 {
+    private static final Message WAITING = Message.info("\nWaiting to be matched...");
+
     Player player;
 
     /**
@@ -31,61 +28,38 @@ public class MatchPlayer implements Runnable
      * Executes the player matching process
      * 
      * This method:
-     * 1. Adds player to the waiting queue
-     * 2. Notifies the player they're waiting to be matched
-     * 3. Pauses briefly to allow other players to join the queue
-     * 4. Continuously checks for at least two players in the waiting queue
-     * 5. When two players are available, creates a game session and starts it
+     * 1. Notifies the player they're waiting to be matched
+     * 2. Adds the player to the matchmaking queue, where they are either 
+     *    paired with a waiting opponent right away or wait for the next one
      * 
-     * Note: This method contains a potentially blocking infinite loop
-     * that waits until another player becomes available for matching.
+     * It returns immediately either way; the Matchmaker starts the game
+     * session once the match is made, or returns the player to the menu if
+     * the wait times out.
      */
     public void run()
     {
-        // phase 1: add player to waiting queue
-        Server.waitingQueue.addElement(player);
-
-        // phase 2: notify the player of matchmaking
-        try 
-        {
-            player.getOutputStream().writeUTF("\nWaiting to be matched...");
-        }
-        catch(IOException e)
+        // no new games are started once the server is shutting down
+        if (Shutdown.inProgress())
         {
-            System.out.println("Error sending to client: " + e.getMessage());
+            Shutdown.leave(player);
+            return;
         }
 
-        // phase 3: pauses briefly to allow other players to join 
-        // also used as a visual buffer if there is already a match available
-        try
+        // phase 1: notify the player of matchmaking
+        try 
         {
-            Thread.sleep(5000);
+            player.send(WAITING);
+            player.flush();
         }
-        catch(InterruptedException e)
+        catch(IOException e)
         {
-            Thread.currentThread().interrupt();
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
         }
 
-        // phase 4: continuously checks for a match
-        while(true)
+        // phase 2: add player to the matchmaking queue, unless they left in the meantime
+        if (Server.players.transition(player, PlayerRegistry.State.MENU, PlayerRegistry.State.WAITING))
         {
-            if (Server.waitingQueue.size() >= 2)
-            {
-                Player player1 = Server.waitingQueue.firstElement();
-                Server.waitingQueue.removeElementAt(0);
-                Player player2 = Server.waitingQueue.firstElement();
-                Server.waitingQueue.removeElementAt(0);
-
-                Server.playingList.addElement(player1);
-                Server.playingList.addElement(player2);
-
-                // phase 5: create gamesession when a match is made
-                Server.threadPool.submit(new GameSession(player1, player2));
-
-                System.out.println("\nGame session created.");
-
-                break;
-            }
+            Server.matchmaker.enqueue(player);
         }
     }
 }
@@ -0,0 +1,549 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs up players waiting for a game, by rating.
+ * 
+ * Matching is driven by arrivals: when a player joins, they are paired on the
+ * spot with the waiting player whose rating (see Rating) is closest to theirs,
+ * if the two are close enough, and their GameSession is started. Otherwise
+ * the player is parked in the queue. What counts as close enough widens the
+ * longer a player waits, from BASE_GAP rating points by GAP_PER_SECOND every
+ * second, and once they have waited the match bound (MATCH_SECONDS unless
+ * set with setMatchBound()) they take anyone. A parked player looks for an
+ * opponent again every WIDEN_SECONDS as their range widens, on the server's
+ * timing wheel, so no thread sleeps or polls on their behalf and nobody waits
+ * longer than the bound while someone else is waiting too. Because every
+ * check-and-remove happens under the matchmaker's lock, a waiting player can
+ * never be handed to two sessions.
+ * 
+ * Waiting players are indexed twice: by rating in a TreeSet, where the
+ * closest rating on either side of a player is found in O(log n) time, and
+ * in arrival order in a LinkedHashMap, which finds a player's ticket in O(1)
+ * time when they leave the queue. Each ticket holds the time the player
+ * joined, which feeds the queue wait metric, and their queue timeout on the
+ * server's timing wheel: a player nobody is matched with within
+ * QUEUE_SECONDS is sent back to the main menu.
+ * 
+ * In a cluster, players are always matched locally first. A player still
+ * waiting at the match bound is offered to the other nodes (see Cluster),
+ * which may take them out of the queue to match them with one of their own
+ * players, whatever their rating.
+ * 
+ * A player nobody has been matched with after the bot wait (BOT_SECONDS
+ * unless set with setBotWait()) plays against a bot instead, a GameMasterBot
+ * or a GuesserBot with even odds. Bots take no thread or connection of their
+ * own, so any number of players can be waiting on one at once.
+ */
+public class Matchmaker
+{
+    /** Seconds a player waits for an opponent before returning to the menu. */
+    private static final int QUEUE_SECONDS = 120;
+
+    /** Seconds after which a waiting player is matched with anyone, by default. */
+    private static final int MATCH_SECONDS = 10;
+
+    /** The largest rating difference accepted for a player who just joined. */
+    private static final int BASE_GAP = 100;
+    /** How much further apart ratings may be for every second a player has waited. */
+    private static final int GAP_PER_SECOND = 25;
+    /** Seconds between a parked player's attempts to find an opponent. */
+    private static final int WIDEN_SECONDS = 1;
+
+    /** Seconds after which a waiting player plays against a bot, by default. */
+    private static final int BOT_SECONDS = 30;
+    /** The name bots play under. */
+    private static final String BOT_NAME = "Computer";
+
+    private static final Message NO_OPPONENT = Message.info("\nNo opponent was found. Returning to the main menu...");
+
+    /** Orders tickets by rating, then by arrival, so no two compare equal. */
+    private static final Comparator<Ticket> BY_RATING =
+        Comparator.comparingInt((Ticket ticket) -> ticket.rating).thenComparingLong(ticket -> ticket.sequence);
+
+    private final LinkedHashMap<Player, Ticket> waiting = new LinkedHashMap<>();
+    private final TreeSet<Ticket> byRating = new TreeSet<>(BY_RATING);
+
+    /** Numbers tickets in arrival order. Guarded by the matchmaker. */
+    private long sequence = 0;
+
+    private long matchBound = TimeUnit.SECONDS.toNanos(MATCH_SECONDS);
+    /** Nanoseconds until a waiting player plays a bot, negative if they never do. */
+    private long botWait = TimeUnit.SECONDS.toNanos(BOT_SECONDS);
+
+    /**
+     * A player's place in the queue.
+     * 
+     * The timeout is set once the player is parked, under the matchmaker's lock.
+     */
+    private static final class Ticket
+    {
+        private final Player player;
+        /** The player's rating when they joined, which their place in the index is kept by. */
+        private final int rating;
+        private final long sequence;
+        /** When the player joined, from System.nanoTime(). */
+        private final long queuedAt;
+
+        /**
+         * The player's next attempt to find an opponent with a wider range,
+         * or once they take anyone, the timeout sending them back to the menu.
+         */
+        private TimingWheel.Timeout timeout;
+        /** Whether the player has waited the match bound and takes anyone. */
+        private boolean open = false;
+
+        /**
+         * @param player The waiting player.
+         * @param sequence The ticket's number in arrival order.
+         * @param queuedAt When the player joined, from System.nanoTime().
+         */
+        Ticket(Player player, long sequence, long queuedAt)
+        {
+            this.player = player;
+            this.rating = player.getRating();
+            this.sequence = sequence;
+            this.queuedAt = queuedAt;
+        }
+
+        /**
+         * Cancels the ticket's timeout once the player leaves the queue.
+         */
+        void cancel()
+        {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Sets how long a player waits at most before being matched with anyone,
+     * rating aside.
+     * 
+     * @param seconds The match bound in seconds.
+     */
+    public synchronized void setMatchBound(int seconds)
+    {
+        matchBound = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Sets how long a player waits for an opponent before playing against a bot.
+     * 
+     * @param seconds The bot wait in seconds, or a negative number to never
+     *        match players with a bot.
+     */
+    public synchronized void setBotWait(int seconds)
+    {
+        botWait = seconds < 0 ? -1 : TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Adds a player to matchmaking.
+     * 
+     * If a waiting player's rating is close enough, the two are matched
+     * immediately and a game session is started for them. Otherwise the
+     * player waits until someone close enough arrives, or until their range
+     * has widened to someone already waiting.
+     * 
+     * A player who reconnected with their resume token from a game a restart
+     * interrupted is matched with that game's opponent ahead of anyone else,
+     * if the opponent reconnected the same way and is waiting, and the game
+     * is resumed instead of starting a new one.
+     * 
+     * @param player The player looking for a game.
+     */
+    public void enqueue(Player player)
+    {
+        Ticket opponent = null;
+        Ticket ticket;
+        long now = System.nanoTime();
+
+        // the opponent of a game interrupted by a restart, if both proved they were playing it
+        Journal.Recovered resumed = player.getRecovered();
+        Player partner = resumed == null ? null : Server.players.find(resumed.opponentOf(player.getUsername()));
+        if (partner != null && partner.getRecovered() != resumed) partner = null;
+        boolean resuming = false;
+        boolean opened = false;
+
+        synchronized (this)
+        {
+            ticket = new Ticket(player, ++sequence, now);
+
+            if (partner != null && waiting.containsKey(partner) && Server.journal.claim(resumed))
+            {
+                opponent = remove(waiting.get(partner));
+                resuming = true;
+            }
+            else
+            {
+                opponent = closest(ticket, now);
+
+                if (opponent != null) remove(opponent);
+                else opened = park(ticket, now);
+            }
+        }
+
+        // the game is started outside the lock so matching never waits on it
+        if (opponent != null)
+        {
+            opponent.cancel();
+            Server.cluster.withdraw(opponent.player);
+
+            // the arriving player is matched on the spot, without waiting at all
+            Metrics.QUEUE_WAIT.observe(now - opponent.queuedAt);
+            Metrics.QUEUE_WAIT.observe(0);
+
+            if (resuming) startGame(opponent.player, player, resumed);
+            else startGame(opponent.player, player);
+        }
+        // with a match bound of zero, a player left waiting takes anyone right away, on other nodes too
+        else if (opened)
+        {
+            Server.cluster.offer(player);
+        }
+    }
+
+    /**
+     * Removes a player from the queue, e.g. when they disconnect while waiting.
+     * 
+     * @param player The player leaving matchmaking.
+     * @return true if the player was waiting, false if they had already been matched.
+     */
+    public boolean cancel(Player player)
+    {
+        Ticket ticket;
+
+        synchronized (this)
+        {
+            ticket = remove(waiting.get(player));
+        }
+
+        if (ticket == null) return false;
+
+        ticket.cancel();
+        Server.cluster.withdraw(player);
+
+        return true;
+    }
+
+    /**
+     * Takes the player who has waited longest out of the queue, to be matched
+     * with a player waiting on another node.
+     * 
+     * Only a player who has waited the match bound and takes anyone is given
+     * away, so players are matched by rating locally first.
+     * 
+     * @return The player, or null if nobody has waited that long.
+     */
+    public Player takeOldest()
+    {
+        Ticket oldest;
+
+        synchronized (this)
+        {
+            Iterator<Ticket> tickets = waiting.values().iterator();
+            if (!tickets.hasNext()) return null;
+
+            oldest = tickets.next();
+            if (!oldest.open) return null;
+
+            remove(oldest);
+        }
+
+        oldest.cancel();
+        Server.cluster.withdraw(oldest.player);
+
+        return oldest.player;
+    }
+
+    /**
+     * Gets the players who have waited the match bound and take anyone, oldest
+     * first, which are the ones offered to the other nodes of a cluster.
+     * 
+     * @return A copy of those players.
+     */
+    public synchronized List<Player> waitingPlayers()
+    {
+        List<Player> players = new ArrayList<>();
+
+        for (Ticket ticket : waiting.values())
+        {
+            if (ticket.open) players.add(ticket.player);
+        }
+
+        return players;
+    }
+
+    /**
+     * Looks for an opponent for a parked player again now that their range
+     * has widened, matches them with a bot once they have waited the bot wait,
+     * or sends them back to the main menu once they have waited QUEUE_SECONDS.
+     * Runs on one of the timing wheel's task threads.
+     * 
+     * @param ticket The parked player's ticket.
+     */
+    private void onTimeout(Ticket ticket)
+    {
+        Ticket opponent = null;
+        boolean timedOut;
+        boolean botDue = false;
+        boolean opened = false;
+        long now = System.nanoTime();
+
+        synchronized (this)
+        {
+            // matched or gone in the meantime
+            if (waiting.get(ticket.player) != ticket) return;
+
+            timedOut = now - ticket.queuedAt >= TimeUnit.SECONDS.toNanos(QUEUE_SECONDS);
+            if (!timedOut) opponent = closest(ticket, now);
+            if (!timedOut && opponent == null) botDue = botWait >= 0 && now - ticket.queuedAt >= botWait;
+
+            if (timedOut || opponent != null || botDue)
+            {
+                remove(ticket);
+                remove(opponent);
+            }
+            else
+            {
+                opened = schedule(ticket, now);
+            }
+        }
+
+        if (timedOut)
+        {
+            giveUp(ticket.player);
+        }
+        else if (botDue)
+        {
+            Server.cluster.withdraw(ticket.player);
+            Metrics.QUEUE_WAIT.observe(now - ticket.queuedAt);
+
+            playBot(ticket.player);
+        }
+        else if (opponent != null)
+        {
+            opponent.cancel();
+            Server.cluster.withdraw(ticket.player);
+            Server.cluster.withdraw(opponent.player);
+
+            Metrics.QUEUE_WAIT.observe(now - ticket.queuedAt);
+            Metrics.QUEUE_WAIT.observe(now - opponent.queuedAt);
+
+            // whoever waited longer goes first, as with an arrival
+            if (opponent.sequence < ticket.sequence) startGame(opponent.player, ticket.player);
+            else startGame(ticket.player, opponent.player);
+        }
+        // nobody here suits them, maybe someone on another node does
+        else if (opened)
+        {
+            Server.cluster.offer(ticket.player);
+        }
+    }
+
+    /**
+     * Sends a player who has waited QUEUE_SECONDS without an opponent back
+     * to the main menu.
+     * 
+     * @param player The player whose wait timed out, already out of the queue.
+     */
+    private void giveUp(Player player)
+    {
+        Server.cluster.withdraw(player);
+
+        if (!Server.players.transition(player, PlayerRegistry.State.WAITING, PlayerRegistry.State.MENU)) return;
+
+        Log.info("Matchmaking timed out", player.getId(), Log.NONE);
+        Metrics.QUEUE_TIMEOUTS.increment();
+
+        try
+        {
+            // flushed along with the menu
+            player.send(NO_OPPONENT);
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        Server.threadPool.submit(new PlayerManager(player));
+    }
+
+    /**
+     * Finds the waiting player closest in rating to a ticket's player, if
+     * they are close enough for either of the two.
+     * 
+     * Only the nearest ticket on each side in the rating index can be the
+     * closest, so this takes O(log n) time. Must be called under the lock.
+     * 
+     * @param ticket The ticket to find an opponent for, which may or may not be in the index.
+     * @param now The current time, from System.nanoTime().
+     * @return The opponent's ticket, or null if nobody waiting is close enough.
+     */
+    private Ticket closest(Ticket ticket, long now)
+    {
+        Ticket best = null;
+        int bestGap = Integer.MAX_VALUE;
+
+        for (Ticket candidate : new Ticket[] { byRating.lower(ticket), byRating.higher(ticket) })
+        {
+            if (candidate == null) continue;
+
+            int gap = Math.abs(candidate.rating - ticket.rating);
+
+            if (gap <= Math.max(range(ticket, now), range(candidate, now)) && gap < bestGap)
+            {
+                best = candidate;
+                bestGap = gap;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Gets how far apart in rating a player's opponent may be by now.
+     * 
+     * @param ticket The player's ticket.
+     * @param now The current time, from System.nanoTime().
+     * @return The largest rating difference the player accepts.
+     */
+    private int range(Ticket ticket, long now)
+    {
+        long waited = now - ticket.queuedAt;
+        if (waited >= matchBound) return Integer.MAX_VALUE;
+
+        return BASE_GAP + (int) (GAP_PER_SECOND * TimeUnit.NANOSECONDS.toSeconds(waited));
+    }
+
+    /**
+     * Parks a player in the queue. Must be called under the lock.
+     * 
+     * @param ticket The player's ticket.
+     * @param now The current time, from System.nanoTime().
+     * @return true if the player takes anyone right away.
+     */
+    private boolean park(Ticket ticket, long now)
+    {
+        waiting.put(ticket.player, ticket);
+        byRating.add(ticket);
+
+        return schedule(ticket, now);
+    }
+
+    /**
+     * Sets a parked player's timeout: their next attempt to find an opponent,
+     * at most WIDEN_SECONDS away and no later than the match bound, or once
+     * they have reached the bound and take anyone, the end of their wait. The
+     * timeout is never later than the bot wait either, while it is ahead.
+     * Must be called under the lock.
+     * 
+     * @param ticket The player's ticket.
+     * @param now The current time, from System.nanoTime().
+     * @return true if the player has just reached the match bound.
+     */
+    private boolean schedule(Ticket ticket, long now)
+    {
+        long waited = now - ticket.queuedAt;
+        long left = TimeUnit.SECONDS.toNanos(QUEUE_SECONDS) - waited;
+        boolean opened = false;
+
+        if (waited < matchBound)
+        {
+            left = Math.min(left, Math.min(matchBound - waited, TimeUnit.SECONDS.toNanos(WIDEN_SECONDS)));
+        }
+        else if (!ticket.open)
+        {
+            ticket.open = true;
+            opened = true;
+        }
+
+        if (botWait >= 0 && waited < botWait) left = Math.min(left, botWait - waited);
+
+        ticket.timeout = Server.timer.schedule(() -> onTimeout(ticket), left, TimeUnit.NANOSECONDS);
+
+        return opened;
+    }
+
+    /**
+     * Takes a ticket out of both indexes. Must be called under the lock.
+     * 
+     * @param ticket The ticket, or null.
+     * @return The ticket, or null if it was null.
+     */
+    private Ticket remove(Ticket ticket)
+    {
+        if (ticket == null) return null;
+
+        waiting.remove(ticket.player);
+        byRating.remove(ticket);
+
+        return ticket;
+    }
+
+    /**
+     * Gets the number of players currently waiting for an opponent.
+     * 
+     * @return The size of the waiting queue.
+     */
+    public synchronized int size()
+    {
+        return waiting.size();
+    }
+
+    /**
+     * Moves a matched pair into play and starts their game session.
+     * 
+     * Protected so the benchmark harness can measure pairing on its own,
+     * without starting a session for every pair.
+     * 
+     * @param player1 The player who was waiting longest.
+     * @param player2 The player who just arrived.
+     */
+    protected void startGame(Player player1, Player player2)
+    {
+        startGame(player1, player2, null);
+    }
+
+    /**
+     * Starts a game against a bot for a player nobody was matched with.
+     * 
+     * @param player The player, already out of the queue.
+     */
+    private void playBot(Player player)
+    {
+        Log.info("No opponent was found, matching player with a bot", player.getId(), Log.NONE);
+        Metrics.BOT_GAMES.increment();
+
+        KnowledgeBase knowledge = KnowledgeBase.standard();
+        Bot bot = ThreadLocalRandom.current().nextBoolean() ? new GameMasterBot(knowledge) : new GuesserBot(knowledge);
+
+        startGame(player, new Player(BOT_NAME, bot));
+    }
+
+    /**
+     * Moves a matched pair into play and starts or resumes their game session.
+     * 
+     * @param player1 The player who was waiting longest.
+     * @param player2 The player who just arrived.
+     * @param resumed The session a restart interrupted, or null for a new one.
+     */
+    private void startGame(Player player1, Player player2, Journal.Recovered resumed)
+    {
+        Server.players.transition(player1, PlayerRegistry.State.WAITING, PlayerRegistry.State.PLAYING);
+        Server.players.transition(player2, PlayerRegistry.State.WAITING, PlayerRegistry.State.PLAYING);
+
+        GameSession session = new GameSession(player1, player2, resumed);
+        Server.threadPool.submit(session);
+        Metrics.SESSIONS.increment();
+
+        Log.info(resumed == null ? "Game session created" : "Game session resumed", Log.NONE, session.getId());
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.*;
+
+/**
+ * A typed message sent from the server to a client.
+ *
+ * Each message knows both of its wire forms. For LEGACY clients it renders to
+ * exactly the text the original server sent, including the trailing ": " old
+ * clients rely on to know when to read input. For BINARY clients it is a
+ * one-byte opcode and a compact body, and the client renders the text itself,
+ * so repeated prose like the menu or the answer prompt costs a byte or two
+ * instead of dozens.
+ *
+ * BINARY layout after the two-byte length header (text is modified UTF-8,
+ * the same encoding writeUTF() uses):
+ *   INFO       opcode, text
+ *   PROMPT     opcode, prompt code
+ *   ANSWER     opcode, answer character (y/n/m/c)
+ *   ROLE       opcode, role code
+ *   RESULT     opcode, outcome code, detail (subject or opponent name)
+ *   MENU       opcode
+ *   SEPARATOR  opcode
+ *   TOKEN      opcode, resume token (never shown to the player)
+ *
+ * Constant messages (menu, prompts, roles, answers, separator and any INFO
+ * text held in a static field) are encoded into their wire frames once, when
+ * they are created, and the same frames are written on every send. Messages
+ * with a variable part, like "YOUR OPPONENT IS <name>", come from a Template
+ * whose fixed fragments are pre-encoded, so only the variable part is encoded
+ * when the frame is assembled.
+ */
+public class Message
+{
+    public static final byte INFO = 0x01;
+    public static final byte PROMPT = 0x02;
+    public static final byte ANSWER = 0x03;
+    public static final byte ROLE = 0x04;
+    public static final byte RESULT = 0x05;
+    public static final byte MENU = 0x06;
+    public static final byte SEPARATOR = 0x07;
+    public static final byte TOKEN = 0x08;
+
+    /** Marks messages with no code byte in their BINARY body. */
+    private static final byte NO_CODE = -1;
+
+    /**
+     * Every point at which the client is expected to send input.
+     */
+    public enum Prompt
+    {
+        USERNAME(1, "\nEnter your username: "),
+        MENU_DECISION(2, "Enter your decision: "),
+        NEW_USERNAME(3, "\nEnter new username: "),
+        SUBJECT(4, "\nChoose a subject: "),
+        QUESTION(5, "\nEnter your question: "),
+        ANSWER(6, "\n(Y)es, (N)o, (M)aybe, (C)orrect\nEnter your answer: "),
+        PLAY_AGAIN(7, "\n(Y)es, (N)o | 15 sec. to decide\nEnter your decision: "),
+        GAME_ID(8, "\nEnter the ID of the game to watch: "),
+        ROOM_ID(9, "\nEnter the ID of the room to join, or N to open one: "),
+        ROOM_ORDER(10, "\n(R)ound-robin or (F)irst-come questions\nEnter your choice: ");
+
+        private final byte code;
+        private final String text;
+
+        /**
+         * @param code The prompt's code on the wire.
+         * @param text The prompt as shown to the player.
+         */
+        Prompt(int code, String text)
+        {
+            this.code = (byte) code;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The roles a player can be assigned at the start of a round.
+     */
+    public enum Role
+    {
+        GAME_MASTER(1, "\nYou are the Game Master."),
+        GUESSER(2, "\nYou are the Guesser.");
+
+        private final byte code;
+        private final String text;
+
+        /**
+         * @param code The role's code on the wire.
+         * @param text The role announcement as shown to the player.
+         */
+        Role(int code, String text)
+        {
+            this.code = (byte) code;
+            this.text = text;
+        }
+    }
+
+    /**
+     * How a round ended, from the point of view of the player being told.
+     */
+    public enum Outcome
+    {
+        WON_GUESSED(1, new Template("\nYou won! The answer was ", ".")),
+        LOST_GUESSED(2, new Template("\nYou lost!", "")),
+        WON_OUT_OF_QUESTIONS(3, new Template("\nYou won! ", " ran out of questions.")),
+        LOST_OUT_OF_QUESTIONS(4, new Template("\nYou lost! The answer was '", "'."));
+
+        private final byte code;
+        private final Template template;
+
+        /**
+         * @param code The outcome's code on the wire.
+         * @param template The result text around the detail (subject or opponent name).
+         */
+        Outcome(int code, Template template)
+        {
+            this.code = (byte) code;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Fixed text around a single variable value, with both fragments encoded
+     * once up front.
+     */
+    public static final class Template
+    {
+        private final String prefix;
+        private final String suffix;
+        private final byte[] prefixBytes;
+        private final byte[] suffixBytes;
+
+        /**
+         * @param prefix Text before the value.
+         * @param suffix Text after the value.
+         */
+        public Template(String prefix, String suffix)
+        {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.prefixBytes = new byte[FrameEncoder.utfLength(prefix)];
+            this.suffixBytes = new byte[FrameEncoder.utfLength(suffix)];
+
+            FrameEncoder.writeText(prefix, prefixBytes, 0);
+            FrameEncoder.writeText(suffix, suffixBytes, 0);
+        }
+
+        /**
+         * Creates an informational message with the value filled in.
+         *
+         * @param value The variable part of the message.
+         * @return The message.
+         */
+        public Message fill(String value)
+        {
+            return new Message(INFO, NO_CODE, this, value);
+        }
+
+        /**
+         * Renders the template with a value, as shown to the player.
+         *
+         * @param value The variable part, or null for none.
+         * @return The full text.
+         */
+        private String render(String value)
+        {
+            return value == null ? prefix : prefix + value + suffix;
+        }
+
+        /**
+         * Gets the encoded length of the template with a value filled in.
+         *
+         * @param valueLength The encoded length of the value, or -1 for no value.
+         * @return The total encoded length.
+         */
+        private int length(int valueLength)
+        {
+            return valueLength < 0 ? prefixBytes.length : prefixBytes.length + valueLength + suffixBytes.length;
+        }
+
+        /**
+         * Copies the pre-encoded fragments and encodes the value between them.
+         *
+         * @param value The variable part, or null for none.
+         * @param dst The array to write into.
+         * @param pos The index to start writing at.
+         * @return The index just past the last byte written.
+         */
+        private int write(String value, byte[] dst, int pos)
+        {
+            System.arraycopy(prefixBytes, 0, dst, pos, prefixBytes.length);
+            pos += prefixBytes.length;
+
+            if (value == null) return pos;
+
+            pos = FrameEncoder.writeText(value, dst, pos);
+
+            System.arraycopy(suffixBytes, 0, dst, pos, suffixBytes.length);
+            return pos + suffixBytes.length;
+        }
+    }
+
+    /** Template used for plain INFO text, where the whole text is the value. */
+    private static final Template PLAIN = new Template("", "");
+
+    private static final Message MENU_MESSAGE = new Message(MENU, NO_CODE, new Template("""
+                    \n1. Play Game
+                    2. Change Username
+                    3. Exit
+                    4. Watch a Game
+                    5. Join a Room
+                    """, ""), null);
+
+    private static final Message SEPARATOR_MESSAGE = new Message(SEPARATOR, NO_CODE,
+        new Template("________________________________________", ""), null);
+
+    private static final Message[] PROMPT_MESSAGES = new Message[Prompt.values().length];
+    private static final Message[] ROLE_MESSAGES = new Message[Role.values().length];
+    private static final Message[] ANSWER_MESSAGES = new Message[GameSession.Answer.values().length];
+
+    // the catalog: every constant message is encoded once, when the class loads
+    static
+    {
+        for (Prompt prompt : Prompt.values())
+        {
+            PROMPT_MESSAGES[prompt.ordinal()] = new Message(PROMPT, prompt.code, new Template(prompt.text, ""), null);
+        }
+
+        for (Role role : Role.values())
+        {
+            ROLE_MESSAGES[role.ordinal()] = new Message(ROLE, role.code, new Template(role.text, ""), null);
+        }
+
+        for (GameSession.Answer answer : GameSession.Answer.values())
+        {
+            ANSWER_MESSAGES[answer.ordinal()] = new Message(ANSWER, (byte) answer.getInputChar(),
+                new Template("\nAnswer: " + answer, ""), null);
+        }
+    }
+
+    private final byte opcode;
+    /** Code byte following the opcode in BINARY frames, or NO_CODE. */
+    private final byte code;
+    /** The text as shown to the player, around the value if there is one. */
+    private final Template template;
+    /** The variable part of the message, or null for constant messages. */
+    private final String value;
+    /** Wire frames indexed by protocol version, encoded once for constant messages. */
+    private final byte[][] frames;
+
+    /**
+     * @param opcode The message type.
+     * @param code The code byte of the BINARY body, or NO_CODE.
+     * @param template The message's text.
+     * @param value The variable part of the text, or null for constant messages.
+     */
+    private Message(byte opcode, byte code, Template template, String value)
+    {
+        this.opcode = opcode;
+        this.code = code;
+        this.template = template;
+        this.value = value;
+
+        byte[][] encoded = null;
+
+        if (value == null)
+        {
+            try
+            {
+                encoded = new byte[Protocol.VERSION + 1][];
+
+                for (int version = Protocol.LEGACY; version <= Protocol.VERSION; version++)
+                {
+                    encoded[version] = build(version);
+                }
+            }
+            catch (UTFDataFormatException e)
+            {
+                // too long to cache, encode() reports the error on send instead
+                encoded = null;
+            }
+        }
+
+        this.frames = encoded;
+    }
+
+    /**
+     * Creates a free-form informational message.
+     *
+     * When held in a static field this is encoded only once, so constant text
+     * should be created that way rather than on every send.
+     *
+     * @param text The text to show.
+     * @return The message.
+     */
+    public static Message info(String text)
+    {
+        return new Message(INFO, NO_CODE, new Template(text, ""), null);
+    }
+
+    /**
+     * Gets the message asking the player for input.
+     *
+     * @param prompt What the player is asked for.
+     * @return The message.
+     */
+    public static Message prompt(Prompt prompt)
+    {
+        return PROMPT_MESSAGES[prompt.ordinal()];
+    }
+
+    /**
+     * Gets the message passing the Game Master's answer to the Guesser.
+     *
+     * @param answer The answer given.
+     * @return The message.
+     */
+    public static Message answer(GameSession.Answer answer)
+    {
+        return ANSWER_MESSAGES[answer.ordinal()];
+    }
+
+    /**
+     * Gets the message telling the player their role for the round.
+     *
+     * @param role The assigned role.
+     * @return The message.
+     */
+    public static Message role(Role role)
+    {
+        return ROLE_MESSAGES[role.ordinal()];
+    }
+
+    /**
+     * Creates a message telling the player how the round ended.
+     *
+     * @param outcome The outcome for this player.
+     * @param detail The subject or opponent name the outcome refers to.
+     * @return The message.
+     */
+    public static Message result(Outcome outcome, String detail)
+    {
+        return new Message(RESULT, outcome.code, outcome.template, detail);
+    }
+
+    /**
+     * Gets the main menu.
+     *
+     * @return The menu message.
+     */
+    public static Message menu()
+    {
+        return MENU_MESSAGE;
+    }
+
+    /**
+     * Gets the line used to visually separate sections of the game.
+     *
+     * @return The separator message.
+     */
+    public static Message separator()
+    {
+        return SEPARATOR_MESSAGE;
+    }
+
+    /**
+     * Creates the message giving a player the token they can resume their
+     * game with after losing their connection (see Protocol.resume()).
+     *
+     * Only BINARY clients can tell it apart from text, so LEGACY players are
+     * never sent one.
+     *
+     * @param token The player's resume token.
+     * @return The message.
+     */
+    public static Message token(String token)
+    {
+        return new Message(TOKEN, NO_CODE, PLAIN, token);
+    }
+
+    /**
+     * Checks whether the client should keep this message instead of showing it.
+     *
+     * @return true for resume tokens, whose text is the token itself.
+     */
+    public boolean isToken()
+    {
+        return opcode == TOKEN;
+    }
+
+    /**
+     * Checks whether the client should read input after showing this message.
+     *
+     * @return true for prompts.
+     */
+    public boolean isPrompt()
+    {
+        return opcode == PROMPT;
+    }
+
+    /**
+     * Gets the message as it is shown to the player.
+     *
+     * @return The rendered text.
+     */
+    public String getText()
+    {
+        return template.render(value);
+    }
+
+    /**
+     * Gets the message as a frame for the given protocol version.
+     *
+     * Constant messages return their cached frame, which is shared between
+     * all sends and must not be modified.
+     *
+     * @param version The protocol version negotiated with the client.
+     * @return The complete frame, including its length header.
+     * @throws UTFDataFormatException If the message is too long for one frame.
+     */
+    public byte[] encode(int version) throws UTFDataFormatException
+    {
+        return frames != null ? frames[version] : build(version);
+    }
+
+    /**
+     * Assembles the frame for the given protocol version.
+     *
+     * @param version The protocol version.
+     * @return The complete frame, including its length header.
+     * @throws UTFDataFormatException If the message is too long for one frame.
+     */
+    private byte[] build(int version) throws UTFDataFormatException
+    {
+        boolean binary = version != Protocol.LEGACY;
+
+        // legacy frames and INFO bodies carry the full text, other BINARY bodies only the code and value
+        boolean fullText = !binary || opcode == INFO;
+        int valueLength = value == null ? -1 : FrameEncoder.utfLength(value);
+
+        int length = fullText ? template.length(valueLength) : Math.max(valueLength, 0);
+        if (binary) length += code == NO_CODE ? 1 : 2;
+
+        if (length > 0xFFFF)
+        {
+            throw new UTFDataFormatException("Message too long: " + length + " bytes");
+        }
+
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+
+        int pos = 2;
+
+        if (binary)
+        {
+            frame[pos++] = opcode;
+            if (code != NO_CODE) frame[pos++] = code;
+        }
+
+        if (fullText) template.write(value, frame, pos);
+        else if (value != null) FrameEncoder.writeText(value, frame, pos);
+
+        return frame;
+    }
+
+    /**
+     * Decodes a BINARY frame received by the client.
+     *
+     * @param payload The frame payload without its length header.
+     * @return The decoded message.
+     * @throws IOException If the frame is malformed or has an unknown opcode.
+     */
+    public static Message decode(byte[] payload) throws IOException
+    {
+        if (payload.length == 0)
+        {
+            throw new IOException("Empty frame");
+        }
+
+        switch (payload[0])
+        {
+            case INFO:
+                return PLAIN.fill(FrameDecoder.decodeText(payload, 1, payload.length - 1));
+            case PROMPT:
+                for (Prompt prompt : Prompt.values())
+                {
+                    if (payload.length > 1 && prompt.code == payload[1]) return prompt(prompt);
+                }
+                break;
+            case ANSWER:
+                GameSession.Answer answer = payload.length > 1 ? GameSession.Answer.fromChar((char) payload[1]) : null;
+                if (answer != null) return answer(answer);
+                break;
+            case ROLE:
+                for (Role role : Role.values())
+                {
+                    if (payload.length > 1 && role.code == payload[1]) return role(role);
+                }
+                break;
+            case RESULT:
+                for (Outcome outcome : Outcome.values())
+                {
+                    if (payload.length > 1 && outcome.code == payload[1])
+                    {
+                        return result(outcome, FrameDecoder.decodeText(payload, 2, payload.length - 2));
+                    }
+                }
+                break;
+            case MENU:
+                return MENU_MESSAGE;
+            case SEPARATOR:
+                return SEPARATOR_MESSAGE;
+            case TOKEN:
+                return token(FrameDecoder.decodeText(payload, 1, payload.length - 1));
+            default:
+                break;
+        }
+
+        throw new IOException("Malformed frame with opcode " + payload[0]);
+    }
+}
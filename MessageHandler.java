@@ -0,0 +1,25 @@
+/**
+ * Receives messages from a non-blocking connection.
+ *
+ * Handlers are called on the connection's event loop thread, one message at a
+ * time and in the order they arrived. They must never block: anything that
+ * waits on a player has to be expressed as the next message this handler will
+ * receive instead of a read on a stream.
+ */
+@FunctionalInterface
+public interface MessageHandler
+{
+    /**
+     * Handles a single message sent by the client.
+     *
+     * @param message The decoded message.
+     */
+    void onMessage(String message);
+
+    /**
+     * Called on the loop thread once the client has disconnected.
+     */
+    default void onDisconnect()
+    {
+    }
+}
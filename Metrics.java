@@ -0,0 +1,284 @@
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, latency histograms and gauges describing the running server.
+ *
+ * Every phase a player goes through is timed into its own histogram:
+ * - login: from accepting the connection to receiving the username (LogPlayer)
+ * - menu decision: from prompting at the menu to the player's choice (PlayerManager)
+ * - queue wait: from entering matchmaking to being paired (Matchmaker)
+ * - turn: from prompting for a subject, question or answer to receiving it (GameSession)
+ * - play again: from the play-again prompt to the player's decision (GameSession)
+ *
+ * Recording is cheap enough for the hot path: a counter is a LongAdder, and a
+ * histogram observation is a binary search over fixed bucket bounds plus one
+ * atomic increment, with no locks and no allocation. The bounds grow
+ * geometrically like an HDR histogram's, two buckets per power of two from
+ * 16 microseconds to over two minutes, so the relative error stays bounded
+ * whether a turn takes a millisecond on loopback or half a minute for a human.
+ *
+ * Everything is rendered in the Prometheus text format by scrape(), together
+ * with gauges for the player registry, the timing wheel and the thread pool,
+ * and served on the admin port by AdminServer.
+ */
+public class Metrics
+{
+    /** Upper bounds of the histogram buckets in nanoseconds, shared by every histogram. */
+    private static final long[] BOUNDS;
+    /** The same bounds in seconds, formatted once for the le labels. */
+    private static final String[] LABELS;
+
+    static
+    {
+        BOUNDS = new long[2 * (37 - 14) + 1];
+
+        int i = 0;
+        for (int power = 14; power < 37; power++)
+        {
+            BOUNDS[i++] = 1L << power;
+            BOUNDS[i++] = (1L << power) + (1L << (power - 1));
+        }
+        BOUNDS[i] = 1L << 37;
+
+        LABELS = new String[BOUNDS.length];
+        for (i = 0; i < BOUNDS.length; i++)
+        {
+            LABELS[i] = seconds(BOUNDS[i]);
+        }
+    }
+
+    public static final Histogram LOGIN = new Histogram("twentyq_login_seconds",
+        "Time from accepting a connection to receiving the player's username.");
+    public static final Histogram MENU_DECISION = new Histogram("twentyq_menu_decision_seconds",
+        "Time from prompting a player at the main menu to receiving their choice.");
+    public static final Histogram QUEUE_WAIT = new Histogram("twentyq_queue_wait_seconds",
+        "Time players spend in matchmaking before being paired.");
+    public static final Histogram TURN = new Histogram("twentyq_turn_seconds",
+        "Time from prompting a player for a subject, question or answer to receiving it.");
+    public static final Histogram PLAY_AGAIN = new Histogram("twentyq_play_again_seconds",
+        "Time from the play-again prompt to the player's decision.");
+
+    public static final Counter CONNECTIONS = new Counter("twentyq_connections_total",
+        "Client connections accepted.");
+    public static final Counter SESSIONS = new Counter("twentyq_sessions_started_total",
+        "Game sessions started by the matchmaker.");
+    public static final Counter ROUNDS = new Counter("twentyq_rounds_finished_total",
+        "Rounds played to the end, by a correct guess or running out of questions.");
+    public static final Counter PLAY_AGAIN_TIMEOUTS = new Counter("twentyq_play_again_timeouts_total",
+        "Play-again prompts that timed out before both players decided.");
+    public static final Counter TURN_TIMEOUTS = new Counter("twentyq_turn_timeouts_total",
+        "Players disconnected for taking too long over a turn.");
+    public static final Counter MENU_IDLE_KICKS = new Counter("twentyq_menu_idle_kicks_total",
+        "Players disconnected for sitting idle at the main menu.");
+    public static final Counter QUEUE_TIMEOUTS = new Counter("twentyq_queue_timeouts_total",
+        "Players sent back to the menu after waiting too long for an opponent.");
+    public static final Counter RECONNECTS = new Counter("twentyq_reconnects_total",
+        "Players who lost their connection mid-game and resumed it on a new one.");
+    public static final Counter RECONNECT_TIMEOUTS = new Counter("twentyq_reconnect_timeouts_total",
+        "Players who lost their connection mid-game and didn't come back in time.");
+    public static final Counter CLUSTER_MATCHES = new Counter("twentyq_cluster_matches_total",
+        "Games hosted here with a player relayed from another cluster node.");
+    public static final Counter BOT_GAMES = new Counter("twentyq_bot_games_total",
+        "Games started against a bot for a player nobody was matched with in time.");
+    public static final Counter ROOMS = new Counter("twentyq_rooms_opened_total",
+        "Rooms opened by a Game Master for any number of Guessers.");
+    public static final Counter TLS_HANDSHAKES = new Counter("twentyq_tls_handshakes_total",
+        "TLS handshakes completed by non-blocking connections, full or resumed.");
+
+    private static final Histogram[] HISTOGRAMS = { LOGIN, MENU_DECISION, QUEUE_WAIT, TURN, PLAY_AGAIN };
+    private static final Counter[] COUNTERS =
+    {
+        CONNECTIONS, SESSIONS, ROUNDS, PLAY_AGAIN_TIMEOUTS, TURN_TIMEOUTS, MENU_IDLE_KICKS, QUEUE_TIMEOUTS,
+        RECONNECTS, RECONNECT_TIMEOUTS, CLUSTER_MATCHES, BOT_GAMES, ROOMS, TLS_HANDSHAKES
+    };
+
+    /**
+     * A monotonically increasing count of events.
+     */
+    public static final class Counter
+    {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        /**
+         * @param name The metric name.
+         * @param help The metric description.
+         */
+        Counter(String name, String help)
+        {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Counts one event.
+         */
+        public void increment()
+        {
+            value.increment();
+        }
+
+        /**
+         * Appends the counter in the Prometheus text format.
+         *
+         * @param out The exposition being built.
+         */
+        private void write(StringBuilder out)
+        {
+            counter(out, name, help, value.sum());
+        }
+    }
+
+    /**
+     * A latency distribution over fixed, geometrically growing buckets.
+     */
+    public static final class Histogram
+    {
+        private final String name;
+        private final String help;
+
+        /** Observations per bucket, the last one counting everything above the highest bound. */
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * @param name The metric name.
+         * @param help The metric description.
+         */
+        Histogram(String name, String help)
+        {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Records one latency.
+         *
+         * @param nanos The latency in nanoseconds.
+         */
+        public void observe(long nanos)
+        {
+            if (nanos < 0) nanos = 0;
+
+            int bucket = Arrays.binarySearch(BOUNDS, nanos);
+            if (bucket < 0) bucket = -bucket - 1;
+
+            buckets.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time elapsed since the given instant.
+         *
+         * @param startNanos A System.nanoTime() reading taken when the phase began.
+         */
+        public void observeSince(long startNanos)
+        {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Appends the histogram in the Prometheus text format.
+         *
+         * Buckets are cumulative on the wire, so each le line counts every
+         * observation up to and including its bound.
+         *
+         * @param out The exposition being built.
+         */
+        private void write(StringBuilder out)
+        {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++)
+            {
+                cumulative += buckets.get(i);
+                out.append(name).append("_bucket{le=\"").append(LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+
+            cumulative += buckets.get(BOUNDS.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(seconds(sumNanos.sum())).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return The exposition, as served on /metrics.
+     */
+    public static String scrape()
+    {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        for (Counter counter : COUNTERS) counter.write(out);
+        for (Histogram histogram : HISTOGRAMS) histogram.write(out);
+
+        gauge(out, "twentyq_players_connected", "Players logged in to the server.", Server.players.size());
+        gauge(out, "twentyq_players_menu", "Players at the main menu.", Server.players.count(PlayerRegistry.State.MENU));
+        gauge(out, "twentyq_players_waiting", "Players in matchmaking waiting for an opponent.", Server.matchmaker.size());
+        gauge(out, "twentyq_players_playing", "Players in a game session.", Server.players.count(PlayerRegistry.State.PLAYING));
+        gauge(out, "twentyq_rooms_open", "Rooms open for Guessers to join.", Room.active());
+        counter(out, "twentyq_analytics_events_dropped_total", "Game events dropped because a session's analytics ring was full.",
+            Server.analytics.getDropped());
+        counter(out, "twentyq_log_entries_dropped_total", "Log entries dropped because the log's queue was full.", Log.getDropped());
+        gauge(out, "twentyq_timers_pending", "Timeouts scheduled on the timing wheel that haven't fired.", Server.timer.pending());
+
+        // a virtual-thread executor has no queue, tasks start right away
+        if (Server.threadPool instanceof ThreadPoolExecutor pool)
+        {
+            gauge(out, "twentyq_pool_queue_depth", "Tasks waiting for a thread in the server's pool.", pool.getQueue().size());
+            gauge(out, "twentyq_pool_active_threads", "Pool threads currently running a task.", pool.getActiveCount());
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Appends a counter kept outside this class in the Prometheus text format.
+     *
+     * @param out The exposition being built.
+     * @param name The metric name, ending in _total.
+     * @param help The metric description.
+     * @param value The count so far, which never goes down while the server runs.
+     */
+    private static void counter(StringBuilder out, String name, String help, long value)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a single gauge in the Prometheus text format.
+     *
+     * @param out The exposition being built.
+     * @param name The metric name.
+     * @param help The metric description.
+     * @param value The current value.
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Formats a duration as seconds, the unit Prometheus expects.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in seconds, in plain decimal notation.
+     */
+    private static String seconds(long nanos)
+    {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
\ No newline at end of file
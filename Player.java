@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a connected player in the 20 Questions game system.
@@ -9,13 +14,65 @@ import java.net.*;
  * and identity (username). Each Player object serves as the bridge between
  * the game logic and a specific client connection, providing organized
  * access to communication methods while maintaining player state.
+ *
+ * A player who loses their connection mid-game keeps their Player (and with
+ * it their ID, username and seat in the session) for a while, and a new 
+ * connection presenting their resume token is attached to it with reattach().
  */
 public class Player 
 {
-    private final Socket socket;
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    /** How long the rest of a frame may take once it has started to arrive, in milliseconds. */
+    private static final int FRAME_TIMEOUT_MILLIS = 30_000;
+
+    private final long id = NEXT_ID.incrementAndGet();
     private String username = "";
-    private final DataInputStream input;
-    private final DataOutputStream output;
+
+    /**
+     * Secret a reconnecting client proves it is this player with, 128 random
+     * bits, or the one they had in a game a restart interrupted.
+     */
+    private volatile String resumeToken = newToken();
+
+    // the current connection, replaced by reattach() when the player reconnects
+    private volatile Socket socket;
+    private volatile Connection connection;
+    private volatile DataInputStream input;
+    private volatile DataOutputStream output;
+    private volatile int protocolVersion;
+
+    /** 
+     * Whether this is a player of another cluster node, whose connection is
+     * that node's relay (see Cluster). Relayed players are never registered here.
+     */
+    private volatile boolean relayed = false;
+
+    /**
+     * The session a restart interrupted, if the player logged back in by
+     * presenting their resume token from it (see Journal), or null.
+     */
+    private volatile Journal.Recovered recovered;
+
+    /** The bot playing as this player, or null for human players. */
+    private final Bot bot;
+
+    /** The player's skill, updated after every round they play (see Rating). */
+    private volatile int rating = Rating.INITIAL;
+
+    /** Where the player is, managed by PlayerRegistry; null until registered and after removal. */
+    private final AtomicReference<PlayerRegistry.State> state = new AtomicReference<>();
+
+    /** 
+     * Messages sent and socket writes made, for players of the blocking server.
+     * For non-blocking players, the counts of the connections they had before
+     * reconnecting.
+     */
+    private long messagesSent = 0;
+    private long writes = 0;
+    /** Whether messages are sitting in the output buffer, waiting for flush(). */
+    private boolean unflushed = false;
 
     /**
      * Initializes a new Player with connection and identity information.
@@ -29,15 +86,180 @@ public class Player
      * @param socket The socket connection to the player's client.
      * @param username The player's chosen display name.
      * @param input Stream for receiving messages from the player.
-     * @param output Stream for sending messages to the player.
+     * @param output Buffered stream for sending messages to the player.
+     * @param protocolVersion The wire protocol version negotiated at login.
      */
     public Player(Socket socket, String username, 
-        DataInputStream input, DataOutputStream output)
+        DataInputStream input, DataOutputStream output, int protocolVersion)
     {
         this.socket = socket;   
+        this.connection = null;
         this.username = username;
         this.input = input;
         this.output = output;
+        this.protocolVersion = protocolVersion;
+        this.bot = null;
+    }
+
+    /**
+     * Initializes a new Player connected through the non-blocking server.
+     * 
+     * These players have no streams: messages are sent by queueing them on
+     * the connection, and replies arrive through the connection's handler.
+     * 
+     * @param connection The event loop connection to the player's client.
+     * @param username The player's chosen display name.
+     */
+    public Player(Connection connection, String username)
+    {
+        this.socket = null;
+        this.connection = connection;
+        this.username = username;
+        this.input = null;
+        this.output = null;
+        this.protocolVersion = connection.getProtocolVersion();
+        this.bot = null;
+
+        connection.setPlayer(this);
+    }
+
+    /**
+     * Initializes a new Player played by a bot.
+     * 
+     * Bot players have no connection and are never registered: whatever is
+     * sent to them is dropped, and the session asks the bot for its moves
+     * instead of waiting for replies (see Bot).
+     * 
+     * @param username The bot's display name.
+     * @param bot The bot making the player's moves.
+     */
+    public Player(String username, Bot bot)
+    {
+        this.socket = null;
+        this.connection = null;
+        this.username = username;
+        this.input = null;
+        this.output = null;
+        this.protocolVersion = Protocol.BINARY;
+        this.bot = bot;
+    }
+
+    /**
+     * Retrieves the player's ID, which stays the same for as long as they
+     * are connected, even if they change their username.
+     * 
+     * @return The player's ID.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Creates a new resume token.
+     * 
+     * @return 128 random bits, URL-safe Base64 encoded.
+     */
+    private static String newToken()
+    {
+        byte[] bytes = new byte[16];
+        TOKENS.nextBytes(bytes);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Retrieves the token the player's client can resume a game with after
+     * losing its connection. It is only ever sent to the player themselves.
+     * 
+     * @return The player's resume token.
+     */
+    public String getResumeToken()
+    {
+        return resumeToken;
+    }
+
+    /**
+     * Gets where the player currently is in the server.
+     * 
+     * @return The player's state, or null if they aren't registered.
+     */
+    public PlayerRegistry.State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * Gives the registry access to the player's state.
+     * 
+     * @return The reference holding the state.
+     */
+    AtomicReference<PlayerRegistry.State> state()
+    {
+        return state;
+    }
+
+    /**
+     * Checks whether the player belongs to another cluster node and only
+     * plays here through that node's relay.
+     * 
+     * @return true for relayed players.
+     */
+    public boolean isRelayed()
+    {
+        return relayed;
+    }
+
+    /**
+     * Marks the player as one relayed from another cluster node.
+     */
+    void setRelayed()
+    {
+        relayed = true;
+    }
+
+    /**
+     * Gets the interrupted session the player proved they were playing.
+     * 
+     * @return The session, or null if the player has none to resume.
+     */
+    public Journal.Recovered getRecovered()
+    {
+        return recovered;
+    }
+
+    /**
+     * Records that the player reconnected with their resume token from a
+     * session a restart interrupted. They keep that token, which the journal
+     * still has if the server restarts again before the session is resumed.
+     * 
+     * @param recovered The session.
+     * @param token The resume token the client presented.
+     */
+    void setRecovered(Journal.Recovered recovered, String token)
+    {
+        this.recovered = recovered;
+        this.resumeToken = token;
+    }
+
+    /**
+     * Checks whether the player is a bot rather than a connected client.
+     * 
+     * @return true for bot players.
+     */
+    public boolean isBot()
+    {
+        return bot != null;
+    }
+
+    /**
+     * Retrieves the bot playing as this player.
+     * 
+     * @return The bot, or null for human players.
+     */
+    public Bot getBot()
+    {
+        return bot;
     }
 
     /**
@@ -53,12 +275,25 @@ public class Player
         return socket;
     }
 
+    /**
+     * Retrieves the player's non-blocking connection.
+     * 
+     * @return The Connection serving this player, or null if the player
+     *         connected through the blocking server.
+     */
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
     /**
      * Updates the player's display name.
      * 
      * Allows the player to change their username during their session
      * through the PlayerManager menu system. The new username takes 
-     * effect immediately for all subsequent game interactions.
+     * effect immediately for all subsequent game interactions. Registered
+     * players must go through PlayerRegistry.rename() instead, which keeps
+     * usernames unique.
      * 
      * @param username The new username to assign to this player.
      */
@@ -67,6 +302,26 @@ public class Player
         this.username = username;
     }
 
+    /**
+     * Retrieves the player's rating, which the matchmaker pairs players by.
+     * 
+     * @return The player's rating.
+     */
+    public int getRating()
+    {
+        return rating;
+    }
+
+    /**
+     * Sets the player's rating after a round.
+     * 
+     * @param rating The new rating.
+     */
+    public void setRating(int rating)
+    {
+        this.rating = rating;
+    }
+
     /**
      * Retrieves the player's current display name.
      * 
@@ -84,7 +339,8 @@ public class Player
      * and game responses from the player's client. Other classes use this
      * stream to implement the various communication protocols.
      * 
-     * @return DataInputStream connected to the player's client.
+     * @return DataInputStream connected to the player's client, or null for
+     *         players of the non-blocking server.
      */
     public DataInputStream getInputStream()
     {
@@ -98,10 +354,307 @@ public class Player
      * prompts, and system messages to the player's client. Other classes
      * use this stream to implement the various communication protocols.
      * 
-     * @return DataOutputStream connected to the player's client.
+     * @return DataOutputStream connected to the player's client, or null for
+     *         players of the non-blocking server.
      */
     public DataOutputStream getOutputStream()
     {
         return output;
     }
-}
+
+    /**
+     * Gets the wire protocol version negotiated with this player's client.
+     * 
+     * @return Protocol.LEGACY or Protocol.BINARY.
+     */
+    public int getProtocolVersion()
+    {
+        return protocolVersion;
+    }
+
+    /**
+     * Sends a message to the player in their negotiated protocol version.
+     * 
+     * Messages are buffered rather than written straight to the socket, so the
+     * several messages that make up one turn (separator, role, prompt...) can 
+     * leave together. Callers must call flush() once the turn is complete.
+     * For non-blocking players the frame is queued on the connection instead,
+     * and this never blocks. Messages to bots are dropped.
+     * 
+     * @param message The message to send.
+     * @throws IOException If the message cannot be encoded or sent.
+     */
+    public void send(Message message) throws IOException
+    {
+        sendFrame(message.encode(protocolVersion));
+    }
+
+    /**
+     * Sends an already encoded frame to the player, buffered like send().
+     * 
+     * Used to pass on frames that were encoded elsewhere for this player,
+     * like those a cluster node relays from the node hosting their game.
+     * 
+     * @param frame The complete frame, including its length header.
+     * @throws IOException If the frame cannot be sent.
+     */
+    public void sendFrame(byte[] frame) throws IOException
+    {
+        // nobody reads what is sent to a bot
+        if (bot != null) return;
+
+        if (connection != null)
+        {
+            connection.send(frame);
+            return;
+        }
+
+        synchronized (this)
+        {
+            output.write(frame);
+
+            messagesSent++;
+            unflushed = true;
+        }
+    }
+
+    /**
+     * Writes out every message buffered since the last flush.
+     * 
+     * Called at the end of each turn, typically right before waiting for the
+     * player's reply. Non-blocking connections coalesce their writes on their 
+     * own, so this does nothing for them.
+     * 
+     * @throws IOException If writing to the socket fails.
+     */
+    public void flush() throws IOException
+    {
+        if (connection != null) return;
+
+        synchronized (this)
+        {
+            if (!unflushed) return;
+
+            unflushed = false;
+            writes++;
+
+            output.flush();
+        }
+    }
+
+    /**
+     * Gets the number of messages sent to this player.
+     * 
+     * @return The number of messages sent since the player logged in.
+     */
+    public long getMessagesSent()
+    {
+        synchronized (this)
+        {
+            return connection != null ? messagesSent + connection.getMessagesSent() : messagesSent;
+        }
+    }
+
+    /**
+     * Gets the number of socket writes used to send those messages.
+     * 
+     * @return The number of write calls since the player logged in.
+     */
+    public long getWrites()
+    {
+        synchronized (this)
+        {
+            return connection != null ? writes + connection.getWrites() : writes;
+        }
+    }
+
+    /**
+     * Waits for the player's next line of input.
+     * 
+     * Only available to players of the blocking server. Non-blocking players
+     * deliver their input through their connection's MessageHandler.
+     * 
+     * @return The text the player entered.
+     * @throws IOException If the connection fails or the frame is malformed.
+     */
+    public String receive() throws IOException
+    {
+        if (connection != null)
+        {
+            throw new IOException("Non-blocking players can't be read from directly");
+        }
+
+        return Protocol.decodeReply(Protocol.readFrame(input), protocolVersion);
+    }
+
+    /**
+     * Waits for the player's next line of input, but no longer than the given time.
+     * 
+     * The timeout only covers the wait for a reply to start arriving: nothing
+     * is read until the first byte of a frame is there, so a reply is either
+     * read whole or left untouched on the stream for the next read. The rest
+     * of the frame then gets FRAME_TIMEOUT_MILLIS whatever the timeout, so a
+     * slow network doesn't cut off a reply that was on time. A client that
+     * stops partway through a frame for longer is treated as a broken connection.
+     * 
+     * Only available to players of the blocking server.
+     * 
+     * @param timeout How long to wait for the reply to start.
+     * @param unit The unit of timeout.
+     * @return The text the player entered, or null if nothing arrived in time.
+     * @throws IOException If the connection fails or the frame is malformed.
+     */
+    public String receive(long timeout, TimeUnit unit) throws IOException
+    {
+        if (connection != null)
+        {
+            throw new IOException("Non-blocking players can't be read from directly");
+        }
+
+        // a timeout of 0 would mean waiting forever, so the shortest wait is a millisecond
+        socket.setSoTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, unit.toMillis(timeout))));
+
+        try
+        {
+            // peek at the next byte, which the buffer keeps if it does arrive
+            input.mark(1);
+
+            try
+            {
+                if (input.read() < 0) throw new EOFException();
+            }
+            catch (SocketTimeoutException e)
+            {
+                return null;
+            }
+
+            input.reset();
+
+            // the reply has started, the deadline was for that and not for the network
+            socket.setSoTimeout(FRAME_TIMEOUT_MILLIS);
+
+            try
+            {
+                return receive();
+            }
+            catch (SocketTimeoutException e)
+            {
+                throw new IOException("Client stopped sending partway through a message", e);
+            }
+        }
+        finally
+        {
+            if (!socket.isClosed()) socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Sends the player a last message and closes their connection.
+     * 
+     * Errors are only logged, since the player is being disconnected either way.
+     * 
+     * @param notice The message telling the player why they are disconnected.
+     */
+    public void disconnect(Message notice)
+    {
+        try
+        {
+            send(notice);
+            flush();
+        }
+        catch (IOException e)
+        {
+            // the connection is closed below regardless
+        }
+
+        try
+        {
+            close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing resources", e);
+        }
+    }
+
+    /**
+     * Closes the player's connection without logging them out, so they can
+     * come back on a new one with reattach().
+     * 
+     * A non-blocking connection is detached from the player first, so neither 
+     * its handler nor its cleanup removes the player once it has closed.
+     */
+    public void drop()
+    {
+        Connection current = connection;
+
+        if (current != null)
+        {
+            current.setPlayer(null);
+            current.setHandler(null);
+            current.close();
+            return;
+        }
+
+        try
+        {
+            close();
+        }
+        catch (IOException e)
+        {
+            // the connection was already broken, which is why it is being dropped
+        }
+    }
+
+    /**
+     * Moves the player onto a new connection after they reconnected.
+     * 
+     * The old connection is dropped, and the new one is taken over from a 
+     * Player created for it, which is discarded. The player keeps their ID,
+     * username, resume token and registry state.
+     * 
+     * @param link The Player created for the new connection.
+     */
+    public void reattach(Player link)
+    {
+        drop();
+
+        synchronized (this)
+        {
+            // keep counting from where the old connection left off
+            if (connection != null)
+            {
+                messagesSent += connection.getMessagesSent();
+                writes += connection.getWrites();
+            }
+
+            socket = link.socket;
+            connection = link.connection;
+            input = link.input;
+            output = link.output;
+            protocolVersion = link.protocolVersion;
+            unflushed = false;
+        }
+
+        if (connection != null) connection.setPlayer(this);
+    }
+
+    /**
+     * Closes the player's connection and streams.
+     * 
+     * @throws IOException If closing the socket fails.
+     */
+    public void close() throws IOException
+    {
+        if (connection != null)
+        {
+            connection.close();
+            return;
+        }
+
+        // output first, closing either stream of a TLS socket closes the socket
+        if (output != null) output.close();
+        if (input != null) input.close();
+        if (socket != null) socket.close();
+    }
+}
\ No newline at end of file
@@ -1,65 +1,225 @@
 import java.io.*;
-
-/*
- *  future enhancement:
- *  - handle numberformatexception when player enters non-numeric menu choice
- */
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages player lifecycle and menu interactions throughout the game.
  * 
  * PlayerManager serves as the central hub for player interactions outside of 
- * active games. It displays a main menu with three core options: starting a 
- * new game (which triggers matchmaking), changing username, or exiting the 
- * game entirely. Each player has their own PlayerManager instance running 
- * in the thread pool to handle their menu interactions independently.
+ * active games. It displays a main menu with five core options: starting a 
+ * new game (which triggers matchmaking), changing username, exiting the 
+ * game entirely, watching a game in progress, or joining a room of many
+ * Guessers (see Room). Each player has their own 
+ * PlayerManager instance running in the thread pool to handle their menu 
+ * interactions independently.
+ * 
+ * A player who leaves a prompt unanswered for MENU_IDLE_SECONDS is
+ * disconnected, so idle players don't hold on to a thread or a connection.
+ * Watching a game doesn't count as idling: a spectator stays at the menu, as
+ * far as the registry is concerned, until the game ends or they send
+ * anything, which takes them back to the menu's prompt.
  */
 public class PlayerManager implements Runnable
 {
+    /** Seconds a player may sit at the menu without replying. */
+    private static final int MENU_IDLE_SECONDS = 300;
+
+    /** Most games listed to a player choosing one to watch. */
+    private static final int MAX_LISTED = 10;
+
+    private static final Message IDLE = Message.info("\nYou were idle for too long. Disconnecting...");
+    private static final Message NO_GAMES = Message.info("\nThere are no games to watch right now.");
+    private static final Message NO_SUCH_GAME = Message.info("\nThat game isn't being played.");
+    private static final Message NO_ROOMS = Message.info("\nThere are no open rooms right now.");
+    private static final Message NO_SUCH_ROOM = Message.info("\nThat room isn't open, or is full.");
+
     private final Player player;
 
-    private final DataInputStream in;
-    private final DataOutputStream out;
+    /** Pending idle kick, restarted every time the player is prompted. */
+    private TimingWheel.Timeout idleTimeout;
+
+    /** Whether the player is currently entering a new username. */
+    private boolean renaming = false;
+
+    /** Whether the player is currently entering the ID of a game to watch. */
+    private boolean choosingGame = false;
+
+    /** Whether the player is currently entering the ID of a room to join. */
+    private boolean choosingRoom = false;
+
+    /** Whether the player is currently choosing the turn order of a room they open. */
+    private boolean choosingOrder = false;
+
+    /** The game the player is watching, or null. */
+    private GameSession watching;
+    /** The player's place in its audience, or null. */
+    private Broadcast.Spectator spectator;
+
+    /** When the player was last prompted for a menu decision, for the menu decision metric. */
+    private long promptedAt;
 
     /**
      * Initializes the PlayerManager for a specific player.
      * 
-     * Sets up references to the player object and extracts their I/O streams
-     * for direct communication. This avoids repeated method calls during 
-     * menu interactions.
-     * 
      * @param player The player whose menu interactions this manager will handle.
      */
     public PlayerManager(Player player)
     {
         this.player = player;
-
-        this.in = player.getInputStream();
-        this.out = player.getOutputStream();
     }
 
     /**
      * Displays the main menu options to the player.
      * 
-     * Sends a formatted menu showing the three available actions:
+     * Sends a formatted menu showing the five available actions:
      * 1. Play Game - enter matchmaking to find an opponent
      * 2. Change Username - update display name
      * 3. Exit - disconnect from server
+     * 4. Watch a Game - follow a game in progress as a spectator
+     * 5. Join a Room - guess along with other players, or open a room as its Game Master
      */
     private void showMainMenu()
     {
         try
         {
-            out.writeUTF("""
-                    \n1. Play Game
-                    2. Change Username
-                    3. Exit
-                    """);
+            player.send(Message.menu());
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+    }
+
+    /**
+     * Prompts the player to pick one of the menu options.
+     */
+    private void promptDecision()
+    {
+        try 
+        {
+            player.send(Message.prompt(Message.Prompt.MENU_DECISION));
+            player.flush();
+
+            promptedAt = System.nanoTime();
+        } 
+        catch (IOException e) 
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        watchIdle();
+    }
+
+    /**
+     * Prompts the player to enter a new username.
+     */
+    private void promptUsername()
+    {
+        try
+        {
+            player.send(Message.prompt(Message.Prompt.NEW_USERNAME));
+            player.flush();
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        watchIdle();
+    }
+
+    /**
+     * Prompts the player to enter the ID of the game they want to watch.
+     */
+    private void promptGameId()
+    {
+        try
+        {
+            player.send(Message.prompt(Message.Prompt.GAME_ID));
+            player.flush();
         }
         catch(IOException e)
         {
-            System.out.println("Error sending to client: " + e.getMessage());
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
         }
+
+        watchIdle();
+    }
+
+    /**
+     * Prompts the player to enter the ID of the room they want to join.
+     */
+    private void promptRoomId()
+    {
+        try
+        {
+            player.send(Message.prompt(Message.Prompt.ROOM_ID));
+            player.flush();
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        watchIdle();
+    }
+
+    /**
+     * Prompts the player to choose how the Guessers of the room they open take turns.
+     */
+    private void promptRoomOrder()
+    {
+        try
+        {
+            player.send(Message.prompt(Message.Prompt.ROOM_ORDER));
+            player.flush();
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        watchIdle();
+    }
+
+    /**
+     * Restarts the idle timeout, giving the player MENU_IDLE_SECONDS to reply.
+     */
+    private synchronized void watchIdle()
+    {
+        if (idleTimeout != null) idleTimeout.cancel();
+
+        idleTimeout = Server.timer.schedule(this::onIdle, MENU_IDLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Cancels the idle timeout once the player leaves the menu.
+     */
+    private synchronized void stopWatchingIdle()
+    {
+        if (idleTimeout != null) idleTimeout.cancel();
+
+        idleTimeout = null;
+    }
+
+    /**
+     * Disconnects a player who didn't reply in time. Runs on one of the
+     * timing wheel's task threads.
+     * 
+     * On the blocking server, closing the socket also ends the read the menu
+     * loop is waiting on.
+     */
+    private void onIdle()
+    {
+        // the player chose to play or left just as the timeout fired
+        if (player.getState() != PlayerRegistry.State.MENU || !Server.players.remove(player)) return;
+
+        Log.info("Player idle at the menu, disconnecting", player.getId(), Log.NONE);
+        Metrics.MENU_IDLE_KICKS.increment();
+
+        player.disconnect(IDLE);
     }
 
     /**
@@ -74,89 +234,483 @@ public class PlayerManager implements Runnable
      * 
      * The loop continues until the player chooses to play a game or exit,
      * allowing multiple username changes without reconnection.
+     * 
+     * Players on the non-blocking server don't get a loop at all: the menu is
+     * shown, this manager is installed as the connection's handler and the
+     * thread is released. Each reply then arrives through handle().
      */
     public void run()
     {
-        boolean exit = false;
-        while (!exit)
-        {   
-            showMainMenu();
+        // players who log in or leave a game while the server shuts down are sent away
+        if (Shutdown.inProgress())
+        {
+            Shutdown.leave(player);
+            return;
+        }
 
-            int decision = 0;
-            // phase 1: displays menu items until players makes a choice
-            while (decision != 1 && decision != 2 && decision != 3)
+        showMainMenu();
+        promptDecision();
+
+        Connection connection = player.getConnection();
+        if (connection != null)
+        {
+            connection.setHandler(new MessageHandler()
             {
-                try 
+                @Override
+                public void onMessage(String message)
                 {
-                    out.writeUTF("Enter your decision: ");
-                } 
-                catch (IOException e) 
+                    handle(message);
+                }
+
+                @Override
+                public void onDisconnect()
                 {
-                    System.out.println("\nError sending to client: " + e.getMessage());
+                    stopWatchingIdle();
+                    stopWatching();
                 }
+            });
+            return;
+        }
+
+        boolean exit = false;
+        while (!exit)
+        {
+            String message;
+
+            try
+            {
+                message = player.receive();
+            }
+            catch(IOException e)
+            {
+                // a player kicked for idling has already been disconnected
+                if (player.getState() == null) break;
+
+                Log.warn("Error receiving from client", player.getId(), Log.NONE, e);
+
+                exit();
+                break;
+            }
+
+            exit = handle(message);
+        }       
+    }
+
+    /**
+     * Processes a single reply from the player.
+     * 
+     * The menu is a small state machine shared by both server modes: it is
+     * either waiting for a menu decision, for a new username, for the ID of
+     * a game to watch, for the ID of a room to join or the turn order of a
+     * room to open, or the player is watching a game.
+     * 
+     * @param message The player's reply.
+     * @return true once the player has left the menu (to play or to exit).
+     */
+    private synchronized boolean handle(String message)
+    {
+        // phase 4.2: watching a game, until the player sends anything
+        if (spectator != null)
+        {
+            stopWatching();
+
+            showMainMenu();
+            promptDecision();
 
+            return false;
+        }
+
+        // phase 4.1: collecting the ID of the game to watch
+        if (choosingGame)
+        {
+            choosingGame = false;
+            watch(message);
+
+            return false;
+        }
+
+        // phase 5.1: collecting the ID of the room to join
+        if (choosingRoom)
+        {
+            choosingRoom = false;
+            return joinRoom(message);
+        }
+
+        // phase 5.2: collecting the turn order of the room to open
+        if (choosingOrder)
+        {
+            return openRoom(message);
+        }
+
+        // phase 2.1: collecting a new username
+        if (renaming)
+        {
+            // ensure new username isn't empty
+            if (message.trim().isEmpty())
+            {
+                promptUsername();
+                return false;
+            }
+
+            // the username must not be taken by another player
+            if (!Server.players.rename(player, message))
+            {
                 try
                 {
-                    decision = Integer.parseInt(in.readUTF());
+                    player.send(LogPlayer.USERNAME_TAKEN);
                 }
                 catch(IOException e)
                 {
-                    System.out.println("\nError receiving from client: " + e.getMessage());
+                    Log.warn("Error sending to client", player.getId(), Log.NONE, e);
                 }
+
+                promptUsername();
+                return false;
             }
 
-            // phase 2: executes the chosen action
-            switch (decision)
+            renaming = false;
+
+            showMainMenu();
+            promptDecision();
+
+            return false;
+        }
+
+        // phase 1: keeps prompting until the player makes a valid choice
+        Metrics.MENU_DECISION.observeSince(promptedAt);
+
+        int decision;
+
+        try
+        {
+            decision = Integer.parseInt(message.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            decision = 0;
+        }
+
+        // phase 2: executes the chosen action
+        switch (decision)
+        {
+            // play game
+            case 1 ->
             {
-                // play game
-                case 1 ->
-                {
-                    Server.threadPool.submit(new MatchPlayer(player));
+                stopWatchingIdle();
 
-                    exit = true;
-                }
-                // change username
-                case 2 ->
-                {
-                    String username = "";
-
-                    // ensure new username isn't empty
-                    while (username.trim().isEmpty())
-                    {
-                        try
-                        {
-                            out.writeUTF("\nEnter new username: ");
-                            username = in.readUTF();
-                        }
-                        catch(IOException e)
-                        {
-                            System.out.println("Error while collecting username: " + e.getMessage());
-                        }
-                    }
-
-                    player.setUsername(username);
-                }
-                // exit game
-                case 3 ->
-                {
-                    Server.allPlayers.removeElement(player);
-
-                    System.out.println("\nPlayer disconnected from server."); 
-                    
-                    try
-                    {
-                        if (in != null) in.close();
-                        if (out != null) out.close();
-                        if (player.getSocket() != null) player.getSocket().close();
-                    }
-                    catch(IOException e)
-                    {
-                        System.out.println("Error closing resources: " + e.getMessage());
-                    }
-                    
-                    exit = true;
-                }
+                // input sent while waiting for a match is ignored, the game session
+                // installs its own handler once the player is matched
+                if (player.getConnection() != null) player.getConnection().setHandler(ignored -> { });
+
+                Server.threadPool.submit(new MatchPlayer(player));
+
+                return true;
             }
-        }       
+            // change username
+            case 2 ->
+            {
+                renaming = true;
+                promptUsername();
+
+                return false;
+            }
+            // exit game
+            case 3 ->
+            {
+                exit();
+
+                return true;
+            }
+            // watch a game
+            case 4 ->
+            {
+                listGames();
+
+                return false;
+            }
+            // join a room
+            case 5 ->
+            {
+                listRooms();
+
+                return false;
+            }
+            default ->
+            {
+                promptDecision();
+
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Shows the player the games they can watch, most watched first, and asks
+     * for the ID of one. The player goes back to the menu's prompt if there
+     * are none.
+     */
+    private void listGames()
+    {
+        record Listing(GameSession game, int spectators) { }
+
+        // audiences change while sorting, so each is read once
+        List<Listing> listings = new ArrayList<>();
+        for (GameSession game : GameSession.live()) listings.add(new Listing(game, game.getSpectators()));
+
+        if (listings.isEmpty())
+        {
+            try
+            {
+                player.send(NO_GAMES);
+            }
+            catch(IOException e)
+            {
+                Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+            }
+
+            promptDecision();
+            return;
+        }
+
+        listings.sort(Comparator.comparingInt(Listing::spectators).reversed());
+
+        StringBuilder text = new StringBuilder("\nGames being played:");
+
+        for (Listing listing : listings.subList(0, Math.min(listings.size(), MAX_LISTED)))
+        {
+            text.append("\n").append(listing.game().getId()).append(": ").append(listing.game().getTitle())
+                .append(" (").append(listing.spectators()).append(" watching)");
+        }
+
+        try
+        {
+            player.send(Message.info(text.toString()));
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        choosingGame = true;
+        promptGameId();
+    }
+
+    /**
+     * Starts watching the game the player picked.
+     * 
+     * The game's events reach the player through its Broadcast from then on,
+     * so the menu stops timing the player out and waits for them to send 
+     * anything, or for the game to end (see onWatchEnded()).
+     * 
+     * @param message The ID of the game, as the player typed it.
+     */
+    private void watch(String message)
+    {
+        GameSession game;
+
+        try
+        {
+            game = GameSession.find(Long.parseLong(message.trim()));
+        }
+        catch(NumberFormatException e)
+        {
+            game = null;
+        }
+
+        GameSession picked = game;
+        Broadcast.Spectator candidate = new Broadcast.Spectator(player, notice -> onWatchEnded(picked, notice));
+
+        if (game == null || !game.watch(candidate))
+        {
+            try
+            {
+                player.send(NO_SUCH_GAME);
+            }
+            catch(IOException e)
+            {
+                Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+            }
+
+            showMainMenu();
+            promptDecision();
+            return;
+        }
+
+        stopWatchingIdle();
+
+        watching = game;
+        spectator = candidate;
+    }
+
+    /**
+     * Shows the player the open rooms, most crowded first, and asks for the
+     * ID of one to join, or to open their own.
+     */
+    private void listRooms()
+    {
+        record Listing(Room room, int guessers) { }
+
+        List<Listing> listings = new ArrayList<>();
+        for (Room room : Room.live()) listings.add(new Listing(room, room.getGuessers()));
+
+        listings.sort(Comparator.comparingInt(Listing::guessers).reversed());
+
+        StringBuilder text = new StringBuilder("\nOpen rooms:");
+
+        for (Listing listing : listings.subList(0, Math.min(listings.size(), MAX_LISTED)))
+        {
+            text.append("\n").append(listing.room().getId()).append(": ").append(listing.room().getTitle())
+                .append(" (").append(listing.guessers()).append(" guessing)");
+        }
+
+        try
+        {
+            player.send(listings.isEmpty() ? NO_ROOMS : Message.info(text.toString()));
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        choosingRoom = true;
+        promptRoomId();
+    }
+
+    /**
+     * Joins the room the player picked, or asks how the room they open
+     * should take turns.
+     * 
+     * @param message The ID of the room, or N, as the player typed it.
+     * @return true once the player is in the room.
+     */
+    private boolean joinRoom(String message)
+    {
+        if (message.trim().equalsIgnoreCase("n"))
+        {
+            choosingOrder = true;
+            promptRoomOrder();
+
+            return false;
+        }
+
+        Room room;
+
+        try
+        {
+            room = Room.find(Long.parseLong(message.trim()));
+        }
+        catch(NumberFormatException e)
+        {
+            room = null;
+        }
+
+        // the room installs its own handler, or reader, for the player's messages
+        if (room != null && room.join(player))
+        {
+            stopWatchingIdle();
+            return true;
+        }
+
+        try
+        {
+            player.send(NO_SUCH_ROOM);
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        showMainMenu();
+        promptDecision();
+
+        return false;
+    }
+
+    /**
+     * Opens a room with the player as its Game Master.
+     * 
+     * @param message The turn order, as the player typed it.
+     * @return true once the room is open.
+     */
+    private boolean openRoom(String message)
+    {
+        char choice = message.trim().isEmpty() ? ' ' : Character.toLowerCase(message.trim().charAt(0));
+
+        if (choice != 'r' && choice != 'f')
+        {
+            promptRoomOrder();
+            return false;
+        }
+
+        choosingOrder = false;
+        stopWatchingIdle();
+
+        // a player who could not be moved out of the menu is already gone
+        Room.open(player, choice == 'r' ? Room.Order.ROUND_ROBIN : Room.Order.FIRST_COME);
+
+        return true;
+    }
+
+    /**
+     * Takes the player out of the audience of the game they are watching, if any.
+     */
+    private synchronized void stopWatching()
+    {
+        if (spectator == null) return;
+
+        watching.unwatch(spectator);
+
+        watching = null;
+        spectator = null;
+    }
+
+    /**
+     * Brings a spectator back to the menu once the game they were watching
+     * ends, or once they fall too far behind it. Runs on the thread pool, 
+     * after everything the game sent the spectator before.
+     * 
+     * @param game The game that was being watched.
+     * @param notice Why the player stopped watching.
+     */
+    private synchronized void onWatchEnded(GameSession game, Message notice)
+    {
+        // the player left the game, or the server, in the meantime
+        if (watching != game || player.getState() == null) return;
+
+        watching = null;
+        spectator = null;
+
+        try
+        {
+            player.send(notice);
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error sending to client", player.getId(), Log.NONE, e);
+        }
+
+        showMainMenu();
+        promptDecision();
+    }
+
+    /**
+     * Disconnects the player from the server and releases their resources.
+     */
+    private void exit()
+    {
+        stopWatchingIdle();
+        stopWatching();
+        Server.players.remove(player);
+
+        Log.info("Player disconnected from server", player.getId(), Log.NONE);
+        
+        try
+        {
+            player.close();
+        }
+        catch(IOException e)
+        {
+            Log.warn("Error closing resources", player.getId(), Log.NONE, e);
+        }
     }
 }
@@ -0,0 +1,214 @@
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index of every player logged in to the server.
+ *
+ * Players are indexed twice: by their stable numeric ID and by their
+ * normalized username (trimmed, lower case), which is what keeps usernames
+ * unique. Both indexes are ConcurrentHashMaps, so lookups never lock and
+ * updates only contend on a single bin, and every operation stays O(1) no
+ * matter how many players are connected.
+ *
+ * The registry also tracks where each player is: at the MENU, WAITING in
+ * matchmaking or PLAYING in a session. The state lives in the Player itself
+ * and moves with a compare-and-set, so a transition costs one atomic update
+ * and two counter updates, and a player can never be in two states at once.
+ */
+public class PlayerRegistry
+{
+    /**
+     * Where a registered player currently is.
+     */
+    public enum State
+    {
+        MENU,     // logged in, at the main menu or changing username
+        WAITING,  // in matchmaking, waiting for an opponent
+        PLAYING   // in a game session
+    }
+
+    private final ConcurrentHashMap<Long, Player> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Player> byName = new ConcurrentHashMap<>();
+
+    /** Number of players in each state, indexed by ordinal. */
+    private final LongAdder[] counts = new LongAdder[State.values().length];
+
+    /**
+     * Initializes an empty registry.
+     */
+    public PlayerRegistry()
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Converts a username to the form used to check for duplicates.
+     *
+     * @param username The username as typed by the player.
+     * @return The username trimmed and in lower case.
+     */
+    public static String normalize(String username)
+    {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Registers a player who has just logged in, claiming their username.
+     *
+     * The claim is atomic: if two players log in with the same name at the
+     * same time, exactly one of them gets it.
+     *
+     * @param player The player, with the username they asked for.
+     * @return true if the player is now registered at the MENU, false if the
+     *         username is blank or already taken.
+     */
+    public boolean register(Player player)
+    {
+        String name = normalize(player.getUsername());
+
+        if (name.isEmpty() || byName.putIfAbsent(name, player) != null)
+        {
+            return false;
+        }
+
+        byId.put(player.getId(), player);
+
+        player.state().set(State.MENU);
+        counts[State.MENU.ordinal()].increment();
+
+        return true;
+    }
+
+    /**
+     * Changes a registered player's username, claiming the new one atomically.
+     *
+     * The old username is only released once the new one is claimed, so a
+     * failed rename leaves the player exactly as they were.
+     *
+     * @param player The player changing their username.
+     * @param username The new username.
+     * @return true if the player now has the new username, false if it is
+     *         blank or taken by someone else.
+     */
+    public boolean rename(Player player, String username)
+    {
+        String name = normalize(username);
+        String previous = normalize(player.getUsername());
+
+        if (name.isEmpty()) return false;
+
+        // a change of case or spacing keeps the same claim
+        if (!name.equals(previous))
+        {
+            if (byName.putIfAbsent(name, player) != null) return false;
+
+            byName.remove(previous, player);
+        }
+
+        player.setUsername(username);
+
+        return true;
+    }
+
+    /**
+     * Moves a player from one state to another.
+     *
+     * @param player The player.
+     * @param from The state the player is expected to be in.
+     * @param to The new state.
+     * @return true if the player was in the expected state and has moved,
+     *         false if they were elsewhere (or no longer registered).
+     */
+    public boolean transition(Player player, State from, State to)
+    {
+        if (!player.state().compareAndSet(from, to)) return false;
+
+        counts[from.ordinal()].decrement();
+        counts[to.ordinal()].increment();
+
+        return true;
+    }
+
+    /**
+     * Removes a player who is leaving the server and releases their username.
+     *
+     * Safe to call more than once, e.g. from both a disconnect and an exit;
+     * only the first call has any effect.
+     *
+     * @param player The player leaving.
+     * @return true if the player was registered.
+     */
+    public boolean remove(Player player)
+    {
+        State previous = player.state().getAndSet(null);
+
+        if (previous == null) return false;
+
+        counts[previous.ordinal()].decrement();
+
+        byId.remove(player.getId(), player);
+        byName.remove(normalize(player.getUsername()), player);
+
+        return true;
+    }
+
+    /**
+     * Looks up a player by ID.
+     *
+     * @param id The player's ID.
+     * @return The player, or null if no such player is registered.
+     */
+    public Player get(long id)
+    {
+        return byId.get(id);
+    }
+
+    /**
+     * Looks up a player by username, ignoring case and surrounding spaces.
+     *
+     * @param username The username.
+     * @return The player, or null if nobody has that username.
+     */
+    public Player find(String username)
+    {
+        return byName.get(normalize(username));
+    }
+
+    /**
+     * Gets the number of registered players.
+     *
+     * @return The number of players logged in.
+     */
+    public int size()
+    {
+        return byId.size();
+    }
+
+    /**
+     * Gets the number of players in a given state.
+     *
+     * @param state The state.
+     * @return The number of players currently in it.
+     */
+    public long count(State state)
+    {
+        return counts[state.ordinal()].sum();
+    }
+
+    /**
+     * Gets every registered player.
+     *
+     * The view is live and safe to iterate while players come and go.
+     *
+     * @return The registered players.
+     */
+    public Collection<Player> all()
+    {
+        return byId.values();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Wire protocol versions and the handshake used to choose between them.
+ *
+ * Every frame on the wire starts with the same two-byte length header that
+ * writeUTF() produces. What follows depends on the negotiated version:
+ * - LEGACY: a free-form modified UTF-8 string, as sent by the original server
+ * - BINARY: a one-byte opcode followed by a compact body (see Message), with
+ *   any text in the same modified UTF-8 encoding
+ *
+ * Connections always start in LEGACY so old clients keep working untouched.
+ * A newer client opens by sending a hello frame naming the highest version it
+ * speaks. The server answers with an ack naming the version both sides will
+ * use from then on, and repeats its greeting in that version. Old clients
+ * never send a hello and simply stay on LEGACY.
+ *
+ * A client that lost its connection in the middle of a game opens its new
+ * connection with a resume frame instead, carrying the resume token it was
+ * given at login (see Message.token()). If the player's seat is still held,
+ * the server acks it like a hello and the game carries on; otherwise it
+ * answers with a refusal and closes the connection.
+ *
+ * In cluster mode (see Cluster), a node relaying one of its players to a game
+ * hosted on another node opens that connection with a join frame carrying
+ * the ticket the host issued when it claimed the player. The host acks it the
+ * same way, and once the game is over it sends a hand-back frame, which the
+ * relaying node never forwards, to return the player to their own node with
+ * the rating they finished the game at.
+ */
+public class Protocol
+{
+    /** The original text protocol. */
+    public static final int LEGACY = 0;
+
+    /** Typed binary frames with integer opcodes. */
+    public static final int BINARY = 1;
+
+    /** Highest version this build understands. */
+    public static final int VERSION = BINARY;
+
+    /** Opcode of a BINARY client frame carrying a line typed by the player. */
+    public static final byte REPLY = 0x10;
+
+    // the leading NUL can't be typed at a prompt, so these never clash with real input
+    private static final String HELLO = "\0HELLO/";
+    private static final String ACK = "\0ACK/";
+    private static final String RESUME = "\0RESUME/";
+    private static final String REFUSED = "\0REFUSED";
+    private static final String JOIN = "\0JOIN/";
+    private static final String HAND_BACK = "\0HANDBACK";
+
+    /** The start of a hand-back frame's payload, encoded once to be compared against relayed frames. */
+    private static final byte[] HAND_BACK_PREFIX = encodeConstant(HAND_BACK + "/");
+
+    /**
+     * A request to pick a game back up on a new connection.
+     *
+     * @param version The highest version the client speaks.
+     * @param token The resume token the player was given at login.
+     */
+    public record Resume(int version, String token) { }
+
+    /**
+     * Builds the hello message a client sends right after connecting.
+     *
+     * @param version The highest version the client speaks.
+     * @return The hello message, to be sent as a LEGACY frame.
+     */
+    public static String hello(int version)
+    {
+        return HELLO + version;
+    }
+
+    /**
+     * Builds the server's reply to a hello.
+     *
+     * @param version The version both sides will use from now on.
+     * @return The ack message, to be sent as a LEGACY frame.
+     */
+    public static String ack(int version)
+    {
+        return ACK + version;
+    }
+
+    /**
+     * Builds the message a client sends, instead of a hello, to reconnect to its game.
+     *
+     * @param version The highest version the client speaks.
+     * @param token The resume token the player was given at login.
+     * @return The resume message, to be sent as a LEGACY frame.
+     */
+    public static String resume(int version, String token)
+    {
+        return RESUME + version + "/" + token;
+    }
+
+    /**
+     * Builds the server's reply to a resume when there is no game to resume.
+     *
+     * @return The refusal, to be sent as a LEGACY frame.
+     */
+    public static String refuse()
+    {
+        return REFUSED;
+    }
+
+    /**
+     * Checks whether a message is a client resume.
+     *
+     * @param message The first message received from a client.
+     * @return The version and token, or null if this isn't a resume.
+     */
+    public static Resume parseResume(String message)
+    {
+        return parseWithToken(RESUME, message);
+    }
+
+    /**
+     * Builds the message a cluster node opens a relayed player's connection with.
+     *
+     * @param version The protocol version the player negotiated with their own node.
+     * @param ticket The ticket the host node issued when it claimed the player.
+     * @return The join message, to be sent as a LEGACY frame.
+     */
+    public static String join(int version, String ticket)
+    {
+        return JOIN + version + "/" + ticket;
+    }
+
+    /**
+     * Checks whether a message opens a connection relayed from another cluster node.
+     *
+     * The version and ticket are returned in a Resume, whose token is the ticket.
+     *
+     * @param message The first message received on a connection.
+     * @return The version and ticket, or null if this isn't a join.
+     */
+    public static Resume parseJoin(String message)
+    {
+        return parseWithToken(JOIN, message);
+    }
+
+    /**
+     * Builds the frame a host node ends a relayed player's connection with, to
+     * return them to their own node instead of its menu.
+     *
+     * @param rating The player's rating after the game, for their own node to keep.
+     * @return The complete frame, including its length header.
+     */
+    public static byte[] handBack(int rating)
+    {
+        return encodeConstant(HAND_BACK + "/" + rating);
+    }
+
+    /**
+     * Checks whether a frame received from a host node is the hand-back.
+     *
+     * Game frames never start with the encoded NUL the hand-back does, in
+     * either protocol version, so it can't be mistaken for one.
+     *
+     * @param frame The complete frame, including its length header.
+     * @return The player's rating after the game, or null if this isn't the hand-back.
+     * @throws UTFDataFormatException If a hand-back isn't valid modified UTF-8.
+     */
+    public static Integer parseHandBack(byte[] frame) throws UTFDataFormatException
+    {
+        // compared past the length headers, which differ
+        int prefix = HAND_BACK_PREFIX.length - 2;
+
+        if (frame.length <= HAND_BACK_PREFIX.length
+            || !Arrays.equals(frame, 2, 2 + prefix, HAND_BACK_PREFIX, 2, 2 + prefix))
+        {
+            return null;
+        }
+
+        String rating = FrameDecoder.decodeText(frame, 2 + prefix, frame.length - 2 - prefix);
+
+        try
+        {
+            return Integer.valueOf(rating);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the version and token following a prefix, as in "prefix/version/token".
+     *
+     * @param prefix RESUME or JOIN.
+     * @param message The message to check.
+     * @return The version and token, or null if the message doesn't match.
+     */
+    private static Resume parseWithToken(String prefix, String message)
+    {
+        if (!message.startsWith(prefix)) return null;
+
+        int slash = message.indexOf('/', prefix.length());
+        if (slash < 0) return null;
+
+        int version = parseVersion(prefix, message.substring(0, slash));
+        return version < 0 ? null : new Resume(version, message.substring(slash + 1));
+    }
+
+    /**
+     * Encodes a control message as a LEGACY frame.
+     *
+     * @param text The message, short enough to always fit in a frame.
+     * @return The complete frame, including its length header.
+     */
+    private static byte[] encodeConstant(String text)
+    {
+        try
+        {
+            return FrameEncoder.encodeText(text);
+        }
+        catch (UTFDataFormatException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether a message is the server's refusal to resume.
+     *
+     * @param message A message received after sending a resume.
+     * @return true if the server has no game to resume.
+     */
+    public static boolean isRefusal(String message)
+    {
+        return message.equals(REFUSED);
+    }
+
+    /**
+     * Checks whether a message is a client hello.
+     *
+     * @param message A message received before the username.
+     * @return The version offered by the client, or -1 if this isn't a hello.
+     */
+    public static int parseHello(String message)
+    {
+        return parseVersion(HELLO, message);
+    }
+
+    /**
+     * Checks whether a message is the server's ack.
+     *
+     * @param message A message received after sending a hello.
+     * @return The version chosen by the server, or -1 if this isn't an ack.
+     */
+    public static int parseAck(String message)
+    {
+        return parseVersion(ACK, message);
+    }
+
+    /**
+     * Picks the version to use for a client that offered the given one.
+     *
+     * @param offered The highest version the client speaks.
+     * @return The highest version both sides speak.
+     */
+    public static int negotiate(int offered)
+    {
+        return Math.max(LEGACY, Math.min(offered, VERSION));
+    }
+
+    /**
+     * Reads the version number following a handshake prefix.
+     *
+     * @param prefix HELLO or ACK.
+     * @param message The message to check.
+     * @return The version, or -1 if the message doesn't match.
+     */
+    private static int parseVersion(String prefix, String message)
+    {
+        if (!message.startsWith(prefix)) return -1;
+
+        try
+        {
+            return Integer.parseInt(message.substring(prefix.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads one frame's payload from a blocking stream.
+     *
+     * @param in The stream to read from.
+     * @return The payload without its length header.
+     * @throws IOException If the stream fails or ends mid-frame.
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException
+    {
+        byte[] payload = new byte[in.readUnsignedShort()];
+        in.readFully(payload);
+
+        return payload;
+    }
+
+    /**
+     * Encodes a line typed by the player as a client frame.
+     *
+     * @param text The player's input.
+     * @param version The negotiated protocol version.
+     * @return The complete frame, including its length header.
+     * @throws UTFDataFormatException If the input is too long for one frame.
+     */
+    public static byte[] encodeReply(String text, int version) throws UTFDataFormatException
+    {
+        if (version == LEGACY)
+        {
+            return FrameEncoder.encodeText(text);
+        }
+
+        int length = 1 + FrameEncoder.utfLength(text);
+
+        if (length > 0xFFFF)
+        {
+            throw new UTFDataFormatException("Reply too long: " + length + " bytes");
+        }
+
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        frame[2] = REPLY;
+        FrameEncoder.writeText(text, frame, 3);
+
+        return frame;
+    }
+
+    /**
+     * Decodes a client frame back into the line the player typed.
+     *
+     * @param payload The frame payload without its length header.
+     * @param version The negotiated protocol version.
+     * @return The player's input.
+     * @throws IOException If the frame is malformed for this version.
+     */
+    public static String decodeReply(byte[] payload, int version) throws IOException
+    {
+        if (version == LEGACY)
+        {
+            return FrameDecoder.decodeText(payload);
+        }
+
+        if (payload.length == 0 || payload[0] != REPLY)
+        {
+            throw new IOException("Unexpected client frame" + (payload.length == 0 ? "" : " with opcode " + payload[0]));
+        }
+
+        return FrameDecoder.decodeText(payload, 1, payload.length - 1);
+    }
+}
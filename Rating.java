@@ -0,0 +1,50 @@
+/**
+ * Elo ratings for players, which the Matchmaker pairs players by.
+ *
+ * Every player starts at INITIAL and gains or loses points after each round
+ * they finish: the winner takes points from the loser, more of them the less
+ * likely the win was given the two ratings. A rating lasts as long as the
+ * player stays connected, including across reconnects, and follows them into
+ * games hosted on another cluster node (see Cluster).
+ *
+ * Rounds against a bot are unrated. A bot is a new Player every game, so it
+ * would always be scored as a newcomer at INITIAL, however well it plays,
+ * and a human playing it would drift away from the players of their level.
+ */
+public class Rating
+{
+    /** The rating of a player who hasn't finished a round yet. */
+    public static final int INITIAL = 1500;
+
+    /** The most points a single round can move a rating by. */
+    private static final int K = 32;
+
+    /**
+     * Moves points from a round's loser to its winner, unless one of them
+     * is a bot.
+     *
+     * @param winner The player who won the round.
+     * @param loser The player who lost it.
+     */
+    public static void update(Player winner, Player loser)
+    {
+        if (winner.isBot() || loser.isBot()) return;
+
+        int points = (int) Math.round(K * (1 - expected(winner.getRating(), loser.getRating())));
+
+        winner.setRating(winner.getRating() + points);
+        loser.setRating(loser.getRating() - points);
+    }
+
+    /**
+     * Calculates how likely a player is to win against an opponent.
+     *
+     * @param rating The player's rating.
+     * @param opponent The opponent's rating.
+     * @return The chance of winning, between 0 and 1.
+     */
+    static double expected(int rating, int opponent)
+    {
+        return 1 / (1 + Math.pow(10, (opponent - rating) / 400.0));
+    }
+}
@@ -0,0 +1,943 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * A game with one Game Master and any number of Guessers.
+ *
+ * The player who opens a room is its Game Master for as long as it stays
+ * open, and other players join it from the menu as Guessers, at any time.
+ * Each round, the Game Master chooses a subject and answers the room's
+ * questions one at a time, MAX_QUESTIONS a round for the whole room, until
+ * a Guesser guesses the subject or they run out. The Guessers either take
+ * turns (ROUND_ROBIN), or all ask whenever they like (FIRST_COME), in which
+ * case their questions wait in the room's queue, one per Guesser, and reach
+ * the Game Master in the order they arrived.
+ *
+ * Every member is sent the room's events through its Broadcast: each question
+ * and answer is encoded once, off the thread that handled the message, and
+ * the same frame is queued for the whole room. Prompts for a single member
+ * go through the same queue, so they arrive in order with the events. On the
+ * non-blocking server, the members' connections push their messages into the
+ * room like into a GameSession, so a room holds no thread however many
+ * players it has. On the blocking server each member has a reader task of
+ * their own instead, like the thread they had at the menu.
+ *
+ * Rooms are for fun: they aren't journaled, so they don't survive a restart,
+ * their players can't resume them after losing their connection, and their
+ * rounds don't change anyone's rating.
+ */
+class Room
+{
+    /**
+     * How the Guessers take their turns.
+     */
+    public enum Order
+    {
+        ROUND_ROBIN("round-robin", "\nGuessers take turns asking questions."),
+        FIRST_COME("first-come", "\nGuessers ask whenever they like, and questions are answered in the order they arrive.");
+
+        private final String name;
+        private final Message rules;
+
+        /**
+         * @param name The order as listed to players choosing a room.
+         * @param rules How the order works, shown to players joining the room.
+         */
+        Order(String name, String rules)
+        {
+            this.name = name;
+            this.rules = Message.info(rules);
+        }
+    }
+
+    /** Rooms that haven't closed yet. */
+    private static final Set<Room> OPEN = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /** Most Guessers a room takes. */
+    static final int MAX_GUESSERS = 250;
+
+    /** Seconds the Game Master has to choose a subject or answer, and a Guesser whose turn it is to ask. */
+    private static final int TURN_SECONDS = 120;
+
+    /** Seconds the Game Master has to decide whether to play another round. */
+    private static final int PLAY_AGAIN_SECONDS = 15;
+
+    /** Seconds a blocking member's reader waits for a message before checking they are still in the room. */
+    private static final int READ_POLL_SECONDS = 1;
+
+    /** What a member sends, instead of a move, to leave the room. */
+    static final String LEAVE = "/leave";
+
+    private static final Message.Template OPENED = new Message.Template("\nYOUR ROOM IS OPEN, ITS ID IS ", "");
+    private static final Message.Template JOINED_ROOM = new Message.Template("\nYOU JOINED THE ROOM OF ", "");
+    private static final Message.Template JOINED = new Message.Template("\n", " joined the room.");
+    private static final Message.Template LEFT = new Message.Template("\n", " left the room.");
+    private static final Message.Template NEW_ROUND = new Message.Template("\nNew round: ", " is the Game Master.");
+    private static final Message.Template THINKING_OF_SUBJECT = new Message.Template("\n", " is thinking of a subject...");
+    private static final Message.Template CHOSEN_SUBJECT = new Message.Template("\n", " has chosen a subject.");
+    private static final Message.Template TURN = new Message.Template("\nIt is ", "'s turn to ask.");
+    private static final Message.Template QUESTION_FROM = new Message.Template("\nQuestion from ", "");
+    private static final Message.Template SKIPPED = new Message.Template("\n", " took too long and lost their turn.");
+    private static final Message.Template GUESSED = new Message.Template("\n", " guessed the answer!");
+    private static final Message.Template REVEAL = new Message.Template("\nThe answer was '", "'.");
+    private static final Message LEAVE_HINT = Message.info("\nSend " + LEAVE + " at any prompt to leave the room.");
+    private static final Message RAN_OUT = Message.info("\nThe Guessers ran out of questions.");
+    private static final Message WENT_QUIET = Message.info("\nNobody asked anything for too long.");
+    private static final Message NO_QUESTIONS_LEFT = Message.info("\nThere are no questions left this round.");
+    private static final Message ANOTHER_ROUND = Message.info("\nPLAY ANOTHER ROUND WITH THE ROOM?");
+    private static final Message WAITING_FOR_GM = Message.info("\nWaiting for the Game Master to start another round...");
+    private static final Message TURN_TIMED_OUT = Message.info("\nYou took too long to play. Disconnecting...");
+    private static final Message GM_TIMED_OUT = Message.info("\nThe Game Master took too long to play. The room is closed.");
+    private static final Message GM_LEFT = Message.info("\nThe Game Master left. The room is closed.");
+    private static final Message ROOM_CLOSED = Message.info("\nThe room is closed.");
+    private static final Message LEFT_ROOM = Message.info("\nYou left the room.");
+
+    /**
+     * The steps of a round.
+     */
+    private enum Phase
+    {
+        CHOOSING_SUBJECT,  // waiting for the Game Master to choose a subject
+        ASKING,            // waiting for a question, with none queued
+        ANSWERING,         // waiting for the Game Master to answer the current question
+        PLAY_AGAIN,        // waiting for the Game Master to decide on another round
+        CLOSED             // the room is closed and its members are back at the menu
+    }
+
+    /**
+     * A player in the room, and their place in its audience.
+     */
+    private final class Member
+    {
+        private final Player player;
+        private final Broadcast.Spectator spectator;
+
+        /** Whether the player is still in the room, guarded by the room. */
+        private boolean present = true;
+        /** Whether the Guesser has a question queued or being answered, guarded by the room. */
+        private boolean asking = false;
+        /** Whether a blocking player's reader should take them back to the menu. */
+        private volatile boolean released = false;
+
+        /**
+         * @param player The player.
+         */
+        Member(Player player)
+        {
+            this.player = player;
+            this.spectator = new Broadcast.Spectator(player, notice -> release(this, notice));
+        }
+    }
+
+    /**
+     * A Guesser's question waiting for the Game Master.
+     */
+    private record Question(Member from, String text) { }
+
+    /** Unique ID of the room, for players choosing one to join. */
+    private final long id;
+    private final Order order;
+
+    /** The Game Master, for as long as the room is open. */
+    private final Member host;
+    /** The Guessers, in the order they joined. */
+    private final List<Member> guessers = new ArrayList<>();
+
+    /** Questions waiting for the Game Master, in the order they arrived. */
+    private final ArrayDeque<Question> queue = new ArrayDeque<>();
+    /** The question the Game Master is answering, or null. */
+    private Question current;
+
+    /** Index in guessers of the Guesser whose turn it is, or was last, in a ROUND_ROBIN room. */
+    private int turnIndex = -1;
+    /** The Guesser whose turn it is in a ROUND_ROBIN room, or null. */
+    private Member turnHolder;
+
+    /** Carries the room's events to every member. */
+    private final Broadcast broadcast = new Broadcast();
+
+    /** Current step of the round. */
+    private Phase phase;
+
+    /** Subject chosen by the Game Master this round. */
+    private String subject = "";
+    /** Number of questions put to the Game Master this round. */
+    private int count = 0;
+    /** Questions and answers this round, in order, to catch up players who join. */
+    private final List<Message> transcript = new ArrayList<>();
+
+    /** Pending turn deadline or play-again timeout. */
+    private TimingWheel.Timeout deadline;
+    /** Number of deadlines set so far, so one that fires late can tell it's stale. */
+    private long turn = 0;
+
+    /**
+     * @param host The player opening the room.
+     * @param order How its Guessers take turns.
+     */
+    private Room(Player host, Order order)
+    {
+        this.id = NEXT_ID.incrementAndGet();
+        this.order = order;
+        this.host = new Member(host);
+    }
+
+    /**
+     * Opens a room with a player at the menu as its Game Master, and starts
+     * the first round.
+     *
+     * @param player The player opening the room.
+     * @param order How the room's Guessers take turns.
+     * @return The room, or null if the player is no longer at the menu.
+     */
+    public static Room open(Player player, Order order)
+    {
+        if (!Server.players.transition(player, PlayerRegistry.State.MENU, PlayerRegistry.State.PLAYING)) return null;
+
+        Room room = new Room(player, order);
+        OPEN.add(room);
+        Metrics.ROOMS.increment();
+
+        Log.info("Room " + room.id + " opened", player.getId(), Log.NONE);
+
+        synchronized (room)
+        {
+            room.broadcast.join(room.host.spectator, List.of(OPENED.fill(String.valueOf(room.id)), order.rules, LEAVE_HINT));
+            room.attach(room.host);
+            room.startRound();
+        }
+
+        return room;
+    }
+
+    /**
+     * Gets the number of rooms still open.
+     *
+     * @return The number of open rooms.
+     */
+    public static int active()
+    {
+        return OPEN.size();
+    }
+
+    /**
+     * Gets the rooms still open, for players looking for one to join.
+     *
+     * @return A snapshot of the open rooms.
+     */
+    public static List<Room> live()
+    {
+        return new ArrayList<>(OPEN);
+    }
+
+    /**
+     * Finds an open room by its ID.
+     *
+     * @param id The room's ID.
+     * @return The room, or null if no room with that ID is open.
+     */
+    public static Room find(long id)
+    {
+        for (Room room : OPEN)
+        {
+            if (room.id == id) return room;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the room's ID.
+     *
+     * @return The ID, unique while the server runs.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Describes the room to players choosing one to join.
+     *
+     * @return The Game Master's username and the room's order.
+     */
+    public String getTitle()
+    {
+        return host.player.getUsername() + "'s room, " + order.name;
+    }
+
+    /**
+     * Gets the number of Guessers in the room.
+     *
+     * @return The number of Guessers.
+     */
+    public synchronized int getGuessers()
+    {
+        return guessers.size();
+    }
+
+    /**
+     * Adds a player at the menu to the room as a Guesser.
+     *
+     * The player is caught up on the round in progress, without its subject,
+     * and can ask right away if the room is FIRST_COME, or when their turn
+     * comes if it is ROUND_ROBIN.
+     *
+     * @param player The player joining.
+     * @return false if the room is closed or full, or the player is no longer at the menu.
+     */
+    public synchronized boolean join(Player player)
+    {
+        if (phase == Phase.CLOSED || guessers.size() >= MAX_GUESSERS) return false;
+
+        if (!Server.players.transition(player, PlayerRegistry.State.MENU, PlayerRegistry.State.PLAYING)) return false;
+
+        Member member = new Member(player);
+
+        // everyone else hears about it, the player themselves gets the catch-up
+        broadcast.publish(JOINED.fill(player.getUsername()));
+        guessers.add(member);
+
+        List<Message> catchUp = new ArrayList<>();
+        catchUp.add(JOINED_ROOM.fill(host.player.getUsername()));
+        catchUp.add(order.rules);
+        catchUp.add(LEAVE_HINT);
+        catchUp.add(Message.separator());
+        catchUp.add(Message.role(Message.Role.GUESSER));
+
+        switch (phase)
+        {
+            case CHOOSING_SUBJECT -> catchUp.add(THINKING_OF_SUBJECT.fill(host.player.getUsername()));
+            case PLAY_AGAIN ->       catchUp.add(WAITING_FOR_GM);
+            default ->
+            {
+                catchUp.add(CHOSEN_SUBJECT.fill(host.player.getUsername()));
+                catchUp.addAll(transcript);
+            }
+        }
+
+        broadcast.join(member.spectator, catchUp);
+        attach(member);
+
+        if (phase == Phase.ASKING || phase == Phase.ANSWERING)
+        {
+            // the first Guesser of a ROUND_ROBIN round takes the turn nobody had
+            if (order == Order.FIRST_COME) send(member, Message.prompt(Message.Prompt.QUESTION));
+            else if (turnHolder == null) passTurn();
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts feeding a member's messages into the room.
+     *
+     * Non-blocking connections push them through a handler. Blocking players
+     * get a reader task, which takes them back to the menu once they leave.
+     *
+     * @param member The member.
+     */
+    private void attach(Member member)
+    {
+        Connection connection = member.player.getConnection();
+
+        if (connection != null) connection.setHandler(new MemberHandler(member));
+        else Server.threadPool.submit(() -> read(member));
+    }
+
+    /**
+     * Reads a blocking player's messages until they leave the room, then runs
+     * their menu on the same thread.
+     *
+     * @param member The member.
+     */
+    private void read(Member member)
+    {
+        while (!member.released)
+        {
+            String message;
+
+            try
+            {
+                message = member.player.receive(READ_POLL_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (IOException e)
+            {
+                // a player who timed out or was sent away has already been disconnected
+                if (member.player.getState() != null)
+                {
+                    Log.warn("Error receiving from room member", member.player.getId(), Log.NONE, e);
+                }
+
+                onDisconnect(member);
+                return;
+            }
+
+            if (message != null) onMessage(member, message);
+        }
+
+        if (member.player.getState() == PlayerRegistry.State.MENU) new PlayerManager(member.player).run();
+    }
+
+    /**
+     * Asks the Game Master for a subject for a new round.
+     */
+    private void startRound()
+    {
+        subject = "";
+        count = 0;
+        transcript.clear();
+
+        broadcast.publish(Message.separator());
+        broadcast.publish(NEW_ROUND.fill(host.player.getUsername()));
+        send(host, Message.role(Message.Role.GAME_MASTER));
+
+        phase = Phase.CHOOSING_SUBJECT;
+        prompt(host, Message.Prompt.SUBJECT);
+    }
+
+    /**
+     * Handles a message from one of the members.
+     *
+     * The Game Master's messages are taken as whatever the phase is waiting
+     * for, and the Guessers' as questions. Anyone can send LEAVE instead.
+     *
+     * @param from The member who sent the message.
+     * @param message The message received.
+     */
+    private synchronized void onMessage(Member from, String message)
+    {
+        if (!from.present) return;
+
+        if (message.trim().equalsIgnoreCase(LEAVE))
+        {
+            leave(from);
+            return;
+        }
+
+        if (from == host)
+        {
+            switch (phase)
+            {
+                case CHOOSING_SUBJECT -> onSubject(message);
+                case ANSWERING ->        onAnswer(message);
+                case PLAY_AGAIN ->       onDecision(message);
+                default ->               { }
+            }
+        }
+        else if (phase == Phase.ASKING || phase == Phase.ANSWERING)
+        {
+            onQuestion(from, message);
+        }
+    }
+
+    /**
+     * Handles the Game Master's chosen subject and lets the Guessers ask.
+     *
+     * @param message The subject sent by the Game Master.
+     */
+    private void onSubject(String message)
+    {
+        if (message.trim().isEmpty())
+        {
+            prompt(host, Message.Prompt.SUBJECT);
+            return;
+        }
+
+        subject = message;
+        broadcast.publish(CHOSEN_SUBJECT.fill(host.player.getUsername()));
+
+        if (order == Order.FIRST_COME)
+        {
+            for (Member guesser : guessers) send(guesser, Message.prompt(Message.Prompt.QUESTION));
+
+            next();
+        }
+        else
+        {
+            passTurn();
+        }
+    }
+
+    /**
+     * Queues a Guesser's question for the Game Master.
+     *
+     * A Guesser can only have one question queued at a time, and only so many
+     * are taken that the round's MAX_QUESTIONS can all be answered.
+     *
+     * @param from The Guesser who sent the question.
+     * @param question The question.
+     */
+    private void onQuestion(Member from, String question)
+    {
+        // not prompted: already asking, or not their turn
+        if (from.asking || (order == Order.ROUND_ROBIN && from != turnHolder)) return;
+
+        if (question.trim().isEmpty())
+        {
+            if (order == Order.FIRST_COME) send(from, Message.prompt(Message.Prompt.QUESTION));
+            else prompt(from, Message.Prompt.QUESTION);
+
+            return;
+        }
+
+        if (count + queue.size() >= GameSession.MAX_QUESTIONS)
+        {
+            send(from, NO_QUESTIONS_LEFT);
+            return;
+        }
+
+        from.asking = true;
+        queue.add(new Question(from, question));
+
+        if (phase == Phase.ASKING) next();
+    }
+
+    /**
+     * Puts the next queued question to the Game Master, or waits for one.
+     *
+     * In a FIRST_COME room, the round ends if nobody asks anything within
+     * TURN_SECONDS, so a room whose Guessers went quiet doesn't stay open
+     * forever.
+     */
+    private void next()
+    {
+        current = queue.poll();
+
+        if (current == null)
+        {
+            phase = Phase.ASKING;
+
+            if (order == Order.FIRST_COME) schedule(this::onQuiet, TURN_SECONDS);
+
+            return;
+        }
+
+        count++;
+
+        Message asked = QUESTION_FROM.fill(current.from().player.getUsername() + ": " + current.text());
+        transcript.add(asked);
+        broadcast.publish(asked);
+
+        phase = Phase.ANSWERING;
+        prompt(host, Message.Prompt.ANSWER);
+    }
+
+    /**
+     * Gives the turn to the next Guesser in a ROUND_ROBIN room.
+     */
+    private void passTurn()
+    {
+        phase = Phase.ASKING;
+
+        if (guessers.isEmpty())
+        {
+            turnHolder = null;
+            clearDeadline();
+            return;
+        }
+
+        turnIndex = (turnIndex + 1) % guessers.size();
+        turnHolder = guessers.get(turnIndex);
+
+        broadcast.publish(TURN.fill(turnHolder.player.getUsername()));
+        prompt(turnHolder, Message.Prompt.QUESTION);
+    }
+
+    /**
+     * Hands the Game Master's answer to the whole room and decides whether
+     * the round is over.
+     *
+     * @param message The answer sent by the Game Master.
+     */
+    private void onAnswer(String message)
+    {
+        GameSession.Answer answer = message.isEmpty() ? null : GameSession.Answer.fromChar(message.charAt(0));
+
+        if (answer == null)
+        {
+            prompt(host, Message.Prompt.ANSWER);
+            return;
+        }
+
+        Member asker = current.from();
+        asker.asking = false;
+        current = null;
+
+        Message given = Message.answer(answer);
+        transcript.add(given);
+        broadcast.publish(given);
+
+        if (answer == GameSession.Answer.CORRECT)
+        {
+            broadcast.publish(GUESSED.fill(asker.player.getUsername()));
+            endRound();
+            return;
+        }
+
+        if (count == GameSession.MAX_QUESTIONS)
+        {
+            broadcast.publish(RAN_OUT);
+            endRound();
+            return;
+        }
+
+        if (order == Order.FIRST_COME)
+        {
+            if (asker.present) send(asker, Message.prompt(Message.Prompt.QUESTION));
+
+            next();
+        }
+        else
+        {
+            passTurn();
+        }
+    }
+
+    /**
+     * Ends the round when a FIRST_COME room's Guessers went quiet.
+     *
+     * @param expected The deadline that fired.
+     */
+    private synchronized void onQuiet(long expected)
+    {
+        if (expected != turn || phase != Phase.ASKING) return;
+
+        broadcast.publish(WENT_QUIET);
+        endRound();
+    }
+
+    /**
+     * Reveals the subject and asks the Game Master whether to play another round.
+     */
+    private void endRound()
+    {
+        Metrics.ROUNDS.increment();
+        clearDeadline();
+
+        broadcast.publish(REVEAL.fill(subject));
+
+        // questions nobody will answer anymore
+        queue.clear();
+        current = null;
+        turnHolder = null;
+        for (Member guesser : guessers) guesser.asking = false;
+
+        // a server shutting down lets the round finish but doesn't start another
+        if (Shutdown.inProgress())
+        {
+            close(ROOM_CLOSED);
+            return;
+        }
+
+        for (Member guesser : guessers) send(guesser, WAITING_FOR_GM);
+
+        phase = Phase.PLAY_AGAIN;
+        send(host, ANOTHER_ROUND);
+        send(host, Message.prompt(Message.Prompt.PLAY_AGAIN));
+        schedule(this::onPlayAgainTimeout, PLAY_AGAIN_SECONDS);
+    }
+
+    /**
+     * Starts another round or closes the room, as the Game Master decided.
+     *
+     * @param message The decision sent by the Game Master.
+     */
+    private void onDecision(String message)
+    {
+        char decision = message.isEmpty() ? ' ' : Character.toLowerCase(message.charAt(0));
+
+        if (decision == 'y')
+        {
+            clearDeadline();
+            startRound();
+        }
+        else if (decision == 'n')
+        {
+            close(ROOM_CLOSED);
+        }
+        else
+        {
+            send(host, Message.prompt(Message.Prompt.PLAY_AGAIN));
+        }
+    }
+
+    /**
+     * Closes the room when the Game Master doesn't decide on another round in time.
+     *
+     * @param expected The deadline that fired.
+     */
+    private synchronized void onPlayAgainTimeout(long expected)
+    {
+        if (expected != turn || phase != Phase.PLAY_AGAIN) return;
+
+        Metrics.PLAY_AGAIN_TIMEOUTS.increment();
+        close(ROOM_CLOSED);
+    }
+
+    /**
+     * Handles a member who takes longer than TURN_SECONDS over a turn.
+     *
+     * A Guesser just loses their turn. A Game Master is disconnected, like an
+     * idle player in a GameSession, and the room is closed.
+     *
+     * @param member The member who was prompted.
+     * @param expected The deadline that fired.
+     */
+    private synchronized void onTurnTimeout(Member member, long expected)
+    {
+        if (expected != turn || !member.present || phase == Phase.PLAY_AGAIN || phase == Phase.CLOSED) return;
+
+        Metrics.TURN_TIMEOUTS.increment();
+
+        if (member != host)
+        {
+            broadcast.publish(SKIPPED.fill(member.player.getUsername()));
+            passTurn();
+            return;
+        }
+
+        Log.info("Room " + id + " Game Master timed out", host.player.getId(), Log.NONE);
+
+        host.present = false;
+        broadcast.leave(host.spectator);
+        Server.players.remove(host.player);
+        close(GM_TIMED_OUT);
+
+        host.player.disconnect(TURN_TIMED_OUT);
+    }
+
+    /**
+     * Takes a member out of the room at their request, after everything the
+     * room sent them before. The room closes if they are its Game Master.
+     *
+     * @param member The member leaving.
+     */
+    private void leave(Member member)
+    {
+        broadcast.dismiss(member.spectator, LEFT_ROOM);
+
+        if (member == host)
+        {
+            host.present = false;
+            close(GM_LEFT);
+            return;
+        }
+
+        removeGuesser(member);
+    }
+
+    /**
+     * Takes a member whose connection dropped out of the room.
+     *
+     * @param member The member who disconnected.
+     */
+    private synchronized void onDisconnect(Member member)
+    {
+        if (!member.present) return;
+
+        broadcast.leave(member.spectator);
+        Server.players.remove(member.player);
+
+        if (member == host)
+        {
+            host.present = false;
+            close(GM_LEFT);
+            return;
+        }
+
+        removeGuesser(member);
+    }
+
+    /**
+     * Takes a Guesser out of the room, with their queued question, and passes
+     * the turn on if it was theirs.
+     *
+     * @param member The Guesser.
+     */
+    private void removeGuesser(Member member)
+    {
+        member.present = false;
+
+        int index = guessers.indexOf(member);
+        guessers.remove(index);
+        queue.removeIf(question -> question.from() == member);
+
+        broadcast.publish(LEFT.fill(member.player.getUsername()));
+
+        // keep the turn order of everyone after them
+        if (index < turnIndex)
+        {
+            turnIndex--;
+        }
+        else if (member == turnHolder)
+        {
+            turnIndex--;
+
+            // a question of theirs being answered passes the turn on once it is
+            if (phase == Phase.ASKING) passTurn();
+        }
+    }
+
+    /**
+     * Sends a member back to the menu once they are out of the room, whether
+     * they left, it closed or they fell too far behind it. Runs on the thread
+     * pool, after everything the room sent them before.
+     *
+     * @param member The member.
+     * @param notice Why they are out of the room.
+     */
+    private void release(Member member, Message notice)
+    {
+        synchronized (this)
+        {
+            // fell behind while still in the room
+            if (member.present)
+            {
+                if (member == host)
+                {
+                    host.present = false;
+                    close(GM_LEFT);
+                }
+                else
+                {
+                    removeGuesser(member);
+                }
+            }
+        }
+
+        Player player = member.player;
+
+        try
+        {
+            player.send(notice);
+            player.send(Message.separator());
+            player.flush();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error sending to room member", player.getId(), Log.NONE, e);
+        }
+
+        // a blocking player's reader runs the menu, and a player who is gone doesn't get one
+        if (!Server.players.transition(player, PlayerRegistry.State.PLAYING, PlayerRegistry.State.MENU)
+            || player.getConnection() == null)
+        {
+            member.released = true;
+            return;
+        }
+
+        Server.threadPool.submit(new PlayerManager(player));
+    }
+
+    /**
+     * Closes the room, sending every member still in it back to the menu
+     * after everything the room sent them before.
+     *
+     * @param notice The message telling them why.
+     */
+    private void close(Message notice)
+    {
+        phase = Phase.CLOSED;
+        OPEN.remove(this);
+        clearDeadline();
+
+        host.present = false;
+        for (Member guesser : guessers) guesser.present = false;
+
+        guessers.clear();
+        queue.clear();
+        current = null;
+        turnHolder = null;
+
+        broadcast.end(notice);
+
+        Log.info("Room " + id + " closed");
+    }
+
+    /**
+     * Prompts a member for their move and starts timing the turn.
+     *
+     * @param member The member whose turn it is.
+     * @param prompt The move they are asked for.
+     */
+    private void prompt(Member member, Message.Prompt prompt)
+    {
+        send(member, Message.prompt(prompt));
+        schedule(expected -> onTurnTimeout(member, expected), TURN_SECONDS);
+    }
+
+    /**
+     * Sends a message to a single member, in order with the room's events.
+     *
+     * @param member The member.
+     * @param message The message.
+     */
+    private void send(Member member, Message message)
+    {
+        broadcast.send(member.spectator, message);
+    }
+
+    /**
+     * Replaces the pending deadline with a new one.
+     *
+     * @param action What to do when it fires, given the deadline's number to check it isn't stale.
+     * @param seconds How long from now it fires.
+     */
+    private void schedule(LongConsumer action, int seconds)
+    {
+        clearDeadline();
+
+        long expected = ++turn;
+        deadline = Server.timer.schedule(() -> action.accept(expected), seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Cancels the pending deadline, if any.
+     */
+    private void clearDeadline()
+    {
+        if (deadline != null)
+        {
+            deadline.cancel();
+            deadline = null;
+        }
+    }
+
+    /**
+     * Feeds a member's messages from their connection into the room.
+     */
+    private class MemberHandler implements MessageHandler
+    {
+        private final Member member;
+
+        /**
+         * @param member The member whose connection this handler serves.
+         */
+        MemberHandler(Member member)
+        {
+            this.member = member;
+        }
+
+        @Override
+        public void onMessage(String message)
+        {
+            Room.this.onMessage(member, message);
+        }
+
+        @Override
+        public void onDisconnect()
+        {
+            Room.this.onDisconnect(member);
+        }
+    }
+}
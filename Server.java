@@ -1,14 +1,16 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
-import java.util.Vector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-/*
- *  future enhancement: 
- *  - implement graceful shutdown of server with proper resource cleanup
- *  - receive port number from command line arguments
- */
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
 
 /**
  * Server implementation for a multiplayer 20 Questions game.
@@ -17,10 +19,12 @@ import java.util.concurrent.Executors;
  * on a specified port and assigns each client to a handler thread 
  * from a fixed-size thread pool.
  */
-public class Server 
+public class Server implements Runnable, Closeable
 {
     private Socket clientSocket;         
-    private ServerSocket serverSocket;   
+    private final ServerSocket serverSocket;   
+    /** Set once close() stopped the server, which leaves the shared pools running. */
+    private volatile boolean closed = false;
 
     /**
      * Thread pool that manages concurrent client connections.
@@ -28,94 +32,365 @@ public class Server
      * Limited to 20 concurrent threads to prevent resource exhaustion while 
      * supporting multiple simultaneous game sessions. Static to allow access 
      * across all server components.
+     * 
+     * Can be replaced at startup with a virtual-thread-per-task executor (see
+     * useVirtualThreads()), which removes the limit entirely since a virtual 
+     * thread blocked in readUTF() doesn't hold on to a platform thread.
      */
     protected static ExecutorService threadPool = Executors.newFixedThreadPool(20);
 
     /**
-     * Tracks all players currently connected, making resource cleanup easier.
+     * Runs every player timeout: turn deadlines, menu idle kicks, matchmaking
+     * timeouts and play-again windows, so no thread has to sleep or block
+     * while waiting for a deadline.
+     * 
+     * The hand moves every 100 ms and goes round in about 51 seconds; longer
+     * timeouts simply wait for more turns.
+     */
+    protected static TimingWheel timer = new TimingWheel("timing-wheel", 100, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * Tracks all players currently connected, indexed by ID and username,
+     * along with where each of them is (menu, matchmaking or game).
+     * Keeps usernames unique and makes resource cleanup easier.
      */
-    protected static Vector<Player> allPlayers = new Vector<>();
+    protected static PlayerRegistry players = new PlayerRegistry();
 
     /**
-     * Tracks players waiting to be matched with opponents.
+     * Pairs up players waiting to be matched with opponents.
      * 
-     * Players are added here when they connect and removed when matched
-     * with another player to form a game session. Used by the matchmaking system.
+     * Players are added here when they choose to play and are matched with
+     * the next player to arrive, forming a game session.
      */
-    protected static Vector<Player> waitingQueue = new Vector<>();   
+    protected static Matchmaker matchmaker = new Matchmaker();
 
     /**
-     * Tracks players currently participating in active games.
+     * Records every game session event so games survive a restart.
      * 
-     * Players move here from the waitingQueue when matched and return to the
-     * waitingQueue when their game ends. Used to monitor active game sessions.
+     * Disabled unless the server is started with --journal.
+     */
+    protected static Journal journal = Journal.disabled();
+
+    /**
+     * Shares matchmaking with the other server nodes, so players waiting on
+     * different nodes can still be matched with each other.
+     * 
+     * Disabled unless the server is started with --node (see Cluster).
+     */
+    protected static Cluster cluster = Cluster.disabled();
+
+    /**
+     * Keeps live statistics over the games played: the most chosen subjects,
+     * questions it takes to win and how often each answer is given.
      */
-    protected static Vector<Player> playingList = new Vector<>();   
+    protected static Analytics analytics = new Analytics("analytics");
+
+    /**
+     * The context the server's TLS connections are made from, also used by
+     * cluster nodes to relay players to each other.
+     * 
+     * Null, for plaintext, unless the server is started with --tls (see Tls).
+     */
+    protected static SSLContext tls = null;
     
     /**
-     * Constructor that initializes and runs the server.
+     * Constructor that opens the server socket.
      * 
-     * Creates a server socket that continuously accepts client connections
-     * and passes each connected client to a LogPlayer handler running in the thread 
-     * pool. The server runs indefinitely until interrupted by an exception or
-     * external termination signal.
+     * With a TLS context the server socket is an SSLServerSocket, and each
+     * connection's handshake runs on its own pool thread at its first read.
      * 
      * @param port The port number on which the server listens for connections.
+     * @param tls The server's TLS context (see Tls), or null for plaintext.
+     * @throws IOException If the server socket can't be opened.
      */
-    public Server(int port)
+    public Server(int port, SSLContext tls) throws IOException
+    {
+        serverSocket = tls != null ? tls.getServerSocketFactory().createServerSocket(port) : new ServerSocket(port);
+        Shutdown.setListener(serverSocket);
+        Log.info(tls != null ? "Server started over TLS" : "Server started");
+    }
+
+    /**
+     * Runs the server.
+     * 
+     * Continuously accepts client connections and passes each connected
+     * client to a LogPlayer handler running in the thread pool. The server
+     * runs until a shutdown (see Shutdown) or close() closes its socket, or
+     * until accepting fails, in which case everything is closed right away.
+     */
+    public void run()
     {
         try
         {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started.");
-
-            // at the moment, it only terminates if ctrl+c is pressed
+            // runs until a shutdown closes the server socket
             while (true)
             {
-                System.out.println("\nWaiting for players...");
+                Log.debug("Waiting for players");
                 
                 clientSocket = serverSocket.accept();  
-                System.out.println("\nPlayer connected.");    
+                clientSocket.setTcpNoDelay(true);
+                Log.info("Player connected");
+                Metrics.CONNECTIONS.increment();
 
                 threadPool.submit(new LogPlayer(clientSocket));
             }
         }
         catch(IOException e)
         {
-            System.out.println("\nError creating server socket: " + e.getMessage());
+            // a shutdown drains the server itself, closing the socket is how it stops this loop
+            if (!Shutdown.inProgress() && !closed)
+            {
+                Log.warn("Error accepting connections", e);
+            }
         }
         finally 
         {   
-            // clean up resources
-            try 
+            // clean up resources, unless a shutdown is already draining the server
+            if (!Shutdown.inProgress() && !closed)
             {
-                if (serverSocket != null) serverSocket.close();
-                if (clientSocket != null) clientSocket.close();
+                try 
+                {
+                    serverSocket.close();
+                    if (clientSocket != null) clientSocket.close();
                 
-                threadPool.shutdown();
+                    threadPool.shutdown();
                 
-                // close all player connections
-                for (Player player : allPlayers) 
+                    // close all player connections
+                    for (Player player : players.all()) 
+                    {
+                        player.close();
+                    }
+                } 
+                catch (IOException e) 
                 {
-                    if (player.getSocket() != null) player.getSocket().close();
+                    Log.warn("Error closing resources", e);
                 }
-            } 
-            catch (IOException e) 
-            {
-                System.out.println("\nError closing resources: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Stops accepting connections, leaving the players already connected,
+     * the thread pool and the other shared parts running, so several servers
+     * can come and go in one JVM, like the benchmarks' do. Players still
+     * connected leave when their clients disconnect.
+     * 
+     * @throws IOException If the server socket can't be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+    }
+
+    /**
+     * Backs the thread pool with a virtual-thread-per-task executor.
+     * 
+     * Every task on the pool (login, menu, matchmaking, game sessions and play 
+     * again prompts) blocks on socket I/O, so with virtual threads each of them 
+     * only costs a small heap-allocated stack while it waits instead of a pooled 
+     * platform thread. The executor is looked up reflectively so the server 
+     * still compiles and runs on JVMs older than 21, where the fixed pool is kept.
+     * 
+     * With tracePinning enabled, the JVM prints a stack trace whenever a 
+     * virtual thread blocks while pinned to its carrier, e.g. while holding the 
+     * monitor of one of the shared Vectors. The same events are also recorded 
+     * as jdk.VirtualThreadPinned when running with Java Flight Recorder.
+     * 
+     * @param tracePinning Whether to print stack traces of pinned virtual threads.
+     * @return true if the pool now uses virtual threads.
+     */
+    protected static boolean useVirtualThreads(boolean tracePinning)
+    {
+        // must be set before the first virtual thread is created to take effect
+        if (tracePinning) System.setProperty("jdk.tracePinnedThreads", "full");
+
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService virtualPool = (ExecutorService) factory.invoke(null);
+
+            // the fixed pool hasn't started any threads yet, so this releases nothing in use
+            threadPool.shutdown();
+            threadPool = virtualPool;
+
+            return true;
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            Log.warn("Virtual threads are not available on this JVM (Java 21+ required), "
+                + "keeping the fixed thread pool", null);
+
+            return false;
+        }
+    }
+
     /**
      * Entry point for the game server application.
      * 
-     * Creates a Server instance on port 5000 to start the game server.
+     * Creates a Server instance on port 5000 (or the port given on the command
+     * line) to start the game server. Passing --nio starts the non-blocking
+     * EventLoopServer instead, with one event loop per available processor.
+     * Passing --virtual-threads backs the thread pool with virtual threads, and
+     * --trace-pinning additionally reports virtual threads pinned to a carrier.
+     * Passing --admin with a port serves Prometheus metrics and a shutdown
+     * command on that local admin port (see AdminServer), and --grace sets how
+     * many seconds games in progress get to finish when shutting down.
+     * Passing --journal with a directory records game sessions there, and
+     * recovers the sessions a previous run left unfinished (see Journal).
+     * Passing --node with an ID makes this server a node of a cluster: it
+     * listens for the other nodes on --cluster-port and links to the nodes
+     * listed with --peers, sharing its waiting players with them (see Cluster).
+     * The cluster port is on the loopback interface unless --cluster-bind
+     * gives another, and the nodes authenticate each other with --tls, with
+     * the --cluster-secret they are all given, or both.
+     * Passing --match-bound sets how many seconds a player waits at most
+     * before being matched with anyone, whatever their rating (see Matchmaker),
+     * and --bot-wait how many seconds before a bot plays them instead, or a
+     * negative number to never match players with a bot.
+     * Passing --log with a directory writes the log to rotated files there
+     * instead of stdout, and --log-level sets the least important entries
+     * logged: debug, info, warn or error (see Log).
+     * Passing --tls with a keystore file, and --tls-password with its
+     * password, runs every client connection over TLS with the certificate
+     * and key in it (see Tls).
+     * 
+     * Usage: java Server [port] [--nio] [--virtual-threads [--trace-pinning]] [--admin admin-port] [--grace seconds]
+     *                    [--journal directory] [--node id --cluster-port port [--peers host:port,...]
+     *                    [--cluster-bind address] [--cluster-secret secret]]
+     *                    [--match-bound seconds] [--bot-wait seconds] [--log directory] [--log-level level]
+     *                    [--tls keystore --tls-password password]
      * 
-     * @param args Command line arguments (not used)
+     * @param args Command line arguments (optional port and mode flags)
      */
     public static void main(String args[])
     {
-        Server server = new Server(5000);  // create server on port 5000
+        int port = 5000;
+        boolean nio = false;
+        boolean virtualThreads = false;
+        boolean tracePinning = false;
+        int adminPort = -1;
+        String journalDirectory = null;
+        String logDirectory = null;
+        String keyStore = null;
+        char[] keyStorePassword = null;
+        int nodeId = -1;
+        int clusterPort = -1;
+        String clusterBind = null;
+        byte[] clusterSecret = null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--nio")) nio = true;
+            else if (args[i].equals("--virtual-threads")) virtualThreads = true;
+            else if (args[i].equals("--trace-pinning")) tracePinning = true;
+            else if (args[i].equals("--admin") || args[i].equals("--metrics")) adminPort = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--grace")) Shutdown.setGracePeriod(Integer.parseInt(args[++i]));
+            else if (args[i].equals("--journal")) journalDirectory = args[++i];
+            else if (args[i].equals("--match-bound")) matchmaker.setMatchBound(Integer.parseInt(args[++i]));
+            else if (args[i].equals("--bot-wait")) matchmaker.setBotWait(Integer.parseInt(args[++i]));
+            else if (args[i].equals("--log")) logDirectory = args[++i];
+            else if (args[i].equals("--log-level")) Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase(Locale.ROOT)));
+            else if (args[i].equals("--tls")) keyStore = args[++i];
+            else if (args[i].equals("--tls-password")) keyStorePassword = args[++i].toCharArray();
+            else if (args[i].equals("--node")) nodeId = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cluster-port")) clusterPort = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cluster-bind")) clusterBind = args[++i];
+            else if (args[i].equals("--cluster-secret")) clusterSecret = args[++i].getBytes(StandardCharsets.UTF_8);
+            else if (args[i].equals("--peers"))
+            {
+                for (String peer : args[++i].split(","))
+                {
+                    int colon = peer.lastIndexOf(':');
+                    peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                }
+            }
+            else port = Integer.parseInt(args[i]);
+        }
+
+        if (logDirectory != null)
+        {
+            try
+            {
+                Log.toDirectory(Paths.get(logDirectory));
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error opening log file, logging to stdout", e);
+            }
+        }
+
+        if (keyStore != null)
+        {
+            try
+            {
+                tls = Tls.server(Paths.get(keyStore), keyStorePassword);
+            }
+            catch (IOException | GeneralSecurityException e)
+            {
+                // carrying on in plaintext would send what was meant to be private in the clear
+                Log.error("Error loading TLS keystore, not starting", e);
+                Log.stop();
+                System.exit(1);
+            }
+        }
+
+        if (virtualThreads && useVirtualThreads(tracePinning))
+        {
+            Log.info("Thread pool is using virtual threads");
+        }
+
+        if (journalDirectory != null)
+        {
+            try
+            {
+                journal = Journal.open(Paths.get(journalDirectory));
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error opening journal, games won't survive a restart", e);
+            }
+        }
+
+        if (nodeId >= 0)
+        {
+            try
+            {
+                InetAddress bindAddress = clusterBind != null
+                    ? InetAddress.getByName(clusterBind) : InetAddress.getLoopbackAddress();
+                cluster = Cluster.start(nodeId, bindAddress, clusterPort, port, peers, clusterSecret);
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error starting cluster node, matching local players only", e);
+            }
+        }
+
+        if (adminPort >= 0)
+        {
+            try
+            {
+                AdminServer.start(adminPort);
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error starting admin endpoint", e);
+            }
+        }
+
+        Shutdown.installHook();
+
+        try
+        {
+            if (nio) new EventLoopServer(port, Runtime.getRuntime().availableProcessors(), tls).run();
+            else new Server(port, tls).run();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error creating server socket", e);
+            threadPool.shutdown();
+        }
     }
 }
\ No newline at end of file
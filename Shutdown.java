@@ -0,0 +1,228 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains the server and stops it without dropping games that can still finish.
+ *
+ * A shutdown is triggered either by a signal (Ctrl+C or SIGTERM, through a
+ * JVM shutdown hook) or by POST /shutdown on the admin endpoint. Whichever
+ * comes first runs the drain, and a later trigger simply waits for it.
+ *
+ * The drain goes through these phases:
+ * 1. The listening socket is closed, so no new connections are accepted
+ * 2. Players at the menu or in the matchmaking queue are told the server is
+ *    going down and disconnected, and no new games are started
+ * 3. Games in progress get a grace period to finish their current round;
+ *    they end after it instead of asking to play again. In a cluster, this
+ *    includes the games of players relayed to other nodes, and rooms close
+ *    the same way
+ * 4. Whoever is still connected when the grace period is over is told their
+ *    game couldn't be finished and disconnected
+ * 5. The thread pool and timing wheel are stopped, the journal is closed,
+ *    and the links to the other cluster nodes are closed
+ *
+ * The time taken and the number of sessions finished and dropped are reported
+ * once the drain is over.
+ */
+public class Shutdown
+{
+    private static final Message SHUTTING_DOWN = Message.info("\nThe server is shutting down. Goodbye!");
+    private static final Message GAME_DROPPED = Message.info("\nThe server is shutting down before your game could finish. Goodbye!");
+
+    /** How long in-progress games get to finish, in seconds. */
+    private static int gracePeriod = 30;
+
+    /** How long the thread pool gets to finish its tasks once every player is gone, in seconds. */
+    private static final int POOL_TIMEOUT = 2;
+
+    private static volatile boolean inProgress = false;
+    private static boolean done = false;
+
+    /** Players disconnected by the shutdown, whether sent away early or once their game ended. */
+    private static final AtomicInteger disconnected = new AtomicInteger();
+
+    /** The socket accepting new connections, closed first. */
+    private static volatile Closeable listener;
+
+    /**
+     * Sets how long in-progress games get to finish.
+     *
+     * @param seconds The grace period in seconds.
+     */
+    public static void setGracePeriod(int seconds)
+    {
+        gracePeriod = seconds;
+    }
+
+    /**
+     * Registers the server's listening socket so a shutdown can close it.
+     *
+     * @param socket The ServerSocket or ServerSocketChannel accepting connections.
+     */
+    public static void setListener(Closeable socket)
+    {
+        listener = socket;
+    }
+
+    /**
+     * Checks whether the server is shutting down.
+     *
+     * @return true once a shutdown has started.
+     */
+    public static boolean inProgress()
+    {
+        return inProgress;
+    }
+
+    /**
+     * Makes Ctrl+C and SIGTERM shut the server down gracefully.
+     */
+    public static void installHook()
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> run("signal"), "shutdown-hook"));
+    }
+
+    /**
+     * Drains and stops the server.
+     *
+     * Only the first call does anything; later ones wait until it's done.
+     *
+     * @param reason What triggered the shutdown, for the log.
+     */
+    public static synchronized void run(String reason)
+    {
+        if (done) return;
+
+        inProgress = true;
+        long start = System.nanoTime();
+
+        Log.info("Shutting down (" + reason + "), games in progress have " + gracePeriod + " sec. to finish");
+
+        // phase 1: stop accepting connections
+        try
+        {
+            if (listener != null) listener.close();
+        }
+        catch (IOException e)
+        {
+            Log.warn("Error closing server socket", e);
+        }
+
+        // phase 2: release everyone who isn't in a game
+        for (Player player : Server.players.all())
+        {
+            if (player.getState() != PlayerRegistry.State.PLAYING) leave(player);
+        }
+
+        // phase 3: give games in progress time to finish
+        int sessions = GameSession.active();
+        long deadline = start + TimeUnit.SECONDS.toNanos(gracePeriod);
+
+        try
+        {
+            while ((GameSession.active() > 0 || Room.active() > 0 || Server.cluster.relays() > 0)
+                && System.nanoTime() < deadline)
+            {
+                Thread.sleep(100);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // phase 4: drop whatever is still running
+        int dropped = GameSession.active();
+
+        // everyone is unregistered before anyone is closed, so a dropped session
+        // doesn't tell a player their opponent left when both are being sent away
+        List<Player> remaining = new ArrayList<>();
+
+        for (Player player : Server.players.all())
+        {
+            if (Server.players.remove(player)) remaining.add(player);
+        }
+
+        for (Player player : remaining)
+        {
+            sayGoodbye(player, GAME_DROPPED);
+        }
+
+        // phase 5: stop the pools
+        Server.threadPool.shutdown();
+        Server.timer.stop();
+        Server.analytics.stop();
+        AdminServer.stop();
+        Server.journal.close();
+        Server.cluster.close();
+
+        try
+        {
+            // blocking tasks end on their own once their sockets are closed
+            if (!Server.threadPool.awaitTermination(POOL_TIMEOUT, TimeUnit.SECONDS))
+            {
+                Server.threadPool.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Server.threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        done = true;
+
+        Log.info("Server shut down in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+            + (sessions - dropped) + " of " + sessions + " sessions finished, " + dropped + " dropped, "
+            + disconnected.get() + " players disconnected");
+
+        // last, so everything above reaches the log before the process exits
+        Log.stop();
+    }
+
+    /**
+     * Tells a player the server is going down and disconnects them.
+     *
+     * @param player The player to disconnect.
+     * @return true if the player was still connected.
+     */
+    public static boolean leave(Player player)
+    {
+        return leave(player, SHUTTING_DOWN);
+    }
+
+    /**
+     * Sends a player a parting message and disconnects them.
+     *
+     * @param player The player to disconnect.
+     * @param notice The message explaining why.
+     * @return true if the player was still connected.
+     */
+    private static boolean leave(Player player, Message notice)
+    {
+        // whoever removes the player first is the one who says goodbye
+        if (!Server.players.remove(player)) return false;
+
+        sayGoodbye(player, notice);
+
+        return true;
+    }
+
+    /**
+     * Sends a player who has already been unregistered a parting message, then
+     * closes their connection.
+     *
+     * @param player The player to disconnect.
+     * @param notice The message explaining why.
+     */
+    private static void sayGoodbye(Player player, Message notice)
+    {
+        disconnected.incrementAndGet();
+
+        Server.matchmaker.cancel(player);
+        player.disconnect(notice);
+    }
+}
\ No newline at end of file
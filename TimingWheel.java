@@ -0,0 +1,363 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel that runs every player timeout on a single thread.
+ *
+ * The wheel is a ring of buckets, each a doubly linked list of timeouts, and
+ * a hand that moves on to the next bucket every tick. A timeout is hashed to
+ * the bucket the hand will be on when it is due, along with the number of
+ * full turns the hand has to make first, so scheduling and cancelling are
+ * both O(1) however many timeouts are pending, and each tick only looks at
+ * one bucket. A timeout fires at most one tick after its deadline, which is
+ * plenty for timeouts measured in seconds.
+ *
+ * Only the wheel's thread touches the buckets. New and cancelled timeouts
+ * reach it through lock-free queues and are linked into or unlinked from
+ * their bucket on the next tick, so scheduling never takes a lock.
+ *
+ * The wheel's thread only does the bookkeeping: due tasks are handed to a
+ * cached pool of the wheel's own and run there, so a task that blocks, like
+ * a goodbye written to a client who stopped reading, only holds up its own
+ * thread and never the hand or the other timeouts. The pool isn't the
+ * server's thread pool on purpose: in the blocking server that pool can be
+ * full of players waiting on their sockets, and timeouts are what frees it.
+ */
+public class TimingWheel
+{
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /** Most new timeouts moved into the wheel per tick, so a burst can't delay the hand. */
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final LongAdder pending = new LongAdder();
+
+    private final Thread worker;
+    /** Where due tasks run, growing a thread whenever all of them are busy. */
+    private final ExecutorService tasks;
+    private volatile boolean stopped = false;
+
+    /** Ticks the hand has made since the wheel started, only used by the worker. */
+    private long tick = 0;
+
+    /**
+     * A task scheduled on the wheel, which can be cancelled until it runs.
+     */
+    public final class Timeout
+    {
+        private final Runnable task;
+        /** When the task is due, in nanoseconds since the wheel started. */
+        private final long deadline;
+
+        /** Full turns the hand still has to make before the task is due. */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        /** PENDING, CANCELLED or EXPIRED, updated through STATE. */
+        volatile int state = PENDING;
+
+        /**
+         * @param task The task to run.
+         * @param deadline When the task is due, in nanoseconds since the wheel started.
+         */
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, unless it has already run or is running.
+         *
+         * @return true if the task will never run, false if it was too late.
+         */
+        public boolean cancel()
+        {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+
+            pending.decrement();
+
+            // unlinked from its bucket by the wheel's thread on the next tick
+            cancelled.add(this);
+
+            return true;
+        }
+    }
+
+    /**
+     * The timeouts hashed to one slot of the wheel, as a doubly linked list.
+     */
+    private static final class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        /**
+         * Appends a timeout to the bucket.
+         *
+         * @param timeout The timeout, not in any bucket yet.
+         */
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+
+            if (head == null)
+            {
+                head = tail = timeout;
+            }
+            else
+            {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Unlinks a timeout from the bucket.
+         *
+         * @param timeout A timeout in this bucket.
+         * @return The timeout that followed it.
+         */
+        Timeout remove(Timeout timeout)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+
+            return next;
+        }
+    }
+
+    /**
+     * Initializes a wheel and starts its thread.
+     *
+     * A timeout can be scheduled any distance ahead; the wheel only sets how
+     * often the hand moves and how many timeouts share a bucket.
+     *
+     * @param name The name of the wheel's thread.
+     * @param tickDuration How long the hand stays on each bucket.
+     * @param unit The unit of tickDuration.
+     * @param size The number of buckets, a power of two.
+     */
+    public TimingWheel(String name, long tickDuration, TimeUnit unit, int size)
+    {
+        if (size <= 0 || (size & (size - 1)) != 0)
+        {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + size);
+        }
+
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+        {
+            wheel[i] = new Bucket();
+        }
+
+        mask = size - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        startTime = System.nanoTime();
+
+        AtomicInteger threads = new AtomicInteger();
+        tasks = Executors.newCachedThreadPool(task ->
+        {
+            Thread thread = new Thread(task, name + "-task-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task The task, run on one of the wheel's task threads.
+     * @param delay How long to wait before running it.
+     * @param unit The unit of delay.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+
+        pending.increment();
+        added.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Gets the number of tasks that are scheduled and haven't run yet.
+     *
+     * @return The number of pending timeouts.
+     */
+    public long pending()
+    {
+        return pending.sum();
+    }
+
+    /**
+     * Stops the wheel. Tasks that haven't started yet never will, and those
+     * running are left to finish.
+     */
+    public void stop()
+    {
+        stopped = true;
+        LockSupport.unpark(worker);
+        tasks.shutdown();
+    }
+
+    /**
+     * Moves the hand one bucket per tick and runs whatever is due, until stopped.
+     *
+     * This method:
+     * 1. Waits for the end of the current tick
+     * 2. Unlinks the timeouts cancelled since the last tick
+     * 3. Hashes the timeouts scheduled since the last tick to their buckets
+     * 4. Hands the due timeouts in the current bucket to the task threads and
+     *    counts down the rest
+     */
+    private void run()
+    {
+        while (!stopped)
+        {
+            // phase 1: wait for the tick to end
+            long now = waitForNextTick();
+            if (stopped) break;
+
+            // phase 2: unlink cancelled timeouts
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null)
+            {
+                if (timeout.bucket != null) timeout.bucket.remove(timeout);
+            }
+
+            // phase 3: hash new timeouts to their buckets
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (timeout = added.poll()) != null; i++)
+            {
+                if (timeout.state != PENDING) continue;
+
+                long due = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (due - tick) / wheel.length;
+
+                // a timeout already overdue goes in the current bucket and runs right away
+                wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+            }
+
+            // phase 4: expire the current bucket
+            expire(wheel[(int) (tick & mask)], now);
+
+            tick++;
+        }
+    }
+
+    /**
+     * Waits until the hand is due to move on.
+     *
+     * @return The time the tick ended, in nanoseconds since the wheel started.
+     */
+    private long waitForNextTick()
+    {
+        long deadline = tickNanos * (tick + 1);
+
+        while (true)
+        {
+            long now = System.nanoTime() - startTime;
+
+            if (now >= deadline || stopped) return now;
+
+            LockSupport.parkNanos(this, deadline - now);
+        }
+    }
+
+    /**
+     * Hands the due timeouts in a bucket to the task threads and counts down
+     * the others.
+     *
+     * @param bucket The bucket under the hand.
+     * @param now The current time, in nanoseconds since the wheel started.
+     */
+    private void expire(Bucket bucket, long now)
+    {
+        Timeout timeout = bucket.head;
+
+        while (timeout != null)
+        {
+            if (timeout.remainingRounds > 0 || timeout.deadline > now)
+            {
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+                continue;
+            }
+
+            Timeout next = bucket.remove(timeout);
+
+            if (STATE.compareAndSet(timeout, PENDING, EXPIRED))
+            {
+                pending.decrement();
+
+                Runnable task = timeout.task;
+
+                try
+                {
+                    tasks.execute(() -> runTask(task));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // stopped while expiring, the task never runs like the ones still pending
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Runs a due task on a task thread.
+     *
+     * @param task The task.
+     */
+    private static void runTask(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            Log.error("Error running timeout", e);
+        }
+    }
+}
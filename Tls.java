@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import javax.net.ssl.*;
+
+/**
+ * Sets up the TLS contexts of the server, the client and the load tools.
+ *
+ * The server loads its certificate and private key from a keystore file,
+ * like the one keytool creates, and trusts the certificates in that same
+ * keystore, so cluster nodes started with one keystore can relay players to
+ * each other over TLS too. Clients load the certificates they trust from a
+ * truststore file, or use the JVM's default ones.
+ *
+ * Every connection of a server or a client is made from the same context,
+ * which is what makes session resumption work: the server keeps the sessions
+ * it has set up (or hands out TLS 1.3 session tickets), and a client that
+ * reconnects to the same host and port offers its last session back, so the
+ * reconnect skips the certificate exchange and its signatures.
+ */
+public class Tls
+{
+    /** Sessions the server keeps for clients to resume. */
+    private static final int SESSION_CACHE_SIZE = 20_000;
+
+    /** How long a session can be resumed for, in seconds. */
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    /**
+     * Creates the server's context from a keystore.
+     *
+     * @param keyStore The keystore with the server's certificate and private key.
+     * @param password The keystore's password, also used for the key.
+     * @return The context every connection of the server is made from.
+     * @throws IOException If the keystore can't be read.
+     * @throws GeneralSecurityException If the keystore or its key can't be used.
+     */
+    public static SSLContext server(Path keyStore, char[] password) throws IOException, GeneralSecurityException
+    {
+        KeyStore store = load(keyStore, password);
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+        return context;
+    }
+
+    /**
+     * Creates a client's context.
+     *
+     * @param trustStore The truststore with the certificates to trust, or
+     *        null to trust the JVM's default certificate authorities.
+     * @param password The truststore's password, or null.
+     * @return The context every connection of the client is made from.
+     * @throws IOException If the truststore can't be read.
+     * @throws GeneralSecurityException If the truststore can't be used.
+     */
+    public static SSLContext client(Path trustStore, char[] password) throws IOException, GeneralSecurityException
+    {
+        TrustManager[] trusted = null;
+
+        if (trustStore != null)
+        {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(trustStore, password));
+            trusted = trust.getTrustManagers();
+        }
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trusted, null);
+
+        return context;
+    }
+
+    /**
+     * Loads a keystore file of any type the JVM knows, such as PKCS12.
+     *
+     * @param file The keystore file.
+     * @param password The keystore's password, or null.
+     * @return The keystore.
+     * @throws IOException If the file doesn't exist or can't be read.
+     * @throws GeneralSecurityException If the file isn't a keystore or the password is wrong.
+     */
+    private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException
+    {
+        if (!Files.isRegularFile(file)) throw new FileNotFoundException(file.toString());
+
+        return KeyStore.getInstance(file.toFile(), password);
+    }
+
+    /**
+     * Creates the engine for a connection the server accepted.
+     *
+     * @param context The server's context.
+     * @return The engine, in server mode.
+     */
+    public static SSLEngine serverEngine(SSLContext context)
+    {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+
+        return engine;
+    }
+
+    /**
+     * Creates the engine for a connection to a server, which checks that
+     * the server's certificate is for the given host, like HTTPS does.
+     *
+     * Sessions are cached by host and port, so with resume a later
+     * connection to the same server can resume this one's session. Without
+     * it, the host is only sent as the server name, and a full handshake is
+     * done every time.
+     *
+     * @param context The client's context.
+     * @param host The server's host name.
+     * @param port The server's port.
+     * @param resume Whether to offer the last session with this host and port.
+     * @return The engine, in client mode.
+     */
+    public static SSLEngine clientEngine(SSLContext context, String host, int port, boolean resume)
+    {
+        SSLEngine engine = resume ? context.createSSLEngine(host, port) : context.createSSLEngine();
+        engine.setUseClientMode(true);
+
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        parameters.setServerNames(List.of(new SNIHostName(host)));
+        engine.setSSLParameters(parameters);
+
+        return engine;
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.Executor;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * TLS over a non-blocking socket channel, driven by an SSLEngine.
+ *
+ * The engine only turns bytes into other bytes, so this class does the rest
+ * without ever waiting: reads take whatever ciphertext the socket has,
+ * decrypt every complete record and hand out the plaintext, and writes
+ * encrypt everything they are given into as few records as fit and send
+ * them with one write. The handshake is carried along by both, a step at a
+ * time, as the peer's messages arrive and the socket takes ours.
+ *
+ * The expensive steps of a handshake (key exchange and signatures) are the
+ * engine's delegated tasks. Given an executor, they run there instead of on
+ * the caller's thread, so an event loop keeps serving its other connections
+ * while a handshake is computed, and the loop is told when it can carry on.
+ * Without one they run inline, which suits clients with a single connection.
+ *
+ * The buffers start small and only grow when a record bigger than them comes
+ * along, so idle connections stay cheap. Must only be used by one thread at
+ * a time, the event loop's.
+ */
+public class TlsChannel implements ReadableByteChannel
+{
+    /** Size every buffer starts with. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ByteBuffer[] NOTHING = new ByteBuffer[0];
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    /** Where delegated tasks run, or null to run them inline. */
+    private final Executor executor;
+    /** Called from the executor once the delegated tasks are done. */
+    private final Runnable onTasksDone;
+
+    // all three buffers are kept ready to be written to between calls
+    /** Ciphertext read from the socket and not yet decrypted. */
+    private ByteBuffer netIn = ByteBuffer.allocate(INITIAL_CAPACITY);
+    /** Ciphertext waiting for the socket to take it. */
+    private ByteBuffer netOut = ByteBuffer.allocate(INITIAL_CAPACITY);
+    /** Plaintext decrypted and not yet read. */
+    private ByteBuffer appIn = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    private boolean established = false;
+    private boolean tasksRunning = false;
+    /** Set when decrypting stopped because unread plaintext left no room for the next record. */
+    private boolean stalled = false;
+    /** Set once the peer closed the connection or sent close_notify. */
+    private boolean ended = false;
+
+    /**
+     * Starts the handshake on a connected channel.
+     *
+     * @param channel The socket channel, connected.
+     * @param engine The engine, in client or server mode.
+     * @param executor Where the handshake's delegated tasks run, or null to
+     *        run them on the caller's thread.
+     * @param onTasksDone Called on the executor once they are done, after
+     *        which resume() must be called on the channel's thread. Not used
+     *        without an executor.
+     * @throws SSLException If the handshake can't be started.
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine, Executor executor, Runnable onTasksDone) throws SSLException
+    {
+        this.channel = channel;
+        this.engine = engine;
+        this.executor = executor;
+        this.onTasksDone = onTasksDone;
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * Checks whether the handshake is over and data can flow.
+     *
+     * @return true once the first handshake has finished.
+     */
+    public boolean isEstablished()
+    {
+        return established;
+    }
+
+    /**
+     * Checks whether there is ciphertext the socket hasn't taken yet, in
+     * which case the caller should flush() once the socket is writable.
+     *
+     * @return true if output is waiting for the socket.
+     */
+    public boolean hasPendingOutput()
+    {
+        return netOut.position() > 0;
+    }
+
+    /**
+     * Checks whether there is plaintext to read without the socket having
+     * anything new, because it didn't fit in the last read's buffer.
+     *
+     * @return true if read() has more to give.
+     */
+    public boolean hasBuffered()
+    {
+        return appIn.position() > 0 || stalled;
+    }
+
+    /**
+     * Reads from the socket, decrypts what it can and moves the plaintext
+     * into the given buffer, carrying the handshake along if need be.
+     *
+     * @param dst Where the plaintext goes.
+     * @return The number of plaintext bytes read, possibly 0, or -1 once the
+     *         peer has closed the connection and everything has been read.
+     * @throws IOException If reading fails or the peer's data is not valid TLS.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (appIn.position() == 0)
+        {
+            if (!ended && channel.read(netIn) < 0) ended = true;
+
+            process();
+        }
+
+        appIn.flip();
+
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+
+        appIn.compact();
+
+        if (count == 0 && ended && appIn.position() == 0 && !stalled) return -1;
+
+        return count;
+    }
+
+    /**
+     * Encrypts as much of the given buffers as it can and writes the records
+     * to the socket, in a single write.
+     *
+     * Nothing is taken until the handshake is over, or while ciphertext
+     * written earlier is still waiting for the socket.
+     *
+     * @param srcs The plaintext, consumed as it is encrypted.
+     * @return The number of plaintext bytes taken.
+     * @throws IOException If writing fails, or the connection is closed.
+     */
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        if (!flush() || !established || tasksRunning) return 0;
+
+        long consumed = wrap(srcs);
+        flushOutput();
+
+        return consumed;
+    }
+
+    /**
+     * Writes out any ciphertext waiting for the socket and carries the
+     * handshake along, if one is going on.
+     *
+     * @return true if nothing is left waiting for the socket.
+     * @throws IOException If writing fails or the handshake fails.
+     */
+    public boolean flush() throws IOException
+    {
+        if (!flushOutput()) return false;
+
+        if (!established) process();
+
+        return netOut.position() == 0;
+    }
+
+    /**
+     * Carries on after the delegated tasks are done. Must be called on the
+     * channel's thread, followed by read() and flush() to take the
+     * handshake further.
+     */
+    public void resume()
+    {
+        tasksRunning = false;
+    }
+
+    /**
+     * Checks whether the socket is still open.
+     *
+     * @return true until the channel is closed.
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Tells the peer the connection is closing, as far as the socket takes
+     * it without waiting, and closes the socket.
+     *
+     * @throws IOException If the socket can't be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (!tasksRunning)
+            {
+                engine.closeOutbound();
+                wrap(NOTHING);
+                flushOutput();
+            }
+        }
+        catch (IOException e)
+        {
+            // the peer is usually gone already, closing the socket is all that matters
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Takes the engine as far as it goes without waiting on the peer, the
+     * socket or a delegated task: decrypting what has arrived and sending
+     * the handshake messages it asks for.
+     *
+     * @throws IOException If the handshake fails or the socket can't be written.
+     */
+    private void process() throws IOException
+    {
+        while (!tasksRunning)
+        {
+            HandshakeStatus status = engine.getHandshakeStatus();
+
+            if (status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED) established = true;
+
+            switch (status)
+            {
+                case NEED_TASK -> runTasks();
+                case NEED_WRAP ->
+                {
+                    wrap(NOTHING);
+
+                    // wait for the socket to be writable before going on
+                    if (!flushOutput() || engine.isOutboundDone()) return;
+                }
+                default ->
+                {
+                    if (!unwrap()) return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts the next record that has fully arrived.
+     *
+     * @return true if something was decrypted and there may be more.
+     * @throws IOException If the record is not valid TLS.
+     */
+    private boolean unwrap() throws IOException
+    {
+        SSLEngineResult result;
+
+        netIn.flip();
+
+        try
+        {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally
+        {
+            netIn.compact();
+        }
+
+        switch (result.getStatus())
+        {
+            case BUFFER_OVERFLOW ->
+            {
+                // let the reader make room before decrypting more
+                if (appIn.position() > 0)
+                {
+                    stalled = true;
+                    return false;
+                }
+
+                appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            }
+            case BUFFER_UNDERFLOW ->
+            {
+                // the rest of the record hasn't arrived, and may not fit when it does
+                if (!netIn.hasRemaining()) netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+
+                stalled = false;
+                return false;
+            }
+            case CLOSED ->
+            {
+                ended = true;
+                stalled = false;
+                return false;
+            }
+            default ->
+            {
+                stalled = false;
+                return result.bytesConsumed() > 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypts the given buffers into the output, growing it if a record
+     * doesn't fit. With no buffers, produces the handshake or closing
+     * message the engine asks for.
+     *
+     * @param srcs The plaintext.
+     * @return The number of plaintext bytes taken.
+     * @throws IOException If the engine fails or is closed.
+     */
+    private long wrap(ByteBuffer[] srcs) throws IOException
+    {
+        long consumed = 0;
+
+        while (true)
+        {
+            SSLEngineResult result = engine.wrap(srcs, netOut);
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            {
+                netOut = grow(netOut, netOut.position() + engine.getSession().getPacketBufferSize());
+                continue;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && srcs.length > 0)
+            {
+                throw new ClosedChannelException();
+            }
+
+            consumed += result.bytesConsumed();
+
+            if (result.bytesProduced() == 0 || !hasRemaining(srcs)) return consumed;
+        }
+    }
+
+    /**
+     * Writes as much of the waiting ciphertext as the socket takes.
+     *
+     * @return true if all of it was written.
+     * @throws IOException If writing fails.
+     */
+    private boolean flushOutput() throws IOException
+    {
+        if (netOut.position() == 0) return true;
+
+        netOut.flip();
+
+        try
+        {
+            channel.write(netOut);
+        }
+        finally
+        {
+            netOut.compact();
+        }
+
+        return netOut.position() == 0;
+    }
+
+    /**
+     * Hands the engine's delegated tasks to the executor, or runs them if
+     * there is none.
+     */
+    private void runTasks()
+    {
+        if (executor == null)
+        {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+
+            return;
+        }
+
+        tasksRunning = true;
+
+        executor.execute(() ->
+        {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+
+            onTasksDone.run();
+        });
+    }
+
+    /**
+     * Checks whether any of the buffers has bytes left.
+     *
+     * @param buffers The buffers.
+     * @return true if at least one has bytes remaining.
+     */
+    private static boolean hasRemaining(ByteBuffer[] buffers)
+    {
+        for (ByteBuffer buffer : buffers)
+        {
+            if (buffer.hasRemaining()) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Moves a buffer's contents to a larger one.
+     *
+     * @param buffer The buffer, ready to be written to.
+     * @param capacity The least capacity the new buffer needs.
+     * @return The new buffer, ready to be written to after the same contents.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity)
+    {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+
+        buffer.flip();
+        larger.put(buffer);
+
+        return larger;
+    }
+}